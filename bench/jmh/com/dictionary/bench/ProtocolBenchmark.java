@@ -0,0 +1,78 @@
+// Xinyu Wang 1460767
+package com.dictionary.bench;
+
+import com.dictionary.common.BinaryProtocol;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server side cost of one search round trip on the JSON and on the binary protocol:
+ * decode the request bytes, encode the response bytes.
+ * Bytes per request and response of each protocol are printed in the setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+
+    private static final String WORD = "radish";
+    private static final String MEANING = "the pungent usually crisp root of a widely cultivated Eurasian plant (Raphanus sativus) of the mustard family usually eaten raw";
+
+    private byte[] jsonRequest;
+    private ByteBuffer binaryRequest;
+
+    @Setup
+    public void setup() {
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", "search");
+        requestObj.put("word", WORD);
+        requestObj.put("meaning", "");
+        jsonRequest = (requestObj.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+        binaryRequest = BinaryProtocol.encodeRequest(BinaryProtocol.OP_SEARCH, 0, WORD, "");
+
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("status", "success");
+        responseObj.put("meaning", MEANING);
+        int jsonResponse = (responseObj.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8).length;
+        int binaryResponse = BinaryProtocol.encodeResponse(BinaryProtocol.STATUS_SUCCESS, 0, BinaryProtocol.TEXT_MEANING, MEANING).remaining();
+        System.out.println("bytes/request json=" + jsonRequest.length + " binary=" + binaryRequest.remaining()
+                + ", bytes/response json=" + jsonResponse + " binary=" + binaryResponse);
+    }
+
+    @Benchmark
+    public void json(Blackhole blackhole) throws Exception {
+        // request: line bytes -> JSONObject -> fields
+        String line = new String(jsonRequest, 0, jsonRequest.length - 1, StandardCharsets.UTF_8);
+        JSONObject requestObj = (JSONObject) new JSONParser().parse(line);
+        blackhole.consume(requestObj.get("mode"));
+        blackhole.consume(requestObj.get("word"));
+        blackhole.consume(requestObj.get("meaning"));
+        // response: JSONObject -> line bytes
+        JSONObject responseObj = new JSONObject();
+        responseObj.put("status", "success");
+        responseObj.put("meaning", MEANING);
+        blackhole.consume((responseObj.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void binary(Blackhole blackhole) {
+        // request: frame decoded in place, after the length prefix
+        ByteBuffer frame = binaryRequest.duplicate();
+        frame.position(4);
+        BinaryProtocol.Request request = BinaryProtocol.decodeRequest(frame);
+        blackhole.consume(request.opcode);
+        blackhole.consume(request.word);
+        blackhole.consume(request.meaning);
+        // response frame
+        blackhole.consume(BinaryProtocol.encodeResponse(BinaryProtocol.STATUS_SUCCESS, 0, BinaryProtocol.TEXT_MEANING, MEANING));
+    }
+}
@@ -0,0 +1,184 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Searches on a dictionary whose meanings stay in the SQLite file, with a meaning cache of 1%, 10% or 100% of the
+ * size of all meanings. Searched words follow a Zipf distribution, as in real traffic a few words take most of the
+ * searches. The hit ratio of each iteration is printed, with the hit ratio a plain LRU of the same size would have
+ * on the same searches. searchFile reads every word from the file, the cost of a miss.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+
+    private static final int TRACE = 1 << 20;
+    // skew of the searches, as used by YCSB
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    @Param({"1000000"})
+    public int words;
+
+    @Param({"0.01", "0.1", "1"})
+    public double cacheShare;
+
+    private Path dir;
+    private SqliteStorage storage;
+    private WriteBehindQueue writer;
+    private CachedDictionaryStore dictionary;
+    private String[] trace;
+    private int[] traceWeights;
+    private int next;
+    private long hitsBefore;
+    private long missesBefore;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        dir = Files.createTempDirectory("dictionary-cache-bench");
+        storage = new SqliteStorage(dir.resolve("dictionary.db").toString());
+        List<String> all = new ArrayList<>(words);
+        int[] weights = new int[words];
+        List<Mutation> batch = new ArrayList<>();
+        long totalWeight = 0;
+        for (int w = 0; w < words; w++) {
+            String word = "word" + w;
+            List<String> meanings = new ArrayList<>();
+            for (int m = 1 + random.nextInt(3); m > 0; m--) {
+                meanings.add(randomText(random, 30 + random.nextInt(120)));
+            }
+            Meanings entry = Meanings.of(meanings);
+            weights[w] = WordCache.weigh(word, entry);
+            totalWeight += weights[w];
+            all.add(word);
+            batch.add(Mutation.add(word, entry));
+            if (batch.size() == 10000) {
+                storage.writeBatch(batch);
+                batch.clear();
+            }
+        }
+        storage.writeBatch(batch);
+
+        RequestLog log = new RequestLog(1024);
+        writer = new WriteBehindQueue(storage, log, 1024);
+        long cacheBytes = (long) (totalWeight * cacheShare);
+        dictionary = new CachedDictionaryStore(cacheBytes);
+        dictionary.load(storage, writer);
+
+        // popularity unrelated to the order of the words in the file
+        List<Integer> ranked = new ArrayList<>(words);
+        for (int w = 0; w < words; w++) {
+            ranked.add(w);
+        }
+        Collections.shuffle(ranked, random);
+        double[] cumulative = new double[words];
+        double sum = 0;
+        for (int rank = 0; rank < words; rank++) {
+            sum += 1 / Math.pow(rank + 1, ZIPF_EXPONENT);
+            cumulative[rank] = sum;
+        }
+        trace = new String[TRACE];
+        traceWeights = new int[TRACE];
+        for (int i = 0; i < TRACE; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            int w = ranked.get(rank < 0 ? -rank - 1 : rank);
+            trace[i] = all.get(w);
+            traceWeights[i] = weights[w];
+        }
+        System.out.printf("%n%d words, %d MB of meanings, cache of %d MB, plain LRU hit ratio %.1f%%%n", words,
+                totalWeight >> 20, cacheBytes >> 20, lruHitRatio(cacheBytes) * 100);
+    }
+
+    private static String randomText(Random random, int length) {
+        char[] text = new char[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = random.nextInt(6) == 0 ? ' ' : (char) ('a' + random.nextInt(26));
+        }
+        return new String(text);
+    }
+
+    /**
+     * Replay the searches twice on a size bounded LRU, counting the hits of the second pass once it is warm
+     */
+    private double lruHitRatio(long maximum) {
+        Map<String, Integer> weights = new LinkedHashMap<>(16, 0.75f, true);
+        long weight = 0;
+        long hits = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < TRACE; i++) {
+                if (weights.get(trace[i]) != null) {
+                    if (pass == 1) {
+                        hits++;
+                    }
+                    continue;
+                }
+                weights.put(trace[i], traceWeights[i]);
+                weight += traceWeights[i];
+                while (weight > maximum) {
+                    Map.Entry<String, Integer> eldest = weights.entrySet().iterator().next();
+                    weight -= eldest.getValue();
+                    weights.remove(eldest.getKey());
+                }
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        hitsBefore = dictionary.cache().getHitCount();
+        missesBefore = dictionary.cache().getMissCount();
+    }
+
+    @TearDown(Level.Iteration)
+    public void endIteration() {
+        long hits = dictionary.cache().getHitCount() - hitsBefore;
+        long misses = dictionary.cache().getMissCount() - missesBefore;
+        System.out.printf("  hit ratio %.1f%%, %d evictions so far, ", 100.0 * hits / Math.max(1, hits + misses),
+                dictionary.cache().getEvictionCount());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        storage.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private int nextSearch() {
+        next = (next + 1) & (TRACE - 1);
+        return next;
+    }
+
+    @Benchmark
+    public Meanings search() {
+        return dictionary.get(trace[nextSearch()]);
+    }
+
+    @Benchmark
+    public Meanings searchFile() throws IOException {
+        return writer.read(trace[nextSearch()]);
+    }
+}
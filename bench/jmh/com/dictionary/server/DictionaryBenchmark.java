@@ -0,0 +1,123 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Searches, new words and new meanings on synthetic dictionaries of 10k, 1M and 10M words, through the whole
+ * in-order request path: parse the request line, lock, change memory, queue for the dictionary file, encode the
+ * response. With durability=commit (the default of the server) a write also waits for its transaction, run with
+ * -t to see writers share commits; -p durability=enqueue only waits for the queue.
+ * 10M words need a heap of about 16 GB, add -jvmArgsAppend -Xmx16g.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DictionaryBenchmark {
+
+    // searched and updated words, chosen in the setup so requests cost the same in every run
+    private static final int REQUESTS = 1 << 16;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int words;
+
+    @Param({"commit"})
+    public String durability;
+
+    private Path dir;
+    private SqliteStorage storage;
+    private WriteBehindQueue writer;
+    private DictionaryServer server;
+    private String[] searches;
+    private String[] updatedWords;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /**
+     * Connection of one benchmark thread, its session parses requests and encodes responses
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        int number;
+        long next;
+        ClientSession session;
+
+        @Setup
+        public void setup(DictionaryBenchmark benchmark) {
+            number = benchmark.connections.getAndIncrement();
+            session = new ClientSession(InetAddress.getLoopbackAddress(), 50000 + number) {
+                @Override
+                void send(ByteBuffer response) {
+                }
+
+                @Override
+                void close() {
+                }
+            };
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dictionary-bench");
+        String file = dir.resolve("dictionary.db").toString();
+        SyntheticDictionary.create(file, words, SyntheticDictionary.DEFAULT_SEED);
+        storage = new SqliteStorage(file);
+        RequestLog log = new RequestLog(8192);
+        // log enabled, messages discarded by the log thread
+        log.addSink(batch -> { });
+        writer = new WriteBehindQueue(storage, log, 1024);
+        server = new DictionaryServer(new DictionaryStore(), log, storage, writer, durability.equals("commit"));
+        server.reloadDicFromDB();
+        Random random = new Random(SyntheticDictionary.DEFAULT_SEED);
+        searches = new String[REQUESTS];
+        updatedWords = new String[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            searches[i] = "{\"mode\":\"search\",\"word\":\"" + SyntheticDictionary.word(random.nextInt(words)) + "\",\"meaning\":\"\"}";
+            updatedWords[i] = SyntheticDictionary.word(random.nextInt(words));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.awaitFlushed();
+        storage.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public ByteBuffer searchWord(Connection connection) throws Exception {
+        return server.handle(searches[(int) connection.next++ & (REQUESTS - 1)], connection.session);
+    }
+
+    @Benchmark
+    public ByteBuffer addWord(Connection connection) throws Exception {
+        String word = "added" + connection.number + "-" + connection.next++;
+        return server.handle("{\"mode\":\"add\",\"word\":\"" + word + "\",\"meaning\":\"meaning of " + word + "\"}", connection.session);
+    }
+
+    @Benchmark
+    public ByteBuffer updateWord(Connection connection) throws Exception {
+        // threads start at different words, a meaning is never added twice
+        long n = connection.next++;
+        String word = updatedWords[(int) (n + connection.number * 7919L) & (REQUESTS - 1)];
+        return server.handle("{\"mode\":\"update\",\"word\":\"" + word + "\",\"meaning\":\"added meaning " + connection.number + "-" + n + "\"}", connection.session);
+    }
+}
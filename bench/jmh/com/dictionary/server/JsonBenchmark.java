@@ -0,0 +1,72 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON cost of the server alone: parse a request line with the parser of a session, and encode responses
+ * with the {@link ResponseWriter} of a session, for a meaning, a word lookup and a multi_search of 10 words.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonBenchmark {
+
+    private static final String MEANING = "the pungent usually crisp root of a widely cultivated Eurasian plant (Raphanus sativus) of the mustard family usually eaten raw";
+    private static final String SEARCH = "{\"mode\":\"search\",\"word\":\"radish\",\"meaning\":\"\",\"id\":42}";
+    private static final String ADD = "{\"mode\":\"add\",\"word\":\"radish\",\"meaning\":\"" + MEANING + "\\nanother meaning\"}";
+
+    private final JSONParser parser = new JSONParser();
+    private final ResponseWriter writer = new ResponseWriter();
+    private Response meaning;
+    private Response words;
+    private Response results;
+
+    @Setup
+    public void setup() {
+        meaning = Response.meaning(MEANING);
+        words = Response.words(Arrays.asList("radish", "radishes", "radium", "radius", "radix", "radon", "raddle", "radial", "radiant", "radiate"));
+        List<Response> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add(i % 2 == 0 ? meaning : Response.fail("Word word" + i + " not found in dictionary!"));
+        }
+        results = Response.results(items);
+    }
+
+    @Benchmark
+    public Object parseSearch() throws ParseException {
+        return ((JSONObject) parser.parse(SEARCH)).get("word");
+    }
+
+    @Benchmark
+    public Object parseAdd() throws ParseException {
+        return ((JSONObject) parser.parse(ADD)).get("meaning");
+    }
+
+    @Benchmark
+    public ByteBuffer serializeMeaning() {
+        return writer.json(meaning, 42L);
+    }
+
+    @Benchmark
+    public ByteBuffer serializeWords() {
+        return writer.json(words, null);
+    }
+
+    @Benchmark
+    public ByteBuffer serializeMultiSearch() {
+        return writer.json(results, null);
+    }
+}
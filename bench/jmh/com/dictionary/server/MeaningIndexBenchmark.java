@@ -0,0 +1,96 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-text search over meanings with the inverted index against a scan tokenizing every meaning.
+ * Meanings are 5 to 30 terms drawn from a Zipf distributed vocabulary, like natural text, and queries are
+ * two terms of a random meaning. Each search returns the first page of 10 words.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx3g")
+@State(Scope.Benchmark)
+public class MeaningIndexBenchmark {
+
+    private static final int LIMIT = 10;
+    private static final int QUERIES = 1024;
+    private static final int VOCABULARY = 50000;
+
+    @Param({"100000", "1000000"})
+    public int words;
+
+    private Map<String, String> entries;
+    private Map<String, Meanings> meanings;
+    private MeaningIndex index;
+    private String[] queries;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        // cumulative Zipf weights, term i is about i times rarer than the most common one
+        double[] cumulative = new double[VOCABULARY];
+        double sum = 0;
+        for (int i = 0; i < VOCABULARY; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        entries = new HashMap<>();
+        meanings = new HashMap<>();
+        List<String> texts = new ArrayList<>();
+        for (int w = 0; w < words; w++) {
+            StringBuilder meaning = new StringBuilder();
+            for (int t = 5 + random.nextInt(26); t > 0; t--) {
+                int term = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                meaning.append("t").append(term < 0 ? -term - 1 : term).append(t % 7 == 0 ? ".\n" : " ");
+            }
+            entries.put("word" + w, meaning.toString());
+            meanings.put("word" + w, Meanings.parse(meaning.toString()));
+            texts.add(meaning.toString());
+        }
+        long start = System.nanoTime();
+        index = MeaningIndex.of(meanings);
+        System.out.printf("%nbuilt in %d ms, %d bytes of postings%n", (System.nanoTime() - start) / 1000000, index.postingsBytes());
+
+        queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            List<String> terms = MeaningIndex.tokenize(texts.get(random.nextInt(texts.size())));
+            queries[i] = terms.get(random.nextInt(terms.size())) + " " + terms.get(random.nextInt(terms.size()));
+        }
+    }
+
+    private int nextQuery() {
+        next = (next + 1) & (QUERIES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public List<String> searchIndex() {
+        return index.search(queries[nextQuery()], 0, LIMIT).words;
+    }
+
+    @Benchmark
+    public List<String> searchScan() {
+        List<String> queryTerms = MeaningIndex.tokenize(queries[nextQuery()]);
+        // unranked, so cheaper than the index: only counts and keeps the first page
+        List<String> found = new ArrayList<>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (MeaningIndex.tokenize(entry.getValue()).containsAll(queryTerms) && found.size() < LIMIT) {
+                found.add(entry.getKey());
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,57 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time of a full reload of synthetic dictionaries of 10k, 1M and 10M words from the SQLite file into memory,
+ * the same as on start: read every row, then build the word and meaning indexes before the swap.
+ * 10M words need a heap of about 16 GB, add -jvmArgsAppend -Xmx16g.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReloadBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int words;
+
+    private Path dir;
+    private SqliteStorage storage;
+    private DictionaryServer server;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("dictionary-bench");
+        String file = dir.resolve("dictionary.db").toString();
+        SyntheticDictionary.create(file, words, SyntheticDictionary.DEFAULT_SEED);
+        storage = new SqliteStorage(file);
+        RequestLog log = new RequestLog(1024);
+        server = new DictionaryServer(new DictionaryStore(), log, storage, new WriteBehindQueue(storage, log, 1024), true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        storage.close();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public void reloadDicFromDB() {
+        server.reloadDicFromDB();
+    }
+}
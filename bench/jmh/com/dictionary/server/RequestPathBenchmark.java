@@ -0,0 +1,63 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import com.dictionary.common.BinaryProtocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of answering one in-order request on the server, from the decoded request line or frame
+ * to the encoded response, with logging enabled. Run with -prof gc for the allocations per request.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestPathBenchmark {
+
+    private static final String SEARCH_HIT = "{\"mode\":\"search\",\"word\":\"radish\",\"meaning\":\"\"}";
+    private static final String SEARCH_MISS = "{\"mode\":\"search\",\"word\":\"turnip\",\"meaning\":\"\"}";
+    private static final BinaryProtocol.Request BINARY_SEARCH_HIT = new BinaryProtocol.Request(BinaryProtocol.OP_SEARCH, 0, "radish", "");
+
+    private DictionaryServer server;
+    private ClientSession session;
+
+    @Setup
+    public void setup() {
+        DictionaryStore dictionary = new DictionaryStore();
+        dictionary.put("radish", Meanings.of("the pungent usually crisp root of a widely cultivated Eurasian plant (Raphanus sativus) of the mustard family usually eaten raw"));
+        // log enabled, messages discarded by the log thread
+        RequestLog log = new RequestLog(8192);
+        log.addSink(batch -> { });
+        server = new DictionaryServer(dictionary, log);
+        session = new ClientSession(InetAddress.getLoopbackAddress(), 50000) {
+            @Override
+            void send(ByteBuffer response) {
+            }
+
+            @Override
+            void close() {
+            }
+        };
+    }
+
+    @Benchmark
+    public ByteBuffer jsonSearchHit() throws Exception {
+        return server.handle(SEARCH_HIT, session);
+    }
+
+    @Benchmark
+    public ByteBuffer jsonSearchMiss() throws Exception {
+        return server.handle(SEARCH_MISS, session);
+    }
+
+    @Benchmark
+    public ByteBuffer binarySearchHit() throws Exception {
+        return server.handleBinary(BINARY_SEARCH_HIT, session);
+    }
+}
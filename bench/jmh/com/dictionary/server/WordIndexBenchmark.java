@@ -0,0 +1,181 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Prefix, wildcard and fuzzy lookups on the trie index against a naive scan of every word.
+ * Words are built from syllables, closer to a real dictionary, or from random letters, the worst case for
+ * the trie as every short prefix exists. Each lookup returns at most 10 words.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx3g")
+@State(Scope.Benchmark)
+public class WordIndexBenchmark {
+
+    private static final int LIMIT = 10;
+    private static final int QUERIES = 1024;
+
+    private static final String[] ONSETS = {"", "b", "c", "d", "f", "g", "h", "j", "k", "l", "m", "n", "p", "r", "s", "t", "v", "w",
+            "st", "tr", "pl", "ch", "sh", "br", "gr", "cl"};
+    private static final String[] VOWELS = {"a", "e", "i", "o", "u", "ea", "ou", "io", "y"};
+    private static final String[] CODAS = {"", "", "", "n", "r", "s", "t", "l", "m", "nd", "st", "ck"};
+
+    @Param({"100000", "1000000"})
+    public int words;
+
+    @Param({"syllables", "letters"})
+    public String shape;
+
+    private ConcurrentHashMap<String, String> entries;
+    private WordIndex index;
+    private String[] prefixes;
+    private String[] patterns;
+    private Pattern[] regexes;
+    private String[] typos;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        entries = new ConcurrentHashMap<>();
+        while (entries.size() < words) {
+            entries.put(shape.equals("letters") ? randomLetters(random) : randomSyllables(random), "meaning");
+        }
+        index = WordIndex.of(entries.keySet());
+
+        List<String> sample = new ArrayList<>(entries.keySet());
+        Collections.shuffle(sample, random);
+        prefixes = new String[QUERIES];
+        patterns = new String[QUERIES];
+        regexes = new Pattern[QUERIES];
+        typos = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            String word = sample.get(i);
+            prefixes[i] = word.substring(0, Math.min(3, word.length()));
+            // "ab?d*": one unknown letter and any ending
+            patterns[i] = word.charAt(0) + "" + word.charAt(1 % word.length()) + "?" + word.charAt(3 % word.length()) + "*";
+            regexes[i] = Pattern.compile(patterns[i].replace("?", ".").replace("*", ".*"));
+            // one letter replaced
+            char[] letters = word.toCharArray();
+            letters[random.nextInt(letters.length)] = (char) ('a' + random.nextInt(26));
+            typos[i] = new String(letters);
+        }
+    }
+
+    private static String randomSyllables(Random random) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 1 + random.nextInt(4); i > 0; i--) {
+            word.append(ONSETS[random.nextInt(ONSETS.length)]).append(VOWELS[random.nextInt(VOWELS.length)])
+                    .append(CODAS[random.nextInt(CODAS.length)]);
+        }
+        return word.toString();
+    }
+
+    private static String randomLetters(Random random) {
+        char[] letters = new char[3 + random.nextInt(10)];
+        for (int i = 0; i < letters.length; i++) {
+            letters[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(letters);
+    }
+
+    private int nextQuery() {
+        next = (next + 1) & (QUERIES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public List<String> prefixIndex() {
+        return index.prefix(prefixes[nextQuery()], LIMIT);
+    }
+
+    @Benchmark
+    public List<String> prefixScan() {
+        String prefix = prefixes[nextQuery()];
+        List<String> found = new ArrayList<>();
+        for (String word : entries.keySet()) {
+            if (word.startsWith(prefix)) {
+                found.add(word);
+            }
+        }
+        Collections.sort(found);
+        return found.subList(0, Math.min(LIMIT, found.size()));
+    }
+
+    @Benchmark
+    public List<String> wildcardIndex() {
+        return index.wildcard(patterns[nextQuery()], LIMIT);
+    }
+
+    @Benchmark
+    public List<String> wildcardScan() {
+        Pattern regex = regexes[nextQuery()];
+        List<String> found = new ArrayList<>();
+        for (String word : entries.keySet()) {
+            if (regex.matcher(word).matches()) {
+                found.add(word);
+            }
+        }
+        Collections.sort(found);
+        return found.subList(0, Math.min(LIMIT, found.size()));
+    }
+
+    @Benchmark
+    public List<String> fuzzyOneEditIndex() {
+        return index.fuzzy(typos[nextQuery()], 1, 0, LIMIT);
+    }
+
+    @Benchmark
+    public List<String> fuzzyIndex() {
+        // as served: two edits keep the first letter
+        return index.fuzzy(typos[nextQuery()], 2, 1, LIMIT);
+    }
+
+    @Benchmark
+    public List<String> fuzzyScan() {
+        String typo = typos[nextQuery()];
+        List<String> found = new ArrayList<>();
+        for (String word : entries.keySet()) {
+            if (word.charAt(0) == typo.charAt(0) && Math.abs(word.length() - typo.length()) <= 2 && distance(word, typo) <= 2) {
+                found.add(word);
+            }
+        }
+        // closest first, the same order as the index
+        found.sort((a, b) -> {
+            int byDistance = Integer.compare(distance(a, typo), distance(b, typo));
+            return byDistance != 0 ? byDistance : a.compareTo(b);
+        });
+        return found.subList(0, Math.min(LIMIT, found.size()));
+    }
+
+    private static int distance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            row[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int replace = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                row[j] = Math.min(replace, Math.min(previous[j] + 1, row[j - 1] + 1));
+            }
+            int[] swap = previous;
+            previous = row;
+            row = swap;
+        }
+        return previous[b.length()];
+    }
+}
@@ -0,0 +1,108 @@
+#!/usr/bin/env bash
+# Xinyu Wang 1460767
+#
+# Build the benchmark module, run the JMH benchmarks, measure the memory held by each store and run a load
+# test against a real server on a synthetic dictionary, and write everything with the machine and commit
+# details to reports/<date>-<commit>/.
+# The benchmarks, parameters, dictionary and request seed are fixed, so two reports differ only by the code
+# and the machine; --compare prints the JMH scores of two reports side by side.
+#
+# Usage: bench/report.sh [--quick | --full]
+#        bench/report.sh --compare <old-report-dir> <new-report-dir>
+#   --quick  10k word dictionaries and a short load test, to check a change before a full run
+#   --full   adds the 10M word dictionaries, with a 16 GB heap for the benchmark JVMs
+set -euo pipefail
+
+cd "$(dirname "$0")"
+
+compare() {
+    # key: benchmark name and parameters, value: score
+    scores() {
+        awk '/^Benchmark/ { table = 1; next } table && NF >= 4 {
+            mode = 0
+            for (i = 2; i <= NF; i++) if ($i ~ /^(avgt|thrpt|ss|sample)$/) { mode = i; break }
+            if (!mode) next
+            key = $1; for (i = 2; i < mode; i++) key = key " " $i
+            # the error column follows a plus-minus sign, printed as ? without a UTF-8 locale
+            score = ($(NF - 2) == "\302\261" || $(NF - 2) == "?") ? $(NF - 3) : $(NF - 1)
+            print key "\t" score "\t" $NF }' "$1/jmh.txt"
+    }
+    join -t $'\t' <(scores "$1" | sort) <(scores "$2" | sort) |
+        awk -F '\t' 'BEGIN { printf "%-70s %12s %12s %8s\n", "benchmark", "old", "new", "new/old" }
+            { printf "%-70s %12s %12s %8.2f %s\n", $1, $2, $4, ($2 > 0 ? $4 / $2 : 0), $5 }'
+}
+
+if [ "${1:-}" = "--compare" ]; then
+    compare "$2" "$3"
+    exit 0
+fi
+
+MODE=${1:-standard}
+BENCHMARKS='DictionaryBenchmark|ReloadBenchmark|JsonBenchmark|RequestPathBenchmark|ProtocolBenchmark'
+JMH_ARGS=(-p words=10000,1000000)
+LOAD_WORDS=100000
+# the published footprint figures are from the standard run
+FOOTPRINT_WORDS=1000000
+LOAD_SECONDS=30
+LOAD_WARMUP=10
+if [ "$MODE" = "--quick" ]; then
+    JMH_ARGS=(-p words=10000 -wi 1 -i 3)
+    FOOTPRINT_WORDS=100000
+    LOAD_SECONDS=10
+    LOAD_WARMUP=3
+elif [ "$MODE" = "--full" ]; then
+    JMH_ARGS=(-p words=10000,1000000,10000000 -jvmArgsAppend -Xmx16g)
+fi
+PORT=${PORT:-3701}
+METRICS_PORT=${METRICS_PORT:-3702}
+
+mvn -B -q package
+JAR=target/benchmarks.jar
+OUT=reports/$(date +%Y%m%d-%H%M%S)-$(git rev-parse --short HEAD)
+mkdir -p "$OUT"
+
+{
+    echo "commit: $(git rev-parse HEAD)$( [ -n "$(git status --porcelain -- ../src .)" ] && echo ' (uncommitted changes)')"
+    echo "date: $(date -u +%Y-%m-%dT%H:%M:%SZ)"
+    echo "mode: $MODE"
+    echo "java: $(java -version 2>&1 | head -1)"
+    echo "os: $(uname -sr)"
+    echo "cpus: $(nproc) ($(grep -m1 'model name' /proc/cpuinfo 2>/dev/null | cut -d: -f2 | xargs))"
+    echo "memory: $(awk '/MemTotal/ { print int($2 / 1024) " MB" }' /proc/meminfo 2>/dev/null)"
+} > "$OUT/environment.txt"
+cat "$OUT/environment.txt"
+
+# microbenchmarks
+java -jar "$JAR" "$BENCHMARKS" "${JMH_ARGS[@]}" -rf json -rff "$OUT/jmh.json" | tee "$OUT/jmh.txt"
+
+# memory held by each store, each in a JVM of its own with the same heap limit
+for STORE in map compact; do
+    java -Xmx4g -cp "$JAR" com.dictionary.server.StoreFootprint "$FOOTPRINT_WORDS" "$STORE" | tee -a "$OUT/footprint.txt"
+done
+
+# load test, each protocol on a fresh copy of the same synthetic dictionary
+DIR=$(mktemp -d)
+SERVER=
+trap 'kill $SERVER 2>/dev/null || true; rm -rf "$DIR"' EXIT
+java -cp "$JAR" com.dictionary.server.SyntheticDictionary "$DIR/synthetic.db" "$LOAD_WORDS"
+for PROTOCOL in json binary; do
+    cp "$DIR/synthetic.db" "$DIR/dictionary.db"
+    java -cp "$JAR" com.dictionary.server.DictionaryServer "$PORT" "$DIR/dictionary.db" --headless \
+        --metrics-port="$METRICS_PORT" > "$OUT/server-$PROTOCOL.log" 2>&1 &
+    SERVER=$!
+    # the port is bound at once, wait until the words are in memory
+    until grep -q "^Loaded " "$OUT/server-$PROTOCOL.log" &&
+            curl -s "localhost:$METRICS_PORT/metrics" | grep -q "^dictionary_indexing_meanings 0"; do
+        kill -0 $SERVER || { cat "$OUT/server-$PROTOCOL.log"; exit 1; }
+        sleep 0.2
+    done
+    echo "load test, $PROTOCOL protocol" | tee -a "$OUT/load.txt"
+    java -cp "$JAR" com.dictionary.bench.LoadGenerator localhost "$PORT" 100 8 "$LOAD_SECONDS" \
+        --protocol=$PROTOCOL --mix=search:90,add:5,update:5 --words=$LOAD_WORDS --zipf=0.99 \
+        --warmup=$LOAD_WARMUP --seed=42 | tee -a "$OUT/load.txt"
+    curl -s "localhost:$METRICS_PORT/metrics" > "$OUT/metrics-$PROTOCOL.txt"
+    kill $SERVER
+    wait $SERVER || true
+done
+
+echo "Report written to bench/$OUT"
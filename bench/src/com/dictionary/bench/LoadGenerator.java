@@ -0,0 +1,422 @@
+// Xinyu Wang 1460767
+package com.dictionary.bench;
+
+import com.dictionary.common.BinaryProtocol;
+import com.dictionary.common.ShardMap;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load test for the dictionary server: keeps many mostly idle connections open while a few
+ * of them send requests back to back, then reports connection count, throughput and latency percentiles
+ * of each operation.
+ * <p>
+ * Without options every active connection searches the given word. Options make a reproducible mix:
+ * --mix gives the share of searches, new words and new meanings, --words picks searched and updated words
+ * among word0..word(n-1) of a {@code SyntheticDictionary}, uniformly or following a Zipf distribution with
+ * --zipf, and each connection draws from its own generator seeded from --seed, so two runs send the same requests.
+ * --rate paces each connection to a fixed request rate and measures latency from the time a request was due,
+ * so a stalled server is not hidden by connections waiting for it. Requests during --warmup are not counted.
+ * <p>
+ * With --cluster the host and port are replaced by the topology file of a sharded dictionary: idle connections
+ * are spread over the shards, each active connection opens one socket per shard and sends each request to the
+ * shard owning its word. A request answered moved is sent again once the topology file is read again, and its
+ * latency includes the retries.
+ * Requests answered busy by a server shedding load count as failed and are also reported on their own.
+ * Format: java com.dictionary.bench.LoadGenerator <host> <port> | --cluster=<topology-file> <connections> <active> <seconds> [word] [options]
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = "Format: java com.dictionary.bench.LoadGenerator <host> <port> | --cluster=<topology-file> <connections> <active> <seconds> [word]"
+            + " [--protocol=json|binary] [--mix=search:90,add:5,update:5] [--words=<n>] [--zipf=<exponent>]"
+            + " [--rate=<requests/s per connection>] [--warmup=<seconds>] [--seed=<n>]";
+    private static final String[] OPERATIONS = {"search", "add", "update"};
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_MILLIS = 200;
+
+    private static String host;
+    private static int port;
+    private static boolean binary;
+    // cumulative share of each operation, out of 100
+    private static final int[] mix = new int[OPERATIONS.length];
+    private static int words;
+    private static double[] zipf;
+    private static String word = "apple";
+    private static double rate;
+    private static long seed = 42;
+    // topology of the cluster given by --cluster, null for a single server
+    private static Path topologyFile;
+    private static volatile ShardMap topology;
+    private static final AtomicLong retries = new AtomicLong();
+    private static final AtomicLong busy = new AtomicLong();
+
+    /**
+     * One socket and its streams, reading responses either as lines or as frames
+     */
+    private static class Endpoint {
+        final DataOutputStream out;
+        final DataInputStream in;
+        final BufferedReader lines;
+
+        Endpoint(Socket socket) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            // responses are read either as lines or as frames, never both
+            lines = binary ? null : new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            if (binary) {
+                out.write(BinaryProtocol.HELLO);
+                out.flush();
+                byte[] reply = new byte[BinaryProtocol.HELLO.length];
+                in.readFully(reply);
+                if (!Arrays.equals(reply, BinaryProtocol.HELLO)) {
+                    throw new IOException("Server does not speak the binary protocol");
+                }
+            }
+        }
+
+        /**
+         * @return status of the response, null if the connection was closed
+         */
+        String request(String mode, String target, String meaning) throws IOException {
+            if (binary) {
+                out.write(BinaryProtocol.encodeRequest(BinaryProtocol.opcode(mode), 0, target, meaning).array());
+                out.flush();
+                byte[] frame = new byte[in.readInt()];
+                in.readFully(frame);
+                return BinaryProtocol.statusName(BinaryProtocol.decodeResponse(ByteBuffer.wrap(frame)).status);
+            }
+            out.write(("{\"mode\":\"" + mode + "\",\"word\":\"" + target + "\",\"meaning\":\"" + meaning + "\"}\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String response = lines.readLine();
+            if (response == null) {
+                return null;
+            }
+            int start = response.indexOf("\"status\":\"") + 10;
+            return start < 10 ? "" : response.substring(start, response.indexOf('"', start));
+        }
+    }
+
+    /**
+     * Latencies of one operation on one connection
+     */
+    private static class Samples {
+        long[] nanos = new long[1024];
+        int count;
+        int failures;
+
+        void add(long latency) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latency;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.indexOf('=') > 2) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (options.containsKey("cluster")) {
+            topologyFile = Paths.get(options.get("cluster"));
+            topology = ShardMap.read(topologyFile);
+        } else if (positional.size() >= 2) {
+            host = positional.remove(0);
+            port = Integer.parseInt(positional.remove(0));
+        }
+        if (positional.size() < 3) {
+            System.out.println(USAGE);
+            System.exit(1);
+        }
+        int connections = Integer.parseInt(positional.get(0));
+        int active = Math.min(Integer.parseInt(positional.get(1)), connections);
+        int seconds = Integer.parseInt(positional.get(2));
+        if (positional.size() > 3) {
+            word = positional.get(3);
+        }
+        binary = options.getOrDefault("protocol", "json").equals("binary");
+        parseMix(options.getOrDefault("mix", "search:100"));
+        words = Integer.parseInt(options.getOrDefault("words", "0"));
+        double exponent = Double.parseDouble(options.getOrDefault("zipf", "0"));
+        if (words > 0 && exponent > 0) {
+            zipf = zipfCumulative(words, exponent);
+        }
+        rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "0"));
+        seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+        // open idle connections first, like many GUI clients sitting on the search box
+        List<Socket> sockets = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            try {
+                if (topology != null) {
+                    ShardMap.Shard shard = topology.shards().get(i % topology.shards().size());
+                    sockets.add(new Socket(shard.host, shard.port));
+                } else {
+                    sockets.add(new Socket(host, port));
+                }
+            } catch (IOException e) {
+                System.out.println("Connection " + i + " refused: " + e.getMessage());
+                break;
+            }
+        }
+        long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+        System.out.println("Connections open: " + sockets.size() + " (" + connectMillis + " ms)");
+
+        long measureStart = System.nanoTime() + warmup * 1_000_000_000L;
+        long deadline = measureStart + seconds * 1_000_000_000L;
+        Samples[][] samples = new Samples[Math.min(active, sockets.size())][];
+        CountDownLatch done = new CountDownLatch(samples.length);
+        for (int i = 0; i < samples.length; i++) {
+            int index = i;
+            Socket socket = sockets.get(i);
+            new Thread(() -> {
+                try {
+                    samples[index] = run(index, socket, measureStart, deadline);
+                } catch (IOException e) {
+                    System.out.println("Connection " + index + " failed: " + e.getMessage());
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        System.out.println("Active connections: " + samples.length + ", protocol " + (binary ? "binary" : "json")
+                + (rate > 0 ? ", " + rate + " req/s each" : ", back to back"));
+        System.out.printf("%-8s %10s %10s %9s %9s %9s %9s %9s %9s%n", "op", "requests", "req/s", "failed", "p50 us",
+                "p90 us", "p99 us", "p99.9 us", "max us");
+        long[] all = new long[0];
+        int allFailures = 0;
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            int total = 0;
+            int failures = 0;
+            for (Samples[] connection : samples) {
+                if (connection != null) {
+                    total += connection[op].count;
+                    failures += connection[op].failures;
+                }
+            }
+            if (total == 0) {
+                continue;
+            }
+            long[] latencies = new long[total];
+            int offset = 0;
+            for (Samples[] connection : samples) {
+                if (connection != null) {
+                    System.arraycopy(connection[op].nanos, 0, latencies, offset, connection[op].count);
+                    offset += connection[op].count;
+                }
+            }
+            Arrays.sort(latencies);
+            printRow(OPERATIONS[op], latencies, failures, seconds);
+            all = merge(all, latencies);
+            allFailures += failures;
+        }
+        printRow("all", all, allFailures, seconds);
+        if (busy.get() > 0) {
+            System.out.println("Requests answered busy: " + busy.get());
+        }
+        if (topology != null) {
+            System.out.println("Shards: " + topology.shards().size() + ", requests sent again after a moved response: " + retries.get());
+        }
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Send requests on one connection until the deadline
+     * @param index number of the connection
+     * @param socket connection, left idle with --cluster where each shard gets a socket of its own
+     * @param measureStart time from which latencies are counted
+     * @param deadline time to stop
+     * @return latencies of each operation
+     */
+    private static Samples[] run(int index, Socket socket, long measureStart, long deadline) throws IOException {
+        Samples[] samples = new Samples[OPERATIONS.length];
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            samples[op] = new Samples();
+        }
+        Random random = new Random(seed * 31 + index);
+        // one endpoint per shard, by address
+        Map<String, Endpoint> endpoints = new HashMap<>();
+        Endpoint single = topology == null ? new Endpoint(socket) : null;
+        long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+        long due = System.nanoTime();
+        for (long n = 0; ; n++) {
+            if (interval > 0) {
+                // requests are due at a fixed rate, whether or not the previous one was late
+                due += interval;
+                while (System.nanoTime() < due) {
+                    LockSupport.parkNanos(due - System.nanoTime());
+                }
+            }
+            long start = interval > 0 ? due : System.nanoTime();
+            if (start >= deadline) {
+                break;
+            }
+            int draw = random.nextInt(100);
+            int op = 0;
+            while (draw >= mix[op]) {
+                op++;
+            }
+            String target = pickWord(random);
+            String meaning = "";
+            if (op == 1) {
+                target = "load" + seed + "-" + index + "-" + n;
+                meaning = "meaning of " + target;
+            } else if (op == 2) {
+                meaning = "added meaning " + seed + "-" + index + "-" + n;
+            }
+            String status;
+            if (single != null) {
+                status = single.request(OPERATIONS[op], target, meaning);
+            } else {
+                status = "moved";
+                for (int attempt = 0; "moved".equals(status) && attempt <= MAX_RETRIES; attempt++) {
+                    if (attempt > 0) {
+                        retries.incrementAndGet();
+                        LockSupport.parkNanos(RETRY_MILLIS * 1_000_000);
+                        reloadTopology();
+                    }
+                    ShardMap.Shard shard = topology.owner(target);
+                    Endpoint endpoint = endpoints.get(shard.address());
+                    if (endpoint == null) {
+                        endpoint = new Endpoint(new Socket(shard.host, shard.port));
+                        endpoints.put(shard.address(), endpoint);
+                    }
+                    status = endpoint.request(OPERATIONS[op], target, meaning);
+                }
+            }
+            if (status == null) {
+                break;
+            }
+            boolean success = status.equals("success");
+            long end = System.nanoTime();
+            if (start >= measureStart) {
+                samples[op].add(end - start);
+                if (!success) {
+                    samples[op].failures++;
+                }
+                if (status.equals("busy")) {
+                    busy.incrementAndGet();
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Read the topology file again after a moved response, kept if it can not be read
+     */
+    private static synchronized void reloadTopology() {
+        try {
+            topology = ShardMap.read(topologyFile);
+        } catch (IOException e) {
+            // being written
+        }
+    }
+
+    /**
+     * @return word to search or update
+     */
+    private static String pickWord(Random random) {
+        if (words <= 0) {
+            return word;
+        }
+        if (zipf == null) {
+            return "word" + random.nextInt(words);
+        }
+        int rank = Arrays.binarySearch(zipf, random.nextDouble());
+        return "word" + (rank < 0 ? Math.min(-rank - 1, words - 1) : rank);
+    }
+
+    /**
+     * @param spec operation shares such as search:90,add:5,update:5
+     */
+    private static void parseMix(String spec) {
+        int[] shares = new int[OPERATIONS.length];
+        for (String part : spec.split(",")) {
+            String[] share = part.split(":");
+            int op = Arrays.asList(OPERATIONS).indexOf(share[0]);
+            if (op < 0 || share.length != 2) {
+                System.out.println("Unknown operation in --mix: " + part);
+                System.exit(1);
+            }
+            shares[op] = Integer.parseInt(share[1]);
+        }
+        int sum = 0;
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            sum += shares[op];
+            mix[op] = sum;
+        }
+        if (sum != 100) {
+            System.out.println("Shares of --mix should add up to 100!");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return cumulative probability of each rank, the most popular word first
+     */
+    private static double[] zipfCumulative(int n, double exponent) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int rank = 0; rank < n; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < n; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static void printRow(String op, long[] sorted, int failures, int seconds) {
+        System.out.printf("%-8s %10d %10d %9d %9d %9d %9d %9d %9d%n", op, sorted.length, sorted.length / Math.max(seconds, 1),
+                failures, percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), sorted.length == 0 ? 0 : sorted[sorted.length - 1] / 1000);
+    }
+
+    private static long[] merge(long[] a, long[] b) {
+        long[] merged = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, merged, a.length, b.length);
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * @param sorted sorted latencies in nanoseconds
+     * @param p percentile between 0 and 1
+     * @return latency in microseconds
+     */
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1000;
+    }
+}
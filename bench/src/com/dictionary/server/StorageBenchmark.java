@@ -0,0 +1,101 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compares the SQLite storage with the log storage: cold-start load time, throughput of new words and
+ * throughput of meanings appended to words that already have many.
+ * Format: java com.dictionary.server.StorageBenchmark <words> <writes> <batch-size>
+ */
+public class StorageBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int words = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int writes = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        Path dir = Files.createTempDirectory("dictionary-bench");
+        String sqliteFile = dir.resolve("dictionary.db").toString();
+        String logDir = dir.resolve("store").toString();
+        createSqliteDictionary(sqliteFile, words);
+
+        long start = System.nanoTime();
+        LogStorage.importFrom(sqliteFile, logDir);
+        System.out.printf("import: %d words in %d ms%n", words, (System.nanoTime() - start) / 1_000_000);
+
+        RequestLog log = new RequestLog(1024);
+        System.out.printf("%-8s %12s %16s %16s%n", "storage", "load (ms)", "writes/s", "appends/s");
+        report("sqlite", new SqliteStorage(sqliteFile), new SqliteStorage(sqliteFile), writes, batchSize);
+        report("log", new LogStorage(logDir, log), new LogStorage(logDir, log), writes, batchSize);
+    }
+
+    private static void report(String name, DictionaryStorage coldStorage, DictionaryStorage writeStorage, int writes, int batchSize) throws Exception {
+        HashMap<String, Meanings> entries = new HashMap<>();
+        long start = System.nanoTime();
+        coldStorage.load(entries);
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+        coldStorage.close();
+
+        // the log storage only accepts writes once loaded
+        writeStorage.load(new HashMap<>());
+        List<Mutation> batch = new ArrayList<>(batchSize);
+        start = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            String word = "bench-" + i;
+            batch.add(Mutation.add(word, Meanings.of("meaning of " + word)));
+            if (batch.size() == batchSize || i == writes - 1) {
+                writeStorage.writeBatch(batch);
+                batch.clear();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // grow 10 words to writes / 10 meanings each
+        Meanings[] grown = new Meanings[10];
+        start = System.nanoTime();
+        for (int i = 0; i < writes; i++) {
+            String word = "bench-" + i % grown.length;
+            Meanings existing = grown[i % grown.length] == null ? Meanings.of("meaning of " + word) : grown[i % grown.length];
+            Mutation mutation = Mutation.addMeaning(word, existing, "extra meaning number " + i + " of " + word);
+            grown[i % grown.length] = mutation.meanings;
+            batch.add(mutation);
+            if (batch.size() == batchSize || i == writes - 1) {
+                writeStorage.writeBatch(batch);
+                batch.clear();
+            }
+        }
+        double appendSeconds = (System.nanoTime() - start) / 1e9;
+        writeStorage.close();
+        System.out.printf("%-8s %12d %16.0f %16.0f%n", name, loadMillis, writes / seconds, writes / appendSeconds);
+    }
+
+    private static void createSqliteDictionary(String file, int words) throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file)) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.executeUpdate("CREATE TABLE dictionary (word TEXT NOT NULL CONSTRAINT dictionary_pk PRIMARY KEY, meaning TEXT NOT NULL)");
+            }
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO dictionary (word, meaning) VALUES (?, ?)")) {
+                for (int i = 0; i < words; i++) {
+                    insert.setString(1, "word-" + i);
+                    insert.setString(2, "synthetic meaning number " + i + " used for benchmarking the dictionary storage");
+                    insert.addBatch();
+                    if (i % 10_000 == 9_999) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Measures the memory held by a dictionary store: loads a synthetic dictionary of the given size into
+ * {@link DictionaryStore} or {@link CompactDictionaryStore} as the server does, then prints the heap used after
+ * a full GC, once loaded and once the meanings are indexed, and the resident size of the process at the end.
+ * Heap figures are also given per million words, so runs of different sizes compare. The compact store keeps no
+ * word trie nor meaning index, indexing does not add to its heap. Run each store in a JVM of its own with the
+ * same options, as the resident size never shrinks back once the heap has grown.
+ * Format: java com.dictionary.server.StoreFootprint <words> <map|compact>
+ */
+public class StoreFootprint {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !args[1].matches("map|compact")) {
+            System.out.println("Format: java com.dictionary.server.StoreFootprint <words> <map|compact>");
+            System.exit(1);
+        }
+        int words = Integer.parseInt(args[0]);
+        boolean compact = args[1].equals("compact");
+
+        Path dir = Files.createTempDirectory("dictionary-footprint");
+        Path file = dir.resolve("dictionary.db");
+        SyntheticDictionary.create(file.toString(), words, SyntheticDictionary.DEFAULT_SEED);
+        long baseHeap = usedHeapAfterGc();
+
+        DictionaryStore dictionary = compact ? new CompactDictionaryStore() : new DictionaryStore();
+        SqliteStorage storage = new SqliteStorage(file.toString());
+        WriteBehindQueue writer = new WriteBehindQueue(storage, new RequestLog(1024), 1);
+        long start = System.nanoTime();
+        dictionary.load(storage, writer);
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+        storage.close();
+        long loadedHeap = usedHeapAfterGc() - baseHeap;
+        dictionary.indexMeanings();
+        long indexedHeap = usedHeapAfterGc() - baseHeap;
+
+        double millions = dictionary.size() / 1_000_000.0;
+        System.out.printf("%-8s %10s %10s %12s %12s %16s %16s %10s%n", "store", "words", "load (ms)", "loaded (MB)",
+                "indexed (MB)", "loaded (MB/1M)", "indexed (MB/1M)", "rss (MB)");
+        System.out.printf("%-8s %10d %10d %12.1f %12.1f %16.0f %16.0f %10.1f%n", args[1], dictionary.size(), loadMillis,
+                loadedHeap / 1048576.0, indexedHeap / 1048576.0, loadedHeap / 1048576.0 / millions,
+                indexedHeap / 1048576.0 / millions, residentBytes() / 1048576.0);
+
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path created : (Iterable<Path>) files::iterator) {
+                Files.delete(created);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * @return bytes of the heap in use once garbage is collected
+     */
+    private static long usedHeapAfterGc() {
+        // a second collection picks up what finalization and reference processing freed
+        for (int i = 0; i < 2; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return resident size of this process, -1 if not on Linux
+     */
+    private static long residentBytes() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (!Files.exists(status)) {
+            return -1;
+        }
+        for (String line : Files.readAllLines(status)) {
+            // VmRSS:    123456 kB
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,89 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates SQLite dictionary files of any size for benchmarks and load tests. The same size and seed always
+ * give the same file: words are word0, word1... with 1 to 3 meanings of random text each.
+ * Format: java com.dictionary.server.SyntheticDictionary <file> <words> [seed]
+ */
+public class SyntheticDictionary {
+
+    static final long DEFAULT_SEED = 42;
+    private static final int BATCH = 10000;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Format: java com.dictionary.server.SyntheticDictionary <file> <words> [seed]");
+            System.exit(1);
+        }
+        Path file = Paths.get(args[0]);
+        if (Files.exists(file)) {
+            System.out.println("File " + file + " already exists!");
+            System.exit(1);
+        }
+        int words = Integer.parseInt(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+        long start = System.nanoTime();
+        create(file.toString(), words, seed);
+        System.out.println("Created " + words + " words in " + file + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * @param i number of the word, from 0
+     * @return word of the synthetic dictionary
+     */
+    static String word(int i) {
+        return "word" + i;
+    }
+
+    /**
+     * Write a new dictionary file
+     * @param file path of the SQLite file, must not exist
+     * @param words number of words
+     * @param seed seed of the meanings
+     * @throws IOException error while writing the file
+     */
+    static void create(String file, int words, long seed) throws IOException {
+        Random random = new Random(seed);
+        SqliteStorage storage = new SqliteStorage(file);
+        try {
+            List<Mutation> batch = new ArrayList<>(BATCH);
+            for (int i = 0; i < words; i++) {
+                List<String> meanings = new ArrayList<>(3);
+                for (int m = 1 + random.nextInt(3); m > 0; m--) {
+                    meanings.add(randomText(random, 30 + random.nextInt(120)));
+                }
+                batch.add(Mutation.add(word(i), Meanings.of(meanings)));
+                if (batch.size() == BATCH) {
+                    storage.writeBatch(batch);
+                    batch.clear();
+                }
+            }
+            storage.writeBatch(batch);
+        } finally {
+            storage.close();
+        }
+    }
+
+    /**
+     * @return lowercase words of random length separated by spaces
+     */
+    static String randomText(Random random, int length) {
+        char[] text = new char[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = random.nextInt(6) == 0 ? ' ' : (char) ('a' + random.nextInt(26));
+        }
+        // meanings are trimmed single lines
+        text[0] = 'a';
+        text[length - 1] = 'z';
+        return new String(text);
+    }
+}
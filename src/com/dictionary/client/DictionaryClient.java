@@ -6,9 +6,22 @@ import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 public class DictionaryClient {
     JFrame frame = new JFrame("Client");
@@ -16,6 +29,7 @@ public class DictionaryClient {
     Panel searchPanel = new Panel();
     JTextField searchKeyWord = new JTextField();
     JButton searchBtn = new JButton("Search");
+    JButton searchMeaningBtn = new JButton("Meanings");
 
     JTextArea searchResult = new JTextArea();
 
@@ -23,30 +37,168 @@ public class DictionaryClient {
     JButton addBtn = new JButton("Add");
     JButton removeBtn = new JButton("Remove");
     JButton updateBtn = new JButton("Update");
+    JButton editMeaningBtn = new JButton("Edit Meaning");
+
+    private static final long SUGGESTIONS = 5;
+    private static final long WILDCARD_MATCHES = 100;
+    private static final long MEANING_MATCHES = 100;
+    private static final int IMPORT_CHUNK = 10000;
+    private static final int BATCH_CHUNK = 1000;
+    private static final int CACHED_SEARCHES = 1000;
 
     // Socket variables
     private static String serverAddress;
     private static int serverPort;
-    private static Socket socket;
+    private static boolean preferBinary;
+    private static boolean cacheSearches;
+    // topology file of a sharded dictionary, null for a single server
+    private static Path topologyFile;
+    private static ShardedConnection connection;
 
     public static void main(String[] args) {
-        // check and parse parameters
-        if (args.length != 2) {
-            System.out.println("Please provide the parameters for staring the program!\nFormat: java -jar DictionaryClient.jar <server-address> <server-port>");
+        // check and parse parameters, a cluster is given by its topology file instead of an address and port
+        int optionIndex = args.length > 0 && args[0].startsWith("--cluster=") ? 1 : 2;
+        String option = args.length == optionIndex + 1 ? args[optionIndex] : null;
+        if (args.length < optionIndex || args.length > optionIndex + 1 || (option != null && !option.equals("--binary") && !option.equals("--cache")
+                && !option.startsWith("--import=") && !option.startsWith("--search=") && !option.startsWith("--batch="))) {
+            System.out.println("Please provide the parameters for staring the program!\nFormat: java -jar DictionaryClient.jar <server-address> <server-port> | --cluster=<topology-file> [--binary | --cache | --import=<tsv-file> | --search=<words-file> | --batch=<json-lines-file>]");
             System.exit(1);
         }
-        serverAddress = args[0];
-        try {
-            serverPort = Integer.parseInt(args[1]);
-        }catch (NumberFormatException e) {
-            System.out.println("Port number should be numeric number!");
-            System.exit(1);
+        preferBinary = "--binary".equals(option);
+        cacheSearches = "--cache".equals(option);
+        if (optionIndex == 1) {
+            topologyFile = Paths.get(args[0].substring("--cluster=".length()));
+        } else {
+            serverAddress = args[0];
+            try {
+                serverPort = Integer.parseInt(args[1]);
+            }catch (NumberFormatException e) {
+                System.out.println("Port number should be numeric number!");
+                System.exit(1);
+            }
+        }
+
+        // run a batch command without GUI
+        if (option != null && !preferBinary && !cacheSearches) {
+            runCommand(option);
         }
 
         // start program
         new DictionaryClient().init();
     }
 
+    /**
+     * Run a batch command given on the command line, then exit
+     * @param option --import=<tsv-file>, --search=<words-file> or --batch=<json-lines-file>
+     */
+    private static void runCommand(String option) {
+        String command = option.substring(2, option.indexOf('='));
+        Path file = Paths.get(option.substring(option.indexOf('=') + 1));
+        try (ShardedConnection batchConnection = connect(false)) {
+            long start = System.nanoTime();
+            if (command.equals("import")) {
+                importFile(batchConnection, file);
+            } else if (command.equals("search")) {
+                searchFile(batchConnection, file);
+            } else {
+                batchFile(batchConnection, file);
+            }
+            System.out.println("Done in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            System.exit(0);
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Connect to the server, or to every shard of the cluster
+     * @param preferBinary try to negotiate the binary protocol
+     * @return connection
+     * @throws IOException error while reading the topology or connecting
+     */
+    private static ShardedConnection connect(boolean preferBinary) throws IOException {
+        return topologyFile != null ? new ShardedConnection(topologyFile, preferBinary) : new ShardedConnection(serverAddress, serverPort, preferBinary);
+    }
+
+    /**
+     * Import a glossary file, one "word<TAB>meaning" per line, a word may be repeated for more meanings
+     */
+    private static void importFile(ShardedConnection batchConnection, Path file) throws IOException {
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            Iterator<Map.Entry<String, String>> entries = lines
+                    .filter(line -> line.indexOf('\t') > 0)
+                    .map(line -> (Map.Entry<String, String>) new AbstractMap.SimpleEntry<>(
+                            line.substring(0, line.indexOf('\t')), line.substring(line.indexOf('\t') + 1)))
+                    .iterator();
+            for (JSONObject responseObj : batchConnection.importEntries(entries, IMPORT_CHUNK)) {
+                System.out.println(responseObj.get("status") + ": " + responseObj.get("message"));
+            }
+        }
+    }
+
+    /**
+     * Search the words of a file, one per line, and print their meanings
+     */
+    private static void searchFile(ShardedConnection batchConnection, Path file) throws IOException {
+        List<String> words = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                words.add(line);
+            }
+        }
+        // all chunks in flight at once, printed in order
+        List<CompletableFuture<JSONObject>> chunks = new ArrayList<>();
+        for (int i = 0; i < words.size(); i += BATCH_CHUNK) {
+            chunks.add(batchConnection.multiSearch(words.subList(i, Math.min(words.size(), i + BATCH_CHUNK))));
+        }
+        for (int c = 0; c < chunks.size(); c++) {
+            List<?> results = resultsOf(DictionaryConnection.await(chunks.get(c)));
+            for (int i = 0; i < results.size(); i++) {
+                System.out.println(words.get(c * BATCH_CHUNK + i) + ": " + describe((JSONObject) results.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Run the operations of a file, one request JSON object per line, and print their results
+     */
+    private static void batchFile(ShardedConnection batchConnection, Path file) throws IOException {
+        JSONParser parser = new JSONParser();
+        List<JSONObject> operations = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                operations.add((JSONObject) parser.parse(line));
+            } catch (ParseException | ClassCastException e) {
+                throw new IOException("Invalid operation: " + line);
+            }
+        }
+        // chunks run one after another, so later operations see the earlier ones
+        for (int i = 0; i < operations.size(); i += BATCH_CHUNK) {
+            List<JSONObject> chunk = operations.subList(i, Math.min(operations.size(), i + BATCH_CHUNK));
+            List<?> results = resultsOf(DictionaryConnection.await(batchConnection.batch(chunk)));
+            for (int j = 0; j < results.size(); j++) {
+                JSONObject operation = chunk.get(j);
+                System.out.println(operation.get("mode") + " " + operation.get("word") + ": " + describe((JSONObject) results.get(j)));
+            }
+        }
+    }
+
+    private static List<?> resultsOf(JSONObject responseObj) throws IOException {
+        if (!responseObj.get("status").equals("success")) {
+            throw new IOException((String) responseObj.get("message"));
+        }
+        return (List<?>) responseObj.get("results");
+    }
+
+    private static String describe(JSONObject resultObj) {
+        Object text = resultObj.containsKey("meaning") ? resultObj.get("meaning") : resultObj.get("message");
+        return resultObj.get("status") + " - " + String.valueOf(text).replace("\n", " | ");
+    }
+
     private void init() {
         frame.setSize(610, 550);
         frame.setLocationRelativeTo(null);
@@ -57,12 +209,20 @@ public class DictionaryClient {
         addComponentsToContainer();
 
         try {
-            socket = new Socket(serverAddress, serverPort);
-            frame.setTitle("Client [" + socket.getLocalSocketAddress() + "]");
+            connection = connect(preferBinary);
+            frame.setTitle("Client [" + connection.getLocalAddress() + "]");
         } catch (IOException e) {
             JOptionPane.showMessageDialog(frame, "Error when trying to connect with server!", "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
         }
+        // repeated searches are answered locally, the server pushes the words changed since
+        if (cacheSearches) {
+            try {
+                connection.enableCache(CACHED_SEARCHES);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(frame, e.getMessage(), "Warning", JOptionPane.WARNING_MESSAGE);
+            }
+        }
 
         addActionListeners();
 
@@ -79,12 +239,14 @@ public class DictionaryClient {
         addBtn.setPreferredSize(actionButtonSize);
         removeBtn.setPreferredSize(actionButtonSize);
         updateBtn.setPreferredSize(actionButtonSize);
+        editMeaningBtn.setPreferredSize(new Dimension(120, 30));
     }
 
     private void addComponentsToContainer() {
         // search bar area
         searchPanel.add(searchKeyWord);
         searchPanel.add(searchBtn);
+        searchPanel.add(searchMeaningBtn);
         frame.add(searchPanel, BorderLayout.NORTH);
 
         // returned result area
@@ -94,6 +256,7 @@ public class DictionaryClient {
         actionPanel.add(addBtn);
         actionPanel.add(removeBtn);
         actionPanel.add(updateBtn);
+        actionPanel.add(editMeaningBtn);
         frame.add(actionPanel, BorderLayout.SOUTH);
     }
 
@@ -106,8 +269,8 @@ public class DictionaryClient {
             public void windowClosing(WindowEvent e) {
                 super.windowClosing(e);
                 try {
-                    if (socket != null && !socket.isClosed()) {
-                        socket.close();
+                    if (connection != null) {
+                        connection.close();
                     }
                 } catch (IOException ioException) {
                     ioException.printStackTrace();
@@ -124,13 +287,49 @@ public class DictionaryClient {
         // search meaning
         searchBtn.addActionListener(e -> {
             String word = searchKeyWord.getText();
-            sendToServer("search", word, "");
-            JSONObject responseObj = receiveFromServer();
+            // list the words matching a pattern, lookups are not available with the binary protocol
+            if (!connection.isBinary() && (word.contains("*") || word.contains("?"))) {
+                JSONObject responseObj = lookupServer("wildcard", word, WILDCARD_MATCHES);
+                if (responseObj.get("status").equals("success")) {
+                    List<?> words = (List<?>) responseObj.get("words");
+                    searchResult.setText(words.isEmpty() ? "No word matches " + word : joinWords(words, "\n"));
+                } else {
+                    searchResult.setText("");
+                    JOptionPane.showMessageDialog(frame, responseObj.get("message"), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+                return;
+            }
+            JSONObject responseObj = requestServer("search", word, "");
             if (responseObj.get("status").equals("success")) {
                 searchResult.setText((String) responseObj.get("meaning"));
             } else if (responseObj.get("status").equals("fail")) {
                 searchResult.setText("");
-                JOptionPane.showMessageDialog(frame, responseObj.get("message"), "Fail", JOptionPane.WARNING_MESSAGE);
+                JOptionPane.showMessageDialog(frame, responseObj.get("message") + suggestionsFor(word), "Fail", JOptionPane.WARNING_MESSAGE);
+            } else {
+                searchResult.setText("");
+                JOptionPane.showMessageDialog(frame, responseObj.get("message"), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+
+        // list the words whose meaning contains the text, not available with the binary protocol
+        searchMeaningBtn.setEnabled(!connection.isBinary());
+        searchMeaningBtn.addActionListener(e -> {
+            String text = searchKeyWord.getText();
+            JSONObject requestObj = new JSONObject();
+            requestObj.put("mode", "search_meaning");
+            requestObj.put("meaning", text);
+            requestObj.put("limit", MEANING_MATCHES);
+            JSONObject responseObj = waitForResponse(connection.send(requestObj));
+            if (responseObj.get("status").equals("success")) {
+                List<?> words = (List<?>) responseObj.get("words");
+                long total = (Long) responseObj.get("total");
+                if (words.isEmpty()) {
+                    searchResult.setText("No meaning contains " + text);
+                } else if (total > words.size()) {
+                    searchResult.setText(joinWords(words, "\n") + "\n... " + (total - words.size()) + " more");
+                } else {
+                    searchResult.setText(joinWords(words, "\n"));
+                }
             } else {
                 searchResult.setText("");
                 JOptionPane.showMessageDialog(frame, responseObj.get("message"), "Error", JOptionPane.ERROR_MESSAGE);
@@ -154,8 +353,7 @@ public class DictionaryClient {
             executeBtn.addActionListener(ev -> {
                 String newWord = wordField.getText();
                 String newMeaning = meaningField.getText();
-                sendToServer("add", newWord, newMeaning);
-                JSONObject responseObj = receiveFromServer();
+                JSONObject responseObj = requestServer("add", newWord, newMeaning);
                 if (responseObj.get("status").equals("success")) {
                     JOptionPane.showMessageDialog(addDialog, responseObj.get("message"), "Success", JOptionPane.INFORMATION_MESSAGE);
                 } else if (responseObj.get("status").equals("fail")) {
@@ -194,8 +392,7 @@ public class DictionaryClient {
             JButton executeBtn = new JButton("Remove");
             executeBtn.addActionListener(ev -> {
                 String word = wordField.getText();
-                sendToServer("remove", word, null);
-                JSONObject responseObj = receiveFromServer();
+                JSONObject responseObj = requestServer("remove", word, null);
                 if (responseObj.get("status").equals("success")) {
                     JOptionPane.showMessageDialog(addDialog, responseObj.get("message"), "Success", JOptionPane.INFORMATION_MESSAGE);
                 } else if (responseObj.get("status").equals("fail")) {
@@ -237,8 +434,7 @@ public class DictionaryClient {
             executeBtn.addActionListener(ev -> {
                 String word = wordField.getText();
                 String meaning = meaningField.getText();
-                sendToServer("update", word, meaning);
-                JSONObject responseObj = receiveFromServer();
+                JSONObject responseObj = requestServer("update", word, meaning);
                 if (responseObj.get("status").equals("success")) {
                     JOptionPane.showMessageDialog(addDialog, responseObj.get("message"), "Success", JOptionPane.INFORMATION_MESSAGE);
                 } else if (responseObj.get("status").equals("fail")) {
@@ -263,49 +459,127 @@ public class DictionaryClient {
             addDialog.add(cancelBtn);
             addDialog.setVisible(true);
         });
+
+        // replace or remove one meaning of a word, not available with the binary protocol
+        editMeaningBtn.setEnabled(!connection.isBinary());
+        editMeaningBtn.addActionListener(e -> {
+            JDialog editDialog = new JDialog(frame, "Edit Meaning", true);
+            editDialog.setSize(400, 300);
+            editDialog.setLocationRelativeTo(frame);
+
+            JTextField wordField = new JTextField();
+            wordField.setPreferredSize(new Dimension(200, 30));
+
+            JTextField meaningField = new JTextField();
+            meaningField.setPreferredSize(new Dimension(200, 30));
+
+            JTextField newMeaningField = new JTextField();
+            newMeaningField.setPreferredSize(new Dimension(200, 30));
+
+            // execute Btn -> replace the meaning, or remove it if no new meaning is given
+            JButton executeBtn = new JButton("Apply");
+            executeBtn.addActionListener(ev -> {
+                JSONObject requestObj = new JSONObject();
+                requestObj.put("word", wordField.getText());
+                requestObj.put("meaning", meaningField.getText());
+                if (newMeaningField.getText().isEmpty()) {
+                    requestObj.put("mode", "remove_meaning");
+                } else {
+                    requestObj.put("mode", "replace_meaning");
+                    requestObj.put("new_meaning", newMeaningField.getText());
+                }
+                JSONObject responseObj = waitForResponse(connection.send(requestObj));
+                if (responseObj.get("status").equals("success")) {
+                    JOptionPane.showMessageDialog(editDialog, responseObj.get("message"), "Success", JOptionPane.INFORMATION_MESSAGE);
+                } else if (responseObj.get("status").equals("fail")) {
+                    JOptionPane.showMessageDialog(editDialog, responseObj.get("message"), "Fail", JOptionPane.WARNING_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(editDialog, responseObj.get("message"), "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+
+            // cancel Btn -> close dialog
+            JButton cancelBtn = new JButton("Cancel");
+            cancelBtn.addActionListener(ev -> {
+                editDialog.dispose();
+            });
+
+            editDialog.setLayout(new GridLayout(4, 2));
+            editDialog.add(new JLabel("Word:"));
+            editDialog.add(wordField);
+            editDialog.add(new JLabel("Meaning:"));
+            editDialog.add(meaningField);
+            editDialog.add(new JLabel("New Meaning (empty to remove):"));
+            editDialog.add(newMeaningField);
+            editDialog.add(executeBtn);
+            editDialog.add(cancelBtn);
+            editDialog.setVisible(true);
+        });
     }
 
     /**
-     * Send the request to Server
-     * @param mode operation type [search/add/remove/update]
-     * @param word word
-     * @param meaning meaning of the word
+     * Suggest words spelled like a word that was not found
+     * @param word word not found
+     * @return suggestion line to append to the message, empty if none
+     */
+    private String suggestionsFor(String word) {
+        if (connection.isBinary() || word.isEmpty()) {
+            return "";
+        }
+        JSONObject responseObj = lookupServer("fuzzy", word, SUGGESTIONS);
+        if (!responseObj.get("status").equals("success") || ((List<?>) responseObj.get("words")).isEmpty()) {
+            return "";
+        }
+        return "\nDid you mean: " + joinWords((List<?>) responseObj.get("words"), ", ") + "?";
+    }
+
+    private static String joinWords(List<?> words, String separator) {
+        StringBuilder joined = new StringBuilder();
+        for (Object word : words) {
+            if (joined.length() > 0) {
+                joined.append(separator);
+            }
+            joined.append(word);
+        }
+        return joined.toString();
+    }
+
+    /**
+     * Send a lookup request to Server and wait for the response
+     * @param mode lookup type [prefix/wildcard/fuzzy]
+     * @param word prefix, wildcard pattern or misspelled word
+     * @param limit maximum number of words
+     * @return response JSONObject
      */
-    private void sendToServer(String mode, String word, String meaning){
-        // create json object and content
+    private JSONObject lookupServer(String mode, String word, long limit) {
         JSONObject requestObj = new JSONObject();
         requestObj.put("mode", mode);
         requestObj.put("word", word);
-        requestObj.put("meaning", meaning);
-        // send json request to server
-        try {
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-            out.println(requestObj.toJSONString());
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(frame, "Error when trying to connect with server!", "Error", JOptionPane.ERROR_MESSAGE);
-            System.exit(1);
-        }
+        requestObj.put("limit", limit);
+        return waitForResponse(connection.send(requestObj));
     }
 
     /**
-     * Receive response from server
+     * Send the request to Server and wait for the response
+     * @param mode operation type [search/add/remove/update]
+     * @param word word
+     * @param meaning meaning of the word
      * @return response JSONObject
      */
-    private JSONObject receiveFromServer(){
+    private JSONObject requestServer(String mode, String word, String meaning){
+        return waitForResponse(connection.send(mode, word, meaning));
+    }
+
+    private JSONObject waitForResponse(Future<JSONObject> response) {
         try {
-            // Create BufferedReader to read the input stream from the server
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            // read response from server
-            JSONParser parser = new JSONParser();
-            JSONObject responseObj = (JSONObject) parser.parse(in.readLine());
-            return responseObj;
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(frame, "Error when trying to connect with server!", "Error", JOptionPane.ERROR_MESSAGE);
+            return response.get();
+        } catch (ExecutionException e) {
+            JOptionPane.showMessageDialog(frame, e.getCause().getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
-        } catch (org.json.simple.parser.ParseException e) {
-            JOptionPane.showMessageDialog(frame, "Error when trying to parse server response!", "Error", JOptionPane.ERROR_MESSAGE);
+        } catch (InterruptedException e) {
+            JOptionPane.showMessageDialog(frame, "Error when trying to connect with server!", "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
         }
         return null;
     }
-}
\ No newline at end of file
+}
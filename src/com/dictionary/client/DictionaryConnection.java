@@ -0,0 +1,435 @@
+// Xinyu Wang 1460767
+package com.dictionary.client;
+
+import com.dictionary.common.BinaryProtocol;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipelined connection to the dictionary server.
+ * Every request carries an id, so many requests can be in flight on one socket and the server may answer
+ * them in any order; a reader thread completes the matching future when a response arrives.
+ * Requests sent concurrently are not ordered, wait for a response before sending a request depending on it.
+ * <p>
+ * The connection can negotiate the binary protocol, which carries the search/add/remove/update modes only,
+ * and falls back to JSON if the server does not support it.
+ * <p>
+ * With JSON, search responses can be cached: the connection subscribes to the changes pushed by the server
+ * and drops the cached searches of the changed words.
+ */
+public class DictionaryConnection implements Closeable {
+
+    private static final int HELLO_TIMEOUT = 2000;
+    private static final int IMPORT_CHUNKS_IN_FLIGHT = 4;
+    private static final Set<String> WORD_WRITES = new HashSet<>(Arrays.asList("add", "remove", "update", "remove_meaning", "replace_meaning"));
+
+    private final Socket socket;
+    private final boolean binary;
+    private final OutputStream output;
+    private final PrintWriter out;
+    // ids stay positive ints so they fit the binary frames
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Map<Long, CompletableFuture<JSONObject>> inFlight = new ConcurrentHashMap<>();
+    private volatile IOException failure;
+    // null unless caching searches
+    private volatile SearchCache cache;
+
+    /**
+     * Connect to the server
+     * @param serverAddress server address
+     * @param serverPort server port
+     * @throws IOException error while connecting
+     */
+    public DictionaryConnection(String serverAddress, int serverPort) throws IOException {
+        this(serverAddress, serverPort, false);
+    }
+
+    /**
+     * Connect to the server
+     * @param serverAddress server address
+     * @param serverPort server port
+     * @param preferBinary try to negotiate the binary protocol
+     * @throws IOException error while connecting
+     */
+    public DictionaryConnection(String serverAddress, int serverPort, boolean preferBinary) throws IOException {
+        Socket connected = new Socket(serverAddress, serverPort);
+        boolean accepted = false;
+        if (preferBinary) {
+            accepted = negotiateBinary(connected);
+            if (!accepted) {
+                // server does not speak binary, start over with JSON
+                connected.close();
+                connected = new Socket(serverAddress, serverPort);
+            }
+        }
+        socket = connected;
+        binary = accepted;
+        output = new BufferedOutputStream(socket.getOutputStream());
+        out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+        Thread reader = new Thread(binary ? this::readBinaryResponses : this::readResponses, "dictionary-connection");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send the hello bytes and wait for the server to echo them
+     * @return true if the server accepted the binary protocol
+     */
+    private static boolean negotiateBinary(Socket socket) throws IOException {
+        socket.getOutputStream().write(BinaryProtocol.HELLO);
+        socket.getOutputStream().flush();
+        byte[] reply = new byte[BinaryProtocol.HELLO.length];
+        socket.setSoTimeout(HELLO_TIMEOUT);
+        try {
+            new DataInputStream(socket.getInputStream()).readFully(reply);
+        } catch (EOFException | SocketTimeoutException e) {
+            return false;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        return Arrays.equals(reply, BinaryProtocol.HELLO);
+    }
+
+    /**
+     * @return true if the binary protocol is in use
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Cache search responses, kept up to date by the changes pushed by the server. Only available with JSON.
+     * @param capacity maximum number of cached searches
+     * @throws IOException the server does not push changes, searches are not cached
+     */
+    public void enableCache(int capacity) throws IOException {
+        if (binary) {
+            throw new IOException("Caching is not available with the binary protocol!");
+        }
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", "subscribe");
+        JSONObject responseObj = await(send(requestObj));
+        if (!"success".equals(responseObj.get("status"))) {
+            throw new IOException("Server does not push changes, searches are not cached!");
+        }
+        // changes are pushed from now on, older responses are never cached
+        cache = new SearchCache(capacity);
+    }
+
+    /**
+     * @return number of searches answered from the cache
+     */
+    public long getCacheHits() {
+        SearchCache searches = cache;
+        return searches == null ? 0 : searches.getHitCount();
+    }
+
+    /**
+     * @return local address of the connection
+     */
+    public String getLocalAddress() {
+        return socket.getLocalSocketAddress().toString();
+    }
+
+    /**
+     * Send a request without waiting for the response
+     * @param mode operation type [search/add/remove/update]
+     * @param word word
+     * @param meaning meaning of the word
+     * @return future completed with the response JSONObject, or exceptionally if the connection fails
+     */
+    public CompletableFuture<JSONObject> send(String mode, String word, String meaning) {
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", mode);
+        requestObj.put("word", word);
+        requestObj.put("meaning", meaning);
+        return send(requestObj);
+    }
+
+    /**
+     * Send a write run only if nobody wrote the word since the client read the given version, without waiting
+     * for the response. Only available with the JSON protocol.
+     * @param mode operation type [remove/update]
+     * @param word word
+     * @param meaning meaning of the word, null for remove
+     * @param version "version" of the last search or write response of the word
+     * @return future completed with the response JSONObject, which fails with the current "version" of the word
+     *         if it was written since
+     */
+    public CompletableFuture<JSONObject> sendIfVersion(String mode, String word, String meaning, long version) {
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", mode);
+        requestObj.put("word", word);
+        requestObj.put("meaning", meaning);
+        requestObj.put("version", version);
+        return send(requestObj);
+    }
+
+    /**
+     * Send a request object without waiting for the response, an id is added to it
+     * @param requestObj request JSON
+     * @return future completed with the response JSONObject, or exceptionally if the connection fails
+     */
+    public CompletableFuture<JSONObject> send(JSONObject requestObj) {
+        SearchCache searches = cache;
+        String mode = (String) requestObj.get("mode");
+        Object word = requestObj.get("word");
+        if (searches != null && "search".equals(mode) && word instanceof String) {
+            JSONObject cached = searches.get((String) word);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        CompletableFuture<JSONObject> response = new CompletableFuture<>();
+        if (searches != null) {
+            track(searches, mode, word, response);
+        }
+        byte opcode = BinaryProtocol.opcode(mode);
+        if (binary && opcode == 0) {
+            response.completeExceptionally(new IllegalArgumentException("Mode " + requestObj.get("mode") + " is not supported by the binary protocol!"));
+            return response;
+        }
+        if (binary && requestObj.get("version") != null) {
+            // the frame has no version, the write would not be conditional
+            response.completeExceptionally(new IllegalArgumentException("Conditional writes are not supported by the binary protocol!"));
+            return response;
+        }
+        int id = nextId.getAndUpdate(i -> i == Integer.MAX_VALUE ? 1 : i + 1);
+        inFlight.put((long) id, response);
+        boolean error;
+        synchronized (output) {
+            if (binary) {
+                ByteBuffer frame = BinaryProtocol.encodeRequest(opcode, id, (String) requestObj.get("word"), (String) requestObj.get("meaning"));
+                try {
+                    output.write(frame.array(), 0, frame.limit());
+                    output.flush();
+                    error = false;
+                } catch (IOException e) {
+                    error = true;
+                }
+            } else {
+                requestObj.put("id", (long) id);
+                out.println(requestObj.toJSONString());
+                out.flush();
+                error = out.checkError();
+            }
+        }
+        if (error || failure != null) {
+            fail(failure != null ? failure : new IOException("Error when trying to connect with server!"));
+        }
+        return response;
+    }
+
+    /**
+     * Keep the cache consistent with a request: cache the response of a search, and drop the words written
+     * by this client without waiting for the server to push the change
+     */
+    private static void track(SearchCache searches, String mode, Object word, CompletableFuture<JSONObject> response) {
+        if ("search".equals(mode) && word instanceof String) {
+            long version = searches.version();
+            response.thenAccept(responseObj -> {
+                // errors are about the request, not the word, a moved word is searched again on its shard,
+                // and a busy or loading server did not search
+                Object status = responseObj.get("status");
+                if (!"error".equals(status) && !"moved".equals(status) && !"busy".equals(status) && !"loading".equals(status)) {
+                    searches.put((String) word, version, responseObj);
+                }
+            });
+        } else if (WORD_WRITES.contains(mode) && word instanceof String) {
+            // before and after, so a search answered in between is not cached
+            searches.invalidate((String) word);
+            response.whenComplete((responseObj, e) -> searches.invalidate((String) word));
+        } else if ("batch".equals(mode) || "import".equals(mode)) {
+            searches.invalidateAll();
+            response.whenComplete((responseObj, e) -> searches.invalidateAll());
+        }
+    }
+
+    /**
+     * Search many words in one request
+     * @param words words to search, at most 10000
+     * @return future completed with the response JSONObject, whose "results" hold one response per word in order
+     */
+    public CompletableFuture<JSONObject> multiSearch(List<String> words) {
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", "multi_search");
+        JSONArray wordArray = new JSONArray();
+        wordArray.addAll(words);
+        requestObj.put("words", wordArray);
+        return send(requestObj);
+    }
+
+    /**
+     * Run many operations in one request, writes are committed together
+     * @param operations request objects of single operations, at most 10000
+     * @return future completed with the response JSONObject, whose "results" hold one response per operation in order
+     */
+    public CompletableFuture<JSONObject> batch(List<JSONObject> operations) {
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", "batch");
+        JSONArray operationArray = new JSONArray();
+        operationArray.addAll(operations);
+        requestObj.put("operations", operationArray);
+        return send(requestObj);
+    }
+
+    /**
+     * Stream a glossary to the server in chunks, each written as one transaction, with a few chunks in flight.
+     * New words are added and missing meanings appended to existing words.
+     * @param entries words and their meanings, one meaning per line
+     * @param chunkSize entries per request, at most 100000
+     * @return response JSONObject of each chunk, in order
+     * @throws IOException error while sending or a chunk failed
+     */
+    public List<JSONObject> importEntries(Iterator<Map.Entry<String, String>> entries, int chunkSize) throws IOException {
+        List<CompletableFuture<JSONObject>> chunks = new ArrayList<>();
+        List<JSONObject> responses = new ArrayList<>();
+        while (entries.hasNext()) {
+            JSONArray chunk = new JSONArray();
+            while (entries.hasNext() && chunk.size() < chunkSize) {
+                Map.Entry<String, String> entry = entries.next();
+                JSONObject entryObj = new JSONObject();
+                entryObj.put("word", entry.getKey());
+                entryObj.put("meaning", entry.getValue());
+                chunk.add(entryObj);
+            }
+            JSONObject requestObj = new JSONObject();
+            requestObj.put("mode", "import");
+            requestObj.put("entries", chunk);
+            chunks.add(send(requestObj));
+            // bound the memory held by chunks in flight
+            if (chunks.size() - responses.size() >= IMPORT_CHUNKS_IN_FLIGHT) {
+                responses.add(await(chunks.get(responses.size())));
+            }
+        }
+        while (responses.size() < chunks.size()) {
+            responses.add(await(chunks.get(responses.size())));
+        }
+        return responses;
+    }
+
+    /**
+     * Wait for a response
+     * @param response future returned when sending a request
+     * @return response JSONObject
+     * @throws IOException the connection failed
+     */
+    static JSONObject await(CompletableFuture<JSONObject> response) throws IOException {
+        try {
+            return response.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void readResponses() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            JSONParser parser = new JSONParser();
+            String line;
+            while ((line = in.readLine()) != null) {
+                JSONObject responseObj = (JSONObject) parser.parse(line);
+                if (responseObj.containsKey("push")) {
+                    applyPush(responseObj);
+                    continue;
+                }
+                Object id = responseObj.get("id");
+                CompletableFuture<JSONObject> response = id instanceof Long ? inFlight.remove(id) : null;
+                if (response != null) {
+                    response.complete(responseObj);
+                }
+            }
+            fail(new EOFException("Error when trying to connect with server!"));
+        } catch (IOException e) {
+            fail(new IOException("Error when trying to connect with server!", e));
+        } catch (ParseException e) {
+            fail(new IOException("Error when trying to parse server response!", e));
+        }
+    }
+
+    /**
+     * Drop the cached searches of the words changed on the server
+     */
+    private void applyPush(JSONObject pushObj) {
+        SearchCache searches = cache;
+        if (searches == null) {
+            return;
+        }
+        if ("invalidate".equals(pushObj.get("push")) && pushObj.get("words") instanceof List) {
+            for (Object word : (List<?>) pushObj.get("words")) {
+                searches.invalidate((String) word);
+            }
+        } else {
+            // invalidate_all, or a push this client does not know
+            searches.invalidateAll();
+        }
+    }
+
+    private void readBinaryResponses() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                BinaryProtocol.Response decoded = BinaryProtocol.decodeResponse(ByteBuffer.wrap(frame));
+                // same shape as a JSON response
+                JSONObject responseObj = new JSONObject();
+                responseObj.put("id", (long) decoded.id);
+                responseObj.put("status", decoded.statusName());
+                responseObj.put(decoded.textKind == BinaryProtocol.TEXT_MEANING ? "meaning" : "message", decoded.text);
+                CompletableFuture<JSONObject> response = inFlight.remove((long) decoded.id);
+                if (response != null) {
+                    response.complete(responseObj);
+                }
+            }
+        } catch (IOException e) {
+            fail(new IOException("Error when trying to connect with server!", e));
+        } catch (IllegalArgumentException e) {
+            fail(new IOException("Error when trying to parse server response!", e));
+        }
+    }
+
+    /**
+     * Fail every request in flight
+     */
+    private void fail(IOException e) {
+        failure = e;
+        for (Long id : inFlight.keySet()) {
+            CompletableFuture<JSONObject> response = inFlight.remove(id);
+            if (response != null) {
+                response.completeExceptionally(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
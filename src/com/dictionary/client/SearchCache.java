@@ -0,0 +1,88 @@
+// Xinyu Wang 1460767
+package com.dictionary.client;
+
+import org.json.simple.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used search responses of one connection, dropped when the server reports a change of their word.
+ * <p>
+ * A response is only cached if no change was reported between sending the search and receiving the response:
+ * the server may read the word just before a change and send the response after the change was reported.
+ */
+class SearchCache {
+
+    private final LinkedHashMap<String, JSONObject> responses;
+    // number of changes reported so far
+    private long version;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity maximum number of cached searches
+     */
+    SearchCache(int capacity) {
+        this.responses = new LinkedHashMap<String, JSONObject>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param word searched word
+     * @return copy of the cached response, null if not cached
+     */
+    synchronized JSONObject get(String word) {
+        JSONObject response = responses.get(word);
+        if (response == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return (JSONObject) response.clone();
+    }
+
+    /**
+     * @return version to pass to {@link #put} for a search sent now
+     */
+    synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Cache a search response, unless a change was reported since the search was sent
+     * @param word searched word
+     * @param sentVersion version when the search was sent
+     * @param response response of the server
+     */
+    synchronized void put(String word, long sentVersion, JSONObject response) {
+        if (sentVersion != version) {
+            return;
+        }
+        JSONObject copy = (JSONObject) response.clone();
+        copy.remove("id");
+        responses.put(word, copy);
+    }
+
+    synchronized void invalidate(String word) {
+        version++;
+        responses.remove(word);
+    }
+
+    synchronized void invalidateAll() {
+        version++;
+        responses.clear();
+    }
+
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    synchronized long getMissCount() {
+        return misses;
+    }
+}
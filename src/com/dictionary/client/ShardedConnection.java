@@ -0,0 +1,582 @@
+// Xinyu Wang 1460767
+package com.dictionary.client;
+
+import com.dictionary.common.ShardMap;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Connection to a sharded dictionary, with the requests of a {@link DictionaryConnection}: one connection per
+ * shard of the topology file, and each request sent to the shard owning its word.
+ * <p>
+ * A shard answers the moved status for a word it does not own, after the topology file changed: the file is
+ * read again and the request retried on the new owner, a few times while the shards hand their words over.
+ * Prefix, wildcard, fuzzy and meaning lookups are sent to every shard and their words merged in the order
+ * a single server gives them. Multi_search, batch and import requests are split by shard and their results put
+ * back in the order of the request; the writes of a batch are only committed together on each shard.
+ * <p>
+ * A single server given by its address is a cluster of one shard, so the client uses this class either way.
+ */
+public class ShardedConnection implements Closeable {
+
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_MILLIS = 200;
+    private static final int IMPORT_CHUNKS_IN_FLIGHT = 4;
+    // same defaults and bounds as the server
+    private static final long DEFAULT_LOOKUP_LIMIT = 10;
+    private static final long MAX_LOOKUP_LIMIT = 100;
+    private static final Set<String> LOOKUPS = new HashSet<>(Arrays.asList("prefix", "wildcard", "fuzzy", "search_meaning"));
+
+    // null for a single server given by its address
+    private final Path file;
+    private final boolean preferBinary;
+    private final boolean binary;
+    private volatile ShardMap topology;
+    private final Map<ShardMap.Shard, DictionaryConnection> connections = new ConcurrentHashMap<>();
+    // 0 unless caching searches
+    private volatile int cacheCapacity;
+
+    /**
+     * Connect to every shard of a cluster
+     * @param file topology file, one "name host:port" per line
+     * @param preferBinary try to negotiate the binary protocol
+     * @throws IOException error while reading the topology or connecting
+     */
+    public ShardedConnection(Path file, boolean preferBinary) throws IOException {
+        this.file = file;
+        this.preferBinary = preferBinary;
+        topology = ShardMap.read(file);
+        for (ShardMap.Shard shard : topology.shards()) {
+            connection(shard);
+        }
+        binary = connection(topology.shards().get(0)).isBinary();
+    }
+
+    /**
+     * Connect to a single server
+     * @param serverAddress server address
+     * @param serverPort server port
+     * @param preferBinary try to negotiate the binary protocol
+     * @throws IOException error while connecting
+     */
+    public ShardedConnection(String serverAddress, int serverPort, boolean preferBinary) throws IOException {
+        this.file = null;
+        this.preferBinary = preferBinary;
+        topology = new ShardMap(Collections.singletonList(new ShardMap.Shard("server", serverAddress, serverPort)));
+        binary = connection(topology.shards().get(0)).isBinary();
+    }
+
+    /**
+     * @return true if the binary protocol is in use
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Cache search responses of every shard, kept up to date by the changes they push. Only available with JSON.
+     * @param capacity maximum number of cached searches per shard
+     * @throws IOException a shard does not push changes
+     */
+    public void enableCache(int capacity) throws IOException {
+        cacheCapacity = capacity;
+        for (DictionaryConnection connection : connections.values()) {
+            connection.enableCache(capacity);
+        }
+    }
+
+    /**
+     * @return number of searches answered from the cache
+     */
+    public long getCacheHits() {
+        long hits = 0;
+        for (DictionaryConnection connection : connections.values()) {
+            hits += connection.getCacheHits();
+        }
+        return hits;
+    }
+
+    /**
+     * @return local address of the connection to one of the shards
+     */
+    public String getLocalAddress() {
+        for (DictionaryConnection connection : connections.values()) {
+            return connection.getLocalAddress();
+        }
+        return "";
+    }
+
+    /**
+     * @return shards of the topology in use
+     */
+    public ShardMap getTopology() {
+        return topology;
+    }
+
+    /**
+     * Send a request to the shard owning the word, without waiting for the response
+     * @param mode operation type [search/add/remove/update]
+     * @param word word
+     * @param meaning meaning of the word
+     * @return future completed with the response JSONObject, or exceptionally if the connection fails
+     */
+    public CompletableFuture<JSONObject> send(String mode, String word, String meaning) {
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", mode);
+        requestObj.put("word", word);
+        requestObj.put("meaning", meaning);
+        return send(requestObj);
+    }
+
+    /**
+     * Send a write to the shard owning the word, run only if nobody wrote the word since the client
+     * read the given version, without waiting for the response. Only available with the JSON protocol.
+     * @param mode operation type [remove/update]
+     * @param word word
+     * @param meaning meaning of the word, null for remove
+     * @param version "version" of the last search or write response of the word
+     * @return future completed with the response JSONObject, which fails with the current "version" of the word
+     *         if it was written since
+     */
+    public CompletableFuture<JSONObject> sendIfVersion(String mode, String word, String meaning, long version) {
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", mode);
+        requestObj.put("word", word);
+        requestObj.put("meaning", meaning);
+        requestObj.put("version", version);
+        return send(requestObj);
+    }
+
+    /**
+     * Send a request object to the shards it concerns, without waiting for the response
+     * @param requestObj request JSON
+     * @return future completed with the response JSONObject, or exceptionally if a connection fails
+     */
+    public CompletableFuture<JSONObject> send(JSONObject requestObj) {
+        Object mode = requestObj.get("mode");
+        if (LOOKUPS.contains(mode)) {
+            return lookup(requestObj);
+        }
+        if ("multi_search".equals(mode) && requestObj.get("words") instanceof List) {
+            return multiSearch((List<?>) requestObj.get("words"));
+        }
+        if ("batch".equals(mode) && requestObj.get("operations") instanceof List) {
+            return batch((List<?>) requestObj.get("operations"));
+        }
+        if ("import".equals(mode) && requestObj.get("entries") instanceof List && !((List<?>) requestObj.get("entries")).isEmpty()) {
+            return importChunk((List<?>) requestObj.get("entries"), 0);
+        }
+        return route(requestObj, wordOf(requestObj), 0);
+    }
+
+    /**
+     * Search many words, each on its shard
+     * @param words words to search, at most 10000
+     * @return future completed with the response JSONObject, whose "results" hold one response per word in order
+     */
+    public CompletableFuture<JSONObject> multiSearch(List<?> words) {
+        return split("multi_search", "words", words, word -> word instanceof String ? (String) word : "", word -> {
+            JSONObject requestObj = new JSONObject();
+            requestObj.put("mode", "search");
+            requestObj.put("word", word);
+            return requestObj;
+        });
+    }
+
+    /**
+     * Run many operations, each on the shard of its word, writes are committed together on each shard
+     * @param operations request objects of single operations, at most 10000
+     * @return future completed with the response JSONObject, whose "results" hold one response per operation in order
+     */
+    public CompletableFuture<JSONObject> batch(List<?> operations) {
+        return split("batch", "operations", operations,
+                operation -> operation instanceof JSONObject ? wordOf((JSONObject) operation) : "",
+                operation -> operation instanceof JSONObject ? copy((JSONObject) operation) : new JSONObject());
+    }
+
+    /**
+     * Stream a glossary to the shards in chunks, each written as one transaction on its shard.
+     * New words are added and missing meanings appended to existing words.
+     * @param entries words and their meanings, one meaning per line
+     * @param chunkSize entries per request, at most 100000
+     * @return response JSONObject of each chunk, in the order they were sent
+     * @throws IOException error while sending or a chunk failed
+     */
+    public List<JSONObject> importEntries(Iterator<Map.Entry<String, String>> entries, int chunkSize) throws IOException {
+        Map<ShardMap.Shard, JSONArray> pending = new LinkedHashMap<>();
+        List<CompletableFuture<JSONObject>> chunks = new ArrayList<>();
+        List<JSONObject> responses = new ArrayList<>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            JSONObject entryObj = new JSONObject();
+            entryObj.put("word", entry.getKey());
+            entryObj.put("meaning", entry.getValue());
+            ShardMap.Shard shard = topology.owner(entry.getKey());
+            JSONArray chunk = pending.computeIfAbsent(shard, key -> new JSONArray());
+            chunk.add(entryObj);
+            if (chunk.size() < chunkSize) {
+                continue;
+            }
+            pending.remove(shard);
+            chunks.add(importChunk(chunk, 0));
+            // bound the memory held by chunks in flight
+            if (chunks.size() - responses.size() >= IMPORT_CHUNKS_IN_FLIGHT * topology.shards().size()) {
+                responses.add(DictionaryConnection.await(chunks.get(responses.size())));
+            }
+        }
+        for (JSONArray chunk : pending.values()) {
+            chunks.add(importChunk(chunk, 0));
+        }
+        while (responses.size() < chunks.size()) {
+            responses.add(DictionaryConnection.await(chunks.get(responses.size())));
+        }
+        return responses;
+    }
+
+    /**
+     * Send a request to the shard owning its word, again on the new owner while the word is moved
+     */
+    private CompletableFuture<JSONObject> route(JSONObject requestObj, String word, int attempt) {
+        return sendTo(topology.owner(word), requestObj).thenCompose(responseObj -> {
+            if (!"moved".equals(responseObj.get("status")) || !canRetry(attempt)) {
+                return CompletableFuture.completedFuture(responseObj);
+            }
+            return retry(() -> route(requestObj, word, attempt + 1));
+        });
+    }
+
+    /**
+     * Send the items of a multi_search or batch request to their shards, and retry each item answered moved alone
+     * @param mode mode of the request
+     * @param key key of the items in the request
+     * @param items items of the request
+     * @param wordOf word of an item
+     * @param single request of an item alone
+     * @return future completed with the response JSONObject, with one result per item in order
+     */
+    private CompletableFuture<JSONObject> split(String mode, String key, List<?> items, Function<Object, String> wordOf,
+                                                Function<Object, JSONObject> single) {
+        ShardMap map = topology;
+        if (items.isEmpty()) {
+            // the server tells why
+            JSONObject requestObj = new JSONObject();
+            requestObj.put("mode", mode);
+            requestObj.put(key, new JSONArray());
+            return sendTo(map.shards().get(0), requestObj);
+        }
+        Map<ShardMap.Shard, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            groups.computeIfAbsent(map.owner(wordOf.apply(items.get(i))), shard -> new ArrayList<>()).add(i);
+        }
+        JSONObject[] results = new JSONObject[items.size()];
+        List<CompletableFuture<?>> parts = new ArrayList<>();
+        for (Map.Entry<ShardMap.Shard, List<Integer>> group : groups.entrySet()) {
+            List<Integer> indexes = group.getValue();
+            JSONArray part = new JSONArray();
+            for (int i : indexes) {
+                part.add(items.get(i));
+            }
+            JSONObject requestObj = new JSONObject();
+            requestObj.put("mode", mode);
+            requestObj.put(key, part);
+            parts.add(sendTo(group.getKey(), requestObj).thenCompose(responseObj -> {
+                if (!"success".equals(responseObj.get("status")) || !(responseObj.get("results") instanceof List)) {
+                    // the whole part was refused, every item gets the reason
+                    for (int i : indexes) {
+                        results[i] = responseObj;
+                    }
+                    return CompletableFuture.completedFuture(null);
+                }
+                List<?> partResults = (List<?>) responseObj.get("results");
+                List<CompletableFuture<?>> retries = new ArrayList<>();
+                for (int j = 0; j < indexes.size() && j < partResults.size(); j++) {
+                    int i = indexes.get(j);
+                    JSONObject resultObj = (JSONObject) partResults.get(j);
+                    if ("moved".equals(resultObj.get("status")) && canRetry(0)) {
+                        retries.add(retry(() -> route(single.apply(items.get(i)), wordOf.apply(items.get(i)), 1))
+                                .thenAccept(retried -> results[i] = retried));
+                    } else {
+                        results[i] = resultObj;
+                    }
+                }
+                return CompletableFuture.allOf(retries.toArray(new CompletableFuture<?>[0]));
+            }));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            JSONArray resultArray = new JSONArray();
+            resultArray.addAll(Arrays.asList(results));
+            JSONObject responseObj = new JSONObject();
+            responseObj.put("status", "success");
+            responseObj.put("results", resultArray);
+            return responseObj;
+        });
+    }
+
+    /**
+     * Import a chunk of entries, split again by the new topology when a shard answers moved
+     * @return future completed with the response JSONObject, one message per shard if split
+     */
+    private CompletableFuture<JSONObject> importChunk(List<?> entries, int attempt) {
+        Map<ShardMap.Shard, JSONArray> groups = new LinkedHashMap<>();
+        for (Object entry : entries) {
+            String word = entry instanceof JSONObject ? wordOf((JSONObject) entry) : "";
+            groups.computeIfAbsent(topology.owner(word), shard -> new JSONArray()).add(entry);
+        }
+        if (groups.size() > 1) {
+            List<CompletableFuture<JSONObject>> parts = new ArrayList<>();
+            for (JSONArray part : groups.values()) {
+                parts.add(importChunk(part, attempt));
+            }
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+                StringBuilder messages = new StringBuilder();
+                for (CompletableFuture<JSONObject> part : parts) {
+                    JSONObject responseObj = part.join();
+                    if (!"success".equals(responseObj.get("status"))) {
+                        return responseObj;
+                    }
+                    messages.append(messages.length() > 0 ? "; " : "").append(responseObj.get("message"));
+                }
+                JSONObject responseObj = new JSONObject();
+                responseObj.put("status", "success");
+                responseObj.put("message", messages.toString());
+                return responseObj;
+            });
+        }
+        ShardMap.Shard shard = groups.keySet().iterator().next();
+        JSONArray chunk = groups.get(shard);
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", "import");
+        requestObj.put("entries", chunk);
+        return sendTo(shard, requestObj).thenCompose(responseObj -> {
+            if (!"moved".equals(responseObj.get("status")) || !canRetry(attempt)) {
+                return CompletableFuture.completedFuture(responseObj);
+            }
+            // nothing of the chunk was written, send it again as split by the new topology
+            return retry(() -> importChunk(chunk, attempt + 1));
+        });
+    }
+
+    /**
+     * Send a lookup to every shard and merge the words found
+     */
+    private CompletableFuture<JSONObject> lookup(JSONObject requestObj) {
+        String mode = (String) requestObj.get("mode");
+        List<ShardMap.Shard> shards = topology.shards();
+        long limit = requestObj.get("limit") instanceof Long ? (Long) requestObj.get("limit") : DEFAULT_LOOKUP_LIMIT;
+        long offset = requestObj.get("offset") instanceof Long ? (Long) requestObj.get("offset") : 0;
+        // a page of meaning matches needs the matches ranked before it from every shard, deeper pages split the offset
+        boolean exactPage = offset + limit <= MAX_LOOKUP_LIMIT;
+        List<CompletableFuture<JSONObject>> parts = new ArrayList<>();
+        for (ShardMap.Shard shard : shards) {
+            JSONObject part = copy(requestObj);
+            if (mode.equals("search_meaning") && shards.size() > 1 && offset >= 0 && limit >= 1) {
+                part.put("offset", exactPage ? 0L : offset / shards.size());
+                part.put("limit", exactPage ? offset + limit : limit);
+            }
+            parts.add(sendTo(shard, part));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<List<?>> found = new ArrayList<>();
+            long total = 0;
+            for (CompletableFuture<JSONObject> part : parts) {
+                JSONObject responseObj = part.join();
+                if (!"success".equals(responseObj.get("status")) || shards.size() == 1) {
+                    return responseObj;
+                }
+                found.add((List<?>) responseObj.get("words"));
+                if (responseObj.get("total") instanceof Long) {
+                    total += (Long) responseObj.get("total");
+                }
+            }
+            List<Object> words = new ArrayList<>();
+            if (mode.equals("search_meaning")) {
+                // shards rank their own matches, take them in turns
+                for (int rank = 0; words.size() < offset + limit || !exactPage; rank++) {
+                    int before = words.size();
+                    for (List<?> shardWords : found) {
+                        if (rank < shardWords.size()) {
+                            words.add(shardWords.get(rank));
+                        }
+                    }
+                    if (words.size() == before) {
+                        break;
+                    }
+                }
+                words = words.subList(exactPage ? (int) Math.min(offset, words.size()) : 0, words.size());
+            } else {
+                for (List<?> shardWords : found) {
+                    words.addAll(shardWords);
+                }
+                if (mode.equals("fuzzy")) {
+                    String query = (String) requestObj.get("word");
+                    words.sort(Comparator.comparingInt((Object word) -> distance(query, (String) word))
+                            .thenComparing(word -> (String) word));
+                } else {
+                    words.sort(Comparator.comparing(word -> (String) word));
+                }
+            }
+            JSONArray wordArray = new JSONArray();
+            wordArray.addAll(words.subList(0, (int) Math.min(limit, words.size())));
+            JSONObject responseObj = new JSONObject();
+            responseObj.put("status", "success");
+            responseObj.put("words", wordArray);
+            if (mode.equals("search_meaning")) {
+                responseObj.put("total", total);
+            }
+            return responseObj;
+        });
+    }
+
+    /**
+     * Levenshtein distance, to rank the fuzzy matches of different shards together
+     */
+    static int distance(String a, String b) {
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            row[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            int diagonal = row[0];
+            row[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int above = row[j];
+                row[j] = Math.min(Math.min(row[j] + 1, row[j - 1] + 1), diagonal + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+                diagonal = above;
+            }
+        }
+        return row[b.length()];
+    }
+
+    /**
+     * @param attempt retries of the request so far
+     * @return true if a request answered moved can be retried, a single server has no topology file to read again
+     */
+    private boolean canRetry(int attempt) {
+        return file != null && attempt < MAX_RETRIES;
+    }
+
+    /**
+     * Wait, read the topology file again and send a request again
+     */
+    private CompletableFuture<JSONObject> retry(Supplier<CompletableFuture<JSONObject>> request) {
+        return CompletableFuture.runAsync(this::reload, CompletableFuture.delayedExecutor(RETRY_MILLIS, TimeUnit.MILLISECONDS))
+                .thenCompose(done -> request.get());
+    }
+
+    /**
+     * Read the topology file again, and close the connections to shards no longer in it
+     */
+    private synchronized void reload() {
+        if (file == null) {
+            return;
+        }
+        ShardMap read;
+        try {
+            read = ShardMap.read(file);
+        } catch (IOException e) {
+            // being written, the current topology is kept until the next retry
+            return;
+        }
+        if (read.equals(topology)) {
+            return;
+        }
+        topology = read;
+        for (ShardMap.Shard shard : connections.keySet()) {
+            if (!read.shards().contains(shard)) {
+                closeQuietly(connections.remove(shard));
+            }
+        }
+    }
+
+    /**
+     * Send a request on the connection to a shard, connecting first if needed
+     */
+    private CompletableFuture<JSONObject> sendTo(ShardMap.Shard shard, JSONObject requestObj) {
+        DictionaryConnection connection;
+        try {
+            connection = connection(shard);
+        } catch (IOException e) {
+            CompletableFuture<JSONObject> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        CompletableFuture<JSONObject> response = connection.send(requestObj);
+        response.whenComplete((responseObj, e) -> {
+            // the shard restarted or went away, the next request connects again
+            if (e != null && connections.remove(shard, connection)) {
+                closeQuietly(connection);
+            }
+        });
+        return response;
+    }
+
+    private DictionaryConnection connection(ShardMap.Shard shard) throws IOException {
+        DictionaryConnection connection = connections.get(shard);
+        if (connection != null) {
+            return connection;
+        }
+        synchronized (connections) {
+            connection = connections.get(shard);
+            if (connection == null) {
+                connection = new DictionaryConnection(shard.host, shard.port, preferBinary);
+                if (cacheCapacity > 0) {
+                    connection.enableCache(cacheCapacity);
+                }
+                connections.put(shard, connection);
+            }
+            return connection;
+        }
+    }
+
+    private static String wordOf(JSONObject requestObj) {
+        Object word = requestObj.get("word");
+        return word instanceof String ? (String) word : "";
+    }
+
+    /**
+     * @return copy of a request, each connection adds its own id to the request it sends
+     */
+    private static JSONObject copy(JSONObject requestObj) {
+        JSONObject copy = new JSONObject();
+        copy.putAll(requestObj);
+        copy.remove("id");
+        return copy;
+    }
+
+    private static void closeQuietly(DictionaryConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (DictionaryConnection connection : connections.values()) {
+            connection.close();
+        }
+    }
+}
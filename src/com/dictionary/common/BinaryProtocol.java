@@ -0,0 +1,218 @@
+// Xinyu Wang 1460767
+package com.dictionary.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary alternative to the newline-delimited JSON protocol.
+ * <p>
+ * A client asks for it by sending {@link #HELLO} as the first bytes of the connection; a server supporting it
+ * answers with the same bytes, otherwise the client reconnects and speaks JSON. After that every message is a frame:
+ * <pre>
+ * request:  length(4) opcode(1) id(4) wordLength(4) word meaningLength(4) meaning
+ * response: length(4) status(1) id(4) textKind(1) textLength(4) text
+ * </pre>
+ * length counts the bytes after itself, strings are UTF-8 and a length of -1 stands for null.
+ * Requests with id 0 are answered in order, other ids may be answered out of order.
+ */
+public final class BinaryProtocol {
+
+    public static final byte[] HELLO = {'D', 'I', 'C', 'B', 1};
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    public static final byte OP_SEARCH = 1;
+    public static final byte OP_ADD = 2;
+    public static final byte OP_REMOVE = 3;
+    public static final byte OP_UPDATE = 4;
+
+    public static final byte STATUS_SUCCESS = 0;
+    public static final byte STATUS_FAIL = 1;
+    public static final byte STATUS_ERROR = 2;
+    // the word belongs to another shard of the cluster, see ShardMap
+    public static final byte STATUS_MOVED = 3;
+    // the server is shedding load, the request was not run and may be sent again later
+    public static final byte STATUS_BUSY = 4;
+    // the server is still loading its dictionary, the request was not run and may be sent again shortly
+    public static final byte STATUS_LOADING = 5;
+
+    public static final byte TEXT_MESSAGE = 0;
+    public static final byte TEXT_MEANING = 1;
+
+    private static final String[] MODES = {null, "search", "add", "remove", "update"};
+    private static final String[] STATUSES = {"success", "fail", "error", "moved", "busy", "loading"};
+
+    private BinaryProtocol() {
+    }
+
+    public static class Request {
+        public final byte opcode;
+        public final int id;
+        public final String word;
+        public final String meaning;
+
+        public Request(byte opcode, int id, String word, String meaning) {
+            this.opcode = opcode;
+            this.id = id;
+            this.word = word;
+            this.meaning = meaning;
+        }
+
+        /**
+         * @return JSON request mode of the opcode, null if unknown
+         */
+        public String mode() {
+            return opcode > 0 && opcode < MODES.length ? MODES[opcode] : null;
+        }
+    }
+
+    public static class Response {
+        public final byte status;
+        public final int id;
+        public final byte textKind;
+        public final String text;
+
+        public Response(byte status, int id, byte textKind, String text) {
+            this.status = status;
+            this.id = id;
+            this.textKind = textKind;
+            this.text = text;
+        }
+
+        /**
+         * @return JSON response status
+         */
+        public String statusName() {
+            return BinaryProtocol.statusName(status);
+        }
+    }
+
+    /**
+     * @param mode JSON request mode
+     * @return opcode, 0 if the mode has no binary opcode
+     */
+    public static byte opcode(String mode) {
+        for (byte i = 1; i < MODES.length; i++) {
+            if (MODES[i].equals(mode)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param status status code
+     * @return JSON response status, error if unknown
+     */
+    public static String statusName(byte status) {
+        return status >= 0 && status < STATUSES.length ? STATUSES[status] : "error";
+    }
+
+    /**
+     * @param status JSON response status
+     * @return status code
+     */
+    public static byte statusCode(String status) {
+        for (byte i = 0; i < STATUSES.length; i++) {
+            if (STATUSES[i].equals(status)) {
+                return i;
+            }
+        }
+        return STATUS_ERROR;
+    }
+
+    public static ByteBuffer encodeRequest(byte opcode, int id, String word, String meaning) {
+        byte[] wordBytes = bytes(word);
+        byte[] meaningBytes = bytes(meaning);
+        int length = 1 + 4 + 4 + size(wordBytes) + 4 + size(meaningBytes);
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(opcode).putInt(id);
+        putBytes(frame, wordBytes);
+        putBytes(frame, meaningBytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Decode a request straight from the receive buffer
+     * @param frame buffer positioned after the length prefix and limited to the end of the frame
+     * @return request
+     * @throws IllegalArgumentException malformed frame
+     */
+    public static Request decodeRequest(ByteBuffer frame) {
+        try {
+            byte opcode = frame.get();
+            int id = frame.getInt();
+            String word = getString(frame);
+            String meaning = getString(frame);
+            return new Request(opcode, id, word, meaning);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed request frame", e);
+        }
+    }
+
+    public static ByteBuffer encodeResponse(byte status, int id, byte textKind, String text) {
+        byte[] textBytes = bytes(text);
+        int length = 1 + 4 + 1 + 4 + size(textBytes);
+        ByteBuffer frame = ByteBuffer.allocate(4 + length);
+        frame.putInt(length).put(status).putInt(id).put(textKind);
+        putBytes(frame, textBytes);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param frame buffer positioned after the length prefix and limited to the end of the frame
+     * @return response
+     * @throws IllegalArgumentException malformed frame
+     */
+    public static Response decodeResponse(ByteBuffer frame) {
+        try {
+            byte status = frame.get();
+            int id = frame.getInt();
+            byte textKind = frame.get();
+            return new Response(status, id, textKind, getString(frame));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed response frame", e);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int size(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer frame, byte[] bytes) {
+        if (bytes == null) {
+            frame.putInt(-1);
+        } else {
+            frame.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    /**
+     * Decode a string in place, without copying the bytes out of a heap buffer first
+     */
+    private static String getString(ByteBuffer frame) {
+        int length = frame.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > frame.remaining()) {
+            throw new IndexOutOfBoundsException("String longer than frame");
+        }
+        String value;
+        if (frame.hasArray()) {
+            value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            frame.duplicate().get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        frame.position(frame.position() + length);
+        return value;
+    }
+}
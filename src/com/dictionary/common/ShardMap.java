@@ -0,0 +1,213 @@
+// Xinyu Wang 1460767
+package com.dictionary.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Topology of a sharded dictionary: which server owns which words, shared by the servers and their clients.
+ * <p>
+ * Words are placed by consistent hashing: each shard owns {@link #VIRTUAL_NODES} points of a 64-bit ring,
+ * and a word belongs to the shard owning the first point at or after its hash. Adding a shard only moves the
+ * words falling just before its points, about 1/N of the dictionary, all taken from the other shards evenly.
+ * The hash only depends on the UTF-8 bytes, so every process places a word the same way.
+ * <p>
+ * The topology is a text file with one shard per line, its name then its address:
+ * <pre>
+ * # name host:port
+ * s1 localhost:4001
+ * s2 localhost:4002
+ * </pre>
+ */
+public final class ShardMap {
+
+    public static final int VIRTUAL_NODES = 128;
+
+    /**
+     * One server of the cluster
+     */
+    public static final class Shard {
+        public final String name;
+        public final String host;
+        public final int port;
+
+        public Shard(String name, String host, int port) {
+            this.name = name;
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * @return address in the form host:port
+         */
+        public String address() {
+            return host + ":" + port;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Shard && name.equals(((Shard) other).name) && address().equals(((Shard) other).address());
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return name + " at " + address();
+        }
+    }
+
+    private final List<Shard> shards;
+    // sorted points of the ring and the shard owning each
+    private final long[] points;
+    private final Shard[] owners;
+
+    /**
+     * @param shards servers of the cluster, with distinct names
+     * @throws IllegalArgumentException no shard, or two shards with the same name
+     */
+    public ShardMap(List<Shard> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("Topology should have at least one shard!");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        long[] unsorted = new long[shards.size() * VIRTUAL_NODES];
+        for (int s = 0; s < shards.size(); s++) {
+            for (int s2 = 0; s2 < s; s2++) {
+                if (shards.get(s2).name.equals(shards.get(s).name)) {
+                    throw new IllegalArgumentException("Shard " + shards.get(s).name + " is listed twice!");
+                }
+            }
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                unsorted[s * VIRTUAL_NODES + v] = hash(shards.get(s).name + "#" + v);
+            }
+        }
+        // order the points, each keeping its shard
+        Integer[] order = new Integer[unsorted.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(unsorted[a], unsorted[b]));
+        points = new long[unsorted.length];
+        owners = new Shard[unsorted.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = unsorted[order[i]];
+            owners[i] = shards.get(order[i] / VIRTUAL_NODES);
+        }
+    }
+
+    /**
+     * Read a topology file
+     * @param file topology file, one "name host:port" per line
+     * @return topology
+     * @throws IOException error while reading the file, or a line not in the form "name host:port"
+     */
+    public static ShardMap read(Path file) throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            int split = fields.length == 2 ? fields[1].lastIndexOf(':') : -1;
+            try {
+                if (split <= 0) {
+                    throw new NumberFormatException();
+                }
+                shards.add(new Shard(fields[0], fields[1].substring(0, split), Integer.parseInt(fields[1].substring(split + 1))));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid shard in " + file + ": " + line);
+            }
+        }
+        try {
+            return new ShardMap(shards);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return shards in the order of the topology file
+     */
+    public List<Shard> shards() {
+        return shards;
+    }
+
+    /**
+     * @param name name of a shard
+     * @return shard, null if not in the topology
+     */
+    public Shard shard(String name) {
+        for (Shard shard : shards) {
+            if (shard.name.equals(name)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param word word to place
+     * @return shard owning the word
+     */
+    public Shard owner(String word) {
+        int i = Arrays.binarySearch(points, hash(word));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        // past the last point, the ring wraps around
+        return owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes, with the final mix of MurmurHash3 to spread close strings over the ring
+     */
+    static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ShardMap && shards.equals(((ShardMap) other).shards);
+    }
+
+    @Override
+    public int hashCode() {
+        return shards.hashCode();
+    }
+
+    /**
+     * @return shards in the form "name host:port, name host:port", the same for equal topologies
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Shard shard : shards) {
+            if (text.length() > 0) {
+                text.append(", ");
+            }
+            text.append(shard.name).append(' ').append(shard.address());
+        }
+        return text.toString();
+    }
+}
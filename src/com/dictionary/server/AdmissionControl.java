@@ -0,0 +1,273 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Limits given at startup to protect the server from misbehaving clients, a request over a limit is answered
+ * with the busy status without being run:
+ * <ul>
+ *     <li>--max-connections: connections over the limit are closed as soon as they are accepted</li>
+ *     <li>--rate-limit and --rate-burst: requests per second of one client address, shared by its connections</li>
+ *     <li>--max-pending: requests with an id running at once for one connection</li>
+ *     <li>--idle-timeout: seconds without request after which a connection is closed, unless it is subscribed
+ *     to changes or replicating</li>
+ * </ul>
+ * Every limit is off when 0. Replicas, once their replicate request is admitted, and connections from the other
+ * shards of the cluster are not rate limited; any other client sending the same requests is.
+ */
+class AdmissionControl {
+
+    private final int maxConnections;
+    private final double rate;
+    private final double burst;
+    private final int maxPending;
+    private final long idleTimeoutNanos;
+    private final RequestLog log;
+    private final ConcurrentHashMap<ClientSession, Client> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder queueFull = new LongAdder();
+    private final LongAdder idleClosed = new LongAdder();
+    // addresses of the other shards of the cluster, none until it is joined
+    private volatile Predicate<InetAddress> peers = address -> false;
+
+    /**
+     * State of one connection
+     */
+    private static class Client {
+        final TokenBucket bucket;
+        // requests received and not answered yet
+        final AtomicInteger pending = new AtomicInteger();
+        volatile long lastRequest = System.nanoTime();
+        // subscribed or replicating, waits for pushed changes without sending requests
+        volatile boolean keepAlive;
+        // replicating, not rate limited
+        volatile boolean replica;
+        // closed by the reaper, forgotten once the engine reports the disconnection
+        volatile boolean closed;
+
+        Client(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * Requests allowed to one client address, refilled continuously at the rate up to the burst
+     */
+    private static class TokenBucket {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long refilled = System.nanoTime();
+        // connections of the address, the bucket is dropped with the last one
+        int connections;
+
+        TokenBucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * No limit, as used by benchmarks
+     */
+    AdmissionControl() {
+        this(new ServerOptions(new String[] {"--max-pending=0"}), null);
+    }
+
+    /**
+     * Read the limits from the startup options
+     * @param options startup options
+     * @param log server log
+     * @throws IllegalArgumentException a limit is not numeric or negative
+     */
+    AdmissionControl(ServerOptions options, RequestLog log) {
+        maxConnections = options.getInt("max-connections", 0);
+        rate = options.getInt("rate-limit", 0);
+        // a second of requests by default
+        burst = options.getInt("rate-burst", (int) rate);
+        maxPending = options.getInt("max-pending", 1024);
+        idleTimeoutNanos = TimeUnit.SECONDS.toNanos(options.getInt("idle-timeout", 0));
+        if (maxConnections < 0 || rate < 0 || burst < 0 || maxPending < 0 || idleTimeoutNanos < 0) {
+            throw new IllegalArgumentException("Limits should not be negative!");
+        }
+        if (rate > 0 && burst < 1) {
+            throw new IllegalArgumentException("Option --rate-burst should be at least 1!");
+        }
+        this.log = log;
+        if (idleTimeoutNanos > 0) {
+            ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "dictionary-admission");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reaper.scheduleWithFixedDelay(this::closeIdle, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Register a new connection, rejected if the server already has the maximum number of connections
+     * @param session client session
+     * @return false if the connection is over the limit and should be closed at once, it is not registered
+     */
+    boolean connect(ClientSession session) {
+        if (maxConnections > 0 && admitted.incrementAndGet() > maxConnections) {
+            admitted.decrementAndGet();
+            rejectedConnections.increment();
+            return false;
+        }
+        TokenBucket bucket = null;
+        if (rate > 0) {
+            bucket = buckets.compute(session.getAddress(), (address, current) -> {
+                TokenBucket shared = current != null ? current : new TokenBucket(rate, burst);
+                shared.connections++;
+                return shared;
+            });
+        }
+        clients.put(session, new Client(bucket));
+        return true;
+    }
+
+    /**
+     * Exempt the other shards of the cluster from the rate limit
+     * @param peers tells whether a client address is another shard
+     */
+    void trustPeers(Predicate<InetAddress> peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Forget a closed connection
+     * @param session client session
+     */
+    void disconnect(ClientSession session) {
+        Client client = clients.remove(session);
+        if (client == null) {
+            return;
+        }
+        if (maxConnections > 0) {
+            admitted.decrementAndGet();
+        }
+        if (client.bucket != null) {
+            buckets.computeIfPresent(session.getAddress(), (address, shared) -> --shared.connections == 0 ? null : shared);
+        }
+    }
+
+    /**
+     * Admit one request, which must be followed by {@link #exit(ClientSession)} once answered
+     * @param session client session
+     * @param mode mode of the request
+     * @param pipelined the request has an id and runs concurrently with the next ones
+     * @return null if admitted, otherwise the busy response to send instead of running the request
+     */
+    Response enter(ClientSession session, Object mode, boolean pipelined) {
+        Client client = clients.get(session);
+        if (client == null) {
+            return null;
+        }
+        if (client.bucket != null && !client.replica && !peers.test(session.getAddress()) && !client.bucket.tryAcquire()) {
+            rateLimited.increment();
+            return Response.busy("Too many requests from " + session.getAddress() + ", please slow down!");
+        }
+        if (pipelined && maxPending > 0 && client.pending.get() >= maxPending) {
+            queueFull.increment();
+            return Response.busy("Too many requests in progress on this connection, please wait for responses!");
+        }
+        client.pending.incrementAndGet();
+        client.lastRequest = System.nanoTime();
+        return null;
+    }
+
+    /**
+     * A request admitted by {@link #enter(ClientSession, Object, boolean)} has been answered
+     * @param session client session
+     */
+    void exit(ClientSession session) {
+        Client client = clients.get(session);
+        if (client != null) {
+            client.pending.decrementAndGet();
+            client.lastRequest = System.nanoTime();
+        }
+    }
+
+    /**
+     * Never close the connection for being idle, it waits for changes pushed by the server
+     * @param session client session
+     */
+    void keepAlive(ClientSession session) {
+        Client client = clients.get(session);
+        if (client != null) {
+            client.keepAlive = true;
+        }
+    }
+
+    /**
+     * The connection replicates the dictionary from now on: it is kept alive and no longer rate limited
+     * @param session client session
+     */
+    void registerReplica(ClientSession session) {
+        Client client = clients.get(session);
+        if (client != null) {
+            client.keepAlive = true;
+            client.replica = true;
+        }
+    }
+
+    /**
+     * Close connections idle for longer than the timeout
+     */
+    private void closeIdle() {
+        long now = System.nanoTime();
+        clients.forEach((session, client) -> {
+            if (client.closed) {
+                return;
+            }
+            if (idleTimeoutNanos > 0 && !client.keepAlive && client.pending.get() == 0
+                    && now - client.lastRequest > idleTimeoutNanos) {
+                client.closed = true;
+                idleClosed.increment();
+                log.info("Closing connection with " + session.getSocketInfo() + " idle for "
+                        + TimeUnit.NANOSECONDS.toSeconds(now - client.lastRequest) + " s");
+                session.close();
+            }
+        });
+    }
+
+    long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    long getQueueFull() {
+        return queueFull.sum();
+    }
+
+    long getIdleClosed() {
+        return idleClosed.sum();
+    }
+}
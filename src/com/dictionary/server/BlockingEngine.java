@@ -0,0 +1,334 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import com.dictionary.common.BinaryProtocol;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One blocking thread per connection, either a platform thread or a virtual thread.
+ * <p>
+ * The connection thread writes its own responses. Responses sent by other threads, such as the pipeline threads
+ * shared by every connection, are queued for a writer thread of the connection instead, so they never wait for a
+ * client not reading. The connection is not read while more than {@value #OUTBOX_HIGH_WATER} bytes are queued,
+ * and is closed if a response would queue more than {@value #OUTBOX_LIMIT} bytes or the queue stays over the
+ * mark for {@value #STALL_MILLIS} ms.
+ */
+class BlockingEngine implements ConnectionEngine {
+
+    private static final int OUTBOX_HIGH_WATER = 4 * 1024 * 1024;
+    private static final int OUTBOX_LIMIT = 16 * 1024 * 1024;
+    private static final long STALL_MILLIS = 30_000;
+
+    private final RequestHandler handler;
+    private final ThreadFactory threadFactory;
+    private ServerSocket serverSocket;
+
+    BlockingEngine(RequestHandler handler, boolean virtual) {
+        this.handler = handler;
+        this.threadFactory = virtual ? virtualThreadFactory() : Thread::new;
+    }
+
+    @Override
+    public void bind(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+    }
+
+    @Override
+    public void serve() throws IOException {
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    throw e;
+                }
+                handler.onAcceptError(e);
+                try {
+                    Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            Session session = new Session(socket);
+            if (!handler.onConnect(session)) {
+                session.close();
+                continue;
+            }
+            // handle each client connection in a separate thread
+            threadFactory.newThread(() -> session.run()).start();
+        }
+    }
+
+    /**
+     * Virtual threads are only available from Java 21, look them up reflectively so the
+     * server still builds and runs on older runtimes with platform threads instead
+     * @return thread factory creating virtual threads if supported
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not supported by this Java runtime, using platform threads!");
+            return Thread::new;
+        }
+    }
+
+    /**
+     * Reads newline-terminated UTF-8 lines of at most {@link ConnectionEngine#MAX_LINE_LENGTH} bytes,
+     * a trailing carriage return is dropped
+     */
+    private static class LineReader {
+        private final InputStream in;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+        // bytes of a line spanning several reads
+        private byte[] line = new byte[256];
+
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return next line, null at the end of the stream
+         * @throws IOException connection error or line too long
+         */
+        String readLine() throws IOException {
+            int length = 0;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit < 0) {
+                        limit = 0;
+                        return length == 0 ? null : decode(line, 0, length);
+                    }
+                }
+                int end = position;
+                while (end < limit && buffer[end] != '\n') {
+                    end++;
+                }
+                if (end < limit && length == 0) {
+                    // the whole line is in the buffer, the common case
+                    String decoded = decode(buffer, position, end - position);
+                    position = end + 1;
+                    return decoded;
+                }
+                int count = end - position;
+                if (length + count > ConnectionEngine.MAX_LINE_LENGTH) {
+                    throw new IOException("Request line longer than " + ConnectionEngine.MAX_LINE_LENGTH + " bytes");
+                }
+                if (length + count > line.length) {
+                    line = Arrays.copyOf(line, Math.max(length + count, line.length * 2));
+                }
+                System.arraycopy(buffer, position, line, length, count);
+                length += count;
+                position = end;
+                if (end < limit) {
+                    position++;
+                    return decode(line, 0, length);
+                }
+            }
+        }
+
+        private static String decode(byte[] bytes, int offset, int length) {
+            if (length > 0 && bytes[offset + length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    private class Session extends ClientSession {
+
+        private final Socket socket;
+        private OutputStream output;
+        // thread reading the requests, writing its responses itself
+        private volatile Thread reader;
+        // responses of other threads, written by the writer thread started on the first one, guarded by outbox
+        private final LinkedBlockingQueue<ByteBuffer> outbox = new LinkedBlockingQueue<>();
+        private final AtomicLong outboxBytes = new AtomicLong();
+        private Thread writer;
+        private volatile boolean closed;
+
+        Session(Socket socket) {
+            super(socket.getInetAddress(), socket.getPort());
+            this.socket = socket;
+        }
+
+        private void run() {
+            reader = Thread.currentThread();
+            try {
+                BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+                output = new BufferedOutputStream(socket.getOutputStream());
+                // binary clients start with the hello bytes, JSON requests start with '{'
+                in.mark(BinaryProtocol.HELLO.length);
+                int first = in.read();
+                if (first == BinaryProtocol.HELLO[0]) {
+                    byte[] hello = new byte[BinaryProtocol.HELLO.length];
+                    hello[0] = (byte) first;
+                    new DataInputStream(in).readFully(hello, 1, hello.length - 1);
+                    if (!Arrays.equals(hello, BinaryProtocol.HELLO)) {
+                        throw new IOException("Unknown protocol");
+                    }
+                    send(ByteBuffer.wrap(BinaryProtocol.HELLO));
+                    serveBinary(in);
+                } else if (first >= 0) {
+                    in.reset();
+                    serveJson(in);
+                }
+            } catch (Exception e) {
+                // malformed request or connection reset, drop the client
+            } finally {
+                close();
+                handler.onDisconnect(this);
+            }
+        }
+
+        private void serveJson(InputStream input) throws Exception {
+            LineReader in = new LineReader(input);
+            String line;
+            while ((line = in.readLine()) != null) {
+                awaitWritable();
+                ByteBuffer response = handler.handle(line, this);
+                // null when the handler answers later by itself
+                if (response != null) {
+                    send(response);
+                }
+            }
+        }
+
+        private void serveBinary(InputStream input) throws Exception {
+            DataInputStream in = new DataInputStream(input);
+            byte[] frame = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (frame.length < length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                in.readFully(frame, 0, length);
+                awaitWritable();
+                ByteBuffer response = handler.handleBinary(BinaryProtocol.decodeRequest(ByteBuffer.wrap(frame, 0, length)), this);
+                if (response != null) {
+                    send(response);
+                }
+            }
+        }
+
+        @Override
+        void send(ByteBuffer response) throws IOException {
+            if (Thread.currentThread() == reader) {
+                write(response);
+                return;
+            }
+            if (closed) {
+                throw new IOException("Connection with " + getSocketInfo() + " is closed");
+            }
+            // the caller reuses its buffer, keep a copy until the writer thread writes it
+            ByteBuffer copy = ByteBuffer.allocate(response.remaining());
+            copy.put(response.duplicate()).flip();
+            if (outboxBytes.addAndGet(copy.remaining()) > OUTBOX_LIMIT) {
+                close();
+                throw new IOException("Connection with " + getSocketInfo() + " does not read its responses");
+            }
+            synchronized (outbox) {
+                outbox.add(copy);
+                if (writer == null) {
+                    writer = threadFactory.newThread(this::writeQueued);
+                    writer.start();
+                }
+            }
+        }
+
+        /**
+         * Writer thread: write the queued responses until the connection closes
+         */
+        private void writeQueued() {
+            try {
+                while (!closed) {
+                    ByteBuffer response = outbox.take();
+                    int size = response.remaining();
+                    write(response);
+                    if (outboxBytes.addAndGet(-size) <= OUTBOX_HIGH_WATER) {
+                        synchronized (outboxBytes) {
+                            outboxBytes.notifyAll();
+                        }
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // connection closed
+            }
+            close();
+        }
+
+        @Override
+        void awaitWritable() throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + STALL_MILLIS;
+            synchronized (outboxBytes) {
+                while (!closed && outboxBytes.get() > OUTBOX_HIGH_WATER) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        close();
+                        break;
+                    }
+                    outboxBytes.wait(wait);
+                }
+            }
+            if (closed) {
+                throw new IOException("Connection with " + getSocketInfo() + " is closed");
+            }
+        }
+
+        private synchronized void write(ByteBuffer response) throws IOException {
+            // written through before returning, so the caller can reuse the buffer
+            if (response.hasArray()) {
+                output.write(response.array(), response.arrayOffset() + response.position(), response.remaining());
+            } else {
+                byte[] bytes = new byte[response.remaining()];
+                response.duplicate().get(bytes);
+                output.write(bytes);
+            }
+            output.flush();
+        }
+
+        @Override
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            synchronized (outbox) {
+                if (writer != null) {
+                    writer.interrupt();
+                }
+            }
+            synchronized (outboxBytes) {
+                outboxBytes.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Dictionary larger than the heap: meanings stay in the dictionary file and only the most used are kept in a
+ * {@link WordCache} of bounded size. Words are much smaller than their meanings and all stay in the
+ * {@link WordIndex}, so lookups by prefix, wildcard or spelling and searches of unknown words never read the file.
+ * <p>
+ * A miss reads the word holding its lock, so no write of the word can happen between reading it and caching it,
+ * and writes update the cache holding the same lock. Misses read through the write-behind queue, so a word evicted
+ * before its change is written is not read back older than it is. Full-text search over meanings is not available,
+ * as its index holds every meaning.
+ */
+class CachedDictionaryStore extends DictionaryStore {
+
+    private final WordCache cache;
+    private volatile WordIndex index = new WordIndex();
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile WriteBehindQueue writer;
+
+    /**
+     * @param cacheBytes maximum estimated size of the cached meanings in bytes
+     */
+    CachedDictionaryStore(long cacheBytes) {
+        this.cache = new WordCache(cacheBytes);
+    }
+
+    WordCache cache() {
+        return cache;
+    }
+
+    /**
+     * @param word word to search
+     * @return meanings of the word, null if not found
+     * @throws UncheckedIOException error while reading the dictionary file
+     */
+    @Override
+    Meanings get(String word) {
+        Meanings meanings = cache.get(word);
+        if (meanings != null || !index.contains(word)) {
+            return meanings;
+        }
+        ReentrantLock lock = lock(word);
+        try {
+            // loaded by another search while waiting for the lock
+            meanings = cache.peek(word);
+            if (meanings != null) {
+                return meanings;
+            }
+            long start = System.nanoTime();
+            meanings = writer.read(word);
+            cache.recordLoad(System.nanoTime() - start);
+            if (meanings != null) {
+                cache.put(word, meanings);
+            }
+            return meanings;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    boolean contains(String word) {
+        return index.contains(word);
+    }
+
+    @Override
+    int size() {
+        return size.get();
+    }
+
+    @Override
+    WordIndex index() {
+        return index;
+    }
+
+    @Override
+    MeaningIndex meaningIndex() {
+        return null;
+    }
+
+    @Override
+    void forEachWord(Consumer<String> action) {
+        index.prefix("", Integer.MAX_VALUE).forEach(action);
+    }
+
+    /**
+     * Meanings not cached are read from the dictionary file without being cached, so the most used words stay
+     * @throws UncheckedIOException error while reading the dictionary file
+     */
+    @Override
+    void forEachEntry(BiConsumer<String, Meanings> action) {
+        forEachWord(word -> {
+            Meanings meanings = cache.peek(word);
+            try {
+                if (meanings == null) {
+                    meanings = writer.read(word);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            // removed meanwhile
+            if (meanings != null) {
+                action.accept(word, meanings);
+            }
+        });
+    }
+
+    @Override
+    void put(String word, Meanings meanings) {
+        cache.put(word, meanings);
+        if (!index.contains(word)) {
+            index.add(word);
+            size.incrementAndGet();
+        }
+    }
+
+    @Override
+    void remove(String word) {
+        if (index.contains(word)) {
+            index.remove(word);
+            size.decrementAndGet();
+        }
+        cache.invalidate(word);
+    }
+
+    /**
+     * Read only the words of the dictionary file and empty the cache, meanings are read when first searched.
+     * As for the other stores, writes made while reading are caught up holding every lock.
+     */
+    @Override
+    void load(DictionaryStorage storage, WriteBehindQueue writer) throws IOException {
+        List<String> words = new ArrayList<>();
+        storage.loadWords(words);
+        WordIndex loaded = WordIndex.of(words);
+        lockAll();
+        try {
+            writer.awaitFlushed();
+            int count = words.size();
+            for (Map.Entry<String, Meanings> change : storage.readChanges().entrySet()) {
+                boolean known = loaded.contains(change.getKey());
+                if (change.getValue() == null && known) {
+                    loaded.remove(change.getKey());
+                    count--;
+                } else if (change.getValue() != null && !known) {
+                    loaded.add(change.getKey());
+                    count++;
+                }
+            }
+            this.writer = writer;
+            index = loaded;
+            size.set(count);
+            cache.clear();
+            newVersions();
+        } finally {
+            unlockAll();
+        }
+    }
+}
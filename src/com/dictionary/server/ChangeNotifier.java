@@ -0,0 +1,170 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the words changed in the dictionary to the clients that subscribed, so they can drop cached searches.
+ * <p>
+ * Writers only queue the changed word; one thread batches them, with the words changed meanwhile in one line
+ * {"push":"invalidate","words":[...]}, so a slow client never holds a write. If the queue overflows, the clients
+ * are told to drop every cached search with {"push":"invalidate_all"} instead.
+ * <p>
+ * Each subscriber has a bounded queue of lines sent by a thread of its own, so a client not reading only holds
+ * its own thread. A subscriber falling {@value #SUBSCRIBER_QUEUE_CAPACITY} lines behind has them replaced by one
+ * invalidate_all, and is disconnected if it falls behind again before reading it.
+ */
+class ChangeNotifier {
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_WORDS_PER_PUSH = 1024;
+    private static final int SUBSCRIBER_QUEUE_CAPACITY = 256;
+    private static final byte[] INVALIDATE_ALL = "{\"push\":\"invalidate_all\"}\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * One subscribed connection and the lines not yet sent to it
+     */
+    private class Subscriber {
+        final ClientSession session;
+        final LinkedBlockingQueue<byte[]> lines = new LinkedBlockingQueue<>(SUBSCRIBER_QUEUE_CAPACITY);
+        final Thread sender;
+        // the queued lines were replaced by invalidate_all, not sent yet, guarded by this
+        boolean collapsed;
+
+        Subscriber(ClientSession session) {
+            this.session = session;
+            sender = new Thread(this::run, "dictionary-subscriber-" + session.getSocketInfo());
+            sender.setDaemon(true);
+        }
+
+        /**
+         * Queue a line, never waits
+         */
+        synchronized void offer(byte[] line) {
+            if (lines.offer(line)) {
+                return;
+            }
+            if (collapsed) {
+                // not even the invalidate_all was read
+                session.close();
+                unsubscribe(session);
+                return;
+            }
+            lines.clear();
+            lines.offer(INVALIDATE_ALL);
+            collapsed = true;
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    byte[] line = lines.take();
+                    if (line == INVALIDATE_ALL) {
+                        synchronized (this) {
+                            collapsed = false;
+                        }
+                    }
+                    session.send(ByteBuffer.wrap(line));
+                }
+            } catch (IOException e) {
+                unsubscribe(session);
+            } catch (InterruptedException e) {
+                // unsubscribed
+            }
+        }
+    }
+
+    private final Map<ClientSession, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final LinkedBlockingQueue<String> changed = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicBoolean overflow = new AtomicBoolean();
+
+    ChangeNotifier() {
+        Thread pusher = new Thread(this::pushLoop, "dictionary-notifier");
+        pusher.setDaemon(true);
+        pusher.start();
+    }
+
+    void subscribe(ClientSession session) {
+        Subscriber subscriber = new Subscriber(session);
+        if (subscribers.putIfAbsent(session, subscriber) == null) {
+            subscriber.sender.start();
+        }
+    }
+
+    void unsubscribe(ClientSession session) {
+        Subscriber subscriber = subscribers.remove(session);
+        if (subscriber != null) {
+            subscriber.sender.interrupt();
+        }
+    }
+
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Report a change of a word, never waits
+     * @param word changed word
+     */
+    void changed(String word) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        if (!changed.offer(word)) {
+            overflow.set(true);
+        }
+    }
+
+    /**
+     * Report a change of every word, such as the dictionary replaced by a replica, never waits
+     */
+    void changedAll() {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        overflow.set(true);
+        // wake the pusher, the word is dropped with the queue
+        changed.offer("");
+    }
+
+    private void pushLoop() {
+        List<String> words = new ArrayList<>();
+        while (true) {
+            try {
+                words.add(changed.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            changed.drainTo(words, MAX_WORDS_PER_PUSH - 1);
+            byte[] line;
+            if (overflow.getAndSet(false)) {
+                // some changes were lost, the queued ones are covered as well
+                changed.clear();
+                line = INVALIDATE_ALL;
+            } else {
+                JSONObject message = new JSONObject();
+                JSONArray wordArray = new JSONArray();
+                wordArray.addAll(new LinkedHashSet<>(words));
+                message.put("push", "invalidate");
+                message.put("words", wordArray);
+                line = (message.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+            }
+            words.clear();
+            for (Subscriber subscriber : subscribers.values()) {
+                subscriber.offer(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.json.simple.parser.JSONParser;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * One connected client, independent of the engine serving it
+ */
+abstract class ClientSession {
+
+    private final InetAddress address;
+    private final String socketInfo;
+    // reused for every request processed in order, a new parser allocates a large lexer buffer
+    private final JSONParser parser = new JSONParser();
+    private final ResponseWriter responseWriter = new ResponseWriter();
+
+    ClientSession(InetAddress address, int port) {
+        this.address = address;
+        this.socketInfo = address + ":" + port;
+    }
+
+    /**
+     * @return address of the client, shared by all its connections
+     */
+    InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return client address in the form /ip:port
+     */
+    String getSocketInfo() {
+        return socketInfo;
+    }
+
+    /**
+     * Only used by the thread processing the requests of this session in order
+     * @return JSON parser of this session
+     */
+    JSONParser getParser() {
+        return parser;
+    }
+
+    /**
+     * Only used by the thread processing the requests of this session in order
+     * @return response writer of this session
+     */
+    ResponseWriter getResponseWriter() {
+        return responseWriter;
+    }
+
+    /**
+     * Send one encoded response, a JSON line or a binary frame, to the client.
+     * May be called from any thread as responses to pipelined requests are sent in the order they complete.
+     * The caller may reuse the buffer once this returns.
+     * @param response encoded response
+     * @throws IOException connection error
+     */
+    abstract void send(ByteBuffer response) throws IOException;
+
+    /**
+     * Wait until the client reads the responses queued for it, for threads sending many messages of their own
+     * such as replication snapshots. Responses are written through by default, so there is nothing to wait for.
+     * @throws IOException the client read nothing for too long and was disconnected
+     * @throws InterruptedException interrupted while waiting
+     */
+    void awaitWritable() throws IOException, InterruptedException {
+    }
+
+    /**
+     * Close the connection
+     */
+    abstract void close();
+}
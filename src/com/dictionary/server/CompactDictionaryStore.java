@@ -0,0 +1,114 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Dictionary of millions of words held compactly: words and meanings are kept as UTF-8 bytes in the slabs of a
+ * {@link SlabMap} instead of several objects per word, at the cost of decoding the meanings on every search.
+ * <p>
+ * Searches, writes, multi_search, batch and import work as with the other stores. The word and meaning indexes
+ * hold objects for every word, so lookups by prefix, wildcard, spelling or meaning are not available.
+ * The dictionary file is read straight into a new map, which is swapped in once writes made meanwhile are
+ * caught up, as for the other stores.
+ */
+class CompactDictionaryStore extends DictionaryStore {
+
+    private volatile SlabMap entries = new SlabMap();
+
+    @Override
+    Meanings get(String word) {
+        return entries.get(word);
+    }
+
+    @Override
+    boolean contains(String word) {
+        return entries.containsKey(word);
+    }
+
+    @Override
+    int size() {
+        return entries.size();
+    }
+
+    @Override
+    WordIndex index() {
+        return null;
+    }
+
+    @Override
+    MeaningIndex meaningIndex() {
+        return null;
+    }
+
+    /**
+     * @return bytes of the slabs holding the words and meanings, replaced records and free space included
+     */
+    long getSlabBytes() {
+        return entries.getSlabBytes();
+    }
+
+    /**
+     * @return bytes of the records of the current words
+     */
+    long getLiveBytes() {
+        return entries.getLiveBytes();
+    }
+
+    @Override
+    void forEachWord(Consumer<String> action) {
+        entries.forEachWord(action);
+    }
+
+    @Override
+    void forEachEntry(BiConsumer<String, Meanings> action) {
+        entries.forEach(action);
+    }
+
+    @Override
+    void put(String word, Meanings meanings) {
+        entries.store(word, meanings);
+    }
+
+    @Override
+    void remove(String word) {
+        entries.delete(word);
+    }
+
+    @Override
+    void load(DictionaryStorage storage, WriteBehindQueue writer) throws IOException {
+        SlabMap snapshot = new SlabMap();
+        storage.load(snapshot);
+        lockAll();
+        try {
+            writer.awaitFlushed();
+            storage.readChanges().forEach((word, meanings) -> {
+                if (meanings == null) {
+                    snapshot.delete(word);
+                } else {
+                    snapshot.store(word, meanings);
+                }
+            });
+            entries = snapshot;
+            newVersions();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    void replace(ConcurrentHashMap<String, Meanings> snapshot) {
+        SlabMap copy = new SlabMap();
+        snapshot.forEach(copy::store);
+        lockAll();
+        try {
+            entries = copy;
+            newVersions();
+        } finally {
+            unlockAll();
+        }
+    }
+}
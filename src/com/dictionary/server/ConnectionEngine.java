@@ -0,0 +1,49 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+
+/**
+ * Network engine accepting client connections and feeding newline-delimited
+ * JSON requests to the {@link RequestHandler}
+ */
+interface ConnectionEngine {
+
+    // longest JSON request line, room for an import of the largest size; longer lines close the connection
+    int MAX_LINE_LENGTH = 64 * 1024 * 1024;
+    // pause of accepting after an error such as running out of file descriptors, which a retry at once would hit again
+    long ACCEPT_BACKOFF_MILLIS = 100;
+
+    /**
+     * Bind the listening socket
+     * @param port port to listen on
+     * @throws IOException port not available
+     */
+    void bind(int port) throws IOException;
+
+    /**
+     * Accept and serve connections, blocks until the engine is stopped
+     * @throws IOException unexpected error of the listening socket
+     */
+    void serve() throws IOException;
+
+    /**
+     * Create the engine by name given at startup
+     * @param name engine name [thread/virtual/selector]
+     * @param handler request handler
+     * @param workers worker pool size used by the selector engine
+     * @return connection engine
+     */
+    static ConnectionEngine create(String name, RequestHandler handler, int workers) {
+        switch (name) {
+            case "thread":
+                return new BlockingEngine(handler, false);
+            case "virtual":
+                return new BlockingEngine(handler, true);
+            case "selector":
+                return new SelectorEngine(handler, workers);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Prints log messages to standard output, used when the server runs without GUI
+ */
+class ConsoleSink implements LogSink {
+
+    private final PrintStream out = System.out;
+
+    @Override
+    public void publish(List<LogEvent> batch) {
+        StringBuilder lines = new StringBuilder();
+        for (LogEvent event : batch) {
+            lines.append(event.level).append(' ').append(event).append(System.lineSeparator());
+        }
+        out.print(lines);
+        out.flush();
+    }
+}
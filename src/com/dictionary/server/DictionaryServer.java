@@ -1,39 +1,124 @@
 // Xinyu Wang 1460767
 package com.dictionary.server;
 
+import com.dictionary.common.BinaryProtocol;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 
-import javax.swing.*;
-import java.awt.*;
+import javax.management.JMException;
 import java.io.*;
-import java.net.*;
-import java.sql.*;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class DictionaryServer {
+public class DictionaryServer implements RequestHandler {
 
-    JFrame frame = new JFrame("Server");
-    JTextPane  messageCenter = new JTextPane ();
-    JScrollPane messageCenterScroll = new JScrollPane(messageCenter);
-    JPanel dictionaryPanel = new JPanel(new BorderLayout());
-    JButton refreshBtn = new JButton("Refresh Dictionary");
-    JTextArea wordList = new JTextArea();
+    private static final long LOG_FILE_BYTES = 10 * 1024 * 1024;
+    private static final int LOG_FILES = 5;
+    private static final int MAX_WRITE_BATCH = 1024;
+    private static final int DEFAULT_LOOKUP_LIMIT = 10;
+    private static final int MAX_LOOKUP_LIMIT = 100;
+    private static final int DEFAULT_FUZZY_DISTANCE = 2;
+    private static final int MAX_FUZZY_DISTANCE = 2;
+    private static final int MAX_SEARCH_OFFSET = 10000;
+    private static final int MAX_BATCH_SIZE = 10000;
+    private static final int MAX_IMPORT_ENTRIES = 100000;
+    // fields of an operation read as strings
+    private static final String[] TEXT_FIELDS = {"mode", "word", "meaning", "new_meaning"};
 
     private static int port;
     private static String dicFilePath;
-    private ServerSocket serverSocket;
-    private Connection dbConnection;
-    private HashMap<String, String> dictionary = new HashMap<>();
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("(yyyyMMdd-HH:mm:ss)");
+    private static ServerOptions options;
+    private static long startTime;
+    private boolean headless;
+    private final AtomicBoolean firstConnection = new AtomicBoolean();
+    private ConnectionEngine engine;
+    private DictionaryStorage storage;
+    private WriteBehindQueue writer;
+    // acknowledge writes after commit to the dictionary file, otherwise as soon as they are queued
+    private boolean ackAfterCommit;
+    private final DictionaryStore dictionary;
+    private final RequestLog log;
+    // tells subscribed clients which words changed, to drop their cached searches
+    private final ChangeNotifier notifier = new ChangeNotifier();
+    // sends the dictionary and its changes to replicas
+    private final ReplicationSource replication;
+    // keeps the dictionary a copy of the primary given by --replica-of, null on a primary
+    private Replicator replicator;
+    // answer to writes sent to a replica, null on a primary
+    private Response readOnly;
+    // words owned by this server in the cluster given by --cluster, null if not sharded
+    private ShardCluster cluster;
+    // set until the dictionary file is loaded at startup, requests are answered loading meanwhile
+    private volatile boolean loading;
+    // lists the loaded words in the window, which may be shown before the load ends, nothing when headless
+    private Runnable dictionaryLoaded = () -> {};
+    // copy of the words written on shutdown and read on the next start, given by --warm-snapshot, null if none
+    private Path warmSnapshot;
+    // held by reloads and refreshes, which both read the changes of the dictionary file
+    private final Object reloading = new Object();
+    // request latencies by mode, lock waits, dictionary file statements and gauges, over JMX and --metrics-port
+    private final ServerMetrics metrics = new ServerMetrics();
+    // connection, rate and pending request limits given at startup, requests over a limit are answered busy
+    private AdmissionControl admission = new AdmissionControl();
+    // runs requests carrying an id, whose responses may be sent out of order
+    private ExecutorService pipeline;
+    // responses to pipelined requests are encoded on the pipeline threads
+    private final ThreadLocal<ResponseWriter> pipelineWriter = ThreadLocal.withInitial(ResponseWriter::new);
+
+    /**
+     * Writes of one batch or import request. They are applied to memory while holding every lock of the
+     * dictionary, then committed as one transaction and acknowledged together.
+     */
+    private static class WriteGroup {
+        final List<Mutation> mutations = new ArrayList<>();
+        // meanings of the word before each mutation, to undo it
+        final List<Meanings> previous = new ArrayList<>();
+        // batch items whose response depends on the commit
+        final List<Integer> items = new ArrayList<>();
+        // batch item being processed
+        int item;
+    }
+
+    /**
+     * @param dictionary words served from memory, filled from the dictionary file on start
+     * @param log server log
+     */
+    DictionaryServer(DictionaryStore dictionary, RequestLog log) {
+        this.dictionary = dictionary;
+        this.log = log;
+        this.replication = new ReplicationSource(dictionary, log);
+    }
+
+    /**
+     * Server writing to an open dictionary file, without network nor options, as used by benchmarks
+     * @param dictionary words served from memory, loaded by {@link #reloadDicFromDB()}
+     * @param log server log
+     * @param storage dictionary file
+     * @param writer queue of the changes to the dictionary file
+     * @param ackAfterCommit acknowledge writes after commit, otherwise as soon as they are queued in memory, not durably
+     */
+    DictionaryServer(DictionaryStore dictionary, RequestLog log, DictionaryStorage storage, WriteBehindQueue writer, boolean ackAfterCommit) {
+        this(dictionary, log);
+        this.storage = storage;
+        this.writer = writer;
+        this.ackAfterCommit = ackAfterCommit;
+    }
 
     public static void main(String[] args) {
+        startTime = System.nanoTime();
         // check parameters
-        if (args.length != 2) {
-            System.out.println("Please provide the parameters for staring the program!\nFormat: java -jar DictionaryServer.jar <port> <dictionary-file>");
+        if (args.length < 2) {
+            System.out.println("Please provide the parameters for staring the program!\nFormat: java -jar DictionaryServer.jar <port> <dictionary-file> [--engine=thread|virtual|selector] [--workers=<n>] [--pipeline-threads=<n>] [--log-file=<path>] [--headless] [--durability=commit|enqueue] [--storage=sqlite|log] [--import=<sqlite-file>] [--cache=<size>] [--compact] [--warm-snapshot=<file>] [--max-connections=<n>] [--rate-limit=<n> [--rate-burst=<n>]] [--max-pending=<n>] [--idle-timeout=<seconds>] [--db-readers=<n>] [--metrics-port=<port>] [--replica-of=<host:port>] [--cluster=<topology-file> --shard=<name>]");
             System.exit(1);
         }
         try {
@@ -43,10 +128,39 @@ public class DictionaryServer {
             System.exit(1);
         }
         dicFilePath = args[1];
+        try {
+            options = new ServerOptions(Arrays.copyOfRange(args, 2, args.length));
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+
+        // one-shot import of a SQLite dictionary file into a log store directory
+        if (options.has("import")) {
+            importDictionary();
+        }
+
+        // keep every meaning in memory, only the most used ones up to the given size, or every one as compact bytes
+        DictionaryStore dictionary = new DictionaryStore();
+        if (options.has("cache") && options.has("compact")) {
+            System.out.println("Options --cache and --compact can not be used together!");
+            System.exit(1);
+        }
+        if (options.has("compact")) {
+            dictionary = new CompactDictionaryStore();
+        }
+        if (options.has("cache")) {
+            try {
+                dictionary = new CachedDictionaryStore(options.getBytes("cache", 0));
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
 
         // start program
         try {
-            new DictionaryServer().init();
+            new DictionaryServer(dictionary, new RequestLog(8192)).init();
         } catch (IOException e) {
             System.out.println("Unexpected error occurred while starting server!");
             System.exit(1);
@@ -54,322 +168,1414 @@ public class DictionaryServer {
     }
 
     private void init() throws IOException {
-        frame.setSize(600, 500);
-        frame.setLocationRelativeTo(null);
-        frame.setResizable(true);
-        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        frame.setVisible(true);
-
-        setComponentsStyle();
-        addComponentsToContainer();
+        headless = options.has("headless");
+        if (headless) {
+            // no display, log to the console
+            log.addSink(new ConsoleSink());
+        } else {
+            // the GUI starts on the EDT in parallel and observes the server once it is shown
+            dictionaryLoaded = ServerWindow.attach(dictionary, this::refreshDicFromDB, log);
+        }
+        // optionally log to a rolling file
+        if (options.has("log-file")) {
+            try {
+                log.addSink(new RollingFileSink(options.get("log-file", null), LOG_FILE_BYTES, LOG_FILES));
+            } catch (IOException e) {
+                System.out.println("Log file " + options.get("log-file", null) + " can not be opened!");
+                System.exit(1);
+            }
+        }
 
         // connect with dicDB
-        dbConnection();
-        // set up server socket
+        String durability = options.get("durability", "commit");
+        if (!durability.equals("commit") && !durability.equals("enqueue")) {
+            System.out.println("Unknown durability: " + durability);
+            System.exit(1);
+        }
+        ackAfterCommit = durability.equals("commit");
+        if (!ackAfterCommit) {
+            // the write-behind queue is only in memory
+            log.info("Writes are acknowledged before they are written: changes still queued are lost if the server stops abruptly");
+        }
+        if (options.has("replica-of")) {
+            followPrimary();
+        } else {
+            dbConnection();
+        }
+        // the cluster is joined once the dictionary is loaded
+        if (options.has("cluster") != options.has("shard")) {
+            System.out.println("Options --cluster and --shard should be given together!");
+            System.exit(1);
+        }
+        if (options.has("cluster") && replicator != null) {
+            System.out.println("Option --cluster is not available with --replica-of!");
+            System.exit(1);
+        }
         try {
-            serverSocket = new ServerSocket(port);
+            admission = new AdmissionControl(options, log);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        startMetrics();
+        // set up network engine
+        int pipelineThreads = options.getInt("pipeline-threads", 4 * Runtime.getRuntime().availableProcessors());
+        pipeline = Executors.newFixedThreadPool(pipelineThreads, r -> {
+            Thread thread = new Thread(r, "dictionary-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            engine = ConnectionEngine.create(options.get("engine", "thread"), this,
+                    options.getInt("workers", Runtime.getRuntime().availableProcessors()));
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        try {
+            engine.bind(port);
         } catch (IOException e) {
             System.out.println("Port " + port + " is not available!");  //port not available
             System.exit(1);
         }
 
-        // get words and meanings from db
-        refreshBtn.addActionListener(e -> {
-            reloadDicFromDB();
-            wordList.setText("");
-            dictionary.forEach((word, meaning) -> {
-                String modifiedMeaning = meaning.replace("\n", " | ");
-                wordList.append(word + "\t" + modifiedMeaning + "\n");
-            });
-        });
-
-        while (true) {
-            Socket socket = serverSocket.accept();
+        System.out.println("Server listening on port " + port + " after " + elapsedMillis() + " ms");
+        if (loading) {
+            new Thread(this::loadDictionary, "dictionary-loader").start();
+        }
 
-            String socketInfo = socket.getInetAddress() + ":" + socket.getPort();
+        engine.serve();
+    }
 
-            // new connection
-            updateMessageCenter("<html><b><font color='green'>" + LocalDateTime.now().format(formatter) + " New connection from: " + socketInfo + " </font></b>");
+    /**
+     * Register the metrics of the dictionary and its file, expose them over JMX,
+     * and as plain text on the port given by --metrics-port if any
+     */
+    private void startMetrics() {
+        metrics.timer("lock_wait_seconds", "Time waited for the lock of a word or of the whole dictionary", dictionary.lockWait());
+        metrics.gauge("words", "Words in the dictionary", dictionary::size);
+        metrics.gauge("loading", "1 while the dictionary file is loaded at startup, 0 otherwise", () -> loading ? 1 : 0);
+        metrics.gauge("indexing_meanings", "1 while the meanings of the loaded words are indexed, 0 otherwise",
+                () -> dictionary.isIndexingMeanings() ? 1 : 0);
+        metrics.gauge("subscribers", "Connections subscribed to changed words", notifier::getSubscriberCount);
+        metrics.gauge("rejected_connections_total", "Connections over --max-connections, answered busy", admission::getRejectedConnections);
+        metrics.gauge("rate_limited_total", "Requests over --rate-limit of their client, answered busy", admission::getRateLimited);
+        metrics.gauge("queue_full_total", "Requests over --max-pending of their connection, answered busy", admission::getQueueFull);
+        metrics.gauge("idle_closed_total", "Connections closed after --idle-timeout without request", admission::getIdleClosed);
+        if (replicator != null) {
+            metrics.gauge("replication_lag_seconds", "Age of the last change or heartbeat applied from the primary", replicator::getLagSeconds);
+            metrics.gauge("replication_connected", "1 while connected to the primary, 0 otherwise", () -> replicator.isConnected() ? 1 : 0);
+            metrics.gauge("replication_sequence", "Sequence of the last change applied from the primary", replicator::getSequence);
+            metrics.gauge("replication_changes_total", "Changes applied from the primary", replicator::getAppliedChanges);
+            metrics.gauge("replication_snapshots_total", "Snapshots received from the primary", replicator::getSnapshotCount);
+        } else {
+            metrics.timer("storage_write_seconds", "Time to commit one transaction to the dictionary file", writer.getWriteLatency());
+            metrics.timer("storage_read_seconds", "Time to read the meanings of a word not in memory from the dictionary file", writer.getReadLatency());
+            metrics.gauge("write_queue_depth", "Changes waiting to be written to the dictionary file", writer::getQueueDepth);
+            metrics.gauge("storage_transactions_total", "Transactions committed to the dictionary file", writer::getFlushCount);
+            metrics.gauge("storage_failed_transactions_total", "Transactions to the dictionary file that failed", writer::getFailedFlushCount);
+            metrics.gauge("storage_changes_total", "Changes written to the dictionary file", writer::getFlushedMutations);
+            metrics.gauge("replicas", "Replicas following this server", replication::getReplicaCount);
+            if (options.has("cluster")) {
+                metrics.gauge("shard_rebalancing", "1 while words of this shard may still be on other shards, 0 otherwise",
+                        () -> cluster == null || cluster.isRebalancing() ? 1 : 0);
+            }
+            metrics.gauge("replication_queue_depth", "Changes waiting to be sent to the replica furthest behind", replication::getMaxQueueDepth);
+        }
+        if (dictionary instanceof CachedDictionaryStore) {
+            WordCache cache = ((CachedDictionaryStore) dictionary).cache();
+            metrics.gauge("cache_hits_total", "Searches answered from the meaning cache", cache::getHitCount);
+            metrics.gauge("cache_misses_total", "Searches read from the dictionary file", cache::getMissCount);
+            metrics.gauge("cache_evictions_total", "Words evicted from the meaning cache", cache::getEvictionCount);
+            metrics.gauge("cache_words", "Words in the meaning cache", cache::getSize);
+            metrics.gauge("cache_bytes", "Estimated size of the meaning cache", cache::getWeightedSize);
+        }
+        if (dictionary instanceof CompactDictionaryStore) {
+            CompactDictionaryStore compact = (CompactDictionaryStore) dictionary;
+            metrics.gauge("compact_slab_bytes", "Bytes of the slabs holding words and meanings", compact::getSlabBytes);
+            metrics.gauge("compact_live_bytes", "Bytes of the current words and meanings in the slabs", compact::getLiveBytes);
+        }
+        try {
+            metrics.registerMBean();
+        } catch (JMException e) {
+            log.error("Metrics can not be registered over JMX: " + e.getMessage());
+        }
+        if (options.has("metrics-port")) {
+            int metricsPort = 0;
+            try {
+                metricsPort = options.getInt("metrics-port", 0);
+                metrics.startEndpoint(metricsPort);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            } catch (IOException e) {
+                System.out.println("Metrics port " + metricsPort + " is not available!");
+                System.exit(1);
+            }
+            log.info("Metrics served on port " + metricsPort + " at /metrics");
+        }
+    }
 
-            // handle each client connection in a separate thread
-            new Thread(() -> {
-                try {
-                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    /**
+     * Import the SQLite dictionary file given by --import into the log store directory, then exit
+     */
+    private static void importDictionary() {
+        try {
+            long start = System.nanoTime();
+            int count = LogStorage.importFrom(options.get("import", null), dicFilePath);
+            System.out.println("Imported " + count + " words into " + dicFilePath + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            System.exit(0);
+        } catch (IOException e) {
+            System.out.println("Error while importing dictionary file: " + e.getMessage());
+            System.exit(1);
+        }
+    }
 
-                    while (true) {
-                        //read request from client
-                        JSONParser parser = new JSONParser();
-                        JSONObject requestObj = (JSONObject) parser.parse(in.readLine());
+    /**
+     * @return milliseconds since the program started
+     */
+    private static long elapsedMillis() {
+        return (System.nanoTime() - startTime) / 1_000_000;
+    }
 
-                        JSONObject responseObj =handleClientRequest(requestObj, socketInfo);
+    @Override
+    public boolean onConnect(ClientSession session) {
+        if (firstConnection.compareAndSet(false, true)) {
+            // startup time to first accepted connection
+            String report = "First connection accepted " + elapsedMillis() + " ms after start (" + (headless ? "headless" : "GUI") + " mode)";
+            System.out.println(report);
+            log.info(report);
+        }
+        if (!admission.connect(session)) {
+            log.log(LogEvent.Level.CONNECT, "Connection from " + session.getSocketInfo() + " over the limit, closing it");
+            return false;
+        }
+        metrics.connectionOpened();
+        log.log(LogEvent.Level.CONNECT, "New connection from: " + session.getSocketInfo());
+        return true;
+    }
 
-                        // send responseObj back to client
-                        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                        out.println(responseObj.toJSONString());
-                    }
+    @Override
+    public ByteBuffer handle(String request, ClientSession session) throws Exception {
+        JSONObject requestObj = (JSONObject) session.getParser().parse(request);
+        Object id = requestObj.get("id");
+        Object mode = requestObj.get("mode");
+        boolean inOrder = id == null || "subscribe".equals(mode) || "replicate".equals(mode);
+        Response busy = admission.enter(session, mode, !inOrder);
+        if (busy != null) {
+            return session.getResponseWriter().json(busy, id);
+        }
+        // requests with id run concurrently and are answered as soon as they complete
+        if (!inOrder) {
+            pipeline.execute(() -> {
+                try {
+                    Response response = handleClientRequest(requestObj, session.getSocketInfo());
+                    session.send(pipelineWriter.get().json(response, id));
                 } catch (Exception e) {
-                    updateMessageCenter("<html><b><font color='orange'>" + LocalDateTime.now().format(formatter) + " Client at " + socket.getInetAddress() + ":" + socket.getPort() + " has disconnected </font></b>");
+                    session.close();
                 } finally {
-                    // close socket
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        updateMessageCenter("<html><b><font color='red'>" + LocalDateTime.now().format(formatter) + " Error while closing connection with Client at " + socket.getInetAddress() + ":" + socket.getPort() + " </font></b>");
-                    }
+                    admission.exit(session);
                 }
-            }).start();
+            });
+            return null;
+        }
+        try {
+            // push changed words on this connection from now on, answered in order
+            if ("subscribe".equals(mode)) {
+                notifier.subscribe(session);
+                admission.keepAlive(session);
+                log.info(session.getSocketInfo() + " - Subscribed to changes");
+                return session.getResponseWriter().json(Response.success("Subscribed to changes!"), id);
+            }
+            // send the dictionary and then every change on this connection, which serves nothing else
+            if ("replicate".equals(mode)) {
+                admission.registerReplica(session);
+                return replicate(session, id);
+            }
+            // requests without id are answered in order, encoded into the buffer of the session
+            return session.getResponseWriter().json(handleClientRequest(requestObj, session.getSocketInfo()), null);
+        } finally {
+            admission.exit(session);
+        }
+    }
+
+    @Override
+    public ByteBuffer handleBinary(BinaryProtocol.Request request, ClientSession session) throws IOException {
+        Response busy = admission.enter(session, request.mode(), request.id != 0);
+        if (busy != null) {
+            return session.getResponseWriter().binary(busy, request.id);
+        }
+        // id 0 is answered in order, like a JSON request without id
+        if (request.id == 0) {
+            try {
+                Response response = handleClientRequest(request, session.getSocketInfo());
+                return session.getResponseWriter().binary(response, 0);
+            } finally {
+                admission.exit(session);
+            }
+        }
+        pipeline.execute(() -> {
+            try {
+                Response response = handleClientRequest(request, session.getSocketInfo());
+                session.send(pipelineWriter.get().binary(response, request.id));
+            } catch (Exception e) {
+                session.close();
+            } finally {
+                admission.exit(session);
+            }
+        });
+        return null;
+    }
+
+    @Override
+    public void onAcceptError(IOException e) {
+        log.error("Error while accepting a connection: " + e.getMessage());
+    }
+
+    @Override
+    public void onDisconnect(ClientSession session) {
+        notifier.unsubscribe(session);
+        replication.unsubscribe(session);
+        admission.disconnect(session);
+        metrics.connectionClosed();
+        log.log(LogEvent.Level.DISCONNECT, "Client at " + session.getSocketInfo() + " has disconnected");
+    }
+
+    /**
+     * Start sending the dictionary to a replica, the response is sent before the snapshot
+     * @param session connection of the replica
+     * @param id id of the request, null if none
+     * @return null, the response is already sent
+     */
+    private ByteBuffer replicate(ClientSession session, Object id) throws IOException {
+        if (loading) {
+            session.send(session.getResponseWriter().json(Response.LOADING, id));
+            return null;
+        }
+        if (replicator != null) {
+            session.send(session.getResponseWriter().json(Response.fail("This server is a replica, please replicate the primary at "
+                    + replicator.getPrimary() + "!"), id));
+            return null;
         }
+        session.send(session.getResponseWriter().json(Response.success("Replicating dictionary!"), id));
+        log.info(session.getSocketInfo() + " - Replica connected");
+        replication.subscribe(session);
+        return null;
     }
 
     /**
-     * Connect to the dictionary database
+     * Serve a read-only copy of the primary given by --replica-of instead of a dictionary file,
+     * starting once its dictionary is received
+     */
+    private void followPrimary() {
+        if (dictionary instanceof CachedDictionaryStore) {
+            System.out.println("Option --cache is not available with --replica-of!");
+            System.exit(1);
+        }
+        try {
+            replicator = new Replicator(options.get("replica-of", null), dictionary, notifier, log);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        readOnly = Response.fail("This server is a read-only replica, please send writes to the primary at " + replicator.getPrimary() + "!");
+        System.out.println("Waiting for the dictionary of primary " + replicator.getPrimary());
+        replicator.start();
+        try {
+            replicator.awaitSynced();
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Own the words placed on this server by the topology given by --cluster, under the name given by --shard
+     */
+    private void joinCluster() {
+        String topology = options.get("cluster", null);
+        try {
+            cluster = new ShardCluster(Paths.get(topology), options.get("shard", null), dictionary,
+                    this::releaseWord, this::restoreWord, this::forgetWord, log);
+        } catch (IOException e) {
+            System.out.println("Topology file " + topology + " can not be read: " + e.getMessage());
+            System.exit(1);
+        }
+        admission.trustPeers(cluster::isPeer);
+        cluster.start();
+    }
+
+    /**
+     * Connect to the dictionary database, the words are loaded by {@link #loadDictionary()} once the port is bound
      */
     private void dbConnection(){
+        String storageType = options.get("storage", "sqlite");
+        if (!storageType.equals("sqlite") && !storageType.equals("log")) {
+            System.out.println("Unknown storage: " + storageType);
+            System.exit(1);
+        }
+        if (dictionary instanceof CachedDictionaryStore && !storageType.equals("sqlite")) {
+            System.out.println("Option --cache is only available with --storage=sqlite!");
+            System.exit(1);
+        }
+        int readers = SqliteStorage.DEFAULT_READERS;
         try {
-            String url = "jdbc:sqlite:" + dicFilePath;
-            dbConnection = DriverManager.getConnection(url);
-        } catch (SQLException e) {
+            readers = options.getInt("db-readers", readers);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        if (readers < 1) {
+            System.out.println("Option --db-readers should be at least 1!");
+            System.exit(1);
+        }
+        if (options.has("warm-snapshot")) {
+            // the log store already loads from a snapshot, and the cache does not hold every meaning
+            if (!storageType.equals("sqlite") || dictionary instanceof CachedDictionaryStore) {
+                System.out.println("Option --warm-snapshot is only available with --storage=sqlite and without --cache!");
+                System.exit(1);
+            }
+            warmSnapshot = Paths.get(options.get("warm-snapshot", null));
+        }
+        try {
+            if (storageType.equals("log")) {
+                storage = new LogStorage(dicFilePath, log);
+            } else {
+                // connections reading words on demand, loads and changes, besides the one writing
+                storage = new SqliteStorage(dicFilePath, readers, warmSnapshot);
+            }
+        } catch (IOException e) {
             System.out.println("Error while connecting to dictionary file!");
             System.exit(1);
         }
-        // load dictionary from db
-        reloadDicFromDB();
+        writer = new WriteBehindQueue(storage, log, MAX_WRITE_BATCH);
+        // write queued changes before exit
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // not while loading, the words in memory are not complete
+            boolean snapshot = warmSnapshot != null && !loading;
+            if (snapshot) {
+                // writes arriving from now on wait until exit, the snapshot holds exactly the words in the file
+                dictionary.lockAll();
+            }
+            try {
+                writer.awaitFlushed();
+            } catch (IOException e) {
+                System.out.println("Error while writing changes to dictionary file!");
+                snapshot = false;
+            }
+            if (snapshot) {
+                try {
+                    long start = System.nanoTime();
+                    ((SqliteStorage) storage).writeSnapshot(dictionary::forEachEntry);
+                    System.out.println("Warm snapshot of " + dictionary.size() + " words written to " + warmSnapshot
+                            + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                } catch (IOException e) {
+                    System.out.println("Warm snapshot can not be written: " + e.getMessage());
+                }
+            }
+            System.out.println(writer.metrics());
+            if (dictionary instanceof CachedDictionaryStore) {
+                System.out.println(((CachedDictionaryStore) dictionary).cache().metrics());
+            }
+            storage.close();
+        }));
+        loading = true;
     }
 
     /**
-     * Load words and meanings from DB to memory
+     * Load the dictionary file while connections are already accepted, then join the cluster if any.
+     * Searches read the dictionary file meanwhile, other requests are answered loading. The meanings are indexed
+     * last, search_meaning is answered loading until then.
      */
-    private void reloadDicFromDB() {
-        dictionary.clear();
+    private void loadDictionary() {
+        long start = System.nanoTime();
         try {
-            Statement stmt = dbConnection.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT * FROM dictionary");
-            while (rs.next()) {
-                String word = rs.getString("word");
-                String meaning = rs.getString("meaning");
-                dictionary.put(word, meaning);
+            reloadDicFromDB();
+            if (options.has("cluster")) {
+                joinCluster();
             }
-            stmt.close();
-        } catch (SQLException e) {
-            System.out.println("Error while getting words from dictionary file!");
+        } catch (RuntimeException | Error e) {
+            // requests would otherwise be answered loading forever
+            log.error("Error while loading dictionary file: " + e);
+            System.out.println("Error while loading dictionary file: " + e);
             System.exit(1);
         }
+        loading = false;
+        dictionaryLoaded.run();
+        boolean warm = storage instanceof SqliteStorage && ((SqliteStorage) storage).isLoadedFromSnapshot();
+        String report = "Loaded " + dictionary.size() + " words from the " + (warm ? "warm snapshot" : "dictionary file")
+                + " in " + (System.nanoTime() - start) / 1_000_000 + " ms, " + elapsedMillis() + " ms after start";
+        System.out.println(report);
+        log.info(report);
+        // the slowest part of the load, done while every other request is served
+        start = System.nanoTime();
+        if (dictionary.indexMeanings()) {
+            report = "Indexed the meanings of " + dictionary.size() + " words in " + (System.nanoTime() - start) / 1_000_000
+                    + " ms, " + elapsedMillis() + " ms after start";
+            System.out.println(report);
+            log.info(report);
+        }
     }
 
-    private void setComponentsStyle() {
-//        messageCenter.setContentType("text/html");
-        messageCenter.setContentType("text/html");
-        wordList.setPreferredSize(new Dimension(600, 200));
+    /**
+     * Answer a request received before the dictionary file is loaded
+     * @param mode mode of the request
+     * @param word word of the request, null if none
+     * @return meanings read from the dictionary file for a search, loading otherwise
+     */
+    private Response whileLoading(Object mode, Object word) {
+        // words are only owned once the cluster is joined, and the log store can not read single words
+        if ("search".equals(mode) && word instanceof String && !((String) word).isEmpty()
+                && !options.has("cluster") && storage instanceof SqliteStorage) {
+            try {
+                Meanings meanings = storage.get((String) word);
+                return meanings != null ? Response.meaning(meanings.text()) : Response.fail("Word " + word + " not found in dictionary!");
+            } catch (IOException e) {
+                log.error("Database connection error!");
+                return Response.DATABASE_ERROR;
+            }
+        }
+        return Response.LOADING;
     }
 
-    private void addComponentsToContainer() {
-        frame.add(new JLabel("Log Center"), BorderLayout.NORTH);
+    /**
+     * Load words and meanings from DB to memory
+     */
+    void reloadDicFromDB() {
+        // writes only wait while the changes made during the read are caught up
+        synchronized (reloading) {
+            try {
+                dictionary.load(storage, writer);
+            } catch (IOException e) {
+                System.out.println("Error while getting words from dictionary file!");
+                System.exit(1);
+            }
+        }
+    }
 
-        frame.add(messageCenterScroll, BorderLayout.CENTER);
+    /**
+     * Apply the words changed in the dictionary file since the last load, instead of reloading every word
+     * @return changed words with their new meanings, null for removed words
+     */
+    private Map<String, Meanings> refreshDicFromDB() {
+        if (replicator != null) {
+            log.info("Dictionary follows primary " + replicator.getPrimary() + ", nothing to refresh");
+            return Collections.emptyMap();
+        }
+        // no write may happen between reading a change and applying it, and no reload meanwhile
+        synchronized (reloading) {
+            dictionary.lockAll();
+            try {
+                writer.awaitFlushed();
+                Map<String, Meanings> changes = storage.readChanges();
+                changes.forEach((word, meanings) -> {
+                    dictionary.apply(word, meanings);
+                    notifier.changed(word);
+                    replication.changed(word, meanings, dictionary.version(word));
+                });
+                log.info("Dictionary refreshed: " + changes.size() + " changed words");
+                return changes;
+            } catch (IOException e) {
+                log.error("Error while getting words from dictionary file!");
+                return Collections.emptyMap();
+            } finally {
+                dictionary.unlockAll();
+            }
+        }
+    }
 
-        dictionaryPanel.add(refreshBtn, BorderLayout.NORTH);
-        dictionaryPanel.add(wordList, BorderLayout.CENTER);
-        frame.add(dictionaryPanel, BorderLayout.SOUTH);
+    /**
+     * Apply a change to memory and queue it for the dictionary file.
+     * Must be called holding the lock of the word.
+     * @param mutation change to apply
+     * @param group writes of the batch request the change belongs to, committed later, null if none
+     * @throws IOException the change could not be committed (only when acknowledging after commit), memory is left unchanged
+     */
+    private void applyMutation(Mutation mutation, WriteGroup group) throws IOException {
+        if (group != null) {
+            stage(mutation, group);
+            return;
+        }
+        Meanings previous = dictionary.get(mutation.word);
+        CompletableFuture<Void> written = writer.submit(mutation);
+        applyToMemory(mutation.word, mutation.meanings);
+        if (!ackAfterCommit) {
+            return;
+        }
+        try {
+            WriteBehindQueue.await(written);
+        } catch (IOException e) {
+            // undo the change in memory
+            applyToMemory(mutation.word, previous);
+            throw e;
+        }
+    }
+
+    /**
+     * Apply a change to memory and add it to the writes of a group, to be committed by {@link #commit(WriteGroup)}
+     * @param mutation change to apply
+     * @param group writes of the request
+     */
+    private void stage(Mutation mutation, WriteGroup group) {
+        group.mutations.add(mutation);
+        group.previous.add(dictionary.get(mutation.word));
+        group.items.add(group.item);
+        applyToMemory(mutation.word, mutation.meanings);
+    }
+
+    /**
+     * @param word word to change
+     * @param meanings meanings of the word, null to remove it
+     */
+    private void applyToMemory(String word, Meanings meanings) {
+        dictionary.apply(word, meanings);
+        notifier.changed(word);
+        replication.changed(word, meanings, dictionary.version(word));
+    }
+
+    /**
+     * Queue the writes of a group as one transaction, then wait for it when acknowledging after commit.
+     * Must be called holding every lock of the dictionary, which is released before waiting.
+     * @param group staged writes
+     * @return false if the transaction failed, its writes are then undone in memory
+     */
+    private boolean commit(WriteGroup group) {
+        CompletableFuture<Void> written;
+        try {
+            if (group.mutations.isEmpty()) {
+                return true;
+            }
+            written = writer.submitAll(group.mutations);
+        } finally {
+            dictionary.unlockAll();
+        }
+        if (!ackAfterCommit) {
+            return true;
+        }
+        try {
+            WriteBehindQueue.await(written);
+            return true;
+        } catch (IOException e) {
+            log.error("Database connection error!");
+        }
+        dictionary.lockAll();
+        try {
+            // undo in reverse order, unless a later request already changed the word again
+            for (int i = group.mutations.size() - 1; i >= 0; i--) {
+                Mutation mutation = group.mutations.get(i);
+                if (dictionary.get(mutation.word) == mutation.meanings) {
+                    applyToMemory(mutation.word, group.previous.get(i));
+                }
+            }
+        } finally {
+            dictionary.unlockAll();
+        }
+        return false;
     }
 
     /**
      * process client request unit
      * @param requestObj request JSON sent from client
      * @param socketInfo client socket information (String)
-     * @return  response JSON object
+     * @return  response
+     */
+    private Response handleClientRequest(JSONObject requestObj, String socketInfo){
+        Object mode = requestObj.get("mode");
+        long start = System.nanoTime();
+        Response response;
+        try {
+            if (loading) {
+                response = whileLoading(mode, requestObj.get("word"));
+            } else if ("multi_search".equals(mode)) {
+                // many operations in one request, only available with JSON
+                response = multiSearch(requestObj.get("words"), socketInfo);
+            } else if ("batch".equals(mode)) {
+                response = batch(requestObj.get("operations"), socketInfo);
+            } else if ("import".equals(mode)) {
+                response = importEntries(requestObj.get("entries"), socketInfo);
+            } else if (cluster != null && "migrate".equals(mode)) {
+                // requests between the shards of a cluster
+                response = migrate(requestObj.get("entries"), requestObj.get("version"), socketInfo);
+            } else if (cluster != null && "handover".equals(mode) && requestObj.get("word") instanceof String) {
+                response = handOverWord((String) requestObj.get("word"), socketInfo);
+            } else if (cluster != null && "handover_done".equals(mode) && requestObj.get("shard") instanceof String
+                    && requestObj.get("topology") instanceof String) {
+                cluster.handoverDone((String) requestObj.get("shard"), (String) requestObj.get("topology"));
+                response = Response.success("Handover done!");
+            } else {
+                response = handleClientRequest(requestObj, socketInfo, null);
+            }
+        } catch (UncheckedIOException e) {
+            // meanings not cached could not be read from the dictionary file
+            log.error("Database connection error!");
+            response = Response.DATABASE_ERROR;
+        }
+        metrics.recordRequest(mode, System.nanoTime() - start, response);
+        return response;
+    }
+
+    /**
+     * process one binary request
+     * @param request decoded request frame
+     * @param socketInfo client socket information (String)
+     * @return  response
+     */
+    private Response handleClientRequest(BinaryProtocol.Request request, String socketInfo) {
+        long start = System.nanoTime();
+        Response response;
+        try {
+            // unknown opcode, or a word length of -1
+            if (request.mode() == null) {
+                response = Response.INVALID_OPERATION;
+            } else if (request.word == null) {
+                response = Response.NO_WORD;
+            } else {
+                response = loading ? whileLoading(request.mode(), request.word)
+                        : handleClientRequest(request.mode(), request.word, request.meaning, null, socketInfo, null);
+            }
+        } catch (UncheckedIOException e) {
+            log.error("Database connection error!");
+            response = Response.DATABASE_ERROR;
+        }
+        metrics.recordRequest(request.mode(), System.nanoTime() - start, response);
+        return response;
+    }
+
+    /**
+     * process one operation of a JSON request
+     * @param requestObj operation JSON
+     * @param socketInfo client socket information (String)
+     * @param group writes of the batch request the operation belongs to, null if none
+     * @return  response
      */
-    private JSONObject handleClientRequest(JSONObject requestObj, String socketInfo){
+    private Response handleClientRequest(JSONObject requestObj, String socketInfo, WriteGroup group){
+        // a field of another type fails this operation only, not the connection nor the rest of a batch
+        for (String field : TEXT_FIELDS) {
+            Object value = requestObj.get(field);
+            if (value != null && !(value instanceof String)) {
+                return Response.INVALID_OPERATION;
+            }
+        }
         String mode = (String) requestObj.get("mode");
         String word = (String) requestObj.get("word");
         String meaning = (String) requestObj.get("meaning");
+        // version a conditional write expects, only available with JSON
+        Object version = requestObj.get("version");
+        // lookups over the word index, only available with JSON
+        if ("prefix".equals(mode) || "wildcard".equals(mode) || "fuzzy".equals(mode)) {
+            log.request(socketInfo, mode, word, null);
+            return lookupWords(mode, word, requestObj.get("limit"), requestObj.get("distance"));
+        }
+        // full-text search over the meanings, only available with JSON
+        if ("search_meaning".equals(mode)) {
+            log.request(socketInfo, mode, meaning, null);
+            return searchMeaning(meaning, requestObj.get("offset"), requestObj.get("limit"));
+        }
+        // changes of a single meaning, only available with JSON
+        if ("remove_meaning".equals(mode) || "replace_meaning".equals(mode)) {
+            String newMeaning = (String) requestObj.get("new_meaning");
+            if (word == null || meaning == null || (mode.equals("replace_meaning") && newMeaning == null)) {
+                return Response.NO_WORD_OR_MEANING;
+            }
+            if (readOnly != null) {
+                return readOnly;
+            }
+            ReentrantLock lock = dictionary.lock(word);
+            try {
+                Response claimed = claim(word, group);
+                if (claimed != null) {
+                    return claimed;
+                }
+                Response conflict = checkVersion(word, version);
+                if (conflict != null) {
+                    return conflict;
+                }
+                log.request(socketInfo, mode, word, meaning);
+                return mode.equals("remove_meaning") ? removeMeaning(word, meaning, group) : replaceMeaning(word, meaning, newMeaning, group);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return handleClientRequest(mode, word, meaning, version, socketInfo, group);
+    }
 
+    /**
+     * process client request unit, independent of the protocol
+     * @param mode operation type [search/add/remove/update]
+     * @param word word
+     * @param meaning meaning of the word
+     * @param version version the word should still have for a remove or update, null if unconditional
+     * @param socketInfo client socket information (String)
+     * @param group writes of the batch request the operation belongs to, null if none
+     * @return  response
+     */
+    private Response handleClientRequest(String mode, String word, String meaning, Object version, String socketInfo, WriteGroup group){
         // search for word
-        if (mode.equals("search")) {
-            updateMessageCenter(LocalDateTime.now().format(formatter) + " " + socketInfo + " - Search word: " + word);
+        if ("search".equals(mode)) {
+            log.request(socketInfo, mode, word, null);
             return searchWord(word);
         }
-        // use lock for data manipulation operations
-        synchronized (DictionaryServer.class) {
+        // invalid operation, answered without locking
+        if (!"add".equals(mode) && !"remove".equals(mode) && !"update".equals(mode)) {
+            return Response.INVALID_OPERATION;
+        }
+        if (word == null || word.isEmpty()) {
+            return mode.equals("remove") ? Response.NO_WORD : Response.NO_WORD_OR_MEANING;
+        }
+        if (meaning == null && !mode.equals("remove")) {
+            return Response.NO_WORD_OR_MEANING;
+        }
+        // writes only go to the primary
+        if (readOnly != null) {
+            return readOnly;
+        }
+        // lock the word for data manipulation operations
+        ReentrantLock lock = dictionary.lock(word);
+        try {
+            // the word may belong to another shard, or still be on its previous shard
+            if (cluster != null) {
+                Response claimed = claim(word, group);
+                if (claimed != null) {
+                    return claimed;
+                }
+            }
+            if (mode.equals("remove") || mode.equals("update")) {
+                Response conflict = checkVersion(word, version);
+                if (conflict != null) {
+                    return conflict;
+                }
+            }
             // add new word
-            if (mode.equals("add")) {;
-                updateMessageCenter(LocalDateTime.now().format(formatter) + " " + socketInfo + " - Add word: " + word + " with meaning: " + meaning);
-                return addWord(word, meaning);
+            if (mode.equals("add")) {
+                log.request(socketInfo, mode, word, meaning);
+                return addWord(word, meaning, group);
             }   //  remove an existing word
             else if (mode.equals("remove")) {
-                updateMessageCenter(LocalDateTime.now().format(formatter) + " " + socketInfo + " - Remove word: " + word);
-                return removeWord(word);
+                log.request(socketInfo, mode, word, null);
+                return removeWord(word, group);
             }   // update an existing word
-            else if (mode.equals("update")) {
-                updateMessageCenter(LocalDateTime.now().format(formatter) + " " + socketInfo + " - Update word: " + word + " with meaning: " + meaning );
-                return updateWord(word, meaning);
+            else {
+                log.request(socketInfo, mode, word, meaning);
+                return updateWord(word, meaning, group);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Search many words in one request
+     * @param words words to search
+     * @param socketInfo client socket information (String)
+     * @return response with the result of each word, in order
+     */
+    private Response multiSearch(Object words, String socketInfo) {
+        if (!(words instanceof List) || ((List<?>) words).isEmpty() || ((List<?>) words).size() > MAX_BATCH_SIZE) {
+            return Response.error("Please provide between 1 and " + MAX_BATCH_SIZE + " words!");
+        }
+        List<?> items = (List<?>) words;
+        log.info(socketInfo + " - Multi_search " + items.size() + " words");
+        List<Response> results = new ArrayList<>(items.size());
+        for (Object word : items) {
+            results.add(word instanceof String ? searchWord((String) word) : Response.NO_WORD);
+        }
+        return Response.results(results);
+    }
+
+    /**
+     * Run many operations in one request, in order.
+     * Writes hold the dictionary for the whole batch and are committed as one transaction.
+     * @param operations operations, each with the fields of a single request
+     * @param socketInfo client socket information (String)
+     * @return response with the result of each operation, in order
+     */
+    private Response batch(Object operations, String socketInfo) {
+        if (!(operations instanceof List) || ((List<?>) operations).isEmpty() || ((List<?>) operations).size() > MAX_BATCH_SIZE) {
+            return Response.error("Please provide between 1 and " + MAX_BATCH_SIZE + " operations!");
+        }
+        List<?> items = (List<?>) operations;
+        Response[] results = new Response[items.size()];
+        WriteGroup group = new WriteGroup();
+        // one lock of the whole dictionary instead of one per operation
+        dictionary.lockAll();
+        boolean committed;
+        try {
+            for (int i = 0; i < items.size(); i++) {
+                group.item = i;
+                results[i] = batchItem(items.get(i), socketInfo, group);
+            }
+        } finally {
+            committed = commit(group);
+        }
+        if (!committed) {
+            for (int item : group.items) {
+                results[item] = Response.DATABASE_ERROR;
+            }
+        }
+        return Response.results(Arrays.asList(results));
+    }
+
+    private Response batchItem(Object item, String socketInfo, WriteGroup group) {
+        if (!(item instanceof JSONObject) || !(((JSONObject) item).get("mode") instanceof String)) {
+            return Response.INVALID_OPERATION;
+        }
+        JSONObject requestObj = (JSONObject) item;
+        String mode = (String) requestObj.get("mode");
+        if (mode.equals("multi_search") || mode.equals("batch") || mode.equals("import")) {
+            return Response.INVALID_OPERATION;
+        }
+        // missing fields are reported like empty ones
+        requestObj.putIfAbsent("word", "");
+        requestObj.putIfAbsent("meaning", "");
+        try {
+            return handleClientRequest(requestObj, socketInfo, group);
+        } catch (UncheckedIOException e) {
+            // the other operations go on, the staged writes are still committed
+            log.error("Database connection error!");
+            return Response.DATABASE_ERROR;
+        }
+    }
+
+    /**
+     * Import one chunk of a glossary: new words are added, and meanings missing from existing words are appended.
+     * The chunk is applied while holding the dictionary and committed as one transaction.
+     * @param entries entries, each with a word and its meanings one per line
+     * @param socketInfo client socket information (String)
+     * @return response counting the changes
+     */
+    private Response importEntries(Object entries, String socketInfo) {
+        if (!(entries instanceof List) || ((List<?>) entries).isEmpty() || ((List<?>) entries).size() > MAX_IMPORT_ENTRIES) {
+            return Response.error("Please provide between 1 and " + MAX_IMPORT_ENTRIES + " entries!");
+        }
+        if (readOnly != null) {
+            return readOnly;
+        }
+        List<?> items = (List<?>) entries;
+        // a chunk split by an older topology is sent again by the client, once split by the current one
+        for (int i = 0; cluster != null && i < items.size(); i++) {
+            Object word = items.get(i) instanceof JSONObject ? ((JSONObject) items.get(i)).get("word") : null;
+            if (word instanceof String && !((String) word).isEmpty() && !cluster.owns((String) word)) {
+                return cluster.moved((String) word);
+            }
+        }
+        log.info(socketInfo + " - Import " + items.size() + " entries");
+        int addedWords = 0;
+        int addedMeanings = 0;
+        int unchanged = 0;
+        int invalid = 0;
+        int moved = 0;
+        WriteGroup group = new WriteGroup();
+        dictionary.lockAll();
+        boolean committed;
+        try {
+            for (Object item : items) {
+                Object word = item instanceof JSONObject ? ((JSONObject) item).get("word") : null;
+                Object meaning = item instanceof JSONObject ? ((JSONObject) item).get("meaning") : null;
+                if (!(word instanceof String) || !(meaning instanceof String) || ((String) word).isEmpty() || ((String) meaning).isEmpty()) {
+                    invalid++;
+                    continue;
+                }
+                if (claim((String) word, group) != null) {
+                    moved++;
+                    continue;
+                }
+                Meanings existing = dictionary.get((String) word);
+                Meanings imported = Meanings.parse((String) meaning);
+                if (existing == null) {
+                    stage(Mutation.add((String) word, imported), group);
+                    addedWords++;
+                    continue;
+                }
+                int before = addedMeanings;
+                for (String line : imported.asList()) {
+                    if (!existing.contains(line)) {
+                        Mutation mutation = Mutation.addMeaning((String) word, existing, line);
+                        stage(mutation, group);
+                        existing = mutation.meanings;
+                        addedMeanings++;
+                    }
+                }
+                if (addedMeanings == before) {
+                    unchanged++;
+                }
             }
+        } finally {
+            committed = commit(group);
+        }
+        if (!committed) {
+            return Response.DATABASE_ERROR;
         }
-        // invalid operation
-        JSONObject responseObj = new JSONObject();
-        responseObj.put("status", "fail");
-        responseObj.put("message", "Invalid operation!");
-        return responseObj;
+        return Response.success("Imported " + items.size() + " entries: " + addedWords + " words added, " + addedMeanings
+                + " meanings added, " + unchanged + " unchanged, " + invalid + " invalid" + (moved > 0 ? ", " + moved + " of other shards" : ""));
+    }
+
+    /**
+     * Check that a word belongs to this shard, and bring it from its previous shard while the cluster rebalances.
+     * Must be called holding the lock of the word.
+     * @param word word of the request
+     * @param group writes of the batch request, null if none
+     * @return response to send instead of processing the request, null to process it
+     */
+    private Response claim(String word, WriteGroup group) {
+        if (cluster == null || word == null || word.isEmpty()) {
+            return null;
+        }
+        if (!cluster.owns(word)) {
+            return cluster.moved(word);
+        }
+        if (!cluster.isRebalancing() || dictionary.contains(word)) {
+            return null;
+        }
+        try {
+            Meanings meanings = cluster.pull(word);
+            if (meanings != null) {
+                applyMutation(Mutation.add(word, meanings), group);
+            }
+            return null;
+        } catch (ShardCluster.NotReadyException e) {
+            return Response.moved(e.getMessage());
+        } catch (IOException e) {
+            log.error("Previous shard of word " + word + " is not available: " + e.getMessage());
+            return Response.error("Word " + word + " can not be brought from its previous shard!");
+        }
+    }
+
+    /**
+     * Add the words handed over by the shard owning them before the last topology change.
+     * Words already here were written since and are kept; the chunk is refused if this shard does not own
+     * every word yet, so the sending shard keeps them and retries.
+     * @param entries entries, each with a word and its meanings one per line
+     * @param version highest version given by the sending shard, the words get higher ones here, null if unknown
+     * @param socketInfo client socket information (String)
+     * @return response
+     */
+    private Response migrate(Object entries, Object version, String socketInfo) {
+        if (!(entries instanceof List) || ((List<?>) entries).isEmpty() || ((List<?>) entries).size() > MAX_IMPORT_ENTRIES) {
+            return Response.error("Please provide between 1 and " + MAX_IMPORT_ENTRIES + " entries!");
+        }
+        List<?> items = (List<?>) entries;
+        int added = 0;
+        String notOwned = null;
+        WriteGroup group = new WriteGroup();
+        dictionary.lockAll();
+        boolean committed;
+        try {
+            for (Object item : items) {
+                Object word = item instanceof JSONObject ? ((JSONObject) item).get("word") : null;
+                if (word instanceof String && !cluster.owns((String) word)) {
+                    notOwned = (String) word;
+                    break;
+                }
+            }
+            if (notOwned == null && version instanceof Long) {
+                dictionary.skipVersions((Long) version);
+            }
+            for (int i = 0; notOwned == null && i < items.size(); i++) {
+                Object word = items.get(i) instanceof JSONObject ? ((JSONObject) items.get(i)).get("word") : null;
+                Object meaning = items.get(i) instanceof JSONObject ? ((JSONObject) items.get(i)).get("meaning") : null;
+                if (word instanceof String && meaning instanceof String && !((String) word).isEmpty()
+                        && !((String) meaning).isEmpty() && !dictionary.contains((String) word)) {
+                    stage(Mutation.add((String) word, Meanings.parse((String) meaning)), group);
+                    added++;
+                }
+            }
+        } finally {
+            committed = commit(group);
+        }
+        if (notOwned != null) {
+            return cluster.moved(notOwned);
+        }
+        if (!committed) {
+            return Response.DATABASE_ERROR;
+        }
+        log.info(socketInfo + " - Migrated " + added + " of " + items.size() + " words");
+        return Response.success("Migrated " + added + " words!");
+    }
+
+    /**
+     * Give up a word to the shard now owning it, which asked for it before its chunk was handed over
+     * @param word word to hand over
+     * @param socketInfo client socket information (String)
+     * @return response with the meanings of the word, moved if this shard still owns it
+     */
+    private Response handOverWord(String word, String socketInfo) {
+        if (word == null || word.isEmpty()) {
+            return Response.NO_WORD;
+        }
+        ReentrantLock lock = dictionary.lock(word);
+        try {
+            if (cluster.owns(word)) {
+                // the topology file changed and was not read here yet
+                return Response.moved("Word " + word + " still belongs to shard " + cluster.getName() + "!");
+            }
+            Meanings meanings = dictionary.get(word);
+            if (meanings == null && cluster.isInFlight(word)) {
+                return Response.moved("Word " + word + " is being handed over, please retry!");
+            }
+            if (meanings == null) {
+                return Response.fail("Word " + word + " not found in dictionary!");
+            }
+            log.request(socketInfo, "handover", word, null);
+            long version = dictionary.version(word);
+            applyMutation(Mutation.remove(word), null);
+            return Response.meaning(meanings.text(), version);
+        } catch (IOException e) {
+            log.error("Database connection error!");
+            return Response.DATABASE_ERROR;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a word of another shard from memory to hand it over, its removal is written once the shard has it
+     * @param word word to hand over
+     * @return meanings of the word, null if not found or owned by this shard
+     */
+    private Meanings releaseWord(String word) {
+        ReentrantLock lock = dictionary.lock(word);
+        try {
+            Meanings meanings = cluster.owns(word) ? null : dictionary.get(word);
+            if (meanings != null) {
+                applyToMemory(word, null);
+            }
+            return meanings;
+        } catch (UncheckedIOException e) {
+            log.error("Database connection error!");
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put back a word whose handover failed
+     * @param word word released
+     * @param meanings meanings of the word when released
+     */
+    private void restoreWord(String word, Meanings meanings) {
+        ReentrantLock lock = dictionary.lock(word);
+        try {
+            if (!dictionary.contains(word)) {
+                applyToMemory(word, meanings);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the removal of a word handed over to its new shard
+     * @param word word released
+     */
+    private void forgetWord(String word) {
+        ReentrantLock lock = dictionary.lock(word);
+        try {
+            writer.submit(Mutation.remove(word));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check the version expected by a conditional write, the word is written only if nobody wrote it since
+     * the client read that version. Must be called holding the lock of the word.
+     * @param word word to write
+     * @param expected version the word should still have, null for an unconditional write
+     * @return null if the write may run, otherwise the response to send instead
+     */
+    private Response checkVersion(String word, Object expected) {
+        if (expected == null || word.isEmpty()) {
+            return null;
+        }
+        if (!(expected instanceof Long)) {
+            return Response.error("Version should be a number!");
+        }
+        if (!dictionary.contains(word)) {
+            return Response.fail("Word " + word + " not found in dictionary!");
+        }
+        long current = dictionary.version(word);
+        if (current != (Long) expected) {
+            return Response.conflict("Word " + word + " has been changed since version " + expected + "!", current);
+        }
+        return null;
     }
 
     /**
      * Search the corresponding meaning based on give word
      * @param word  word to search
-     * @return response JSON object
+     * @return response
      */
-    private JSONObject searchWord(String word) {
-        JSONObject responseObj = new JSONObject();
+    private Response searchWord(String word) {
         // check word not empty
-        if (word.isEmpty()) {
-            responseObj.put("status", "error");
-            responseObj.put("message", "Please provide the word!");
-            return responseObj;
-        }
-        // search word in memory
-        if (dictionary.containsKey(word)) {
-            responseObj.put("status", "success");
-            responseObj.put("meaning", dictionary.get(word));
-            return responseObj;
+        if (word == null || word.isEmpty()) {
+            return Response.NO_WORD;
+        }
+        if (cluster != null) {
+            if (!cluster.owns(word)) {
+                return cluster.moved(word);
+            }
+            // a missing word may still be on its previous shard
+            if (cluster.isRebalancing() && !dictionary.contains(word)) {
+                ReentrantLock lock = dictionary.lock(word);
+                try {
+                    Response claimed = claim(word, null);
+                    if (claimed != null) {
+                        return claimed;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        // search word in memory, the version first: the meanings read after it are never older
+        long version = dictionary.version(word);
+        Meanings meanings = dictionary.get(word);
+        if (meanings != null) {
+            return Response.meaning(meanings.text(), version);
         } else {
-            responseObj.put("status", "fail");
-            responseObj.put("message", "Word " + word + " not found in dictionary!");
-            return responseObj;
+            return Response.fail("Word " + word + " not found in dictionary!");
         }
     }
 
+    /**
+     * Find the words whose meaning contains all the given terms, best match first
+     * @param query terms to search, case insensitive
+     * @param offset number of words to skip, null for none
+     * @param limit maximum number of words, null for the default
+     * @return response with one page of the words found and the total number of matches
+     */
+    private Response searchMeaning(String query, Object offset, Object limit) {
+        // check query has at least one term
+        if (query == null || MeaningIndex.tokenize(query).isEmpty()) {
+            return Response.error("Please provide the meaning!");
+        }
+        int skip = offset == null ? 0 : -1;
+        if (offset instanceof Long && (Long) offset >= 0 && (Long) offset <= MAX_SEARCH_OFFSET) {
+            skip = ((Long) offset).intValue();
+        }
+        if (skip < 0) {
+            return Response.error("Offset should be between 0 and " + MAX_SEARCH_OFFSET + "!");
+        }
+        int maxWords = limit == null ? DEFAULT_LOOKUP_LIMIT : -1;
+        if (limit instanceof Long && (Long) limit >= 1 && (Long) limit <= MAX_LOOKUP_LIMIT) {
+            maxWords = ((Long) limit).intValue();
+        }
+        if (maxWords < 0) {
+            return Response.error("Limit should be between 1 and " + MAX_LOOKUP_LIMIT + "!");
+        }
+        MeaningIndex meaningIndex = dictionary.meaningIndex();
+        if (meaningIndex == null) {
+            return Response.error("Full-text search is not available with --cache or --compact!");
+        }
+        if (dictionary.isIndexingMeanings()) {
+            return Response.loading("Meanings are still being indexed, please try again shortly!");
+        }
+        MeaningIndex.Page page = meaningIndex.search(query, skip, maxWords);
+        return Response.page(page.words, page.total);
+    }
+
+    /**
+     * Find words by prefix, wildcard pattern or approximate spelling
+     * @param mode lookup type [prefix/wildcard/fuzzy]
+     * @param word prefix, pattern ('?' any character, '*' any sequence) or misspelled word
+     * @param limit maximum number of words, null for the default
+     * @param distance maximum edit distance of a fuzzy lookup, null for the default
+     * @return response with the words found
+     */
+    private Response lookupWords(String mode, String word, Object limit, Object distance) {
+        // check word not empty
+        if (word == null || word.isEmpty()) {
+            return Response.NO_WORD;
+        }
+        int maxWords = limit == null ? DEFAULT_LOOKUP_LIMIT : -1;
+        if (limit instanceof Long && (Long) limit >= 1 && (Long) limit <= MAX_LOOKUP_LIMIT) {
+            maxWords = ((Long) limit).intValue();
+        }
+        if (maxWords < 0) {
+            return Response.error("Limit should be between 1 and " + MAX_LOOKUP_LIMIT + "!");
+        }
+        WordIndex index = dictionary.index();
+        if (index == null) {
+            return Response.error("Lookups by prefix, wildcard or spelling are not available with --compact!");
+        }
+        if (mode.equals("prefix")) {
+            return Response.words(index.prefix(word, maxWords));
+        }
+        if (mode.equals("wildcard")) {
+            if (word.length() > WordIndex.MAX_PATTERN_LENGTH) {
+                return Response.error("Pattern should be at most " + WordIndex.MAX_PATTERN_LENGTH + " characters!");
+            }
+            return Response.words(index.wildcard(word, maxWords));
+        }
+        int maxDistance = distance == null ? DEFAULT_FUZZY_DISTANCE : -1;
+        if (distance instanceof Long && (Long) distance >= 0 && (Long) distance <= MAX_FUZZY_DISTANCE) {
+            maxDistance = ((Long) distance).intValue();
+        }
+        if (maxDistance < 0) {
+            return Response.error("Distance should be between 0 and " + MAX_FUZZY_DISTANCE + "!");
+        }
+        // typos in the first letter are rare, two edits keep it so the lookup stays fast on large dictionaries
+        return Response.words(index.fuzzy(word, maxDistance, maxDistance > 1 ? 1 : 0, maxWords));
+    }
+
     /**
      * Add a new word to the dictionary
      * @param word new word
-     * @param meaning meaning of the word
-     * @return response JSON object
+     * @param meaning meaning of the word, one meaning per line
+     * @param group writes of the batch request, null if none
+     * @return response
      */
-    private JSONObject addWord(String word, String meaning) {
-        JSONObject responseObj = new JSONObject();
+    private Response addWord(String word, String meaning, WriteGroup group) {
         // check word and meaning not empty
         if (word.isEmpty() || meaning.isEmpty()) {
-            responseObj.put("status", "error");
-            responseObj.put("message", "Please provide the word and meaning!");
-            return responseObj;
+            return Response.NO_WORD_OR_MEANING;
         }
         // check whether the word already exists
-        if (dictionary.containsKey(word)) {
-            responseObj.put("status", "fail");
-            responseObj.put("message", "Word " + word + " already exists in dictionary!");
-            return responseObj;
+        if (dictionary.contains(word)) {
+            return Response.fail("Word " + word + " already exists in dictionary!");
         }
         // add word to db
         try {
-            String sql = "INSERT INTO dictionary (word, meaning) VALUES (?, ?)";
-            PreparedStatement pstmt = dbConnection.prepareStatement(sql);
-            pstmt.setString(1, word);
-            pstmt.setString(2, meaning);
-            pstmt.executeUpdate();
-            pstmt.close();
-            // update dictionary in memory
-            dictionary.put(word, meaning);
-            responseObj.put("status", "success");
-            responseObj.put("message", "Word " + word + " has been added to dictionary!");
-            return responseObj;
-        } catch (SQLException e) {
+            applyMutation(Mutation.add(word, Meanings.parse(meaning)), group);
+            return Response.success("Word " + word + " has been added to dictionary!", dictionary.version(word));
+        } catch (IOException e) {
             // database error
-            responseObj.put("status", "error");
-            responseObj.put("message", "Database error!");
-            updateMessageCenter("<html><b><font color='red'>" + LocalDateTime.now().format(formatter) + " Database connection error! </font></b>");
-            return responseObj;
+            log.error("Database connection error!");
+            return Response.DATABASE_ERROR;
         }
     }
 
     /**
      * Remove a word from the dictionary
      * @param word word to remove
-     * @return response JSON object
+     * @param group writes of the batch request, null if none
+     * @return response
      */
-    private JSONObject removeWord(String word) {
-        JSONObject responseObj = new JSONObject();
+    private Response removeWord(String word, WriteGroup group) {
         // check word not empty
         if (word.isEmpty()) {
-            responseObj.put("status", "error");
-            responseObj.put("message", "Please provide the word!");
-            return responseObj;
+            return Response.NO_WORD;
         }
         // check whether the word exists
-        if (!dictionary.containsKey(word)) {
-            responseObj.put("status", "fail");
-            responseObj.put("message", "Word " + word + " not found in dictionary!");
-            return responseObj;
+        if (!dictionary.contains(word)) {
+            return Response.fail("Word " + word + " not found in dictionary!");
         }
         // remove word from db
         try {
-            String sql = "DELETE FROM dictionary WHERE word = ?";
-            PreparedStatement pstmt = dbConnection.prepareStatement(sql);
-            pstmt.setString(1, word);
-            pstmt.executeUpdate();
-            pstmt.close();
-            // update dictionary in memory
-            dictionary.remove(word);
-            responseObj.put("status", "success");
-            responseObj.put("message", "Word " + word + " has been removed from dictionary!");
-            return responseObj;
-        } catch (SQLException e) {
+            applyMutation(Mutation.remove(word), group);
+            return Response.success("Word " + word + " has been removed from dictionary!");
+        } catch (IOException e) {
             // database error
-            responseObj.put("status", "error");
-            responseObj.put("message", "Database error!");
-            updateMessageCenter("<html><b><font color='red'>" + LocalDateTime.now().format(formatter) + " Database connection error! </font></b>");
-            return responseObj;
+            log.error("Database connection error!");
+            return Response.DATABASE_ERROR;
         }
     }
 
     /**
-     * Update the meaning of a word in the dictionary
+     * Add a meaning to a word in the dictionary
      * @param word word to update
      * @param meaning new meaning of the word
-     * @return response JSON object
+     * @param group writes of the batch request, null if none
+     * @return response
      */
-    private JSONObject updateWord(String word, String meaning) {
-        JSONObject responseObj = new JSONObject();
+    private Response updateWord(String word, String meaning, WriteGroup group) {
         // check word and meaning not empty
         if (word.isEmpty() || meaning.isEmpty()) {
-            responseObj.put("status", "error");
-            responseObj.put("message", "Please provide the word and meaning!");
-            return responseObj;
+            return Response.NO_WORD_OR_MEANING;
+        }
+        if (meaning.indexOf('\n') >= 0) {
+            return Response.SINGLE_LINE_MEANING;
         }
         // check whether the word exists
-        if (!dictionary.containsKey(word)) {
-            responseObj.put("status", "fail");
-            responseObj.put("message", "Word " + word + " not found in dictionary!");
-            return responseObj;
+        Meanings existing = dictionary.get(word);
+        if (existing == null) {
+            return Response.fail("Word " + word + " not found in dictionary!");
         }
         // check if the meaning is the same
-        String[] existingMeanings = dictionary.get(word).split("\n");
-        if (Arrays.asList(existingMeanings).contains(meaning)) {
-            responseObj.put("status", "fail");
-            responseObj.put("message", "Meaning " + meaning + " of word " + word + " is already exists!");
-            return responseObj;
+        if (existing.contains(meaning)) {
+            return Response.fail("Meaning " + meaning + " of word " + word + " is already exists!");
         }
         // update word in db
         try {
-            String sql = "UPDATE dictionary SET meaning = ? WHERE word = ?";
-            PreparedStatement pstmt = dbConnection.prepareStatement(sql);
-            pstmt.setString(1, dictionary.get(word) + "\n" + meaning);
-            pstmt.setString(2, word);
-            pstmt.executeUpdate();
-            pstmt.close();
-            // update dictionary in memory
-            dictionary.put(word, dictionary.get(word) + "\n" + meaning);
-            responseObj.put("status", "success");
-            responseObj.put("message", "Meaning " + meaning + " has been added to word " + word + " in dictionary!");
-            return responseObj;
-        } catch (SQLException e) {
+            applyMutation(Mutation.addMeaning(word, existing, meaning), group);
+            return Response.success("Meaning " + meaning + " has been added to word " + word + " in dictionary!", dictionary.version(word));
+        } catch (IOException e) {
+            // database error
+            log.error("Database connection error!");
+            return Response.DATABASE_ERROR;
+        }
+    }
+
+    /**
+     * Remove one meaning of a word, a word keeps at least one meaning
+     * @param word word to update
+     * @param meaning meaning to remove
+     * @param group writes of the batch request, null if none
+     * @return response
+     */
+    private Response removeMeaning(String word, String meaning, WriteGroup group) {
+        // check word and meaning not empty
+        if (word.isEmpty() || meaning.isEmpty()) {
+            return Response.NO_WORD_OR_MEANING;
+        }
+        // check whether the word and meaning exist
+        Meanings existing = dictionary.get(word);
+        if (existing == null) {
+            return Response.fail("Word " + word + " not found in dictionary!");
+        }
+        if (!existing.contains(meaning)) {
+            return Response.fail("Meaning " + meaning + " of word " + word + " not found!");
+        }
+        if (existing.size() == 1) {
+            return Response.fail("Meaning " + meaning + " is the only meaning of word " + word + ", remove the word instead!");
+        }
+        // remove meaning from db
+        try {
+            applyMutation(Mutation.removeMeaning(word, existing, meaning), group);
+            return Response.success("Meaning " + meaning + " has been removed from word " + word + " in dictionary!", dictionary.version(word));
+        } catch (IOException e) {
             // database error
-            responseObj.put("status", "error");
-            responseObj.put("message", "Database error!");
-            updateMessageCenter("<html><b><font color='red'>" + LocalDateTime.now().format(formatter) + " Database connection error! </font></b>");
-            return responseObj;
+            log.error("Database connection error!");
+            return Response.DATABASE_ERROR;
         }
     }
 
-    private void updateMessageCenter(String message) {
-        String previousMessages = messageCenter.getText();
-        message = message + "<br>" + previousMessages;
-        messageCenter.setText(message);
+    /**
+     * Replace one meaning of a word, keeping its position among the meanings
+     * @param word word to update
+     * @param oldMeaning meaning to replace
+     * @param newMeaning meaning taking its place
+     * @param group writes of the batch request, null if none
+     * @return response
+     */
+    private Response replaceMeaning(String word, String oldMeaning, String newMeaning, WriteGroup group) {
+        // check word and meanings not empty
+        if (word.isEmpty() || oldMeaning.isEmpty() || newMeaning.isEmpty()) {
+            return Response.NO_WORD_OR_MEANING;
+        }
+        if (newMeaning.indexOf('\n') >= 0) {
+            return Response.SINGLE_LINE_MEANING;
+        }
+        // check whether the word and old meaning exist, and the new meaning does not
+        Meanings existing = dictionary.get(word);
+        if (existing == null) {
+            return Response.fail("Word " + word + " not found in dictionary!");
+        }
+        if (!existing.contains(oldMeaning)) {
+            return Response.fail("Meaning " + oldMeaning + " of word " + word + " not found!");
+        }
+        if (existing.contains(newMeaning)) {
+            return Response.fail("Meaning " + newMeaning + " of word " + word + " is already exists!");
+        }
+        // replace meaning in db
+        try {
+            applyMutation(Mutation.replaceMeaning(word, existing, oldMeaning, newMeaning), group);
+            return Response.success("Meaning " + oldMeaning + " of word " + word + " has been replaced with " + newMeaning + "!",
+                    dictionary.version(word));
+        } catch (IOException e) {
+            // database error
+            log.error("Database connection error!");
+            return Response.DATABASE_ERROR;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,54 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent storage of the dictionary file
+ */
+interface DictionaryStorage {
+
+    /**
+     * Read all words and meanings
+     * @param into map receiving the words and meanings
+     * @throws IOException error while reading the dictionary file
+     */
+    void load(Map<String, Meanings> into) throws IOException;
+
+    /**
+     * Read all words without their meanings, which are then read one word at a time with {@link #get(String)}
+     * @param into collection receiving the words
+     * @throws IOException error while reading the dictionary file
+     */
+    void loadWords(Collection<String> into) throws IOException;
+
+    /**
+     * Read the meanings of one word
+     * @param word word to read
+     * @return meanings of the word, null if not found
+     * @throws IOException error while reading the dictionary file
+     */
+    Meanings get(String word) throws IOException;
+
+    /**
+     * Read the words changed since the last load or read of changes, by this server or another process
+     * @return changed words with their current meanings, null for removed words
+     * @throws IOException error while reading the dictionary file
+     */
+    Map<String, Meanings> readChanges() throws IOException;
+
+    /**
+     * Persist a batch of mutations in order, as one transaction
+     * @param batch mutations to persist
+     * @throws IOException error while writing, none of the batch is persisted
+     */
+    void writeBatch(List<Mutation> batch) throws IOException;
+
+    /**
+     * Release the dictionary file
+     */
+    void close();
+}
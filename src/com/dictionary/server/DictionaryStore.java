@@ -0,0 +1,352 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * In-memory dictionary shared by all connections.
+ * Searches never block: they read the current map directly, and a reload swaps in a fully built map at once.
+ * Data manipulation of a word is serialized by a lock striped on the word, so writes of unrelated words run in parallel.
+ * A {@link WordIndex} of the words is kept up to date for prefix, wildcard and fuzzy lookups,
+ * and a {@link MeaningIndex} of the meanings for full-text search. At the first load, which is the slowest as
+ * the meanings of every word are indexed, the words are served before their meanings are indexed.
+ * {@link CachedDictionaryStore} keeps only the most used meanings in memory instead.
+ * <p>
+ * Every word has a version, changed by each write of the word, so clients can make a write conditional on the
+ * version they read. Versions come from one counter started from the clock in microseconds, so a version is
+ * never given twice, a removed word added again included, and the versions of a restarted server are higher
+ * unless it wrote more than a thousand words per millisecond. Words not written since the last load share the
+ * version of the load, only the others are kept in a map.
+ */
+class DictionaryStore {
+
+    private static final int STRIPES = 64;
+
+    private volatile ConcurrentHashMap<String, Meanings> entries = new ConcurrentHashMap<>();
+    private volatile WordIndex index = new WordIndex();
+    private volatile MeaningIndex meaningIndex = new MeaningIndex();
+    // set by the first load until indexMeanings() is done
+    private volatile boolean indexingMeanings;
+    private boolean loaded;
+    private final ConcurrentHashMap<String, Long> versions = new ConcurrentHashMap<>();
+    private final AtomicLong lastVersion = new AtomicLong(System.currentTimeMillis() * 1000);
+    private volatile long loadVersion = lastVersion.get();
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    // time to acquire a word lock or every lock, 0 when free
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+
+    DictionaryStore() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @param word word to search
+     * @return meanings of the word, null if not found
+     */
+    Meanings get(String word) {
+        return entries.get(word);
+    }
+
+    boolean contains(String word) {
+        return entries.containsKey(word);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return index of the current words, its words may briefly differ from the entries during a write
+     */
+    WordIndex index() {
+        return index;
+    }
+
+    /**
+     * @return index of the current meanings, updated right after the entries during a write,
+     * null if full-text search is not available
+     */
+    MeaningIndex meaningIndex() {
+        return meaningIndex;
+    }
+
+    /**
+     * @return true while the meanings of the words swapped in by the first load are being indexed,
+     *         the meaning index is not complete yet
+     */
+    boolean isIndexingMeanings() {
+        return indexingMeanings;
+    }
+
+    /**
+     * Index the meanings of the words swapped in by the first load, while searches and writes go on.
+     * Each word is indexed holding its lock, unless a write since the load already indexed it.
+     * @return true if there were meanings to index
+     */
+    boolean indexMeanings() {
+        if (!indexingMeanings) {
+            return false;
+        }
+        MeaningIndex building = meaningIndex;
+        for (String word : entries.keySet()) {
+            // a reload already swapped in a complete index
+            if (meaningIndex != building) {
+                return true;
+            }
+            ReentrantLock lock = lockFor(word);
+            lock.lock();
+            try {
+                Meanings meanings = entries.get(word);
+                if (meanings != null) {
+                    building.addIfMissing(word, meanings);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        indexingMeanings = false;
+        return true;
+    }
+
+    /**
+     * Iterate over all words, weakly consistent with concurrent writes
+     * @param action action for each word
+     */
+    void forEachWord(Consumer<String> action) {
+        entries.keySet().forEach(action);
+    }
+
+    /**
+     * Iterate over all words with their meanings, weakly consistent with concurrent writes
+     * @param action action for each word and its meanings
+     */
+    void forEachEntry(BiConsumer<String, Meanings> action) {
+        entries.forEach(action);
+    }
+
+    /**
+     * Version of a word, to read before its meanings: a write publishes the meanings first, so the meanings
+     * read afterwards are never older than the version
+     * @param word word
+     * @return current version of the word, meaningless if the word is not in the dictionary
+     */
+    long version(String word) {
+        Long version = versions.get(word);
+        return version != null ? version : loadVersion;
+    }
+
+    /**
+     * @return highest version given so far
+     */
+    long lastVersion() {
+        return lastVersion.get();
+    }
+
+    /**
+     * @return version of the words not written since the last load
+     */
+    long loadVersion() {
+        return loadVersion;
+    }
+
+    /**
+     * Put or remove a word and give it a new version. Must be called holding the lock of the word.
+     * @param word word to change
+     * @param meanings meanings of the word, null to remove it
+     */
+    void apply(String word, Meanings meanings) {
+        setVersioned(word, meanings, lastVersion.incrementAndGet());
+    }
+
+    /**
+     * Put or remove a word with the version given by another server. Must be called holding the lock of the word.
+     * @param word word to change
+     * @param meanings meanings of the word, null to remove it
+     * @param version version of the word after the change
+     */
+    void apply(String word, Meanings meanings, long version) {
+        setVersioned(word, meanings, version);
+        skipVersions(version);
+    }
+
+    private void setVersioned(String word, Meanings meanings, long version) {
+        if (meanings == null) {
+            remove(word);
+            versions.remove(word);
+        } else {
+            put(word, meanings);
+            versions.put(word, version);
+        }
+    }
+
+    /**
+     * Make the next versions higher than one given by another server, for words it hands over
+     * @param version version of the other server
+     */
+    void skipVersions(long version) {
+        lastVersion.accumulateAndGet(version, Math::max);
+    }
+
+    /**
+     * Give every word a new version once a load or a snapshot is swapped in.
+     * Must be called holding every lock, right after the swap.
+     */
+    void newVersions() {
+        versions.clear();
+        loadVersion = lastVersion.incrementAndGet();
+    }
+
+    /**
+     * Take the versions of the primary once its snapshot is swapped in, so writes sent to it can be made
+     * conditional on versions read from this replica
+     * @param primaryLoadVersion version of the words the primary did not write since its last load
+     * @param written versions of the other words
+     */
+    void adoptVersions(long primaryLoadVersion, Map<String, Long> written) {
+        lockAll();
+        try {
+            versions.clear();
+            versions.putAll(written);
+            loadVersion = primaryLoadVersion;
+            skipVersions(primaryLoadVersion);
+            written.values().forEach(this::skipVersions);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Lock guarding the data manipulation of a word, must be held while calling put and remove
+     * @param word word to lock
+     * @return stripe lock of the word
+     */
+    ReentrantLock lockFor(String word) {
+        return locks[(word.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * Acquire the lock of a word, timing the wait
+     * @param word word to lock
+     * @return locked stripe lock of the word, to unlock once done
+     */
+    ReentrantLock lock(String word) {
+        ReentrantLock lock = lockFor(word);
+        if (lock.tryLock()) {
+            lockWait.record(0);
+        } else {
+            long start = System.nanoTime();
+            lock.lock();
+            lockWait.record(System.nanoTime() - start);
+        }
+        return lock;
+    }
+
+    /**
+     * @return time waited to acquire a word lock or every lock
+     */
+    LatencyHistogram lockWait() {
+        return lockWait;
+    }
+
+    void put(String word, Meanings meanings) {
+        Meanings previous = entries.put(word, meanings);
+        if (previous == null) {
+            index.add(word);
+        }
+        meaningIndex.update(word, previous, meanings);
+    }
+
+    void remove(String word) {
+        Meanings previous = entries.remove(word);
+        if (previous != null) {
+            index.remove(word);
+            meaningIndex.update(word, previous, null);
+        }
+    }
+
+    /**
+     * Hold every stripe lock, so no write can happen until {@link #unlockAll()}
+     */
+    void lockAll() {
+        long start = System.nanoTime();
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        lockWait.record(System.nanoTime() - start);
+    }
+
+    void unlockAll() {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+
+    /**
+     * Load the dictionary file, replacing all entries. The file is read and indexed without holding any lock,
+     * so writes go on meanwhile; they are caught up from the changes recorded by the storage while holding
+     * every lock, just before the swap. Must not run concurrently with another load or read of changes.
+     * The first load swaps in an empty meaning index, filled by {@link #indexMeanings()}; writes meanwhile index
+     * the words they change.
+     * @param storage dictionary file
+     * @param writer queue of the changes to the dictionary file, read through by stores not holding every meaning
+     * @throws IOException error while reading the dictionary file
+     */
+    void load(DictionaryStorage storage, WriteBehindQueue writer) throws IOException {
+        ConcurrentHashMap<String, Meanings> snapshot = new ConcurrentHashMap<>();
+        storage.load(snapshot);
+        WordIndex snapshotIndex = WordIndex.of(snapshot.keySet());
+        boolean first = !loaded;
+        MeaningIndex snapshotMeaningIndex = first ? new MeaningIndex() : MeaningIndex.of(snapshot);
+        lockAll();
+        try {
+            // writes applied to memory while reading are in the file once flushed
+            writer.awaitFlushed();
+            storage.readChanges().forEach((word, meanings) -> {
+                Meanings previous = meanings == null ? snapshot.remove(word) : snapshot.put(word, meanings);
+                if (previous == null && meanings != null) {
+                    snapshotIndex.add(word);
+                } else if (previous != null && meanings == null) {
+                    snapshotIndex.remove(word);
+                }
+                snapshotMeaningIndex.update(word, previous, meanings);
+            });
+            // searches keep using the old dictionary until the new one is complete
+            entries = snapshot;
+            index = snapshotIndex;
+            meaningIndex = snapshotMeaningIndex;
+            indexingMeanings = first;
+            loaded = true;
+            newVersions();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Replace all entries with the given words, as received from the primary by a replica.
+     * The indexes are built without holding any lock, searches keep using the old entries until the swap.
+     * @param snapshot every word with its meanings, owned by the store from now on
+     */
+    void replace(ConcurrentHashMap<String, Meanings> snapshot) {
+        WordIndex snapshotIndex = WordIndex.of(snapshot.keySet());
+        MeaningIndex snapshotMeaningIndex = MeaningIndex.of(snapshot);
+        lockAll();
+        try {
+            entries = snapshot;
+            index = snapshotIndex;
+            meaningIndex = snapshotMeaningIndex;
+            indexingMeanings = false;
+            newVersions();
+        } finally {
+            unlockAll();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * One message of the server log, the time and the message of a request are only formatted when the message is displayed
+ */
+class LogEvent {
+
+    enum Level { INFO, CONNECT, DISCONNECT, ERROR }
+
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("(yyyyMMdd-HH:mm:ss)").withZone(ZoneId.systemDefault());
+
+    final long time;
+    final Level level;
+    private String message;
+    // parts of a request message, null for other messages
+    private final String socketInfo;
+    private final String mode;
+    private final String word;
+    private final String meaning;
+
+    LogEvent(long time, Level level, String message) {
+        this(time, level, message, null, null, null, null);
+    }
+
+    /**
+     * Client request
+     * @param time time of the request
+     * @param socketInfo client socket information
+     * @param mode operation type [search/add/remove/update]
+     * @param word word
+     * @param meaning meaning of the word, null if not logged
+     */
+    LogEvent(long time, String socketInfo, String mode, String word, String meaning) {
+        this(time, Level.INFO, null, socketInfo, mode, word, meaning);
+    }
+
+    private LogEvent(long time, Level level, String message, String socketInfo, String mode, String word, String meaning) {
+        this.time = time;
+        this.level = level;
+        this.message = message;
+        this.socketInfo = socketInfo;
+        this.mode = mode;
+        this.word = word;
+        this.meaning = meaning;
+    }
+
+    /**
+     * @return message text, built on first use
+     */
+    String message() {
+        if (message == null) {
+            StringBuilder text = new StringBuilder(socketInfo).append(" - ")
+                    .append(Character.toUpperCase(mode.charAt(0))).append(mode, 1, mode.length())
+                    .append(" word: ").append(word);
+            if (meaning != null) {
+                text.append(" with meaning: ").append(meaning);
+            }
+            message = text.toString();
+        }
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return formatter.format(Instant.ofEpochMilli(time)) + " " + message();
+    }
+}
@@ -0,0 +1,15 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.util.List;
+
+/**
+ * Destination of server log messages, always called from the single log consumer thread
+ */
+interface LogSink {
+
+    /**
+     * @param batch log messages in the order they were logged
+     */
+    void publish(List<LogEvent> batch);
+}
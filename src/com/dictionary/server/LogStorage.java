@@ -0,0 +1,335 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Native dictionary storage: a compacted snapshot file plus an append-only write-ahead log of changes.
+ * <p>
+ * Files in the store directory:
+ * <ul>
+ *     <li>snapshot.dat - all words at the time of the last compaction</li>
+ *     <li>wal-old.log - log being compacted into a new snapshot, only exists during compaction</li>
+ *     <li>wal.log - changes since the last compaction</li>
+ * </ul>
+ * Loading is one sequential scan of the memory-mapped files in that order. Every log record carries all the
+ * meanings of the word after the change, joined by newlines, so replaying a record twice gives the same result
+ * and a crash at any point of the compaction is safe.
+ */
+class LogStorage implements DictionaryStorage {
+
+    private static final long SNAPSHOT_MAGIC = 0x44494354534e4150L; // "DICTSNAP"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    // compact once the log grows beyond this size
+    private static final long COMPACT_THRESHOLD = 64L * 1024 * 1024;
+
+    private final Path snapshotPath;
+    private final Path walPath;
+    private final Path oldWalPath;
+    private final RequestLog log;
+    private FileChannel wal;
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private Thread compaction;
+    // words written since the last load or read of changes, the store files have a single writer
+    private Map<String, Meanings> changes = new LinkedHashMap<>();
+
+    /**
+     * Open the store directory, creating it if needed
+     * @param directory store directory
+     * @param log server log for compaction messages
+     * @throws IOException the directory can not be opened
+     */
+    LogStorage(String directory, RequestLog log) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        this.snapshotPath = dir.resolve("snapshot.dat");
+        this.walPath = dir.resolve("wal.log");
+        this.oldWalPath = dir.resolve("wal-old.log");
+        this.log = log;
+    }
+
+    @Override
+    public synchronized void load(Map<String, Meanings> into) throws IOException {
+        changes = new LinkedHashMap<>();
+        readSnapshot(snapshotPath, into);
+        replay(oldWalPath, into);
+        long validLength = replay(walPath, into);
+        if (wal == null) {
+            // drop a torn record at the end left by a crash, then append after the last valid record
+            wal = FileChannel.open(walPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            wal.truncate(validLength);
+            wal.position(validLength);
+        }
+    }
+
+    @Override
+    public void loadWords(Collection<String> into) throws IOException {
+        // words are only found by a scan of the files, which load() already does
+        throw new IOException("Reading words on demand is not supported by the log store");
+    }
+
+    @Override
+    public Meanings get(String word) throws IOException {
+        throw new IOException("Reading words on demand is not supported by the log store");
+    }
+
+    @Override
+    public synchronized void writeBatch(List<Mutation> batch) throws IOException {
+        if (wal == null) {
+            throw new IOException("Dictionary store is not loaded");
+        }
+        long start = wal.position();
+        try {
+            writeBuffer.clear();
+            for (Mutation mutation : batch) {
+                appendRecord(mutation);
+            }
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                wal.write(writeBuffer);
+            }
+            // one fsync for the whole batch
+            wal.force(false);
+        } catch (IOException e) {
+            // forget the partial batch
+            wal.truncate(start);
+            wal.position(start);
+            throw e;
+        }
+        for (Mutation mutation : batch) {
+            changes.put(mutation.word, mutation.meanings);
+        }
+        if (wal.position() > COMPACT_THRESHOLD && (compaction == null || !compaction.isAlive())) {
+            startCompaction();
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Meanings> readChanges() {
+        Map<String, Meanings> changed = changes;
+        changes = new LinkedHashMap<>();
+        return changed;
+    }
+
+    /**
+     * Record: type(1) wordLength(4) word meaningLength(4) meaning crc32(4), meaning is absent for a removal
+     */
+    private void appendRecord(Mutation mutation) {
+        byte[] word = mutation.word.getBytes(StandardCharsets.UTF_8);
+        byte[] meaning = mutation.type == Mutation.Type.REMOVE ? null : mutation.meanings.text().getBytes(StandardCharsets.UTF_8);
+        int size = 1 + 4 + word.length + 4 + (meaning == null ? 0 : meaning.length) + 4;
+        ensureCapacity(size);
+        int recordStart = writeBuffer.position();
+        writeBuffer.put(meaning == null ? RECORD_REMOVE : RECORD_PUT);
+        writeBuffer.putInt(word.length).put(word);
+        if (meaning == null) {
+            writeBuffer.putInt(-1);
+        } else {
+            writeBuffer.putInt(meaning.length).put(meaning);
+        }
+        crc.reset();
+        crc.update(writeBuffer.duplicate().position(recordStart).limit(writeBuffer.position()));
+        writeBuffer.putInt((int) crc.getValue());
+    }
+
+    private void ensureCapacity(int size) {
+        if (writeBuffer.remaining() >= size) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + size));
+        writeBuffer.flip();
+        larger.put(writeBuffer);
+        writeBuffer = larger;
+    }
+
+    /**
+     * Replay a log file
+     * @param path log file
+     * @param into map receiving the changes
+     * @return length of the valid prefix of the file
+     */
+    private long replay(Path path, Map<String, Meanings> into) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+            MappedByteBuffer buffer = map(channel, size);
+            CRC32 checksum = new CRC32();
+            long validEnd = 0;
+            while (buffer.remaining() >= 13) {
+                int recordStart = buffer.position();
+                byte type = buffer.get();
+                int wordLength = buffer.getInt();
+                if ((type != RECORD_PUT && type != RECORD_REMOVE) || wordLength < 0 || wordLength > buffer.remaining() - 8) {
+                    break;
+                }
+                String word = SnapshotFiles.readString(buffer, wordLength);
+                int meaningLength = buffer.getInt();
+                if (meaningLength < -1 || meaningLength > buffer.remaining() - 4 || (meaningLength < 0) != (type == RECORD_REMOVE)) {
+                    break;
+                }
+                String meaning = meaningLength < 0 ? null : SnapshotFiles.readString(buffer, meaningLength);
+                checksum.reset();
+                checksum.update(buffer.duplicate().position(recordStart).limit(buffer.position()));
+                if (buffer.getInt() != (int) checksum.getValue()) {
+                    break;
+                }
+                if (meaning == null) {
+                    into.remove(word);
+                } else {
+                    into.put(word, Meanings.parse(meaning));
+                }
+                validEnd = buffer.position();
+            }
+            return validEnd;
+        }
+    }
+
+    private static void readSnapshot(Path path, Map<String, Meanings> into) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = map(channel, channel.size());
+            if (buffer.remaining() < 16 || buffer.getLong() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Invalid snapshot file " + path);
+            }
+            int count = buffer.getInt();
+            // every word takes at least its two lengths
+            if (count < 0 || count > buffer.remaining() / 8) {
+                throw new IOException("Snapshot file " + path + " is damaged");
+            }
+            for (int i = 0; i < count; i++) {
+                String word = SnapshotFiles.readString(buffer, readLength(buffer, path));
+                String meaning = SnapshotFiles.readString(buffer, readLength(buffer, path));
+                into.put(word, Meanings.parse(meaning));
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("Snapshot file " + path + " is damaged");
+            }
+        }
+    }
+
+    /**
+     * Read the length of a string of the snapshot, checking it is within the file
+     */
+    private static int readLength(ByteBuffer buffer, Path path) throws IOException {
+        if (buffer.remaining() < 4) {
+            throw new IOException("Snapshot file " + path + " is damaged");
+        }
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Snapshot file " + path + " is damaged");
+        }
+        return length;
+    }
+
+    /**
+     * Write a snapshot to a temporary file, to be renamed over the old snapshot once complete
+     * @param path snapshot file
+     * @param entries all words and meanings
+     * @return temporary file
+     * @throws IOException error while writing
+     */
+    static Path writeSnapshot(Path path, Map<String, Meanings> entries) throws IOException {
+        return SnapshotFiles.writeTemp(path, writer -> {
+            writer.reserve(16).putLong(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(entries.size());
+            entries.forEach(writer);
+        });
+    }
+
+    /**
+     * Compact in the background: the current log is set aside and a new one started, then the snapshot and the
+     * old log are merged into a new snapshot while writes continue into the new log
+     */
+    private void startCompaction() throws IOException {
+        if (Files.exists(oldWalPath)) {
+            // a previous compaction did not finish, retry it before setting aside another log
+            compaction = new Thread(this::compact, "dictionary-compaction");
+            compaction.setDaemon(true);
+            compaction.start();
+            return;
+        }
+        wal.close();
+        Files.move(walPath, oldWalPath, StandardCopyOption.ATOMIC_MOVE);
+        wal = FileChannel.open(walPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        compaction = new Thread(this::compact, "dictionary-compaction");
+        compaction.setDaemon(true);
+        compaction.start();
+    }
+
+    private void compact() {
+        long start = System.nanoTime();
+        try {
+            Map<String, Meanings> entries = new HashMap<>();
+            readSnapshot(snapshotPath, entries);
+            replay(oldWalPath, entries);
+            Path temp = writeSnapshot(snapshotPath, entries);
+            // not while loading, which must see either the old snapshot and old log or the new snapshot
+            synchronized (this) {
+                SnapshotFiles.replace(temp, snapshotPath);
+                Files.delete(oldWalPath);
+            }
+            log.info("Dictionary store compacted: " + entries.size() + " words in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            log.error("Error while compacting dictionary store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Import the dictionary table of a SQLite dictionary file into an empty store directory
+     * @param sqliteFile SQLite dictionary file
+     * @param directory store directory
+     * @return number of words imported
+     * @throws IOException error while reading or writing, or the store is not empty
+     */
+    static int importFrom(String sqliteFile, String directory) throws IOException {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        if (Files.exists(dir.resolve("snapshot.dat")) || Files.exists(dir.resolve("wal.log"))) {
+            throw new IOException("Dictionary store " + directory + " is not empty");
+        }
+        // the source file is only read, its schema and journal mode are left as they are
+        Map<String, Meanings> entries = new HashMap<>();
+        SqliteStorage.loadReadOnly(sqliteFile, entries);
+        Path snapshot = dir.resolve("snapshot.dat");
+        SnapshotFiles.replace(writeSnapshot(snapshot, entries), snapshot);
+        return entries.size();
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Dictionary store file larger than 2 GB is not supported");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (wal != null) {
+                wal.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,398 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index from the terms of the meanings to the words, for full-text search over meanings.
+ * <p>
+ * Every indexed word is a document with an increasing id. The postings list of a term holds the ids of the
+ * documents containing it with the term frequency, delta and varint encoded, so new documents are appended.
+ * Changing or removing a word leaves its old id dead in the lists of its old terms; a list is rewritten without
+ * dead ids once they are more than half of it. Results are ranked with BM25.
+ */
+class MeaningIndex {
+
+    // BM25 parameters
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    /**
+     * One page of ranked results
+     */
+    static class Page {
+        final List<String> words;
+        final int total;
+
+        Page(List<String> words, int total) {
+            this.words = words;
+            this.total = total;
+        }
+    }
+
+    private static class Postings {
+        byte[] data = new byte[8];
+        int size;
+        int lastDoc = -1;
+        // entries in data, and entries of documents since changed or removed
+        int count;
+        int dead;
+
+        void add(int doc, int frequency) {
+            if (data.length - size < 10) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            writeVarint(doc - lastDoc);
+            writeVarint(frequency);
+            lastDoc = doc;
+            count++;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                data[size++] = (byte) (value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            data[size++] = (byte) value;
+        }
+    }
+
+    /**
+     * Sequential reader of a postings list
+     */
+    private static class Cursor {
+        private final Postings postings;
+        private int position;
+        int doc = -1;
+        int frequency;
+
+        Cursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        boolean next() {
+            if (position >= postings.size) {
+                return false;
+            }
+            doc += readVarint();
+            frequency = readVarint();
+            return true;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = postings.data[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Postings> terms = new HashMap<>();
+    private final Map<String, Integer> docIds = new HashMap<>();
+    // word and number of terms of each document id, null word once the document is dead
+    private String[] docWords = new String[1024];
+    private int[] docLengths = new int[1024];
+    private int nextDoc;
+    private int liveDocs;
+    private long totalLength;
+
+    /**
+     * Split a text into lower case terms of letters and digits
+     * @param text text to split
+     * @return terms in order of appearance, repeated terms included
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inTerm && start < 0) {
+                start = i;
+            } else if (!inTerm && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static List<String> tokenize(Meanings meanings) {
+        if (meanings.size() == 1) {
+            return tokenize(meanings.get(0));
+        }
+        List<String> tokens = new ArrayList<>();
+        for (int i = 0; i < meanings.size(); i++) {
+            tokens.addAll(tokenize(meanings.get(i)));
+        }
+        return tokens;
+    }
+
+    /**
+     * Index a change of the meanings of a word
+     * @param word word
+     * @param previous previous meanings, null if the word is new
+     * @param meanings new meanings, null if the word is removed
+     */
+    void update(String word, Meanings previous, Meanings meanings) {
+        lock.writeLock().lock();
+        try {
+            if (previous != null) {
+                removeDocument(word, previous);
+            }
+            if (meanings != null) {
+                addDocument(word, meanings);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Index a word unless it is already indexed, as done for each word while the index is built in the background
+     * @param word word
+     * @param meanings current meanings of the word
+     */
+    void addIfMissing(String word, Meanings meanings) {
+        lock.writeLock().lock();
+        try {
+            if (!docIds.containsKey(word)) {
+                addDocument(word, meanings);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addDocument(String word, Meanings meanings) {
+        List<String> tokens = tokenize(meanings);
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String token : tokens) {
+            frequencies.merge(token, 1, Integer::sum);
+        }
+        int doc = nextDoc++;
+        if (doc == docWords.length) {
+            docWords = Arrays.copyOf(docWords, doc * 2);
+            docLengths = Arrays.copyOf(docLengths, doc * 2);
+        }
+        docWords[doc] = word;
+        docLengths[doc] = tokens.size();
+        docIds.put(word, doc);
+        liveDocs++;
+        totalLength += tokens.size();
+        frequencies.forEach((term, frequency) -> terms.computeIfAbsent(term, t -> new Postings()).add(doc, frequency));
+    }
+
+    private void removeDocument(String word, Meanings meanings) {
+        Integer doc = docIds.remove(word);
+        if (doc == null) {
+            return;
+        }
+        docWords[doc] = null;
+        liveDocs--;
+        totalLength -= docLengths[doc];
+        for (String term : new LinkedHashSet<>(tokenize(meanings))) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                continue;
+            }
+            postings.dead++;
+            if (postings.dead == postings.count) {
+                terms.remove(term);
+            } else if (postings.dead * 2 > postings.count) {
+                terms.put(term, compact(postings));
+            }
+        }
+    }
+
+    /**
+     * @return copy of the postings without dead documents
+     */
+    private Postings compact(Postings postings) {
+        Postings live = new Postings();
+        Cursor cursor = new Cursor(postings);
+        while (cursor.next()) {
+            if (docWords[cursor.doc] != null) {
+                live.add(cursor.doc, cursor.frequency);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Find the words whose meaning contains every term of the query, best match first
+     * @param query terms to look for
+     * @param offset number of results to skip
+     * @param limit maximum number of results
+     * @return requested page of results, with the total number of matching words
+     */
+    Page search(String query, int offset, int limit) {
+        Set<String> queryTerms = new LinkedHashSet<>(tokenize(query));
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (String term : queryTerms) {
+                Postings postings = terms.get(term);
+                if (postings == null) {
+                    return new Page(new ArrayList<>(), 0);
+                }
+                lists.add(postings);
+            }
+            if (lists.isEmpty()) {
+                return new Page(new ArrayList<>(), 0);
+            }
+            // intersect starting from the rarest term, the candidates only shrink
+            lists.sort((a, b) -> Integer.compare(a.count - a.dead, b.count - b.dead));
+            double averageLength = liveDocs == 0 ? 1 : (double) totalLength / liveDocs;
+            int[] docs = new int[lists.get(0).count];
+            double[] scores = new double[docs.length];
+            int candidates = 0;
+            Cursor first = new Cursor(lists.get(0));
+            double idf = idf(lists.get(0));
+            while (first.next()) {
+                if (docWords[first.doc] != null) {
+                    docs[candidates] = first.doc;
+                    scores[candidates] = score(idf, first.frequency, first.doc, averageLength);
+                    candidates++;
+                }
+            }
+            for (int t = 1; t < lists.size() && candidates > 0; t++) {
+                Cursor cursor = new Cursor(lists.get(t));
+                idf = idf(lists.get(t));
+                int kept = 0;
+                int i = 0;
+                // both lists are sorted by document id
+                while (i < candidates && cursor.next()) {
+                    while (i < candidates && docs[i] < cursor.doc) {
+                        i++;
+                    }
+                    if (i < candidates && docs[i] == cursor.doc) {
+                        docs[kept] = docs[i];
+                        scores[kept] = scores[i] + score(idf, cursor.frequency, cursor.doc, averageLength);
+                        kept++;
+                        i++;
+                    }
+                }
+                candidates = kept;
+            }
+            return new Page(top(docs, scores, candidates, offset, limit), candidates);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private double idf(Postings postings) {
+        int frequency = postings.count - postings.dead;
+        return Math.log(1 + (liveDocs - frequency + 0.5) / (frequency + 0.5));
+    }
+
+    private double score(double idf, int frequency, int doc, double averageLength) {
+        return idf * frequency * (K1 + 1) / (frequency + K1 * (1 - B + B * docLengths[doc] / averageLength));
+    }
+
+    /**
+     * Select one page of the candidates by score, then word, keeping only offset + limit of them in a heap
+     */
+    private List<String> top(int[] docs, double[] scores, int candidates, int offset, int limit) {
+        // binary heap of candidate positions, worst of the kept candidates at the root
+        int[] heap = new int[Math.min(offset + limit, candidates)];
+        int size = 0;
+        for (int i = 0; i < candidates; i++) {
+            if (size < heap.length) {
+                heap[size] = i;
+                siftUp(heap, size++, docs, scores);
+            } else if (better(i, heap[0], docs, scores)) {
+                heap[0] = i;
+                siftDown(heap, size, docs, scores);
+            }
+        }
+        String[] ranked = new String[size];
+        while (size > 0) {
+            ranked[size - 1] = docWords[docs[heap[0]]];
+            heap[0] = heap[--size];
+            siftDown(heap, size, docs, scores);
+        }
+        List<String> page = new ArrayList<>();
+        for (int i = offset; i < ranked.length; i++) {
+            page.add(ranked[i]);
+        }
+        return page;
+    }
+
+    private boolean better(int a, int b, int[] docs, double[] scores) {
+        if (scores[a] != scores[b]) {
+            return scores[a] > scores[b];
+        }
+        return docWords[docs[a]].compareTo(docWords[docs[b]]) < 0;
+    }
+
+    private void siftUp(int[] heap, int at, int[] docs, double[] scores) {
+        while (at > 0) {
+            int parent = (at - 1) >>> 1;
+            if (!better(heap[parent], heap[at], docs, scores)) {
+                return;
+            }
+            int swap = heap[parent];
+            heap[parent] = heap[at];
+            heap[at] = swap;
+            at = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int size, int[] docs, double[] scores) {
+        int at = 0;
+        while (true) {
+            int worst = at;
+            for (int child = 2 * at + 1; child <= 2 * at + 2 && child < size; child++) {
+                if (better(heap[worst], heap[child], docs, scores)) {
+                    worst = child;
+                }
+            }
+            if (worst == at) {
+                return;
+            }
+            int swap = heap[worst];
+            heap[worst] = heap[at];
+            heap[at] = swap;
+            at = worst;
+        }
+    }
+
+    /**
+     * @return number of bytes used by the postings lists
+     */
+    long postingsBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Postings postings : terms.values()) {
+                bytes += postings.size;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Build an index of the given words and meanings, not visible to searches until returned
+     * @param entries words and meanings
+     * @return new index
+     */
+    static MeaningIndex of(Map<String, Meanings> entries) {
+        MeaningIndex index = new MeaningIndex();
+        entries.forEach(index::addDocument);
+        return index;
+    }
+}
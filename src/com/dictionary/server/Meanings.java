@@ -0,0 +1,216 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Immutable meanings of one word, in the order they were added, without duplicates.
+ * Changes return a new instance, so searches read a consistent list without locking. The newline-joined text sent
+ * to clients is built once.
+ * <p>
+ * Words with many meanings keep them in an array with spare room, shared with the following versions: appending to
+ * the latest version writes past the end of its meanings, which older versions never read, and records the position
+ * of the meaning in a map shared as well. Adding a meaning and checking for a duplicate thus take constant time
+ * instead of copying or hashing every meaning; removing or replacing one still copies them.
+ */
+final class Meanings {
+
+    // below this size a scan is cheaper than hashing, and the array is copied on every change
+    private static final int SHARED_THRESHOLD = 8;
+
+    /**
+     * Array and positions shared by the versions appended to one another
+     */
+    private static final class Chain {
+        // meanings written to the array by the latest version
+        int used;
+        // position of every meaning written to the array
+        final HashMap<String, Integer> positions;
+
+        Chain(String[] meanings, int size) {
+            used = size;
+            positions = new HashMap<>(size * 2);
+            for (int i = 0; i < size; i++) {
+                positions.put(meanings[i], i);
+            }
+        }
+    }
+
+    // the first size elements are the meanings, the array may be longer once shared
+    private final String[] meanings;
+    private final int size;
+    // null below the threshold, guarding itself
+    private final Chain chain;
+    private String text;
+
+    private Meanings(String[] meanings, int size, Chain chain) {
+        this.meanings = meanings;
+        this.size = size;
+        this.chain = chain;
+    }
+
+    /**
+     * @param meanings meanings without duplicates, owned from now on
+     * @return meanings holding all of the array, shared once large enough
+     */
+    private static Meanings wrap(String[] meanings) {
+        return new Meanings(meanings, meanings.length, meanings.length < SHARED_THRESHOLD ? null : new Chain(meanings, meanings.length));
+    }
+
+    /**
+     * @param meaning single meaning
+     * @return meanings holding only the given one
+     */
+    static Meanings of(String meaning) {
+        return wrap(new String[]{meaning});
+    }
+
+    /**
+     * @param meanings meanings in order, duplicates are dropped
+     * @return meanings holding the given ones
+     */
+    static Meanings of(List<String> meanings) {
+        return wrap(new HashSet<>(meanings).size() == meanings.size()
+                ? meanings.toArray(new String[0])
+                : meanings.stream().distinct().toArray(String[]::new));
+    }
+
+    /**
+     * Split meanings given as one newline-joined text, as in older dictionary files
+     * @param text meanings separated by newlines
+     * @return non-empty lines of the text, or the text itself if it has none
+     */
+    static Meanings parse(String text) {
+        List<String> lines = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines.isEmpty() ? of(text) : of(lines);
+    }
+
+    int size() {
+        return size;
+    }
+
+    String get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return meanings[index];
+    }
+
+    List<String> asList() {
+        List<String> list = Arrays.asList(meanings);
+        return Collections.unmodifiableList(size == meanings.length ? list : list.subList(0, size));
+    }
+
+    boolean contains(String meaning) {
+        if (chain == null) {
+            return indexOf(meaning) >= 0;
+        }
+        synchronized (chain) {
+            // positions past the size were appended by later versions
+            Integer position = chain.positions.get(meaning);
+            return position != null && position < size;
+        }
+    }
+
+    private int indexOf(String meaning) {
+        for (int i = 0; i < size; i++) {
+            if (meanings[i].equals(meaning)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param meaning meaning to append, must not be contained yet
+     * @return meanings with the given one last
+     */
+    Meanings with(String meaning) {
+        if (chain != null) {
+            synchronized (chain) {
+                // only the latest version may write past its end
+                if (chain.used == size) {
+                    String[] array = size < meanings.length ? meanings : Arrays.copyOf(meanings, size * 2);
+                    array[size] = meaning;
+                    chain.positions.put(meaning, size);
+                    chain.used++;
+                    return new Meanings(array, size + 1, chain);
+                }
+            }
+        }
+        String[] larger = Arrays.copyOf(meanings, size + 1);
+        larger[size] = meaning;
+        return wrap(larger);
+    }
+
+    /**
+     * @param meaning meaning to remove
+     * @return meanings without the given one, this if not contained
+     */
+    Meanings without(String meaning) {
+        int index = indexOf(meaning);
+        if (index < 0) {
+            return this;
+        }
+        String[] smaller = new String[size - 1];
+        System.arraycopy(meanings, 0, smaller, 0, index);
+        System.arraycopy(meanings, index + 1, smaller, index, size - index - 1);
+        return wrap(smaller);
+    }
+
+    /**
+     * @param oldMeaning meaning to replace
+     * @param newMeaning meaning taking its place, must not be contained yet
+     * @return meanings with the new meaning at the position of the old one, this if the old one is not contained
+     */
+    Meanings replace(String oldMeaning, String newMeaning) {
+        int index = indexOf(oldMeaning);
+        if (index < 0) {
+            return this;
+        }
+        String[] copy = Arrays.copyOf(meanings, size);
+        copy[index] = newMeaning;
+        return wrap(copy);
+    }
+
+    /**
+     * @return meanings joined by newlines, as sent to clients
+     */
+    String text() {
+        String joined = text;
+        if (joined == null) {
+            joined = String.join("\n", asList());
+            text = joined;
+        }
+        return joined;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Meanings)) {
+            return false;
+        }
+        Meanings other = (Meanings) o;
+        return Arrays.equals(meanings, 0, size, other.meanings, 0, other.size);
+    }
+
+    @Override
+    public int hashCode() {
+        return asList().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return text();
+    }
+}
@@ -0,0 +1,101 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import javax.swing.*;
+import javax.swing.text.*;
+import java.awt.*;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shows log messages in the message center, newest on top.
+ * Messages wait in a queue holding at most as many as are shown, the oldest are dropped beyond that. A single
+ * update of the EDT is pending at a time and inserts everything queued without touching existing lines, only
+ * the oldest lines above the cap are removed. So a burst of messages can neither flood the EDT nor grow memory.
+ */
+class MessageCenterSink implements LogSink {
+
+    private final JTextPane messageCenter;
+    private final int maxLines;
+    private final SimpleAttributeSet infoStyle = new SimpleAttributeSet();
+    private final SimpleAttributeSet connectStyle = boldStyle(new Color(0, 128, 0));
+    private final SimpleAttributeSet disconnectStyle = boldStyle(Color.ORANGE);
+    private final SimpleAttributeSet errorStyle = boldStyle(Color.RED);
+    // messages not shown yet, oldest first, guarded by itself
+    private final ArrayDeque<LogEvent> pending = new ArrayDeque<>();
+    // messages dropped from the queue since the last update, guarded by pending
+    private long dropped;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    MessageCenterSink(JTextPane messageCenter, int maxLines) {
+        this.messageCenter = messageCenter;
+        this.maxLines = maxLines;
+    }
+
+    private static SimpleAttributeSet boldStyle(Color color) {
+        SimpleAttributeSet style = new SimpleAttributeSet();
+        StyleConstants.setBold(style, true);
+        StyleConstants.setForeground(style, color);
+        return style;
+    }
+
+    @Override
+    public void publish(List<LogEvent> batch) {
+        synchronized (pending) {
+            pending.addAll(batch);
+            // older messages would be removed from the message center at once anyway
+            while (pending.size() > maxLines) {
+                pending.removeFirst();
+                dropped++;
+            }
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::append);
+        }
+    }
+
+    private void append() {
+        // messages published from now on need another update
+        scheduled.set(false);
+        LogEvent[] events;
+        long skipped;
+        synchronized (pending) {
+            events = pending.toArray(new LogEvent[0]);
+            pending.clear();
+            skipped = dropped;
+            dropped = 0;
+        }
+        StyledDocument document = messageCenter.getStyledDocument();
+        try {
+            if (skipped > 0) {
+                document.insertString(0, skipped + " messages not shown\n", infoStyle);
+            }
+            for (LogEvent event : events) {
+                document.insertString(0, event + "\n", styleOf(event.level));
+            }
+            // drop the oldest lines at the bottom
+            Element root = document.getDefaultRootElement();
+            int lines = root.getElementCount();
+            if (lines > maxLines) {
+                int start = root.getElement(maxLines).getStartOffset();
+                document.remove(start, document.getLength() - start);
+            }
+        } catch (BadLocationException e) {
+            // offsets are computed from the document itself
+        }
+    }
+
+    private AttributeSet styleOf(LogEvent.Level level) {
+        switch (level) {
+            case CONNECT:
+                return connectStyle;
+            case DISCONNECT:
+                return disconnectStyle;
+            case ERROR:
+                return errorStyle;
+            default:
+                return infoStyle;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+/**
+ * One change of the dictionary.
+ * Carries the single meaning changed, for storages writing one row per meaning, and all the meanings of the word
+ * after the change, for storages writing whole words.
+ */
+class Mutation {
+
+    enum Type { ADD, REMOVE, ADD_MEANING, REMOVE_MEANING, REPLACE_MEANING }
+
+    final Type type;
+    final String word;
+    // meaning added, removed or replacing previousMeaning, null for ADD and REMOVE
+    final String meaning;
+    // meaning replaced, null except for REPLACE_MEANING
+    final String previousMeaning;
+    // meanings of the word after the change, null for REMOVE
+    final Meanings meanings;
+
+    Mutation(Type type, String word, String meaning, String previousMeaning, Meanings meanings) {
+        this.type = type;
+        this.word = word;
+        this.meaning = meaning;
+        this.previousMeaning = previousMeaning;
+        this.meanings = meanings;
+    }
+
+    static Mutation add(String word, Meanings meanings) {
+        return new Mutation(Type.ADD, word, null, null, meanings);
+    }
+
+    static Mutation remove(String word) {
+        return new Mutation(Type.REMOVE, word, null, null, null);
+    }
+
+    static Mutation addMeaning(String word, Meanings existing, String meaning) {
+        return new Mutation(Type.ADD_MEANING, word, meaning, null, existing.with(meaning));
+    }
+
+    static Mutation removeMeaning(String word, Meanings existing, String meaning) {
+        return new Mutation(Type.REMOVE_MEANING, word, meaning, null, existing.without(meaning));
+    }
+
+    static Mutation replaceMeaning(String word, Meanings existing, String oldMeaning, String newMeaning) {
+        return new Mutation(Type.REPLACE_MEANING, word, newMeaning, oldMeaning, existing.replace(oldMeaning, newMeaning));
+    }
+}
@@ -0,0 +1,286 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the dictionary and then every change of it to the replicas connected with {"mode":"replicate"}.
+ * <p>
+ * A replica is registered holding every lock of the dictionary, so each change from then on is queued for it.
+ * Its thread then sends a snapshot of the words, read without any lock, followed by the queued changes in order.
+ * Changes carry the meanings of the word after the change, or none when it was removed, so a change also found
+ * in the snapshot is simply applied again. One line is sent per change:
+ * <pre>
+ * {"push":"snapshot","entries":[{"word":...,"meaning":...,"version":v},...]}   words of the snapshot, in chunks
+ * {"push":"snapshot_end","words":n,"sequence":s,"load_version":v}            changes with a higher sequence follow
+ * {"push":"put","word":...,"meaning":...,"version":v,"sequence":s,"time":t}  word added or its meanings changed
+ * {"push":"remove","word":...,"sequence":s,"time":t}                         word removed
+ * {"push":"heartbeat","sequence":s,"time":t}                      nothing changed meanwhile
+ * </pre>
+ * Snapshot entries only carry a version if the word was written since the primary loaded its dictionary file,
+ * the others have the load version. Replicas keep the versions of the primary, so a write sent to the primary
+ * can be conditional on a version read from a replica.
+ * Times are in milliseconds of the primary clock: a replica having applied a line is up to date as of its time.
+ * Writers only queue changes, a slow replica never holds a write; one whose queue overflows is disconnected,
+ * and receives a new snapshot when it reconnects.
+ */
+class ReplicationSource {
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int SNAPSHOT_CHUNK = 1000;
+    private static final int MAX_CHANGES_PER_SEND = 1024;
+    // heartbeats bound the lag reported by an idle replica
+    static final long HEARTBEAT_MILLIS = 250;
+
+    /**
+     * One change of a word, or a heartbeat when word is null
+     */
+    private static class Change {
+        final long sequence;
+        final long time;
+        final String word;
+        // meanings after the change, null when the word was removed
+        final Meanings meanings;
+        final long version;
+
+        Change(long sequence, long time, String word, Meanings meanings, long version) {
+            this.sequence = sequence;
+            this.time = time;
+            this.word = word;
+            this.meanings = meanings;
+            this.version = version;
+        }
+    }
+
+    /**
+     * One connected replica and the changes not yet sent to it
+     */
+    private class Replica {
+        final ClientSession session;
+        final LinkedBlockingQueue<Change> changes = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        // sequence of the last change included in the snapshot at the latest
+        final long startSequence;
+        volatile boolean overflow;
+        volatile boolean closed;
+
+        Replica(ClientSession session, long startSequence) {
+            this.session = session;
+            this.startSequence = startSequence;
+        }
+
+        void run() {
+            try {
+                long start = System.nanoTime();
+                int words = sendSnapshot();
+                log.info(session.getSocketInfo() + " - Replica sent " + words + " words in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                List<Change> batch = new ArrayList<>();
+                while (!closed) {
+                    Change change = changes.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (overflow) {
+                        log.error(session.getSocketInfo() + " - Replica fell " + QUEUE_CAPACITY + " changes behind, disconnected");
+                        break;
+                    }
+                    if (change == null) {
+                        heartbeat(this);
+                        continue;
+                    }
+                    batch.add(change);
+                    changes.drainTo(batch, MAX_CHANGES_PER_SEND - 1);
+                    StringBuilder lines = new StringBuilder();
+                    for (Change queued : batch) {
+                        lines.append(encode(queued).toJSONString()).append('\n');
+                    }
+                    batch.clear();
+                    send(lines);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                // disconnected, or a meaning could not be read for the snapshot
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                replicas.remove(session);
+                session.close();
+            }
+        }
+
+        /**
+         * @return number of words sent
+         */
+        private int sendSnapshot() throws IOException {
+            List<JSONObject> chunk = new ArrayList<>(SNAPSHOT_CHUNK);
+            int[] words = {0};
+            long loadVersion = dictionary.loadVersion();
+            try {
+                dictionary.forEachEntry((word, meanings) -> {
+                    JSONObject entry = new JSONObject();
+                    entry.put("word", word);
+                    entry.put("meaning", meanings.text());
+                    // a version newer than the meanings is corrected by the change queued for the word
+                    long version = dictionary.version(word);
+                    if (version != loadVersion) {
+                        entry.put("version", version);
+                    }
+                    chunk.add(entry);
+                    words[0]++;
+                    if (chunk.size() == SNAPSHOT_CHUNK) {
+                        sendChunk(chunk);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (!chunk.isEmpty()) {
+                sendChunk(chunk);
+            }
+            JSONObject end = new JSONObject();
+            end.put("push", "snapshot_end");
+            end.put("words", words[0]);
+            end.put("sequence", startSequence);
+            end.put("load_version", loadVersion);
+            send(new StringBuilder(end.toJSONString()).append('\n'));
+            return words[0];
+        }
+
+        private void sendChunk(List<JSONObject> chunk) {
+            JSONArray entries = new JSONArray();
+            entries.addAll(chunk);
+            JSONObject message = new JSONObject();
+            message.put("push", "snapshot");
+            message.put("entries", entries);
+            chunk.clear();
+            try {
+                send(new StringBuilder(message.toJSONString()).append('\n'));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void send(StringBuilder lines) throws IOException {
+            // a replica reading slower than the snapshot is sent holds this thread back
+            try {
+                session.awaitWritable();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Replication to " + session.getSocketInfo() + " interrupted");
+            }
+            session.send(ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    private final DictionaryStore dictionary;
+    private final RequestLog log;
+    private final Map<ClientSession, Replica> replicas = new ConcurrentHashMap<>();
+    // changes sent to replicas so far, guarded by this
+    private long sequence;
+
+    /**
+     * @param dictionary dictionary sent to the replicas
+     * @param log server log
+     */
+    ReplicationSource(DictionaryStore dictionary, RequestLog log) {
+        this.dictionary = dictionary;
+        this.log = log;
+    }
+
+    /**
+     * Start sending the dictionary and its changes on a connection, from a thread of its own
+     * @param session connection of the replica
+     */
+    void subscribe(ClientSession session) {
+        Replica replica;
+        // no write happens between the first change queued and the start of the snapshot
+        dictionary.lockAll();
+        try {
+            synchronized (this) {
+                replica = new Replica(session, sequence);
+            }
+            replicas.put(session, replica);
+        } finally {
+            dictionary.unlockAll();
+        }
+        Thread sender = new Thread(replica::run, "dictionary-replica-" + session.getSocketInfo());
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    void unsubscribe(ClientSession session) {
+        Replica replica = replicas.remove(session);
+        if (replica != null) {
+            replica.closed = true;
+        }
+    }
+
+    int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * @return changes waiting to be sent to the replica furthest behind
+     */
+    int getMaxQueueDepth() {
+        int depth = 0;
+        for (Replica replica : replicas.values()) {
+            depth = Math.max(depth, replica.changes.size());
+        }
+        return depth;
+    }
+
+    /**
+     * Queue a change for every replica, never waits.
+     * Must be called holding the lock of the word, after the change is applied to memory.
+     * @param word changed word
+     * @param meanings meanings of the word after the change, null if removed
+     * @param version version of the word after the change
+     */
+    void changed(String word, Meanings meanings, long version) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        // the same order for every replica
+        synchronized (this) {
+            Change change = new Change(++sequence, System.currentTimeMillis(), word, meanings, version);
+            for (Replica replica : replicas.values()) {
+                if (!replica.changes.offer(change)) {
+                    replica.overflow = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue a heartbeat for a replica having no change to send, after the changes queued before it
+     */
+    private synchronized void heartbeat(Replica replica) {
+        replica.changes.offer(new Change(sequence, System.currentTimeMillis(), null, null, 0));
+    }
+
+    private static JSONObject encode(Change change) {
+        JSONObject message = new JSONObject();
+        if (change.word == null) {
+            message.put("push", "heartbeat");
+        } else if (change.meanings == null) {
+            message.put("push", "remove");
+            message.put("word", change.word);
+        } else {
+            message.put("push", "put");
+            message.put("word", change.word);
+            message.put("meaning", change.meanings.text());
+            message.put("version", change.version);
+        }
+        message.put("sequence", change.sequence);
+        message.put("time", change.time);
+        return message;
+    }
+}
@@ -0,0 +1,211 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the dictionary of a replica a copy of the dictionary of its primary server, from the snapshot and the
+ * stream of changes sent by its {@link ReplicationSource}.
+ * <p>
+ * Searches go on over the current words while a snapshot is received, which is then swapped in at once.
+ * Changes are applied in order, holding the lock of the word, and reported to the subscribed clients like writes
+ * of a primary. When the connection is lost, the replica keeps serving the words it has, reconnects every second
+ * and is sent a new snapshot.
+ * <p>
+ * The lag is the age of the last line applied, by the clock of the primary: changes and heartbeats are sent in
+ * order, so a replica having applied a line has every change made before its time.
+ * Clocks of different machines should be synchronized for it to be meaningful.
+ */
+class Replicator {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private final DictionaryStore dictionary;
+    private final ChangeNotifier notifier;
+    private final RequestLog log;
+    private final CountDownLatch synced = new CountDownLatch(1);
+    private volatile boolean connected;
+    // primary time of the last line applied, in milliseconds
+    private volatile long primaryTime;
+    private volatile long sequence;
+    private volatile long appliedChanges;
+    private volatile long snapshots;
+
+    /**
+     * @param primary address of the primary in the form host:port
+     * @param dictionary dictionary kept a copy of the primary
+     * @param notifier clients told of the words changed
+     * @param log server log
+     * @throws IllegalArgumentException address not in the form host:port
+     */
+    Replicator(String primary, DictionaryStore dictionary, ChangeNotifier notifier, RequestLog log) {
+        int split = primary.lastIndexOf(':');
+        try {
+            if (split <= 0) {
+                throw new NumberFormatException();
+            }
+            this.port = Integer.parseInt(primary.substring(split + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --replica-of should be in the form host:port!");
+        }
+        this.host = primary.substring(0, split);
+        this.dictionary = dictionary;
+        this.notifier = notifier;
+        this.log = log;
+    }
+
+    /**
+     * @return address of the primary in the form host:port
+     */
+    String getPrimary() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Connect to the primary and follow it from a thread of its own, until the program exits
+     */
+    void start() {
+        Thread thread = new Thread(this::run, "dictionary-replicator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait for the first snapshot of the primary
+     * @throws InterruptedException interrupted while waiting
+     */
+    void awaitSynced() throws InterruptedException {
+        synced.await();
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return seconds since the primary sent the last line applied, 0 before the first snapshot
+     */
+    double getLagSeconds() {
+        long time = primaryTime;
+        return time == 0 ? 0 : Math.max(0, System.currentTimeMillis() - time) / 1000.0;
+    }
+
+    /**
+     * @return sequence of the last change applied, counted by the primary since it started
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    long getAppliedChanges() {
+        return appliedChanges;
+    }
+
+    long getSnapshotCount() {
+        return snapshots;
+    }
+
+    private void run() {
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                follow(socket);
+                log.error("Primary " + getPrimary() + " closed the connection");
+            } catch (IOException | ParseException | ClassCastException e) {
+                log.error((connected ? "Connection to primary " + getPrimary() + " lost: " : "Can not replicate primary " + getPrimary() + ": ")
+                        + e.getMessage());
+            }
+            connected = false;
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Receive a snapshot and apply changes until the connection is closed
+     */
+    private void follow(Socket socket) throws IOException, ParseException {
+        OutputStream out = socket.getOutputStream();
+        out.write("{\"mode\":\"replicate\"}\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        JSONParser parser = new JSONParser();
+        String line = in.readLine();
+        if (line == null) {
+            return;
+        }
+        JSONObject response = (JSONObject) parser.parse(line);
+        if (!"success".equals(response.get("status"))) {
+            throw new IOException(String.valueOf(response.get("message")));
+        }
+        long start = System.nanoTime();
+        ConcurrentHashMap<String, Meanings> snapshot = new ConcurrentHashMap<>();
+        // versions of the words written on the primary since its load
+        Map<String, Long> versions = new HashMap<>();
+        while ((line = in.readLine()) != null) {
+            JSONObject message = (JSONObject) parser.parse(line);
+            String push = (String) message.get("push");
+            if ("snapshot".equals(push)) {
+                for (Object item : (JSONArray) message.get("entries")) {
+                    JSONObject entry = (JSONObject) item;
+                    snapshot.put((String) entry.get("word"), Meanings.parse((String) entry.get("meaning")));
+                    if (entry.get("version") instanceof Long) {
+                        versions.put((String) entry.get("word"), (Long) entry.get("version"));
+                    }
+                }
+            } else if ("snapshot_end".equals(push)) {
+                dictionary.replace(snapshot);
+                if (message.get("load_version") instanceof Long) {
+                    dictionary.adoptVersions((Long) message.get("load_version"), versions);
+                }
+                snapshot = null;
+                versions = null;
+                notifier.changedAll();
+                sequence = (Long) message.get("sequence");
+                snapshots++;
+                connected = true;
+                log.info("Replicating " + dictionary.size() + " words from primary " + getPrimary() + ", snapshot received in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms");
+                synced.countDown();
+            } else if ("put".equals(push) || "remove".equals(push)) {
+                String word = (String) message.get("word");
+                ReentrantLock lock = dictionary.lock(word);
+                try {
+                    Meanings meanings = push.equals("put") ? Meanings.parse((String) message.get("meaning")) : null;
+                    if (message.get("version") instanceof Long) {
+                        dictionary.apply(word, meanings, (Long) message.get("version"));
+                    } else {
+                        dictionary.apply(word, meanings);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                notifier.changed(word);
+                sequence = (Long) message.get("sequence");
+                appliedChanges++;
+                primaryTime = (Long) message.get("time");
+            } else if ("heartbeat".equals(push)) {
+                primaryTime = (Long) message.get("time");
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import com.dictionary.common.BinaryProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Callbacks from the connection engine into the dictionary service.
+ * A connection speaks either newline-delimited JSON or the binary protocol, chosen by its first bytes.
+ */
+interface RequestHandler {
+
+    /**
+     * A new client has connected
+     * @param session client session
+     * @return false if the connection should be closed at once, without reading it nor reporting its disconnection
+     */
+    boolean onConnect(ClientSession session);
+
+    /**
+     * A connection could not be accepted, for instance out of file descriptors. The engine keeps serving and
+     * retries after a short pause.
+     * @param e accept error
+     */
+    void onAcceptError(IOException e);
+
+    /**
+     * Process one request line
+     * @param request request line (JSON) sent from client
+     * @param session client session
+     * @return response line (JSON) with trailing newline, valid until the next request of the session,
+     *         or null if the response will be sent later through the session
+     * @throws Exception malformed request, the connection will be closed
+     */
+    ByteBuffer handle(String request, ClientSession session) throws Exception;
+
+    /**
+     * Process one binary request, already decoded by the engine
+     * @param request binary request
+     * @param session client session
+     * @return response frame, valid until the next request of the session, or null if the response will be sent later through the session
+     * @throws Exception invalid request, the connection will be closed
+     */
+    ByteBuffer handleBinary(BinaryProtocol.Request request, ClientSession session) throws Exception;
+
+    /**
+     * The client has disconnected
+     * @param session client session
+     */
+    void onDisconnect(ClientSession session);
+}
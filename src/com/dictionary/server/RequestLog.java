@@ -0,0 +1,150 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous server log.
+ * Request threads put messages into a bounded lock-free ring buffer and never wait: when the buffer is full
+ * the message is dropped and counted. A single consumer thread drains the buffer in batches to the sinks.
+ */
+class RequestLog {
+
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final LogEvent[] slots;
+    // sequence of each slot: equal to the position when free, position + 1 when filled
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // only accessed by the consumer thread
+    private long head;
+    private final LongAdder dropped = new LongAdder();
+    private final List<LogSink> sinks = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param capacity ring buffer size, rounded up to a power of two
+     */
+    RequestLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new LogEvent[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+
+        Thread consumer = new Thread(this::consume, "dictionary-log");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    void addSink(LogSink sink) {
+        sinks.add(sink);
+    }
+
+    /**
+     * @return true if at least one sink would receive the message
+     */
+    boolean isEnabled() {
+        return !sinks.isEmpty();
+    }
+
+    void info(String message) {
+        log(LogEvent.Level.INFO, message);
+    }
+
+    void error(String message) {
+        log(LogEvent.Level.ERROR, message);
+    }
+
+    /**
+     * Queue a message without blocking
+     * @param level message level
+     * @param message message text
+     */
+    void log(LogEvent.Level level, String message) {
+        if (isEnabled()) {
+            offer(new LogEvent(System.currentTimeMillis(), level, message));
+        }
+    }
+
+    /**
+     * Queue a client request without blocking, the message is built by the log thread
+     * @param socketInfo client socket information
+     * @param mode operation type [search/add/remove/update]
+     * @param word word
+     * @param meaning meaning of the word, null if not logged
+     */
+    void request(String socketInfo, String mode, String word, String meaning) {
+        if (isEnabled()) {
+            offer(new LogEvent(System.currentTimeMillis(), socketInfo, mode, word, meaning));
+        }
+    }
+
+    private void offer(LogEvent event) {
+        long position;
+        while (true) {
+            position = tail.get();
+            long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                // buffer full, never block the request thread
+                dropped.increment();
+                return;
+            }
+        }
+        int index = (int) position & mask;
+        slots[index] = event;
+        sequences.lazySet(index, position + 1);
+    }
+
+    private LogEvent poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        LogEvent event = slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, head + slots.length);
+        head++;
+        return event;
+    }
+
+    private void consume() {
+        List<LogEvent> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            LogEvent event;
+            while (batch.size() < BATCH_SIZE && (event = poll()) != null) {
+                batch.add(event);
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                batch.add(new LogEvent(System.currentTimeMillis(), LogEvent.Level.ERROR, lost + " log messages dropped, log buffer full"));
+            }
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            for (LogSink sink : sinks) {
+                try {
+                    sink.publish(batch);
+                } catch (RuntimeException e) {
+                    System.out.println("Error while writing log: " + e.getMessage());
+                }
+            }
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import com.dictionary.common.BinaryProtocol;
+
+import java.util.List;
+
+/**
+ * Result of one request, independent of the protocol it is sent back with.
+ * Carries either the meaning of a word, a message for the user, the words found by a lookup, or the responses
+ * to the items of a multi_search or batch request. Word lists, item responses and versions are only sent with the
+ * JSON protocol.
+ */
+final class Response {
+
+    static final Response NO_WORD = error("Please provide the word!");
+    static final Response NO_WORD_OR_MEANING = error("Please provide the word and meaning!");
+    static final Response SINGLE_LINE_MEANING = error("Meaning should be a single line!");
+    static final Response INVALID_OPERATION = fail("Invalid operation!");
+    static final Response DATABASE_ERROR = error("Database error!");
+    // answered to every request but searches while the dictionary file is loaded at startup
+    static final Response LOADING = new Response(BinaryProtocol.STATUS_LOADING, BinaryProtocol.TEXT_MESSAGE,
+            "Dictionary is still loading, please try again shortly!");
+
+    final byte status;
+    // BinaryProtocol.TEXT_MEANING or BinaryProtocol.TEXT_MESSAGE
+    final byte textKind;
+    final String text;
+    // words found by a prefix, wildcard, fuzzy or meaning lookup, null otherwise
+    final List<String> words;
+    // number of matches of a paged search, -1 otherwise
+    final int total;
+    // one response per item of a multi_search or batch request, null otherwise
+    final List<Response> results;
+    // version of the word searched or written, 0 if none
+    final long version;
+
+    private Response(byte status, byte textKind, String text, List<String> words, int total, List<Response> results, long version) {
+        this.status = status;
+        this.textKind = textKind;
+        this.text = text;
+        this.words = words;
+        this.total = total;
+        this.results = results;
+        this.version = version;
+    }
+
+    private Response(byte status, byte textKind, String text, List<String> words, int total, List<Response> results) {
+        this(status, textKind, text, words, total, results, 0);
+    }
+
+    private Response(byte status, byte textKind, String text) {
+        this(status, textKind, text, null, -1, null);
+    }
+
+    static Response meaning(String meaning) {
+        return new Response(BinaryProtocol.STATUS_SUCCESS, BinaryProtocol.TEXT_MEANING, meaning);
+    }
+
+    /**
+     * @param meaning meanings of the word found
+     * @param version version of the word, to make a later write conditional on it
+     */
+    static Response meaning(String meaning, long version) {
+        return new Response(BinaryProtocol.STATUS_SUCCESS, BinaryProtocol.TEXT_MEANING, meaning, null, -1, null, version);
+    }
+
+    static Response words(List<String> words) {
+        return new Response(BinaryProtocol.STATUS_SUCCESS, BinaryProtocol.TEXT_MESSAGE, null, words, -1, null);
+    }
+
+    /**
+     * @param words one page of the words found
+     * @param total number of words found over all pages
+     */
+    static Response page(List<String> words, int total) {
+        return new Response(BinaryProtocol.STATUS_SUCCESS, BinaryProtocol.TEXT_MESSAGE, null, words, total, null);
+    }
+
+    /**
+     * @param results response of each item, in the order of the request
+     */
+    static Response results(List<Response> results) {
+        return new Response(BinaryProtocol.STATUS_SUCCESS, BinaryProtocol.TEXT_MESSAGE, null, null, -1, results);
+    }
+
+    static Response success(String message) {
+        return new Response(BinaryProtocol.STATUS_SUCCESS, BinaryProtocol.TEXT_MESSAGE, message);
+    }
+
+    /**
+     * @param message what was written
+     * @param version version of the word after the write
+     */
+    static Response success(String message, long version) {
+        return new Response(BinaryProtocol.STATUS_SUCCESS, BinaryProtocol.TEXT_MESSAGE, message, null, -1, null, version);
+    }
+
+    static Response fail(String message) {
+        return new Response(BinaryProtocol.STATUS_FAIL, BinaryProtocol.TEXT_MESSAGE, message);
+    }
+
+    /**
+     * @param message why a conditional write was not run
+     * @param version current version of the word
+     */
+    static Response conflict(String message, long version) {
+        return new Response(BinaryProtocol.STATUS_FAIL, BinaryProtocol.TEXT_MESSAGE, message, null, -1, null, version);
+    }
+
+    static Response error(String message) {
+        return new Response(BinaryProtocol.STATUS_ERROR, BinaryProtocol.TEXT_MESSAGE, message);
+    }
+
+    /**
+     * @param message names the shard owning the word, the client reads the topology again and retries there
+     */
+    static Response moved(String message) {
+        return new Response(BinaryProtocol.STATUS_MOVED, BinaryProtocol.TEXT_MESSAGE, message);
+    }
+
+    /**
+     * @param message tells which limit was hit, the request was not run
+     */
+    static Response busy(String message) {
+        return new Response(BinaryProtocol.STATUS_BUSY, BinaryProtocol.TEXT_MESSAGE, message);
+    }
+
+    /**
+     * @param message what is not ready yet
+     * @return response asking to retry once the server is ready
+     */
+    static Response loading(String message) {
+        return new Response(BinaryProtocol.STATUS_LOADING, BinaryProtocol.TEXT_MESSAGE, message);
+    }
+
+    /**
+     * @return JSON status [success/fail/error/moved/busy/loading]
+     */
+    String statusName() {
+        return BinaryProtocol.statusName(status);
+    }
+
+    /**
+     * @return JSON key of the text [meaning/message]
+     */
+    String textKey() {
+        return textKind == BinaryProtocol.TEXT_MEANING ? "meaning" : "message";
+    }
+}
@@ -0,0 +1,239 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.json.simple.JSONValue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes responses as JSON lines or binary frames into one reused byte array, so answering a request
+ * does not build a JSONObject, an intermediate String or a new byte array.
+ * Not thread safe: each connection and each pipeline thread has its own writer.
+ */
+final class ResponseWriter {
+
+    private byte[] bytes = new byte[512];
+    private ByteBuffer view = ByteBuffer.wrap(bytes);
+    private int size;
+
+    /**
+     * Encode a JSON response line, including the trailing newline
+     * @param response response
+     * @param id id of the request, null if none
+     * @return encoded bytes, only valid until the next call on this writer
+     */
+    ByteBuffer json(Response response, Object id) {
+        size = 0;
+        writeFields(response);
+        if (id != null) {
+            writeAscii(",\"id\":");
+            if (id instanceof Long || id instanceof Integer) {
+                writeLong(((Number) id).longValue());
+            } else {
+                // ids are numbers in practice, echo anything else as the client sent it
+                writeUtf8(JSONValue.toJSONString(id), false);
+            }
+        }
+        writeAscii("}\n");
+        return flip();
+    }
+
+    /**
+     * Write a response object without its closing brace
+     */
+    private void writeFields(Response response) {
+        writeAscii("{\"status\":\"");
+        writeAscii(response.statusName());
+        if (response.results != null) {
+            writeAscii("\",\"results\":[");
+            for (int i = 0; i < response.results.size(); i++) {
+                if (i > 0) {
+                    writeAscii(",");
+                }
+                writeFields(response.results.get(i));
+                writeAscii("}");
+            }
+            writeAscii("]");
+        } else if (response.words != null) {
+            writeAscii("\",\"words\":[");
+            for (int i = 0; i < response.words.size(); i++) {
+                if (i > 0) {
+                    writeAscii(",");
+                }
+                writeString(response.words.get(i));
+            }
+            writeAscii("]");
+            if (response.total >= 0) {
+                writeAscii(",\"total\":");
+                writeLong(response.total);
+            }
+        } else {
+            writeAscii("\",\"");
+            writeAscii(response.textKey());
+            writeAscii("\":");
+            writeString(response.text);
+            if (response.version != 0) {
+                writeAscii(",\"version\":");
+                writeLong(response.version);
+            }
+        }
+    }
+
+    /**
+     * Encode a binary response frame
+     * @param response response
+     * @param id id of the request, 0 if none
+     * @return encoded frame, only valid until the next call on this writer
+     */
+    ByteBuffer binary(Response response, int id) {
+        size = 0;
+        // length and text length are filled in once the text is encoded
+        ensure(4 + 1 + 4 + 1 + 4);
+        size = 4;
+        bytes[size++] = response.status;
+        putInt(size, id);
+        size += 4;
+        bytes[size++] = response.textKind;
+        int textLengthAt = size;
+        size += 4;
+        if (response.text == null) {
+            putInt(textLengthAt, -1);
+        } else {
+            writeUtf8(response.text, false);
+            putInt(textLengthAt, size - textLengthAt - 4);
+        }
+        putInt(0, size - 4);
+        return flip();
+    }
+
+    private ByteBuffer flip() {
+        view.clear();
+        view.limit(size);
+        return view;
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > bytes.length) {
+            byte[] larger = new byte[Math.max(bytes.length * 2, size + extra)];
+            System.arraycopy(bytes, 0, larger, 0, size);
+            bytes = larger;
+            view = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    private void putInt(int at, int value) {
+        bytes[at] = (byte) (value >>> 24);
+        bytes[at + 1] = (byte) (value >>> 16);
+        bytes[at + 2] = (byte) (value >>> 8);
+        bytes[at + 3] = (byte) value;
+    }
+
+    private void writeAscii(String value) {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            bytes[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value < 0) {
+            writeAscii("-");
+            if (value == Long.MIN_VALUE) {
+                writeAscii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        ensure(19);
+        int start = size;
+        do {
+            bytes[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // digits were written backwards
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte digit = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = digit;
+        }
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            writeAscii("null");
+            return;
+        }
+        writeAscii("\"");
+        writeUtf8(value, true);
+        writeAscii("\"");
+    }
+
+    /**
+     * Encode characters as UTF-8, optionally escaped for a JSON string
+     */
+    private void writeUtf8(String value, boolean escape) {
+        int length = value.length();
+        // worst case is 6 bytes per character for an escaped control character
+        ensure(length * (escape ? 6 : 3));
+        byte[] out = bytes;
+        int at = size;
+        int i = 0;
+        // plain ASCII in a tight loop, the common case
+        while (i < length) {
+            char c = value.charAt(i);
+            if (c >= 0x80 || escape && (c < 0x20 || c == '"' || c == '\\')) {
+                break;
+            }
+            out[at++] = (byte) c;
+            i++;
+        }
+        for (; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (escape && (c < 0x20 || c == '"' || c == '\\')) {
+                    size = at;
+                    writeEscape(c);
+                    at = size;
+                } else {
+                    out[at++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                out[at++] = (byte) (0xC0 | c >> 6);
+                out[at++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out[at++] = (byte) (0xF0 | codePoint >> 18);
+                out[at++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                out[at++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                out[at++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, replaced like String.getBytes does
+                out[at++] = '?';
+            } else {
+                out[at++] = (byte) (0xE0 | c >> 12);
+                out[at++] = (byte) (0x80 | c >> 6 & 0x3F);
+                out[at++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        size = at;
+    }
+
+    private void writeEscape(char c) {
+        bytes[size++] = '\\';
+        switch (c) {
+            case '"': bytes[size++] = '"'; break;
+            case '\\': bytes[size++] = '\\'; break;
+            case '\n': bytes[size++] = 'n'; break;
+            case '\r': bytes[size++] = 'r'; break;
+            case '\t': bytes[size++] = 't'; break;
+            case '\b': bytes[size++] = 'b'; break;
+            case '\f': bytes[size++] = 'f'; break;
+            default:
+                bytes[size++] = 'u';
+                bytes[size++] = '0';
+                bytes[size++] = '0';
+                bytes[size++] = (byte) Character.forDigit(c >> 4, 16);
+                bytes[size++] = (byte) Character.forDigit(c & 0xF, 16);
+        }
+    }
+}
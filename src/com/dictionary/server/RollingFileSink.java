@@ -0,0 +1,70 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Writes log messages to a file in UTF-8, the file is rolled to file.1 ... file.n when it exceeds the size limit
+ */
+class RollingFileSink implements LogSink {
+
+    private final Path path;
+    private final long maxBytes;
+    private final int maxFiles;
+    private OutputStream out;
+    // bytes in the current file
+    private long written;
+
+    /**
+     * @param path log file
+     * @param maxBytes size limit of one file
+     * @param maxFiles number of rolled files kept
+     * @throws IOException log file can not be opened
+     */
+    RollingFileSink(String path, long maxBytes, int maxFiles) throws IOException {
+        this.path = Paths.get(path);
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        open();
+    }
+
+    private void open() throws IOException {
+        written = Files.exists(path) ? Files.size(path) : 0;
+        out = new BufferedOutputStream(new FileOutputStream(path.toFile(), true));
+    }
+
+    @Override
+    public void publish(List<LogEvent> batch) {
+        try {
+            for (LogEvent event : batch) {
+                byte[] line = (event.level + " " + event + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+                out.write(line);
+                written += line.length;
+            }
+            out.flush();
+            if (written > maxBytes) {
+                roll();
+            }
+        } catch (IOException e) {
+            System.out.println("Error while writing log file " + path + "!");
+        }
+    }
+
+    private void roll() throws IOException {
+        out.close();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path older = Paths.get(path + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+}
@@ -0,0 +1,450 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import com.dictionary.common.BinaryProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single selector thread doing all socket I/O, requests are processed on a small fixed worker pool.
+ * Requests of one connection are still processed one at a time and in order. A connection whose worker falls
+ * behind stops being read once {@value #MAX_INBOX} requests are waiting, so the client is held back by TCP.
+ * A connection is not read either while more than {@value #OUTBOX_HIGH_WATER} bytes of responses wait for the
+ * client to read them, and is closed if it stays over that mark for {@value #STALL_MILLIS} ms.
+ * <p>
+ * The bytes of incomplete requests kept between reads count against {@value #MAX_PARTIAL_BYTES} bytes for all
+ * connections together, a connection growing its request beyond what is left is closed.
+ */
+class SelectorEngine implements ConnectionEngine {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_INBOX = 1024;
+    private static final int OUTBOX_HIGH_WATER = 4 * 1024 * 1024;
+    private static final long STALL_MILLIS = 30_000;
+    private static final long MAX_PARTIAL_BYTES = 256L * 1024 * 1024;
+
+    private final RequestHandler handler;
+    private final ExecutorService workers;
+    private final Selector selector;
+    // sessions having pending responses or able to read again, their interest is updated by the selector thread
+    private final Queue<Session> writeInterest = new ConcurrentLinkedQueue<>();
+    // capacity of the buffers of incomplete requests of every session
+    private final AtomicLong partialBytes = new AtomicLong();
+    private ServerSocketChannel serverChannel;
+    private SelectionKey acceptKey;
+    // time accepting resumes after an accept error, 0 while accepting
+    private long acceptPausedUntil;
+
+    SelectorEngine(RequestHandler handler, int workers) {
+        this.handler = handler;
+        this.workers = Executors.newFixedThreadPool(workers, r -> {
+            Thread thread = new Thread(r, "dictionary-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open selector", e);
+        }
+    }
+
+    @Override
+    public void bind(int port) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void serve() throws IOException {
+        // heap buffer, requests are decoded straight from its array
+        ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        while (true) {
+            if (acceptPausedUntil == 0) {
+                selector.select();
+            } else {
+                long wait = acceptPausedUntil - System.currentTimeMillis();
+                if (wait <= 0) {
+                    acceptPausedUntil = 0;
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                    continue;
+                }
+                selector.select(wait);
+            }
+            // register sessions with responses waiting to be written, or whose inbox was drained
+            Session pending;
+            while ((pending = writeInterest.poll()) != null) {
+                if (pending.key.isValid()) {
+                    pending.key.interestOps(pending.readInterest() | SelectionKey.OP_WRITE);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    try {
+                        accept();
+                    } catch (IOException e) {
+                        if (!serverChannel.isOpen()) {
+                            throw e;
+                        }
+                        // other connections are still served meanwhile
+                        handler.onAcceptError(e);
+                        acceptKey.interestOps(0);
+                        acceptPausedUntil = System.currentTimeMillis() + ACCEPT_BACKOFF_MILLIS;
+                    }
+                    continue;
+                }
+                Session session = (Session) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        session.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.flush();
+                    }
+                } catch (IOException e) {
+                    session.close();
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        Session session = new Session(channel);
+        if (!handler.onConnect(session)) {
+            channel.close();
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            session.key = channel.register(selector, SelectionKey.OP_READ, session);
+        } catch (IOException e) {
+            // this connection only, accepting goes on
+            session.close();
+        }
+    }
+
+    private enum Protocol { UNKNOWN, JSON, BINARY }
+
+    private class Session extends ClientSession {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // only touched by the selector thread
+        private Protocol protocol = Protocol.UNKNOWN;
+        // bytes of an incomplete request kept between reads, in write mode, null if none
+        private ByteBuffer partial;
+        // bytes of the incomplete JSON line already found without a newline, so a read only scans the new bytes
+        private int scanned;
+        // capacity of the partial buffer counted in partialBytes, released on close
+        private final AtomicInteger buffered = new AtomicInteger();
+        // decoded requests: String for JSON lines, BinaryProtocol.Request for binary frames
+        private final Queue<Object> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inboxSize = new AtomicInteger();
+        private final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicLong outboxBytes = new AtomicLong();
+        // when the outbox went over the high-water mark, 0 while under it
+        private volatile long congestedSince;
+        // notified when the outbox falls under the high-water mark or the connection closes
+        private final Object drained = new Object();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Session(SocketChannel channel) throws IOException {
+            super(channel.socket().getInetAddress(), channel.socket().getPort());
+            this.channel = channel;
+        }
+
+        /**
+         * Read available bytes and decode complete requests. Requests are decoded directly from the shared read
+         * buffer, only the bytes of an incomplete request are copied to keep them until the next read.
+         */
+        private void read(ByteBuffer readBuffer) throws IOException {
+            readBuffer.clear();
+            int count = channel.read(readBuffer);
+            if (count < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            ByteBuffer input = readBuffer;
+            if (partial != null) {
+                partial = append(partial, readBuffer);
+                partial.flip();
+                input = partial;
+            }
+            decode(input);
+            if (!input.hasRemaining()) {
+                partial = null;
+                track(0);
+            } else if (input == partial) {
+                partial.compact();
+            } else {
+                int capacity = Math.max(input.remaining() * 2, 256);
+                reserve(capacity);
+                partial = ByteBuffer.allocate(capacity);
+                partial.put(input);
+                track(capacity);
+            }
+            // stop reading until the worker catches up
+            if (readInterest() == 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            schedule();
+        }
+
+        /**
+         * @return OP_READ unless the inbox or the outbox is full
+         */
+        private int readInterest() {
+            return inboxSize.get() >= MAX_INBOX || outboxBytes.get() > OUTBOX_HIGH_WATER ? 0 : SelectionKey.OP_READ;
+        }
+
+        private ByteBuffer append(ByteBuffer target, ByteBuffer source) throws IOException {
+            if (target.remaining() < source.remaining()) {
+                int capacity = Math.max(target.capacity() * 2, target.position() + source.remaining());
+                reserve(capacity);
+                ByteBuffer larger = ByteBuffer.allocate(capacity);
+                target.flip();
+                larger.put(target);
+                target = larger;
+                track(capacity);
+            }
+            return target.put(source);
+        }
+
+        /**
+         * Check that the partial buffer may grow to the given capacity
+         * @throws IOException too many bytes of incomplete requests are kept for all connections
+         */
+        private void reserve(int capacity) throws IOException {
+            if (partialBytes.get() - buffered.get() + capacity > MAX_PARTIAL_BYTES) {
+                throw new IOException("Too many bytes of incomplete requests kept for all connections");
+            }
+        }
+
+        /**
+         * Count the new capacity of the partial buffer in the total of every session
+         */
+        private void track(int capacity) {
+            partialBytes.addAndGet(capacity - buffered.getAndSet(capacity));
+            // closed meanwhile by a worker, which may have released the previous capacity only
+            if (closed.get()) {
+                partialBytes.addAndGet(-buffered.getAndSet(0));
+            }
+        }
+
+        private void decode(ByteBuffer input) throws IOException {
+            while (input.hasRemaining()) {
+                int start = input.position();
+                if (protocol == Protocol.UNKNOWN) {
+                    // binary clients start with the hello bytes, JSON requests start with '{'
+                    if (input.get(start) != BinaryProtocol.HELLO[0]) {
+                        protocol = Protocol.JSON;
+                        continue;
+                    }
+                    if (input.remaining() < BinaryProtocol.HELLO.length) {
+                        return;
+                    }
+                    for (byte expected : BinaryProtocol.HELLO) {
+                        if (input.get() != expected) {
+                            throw new IOException("Unknown protocol");
+                        }
+                    }
+                    protocol = Protocol.BINARY;
+                    send(ByteBuffer.wrap(BinaryProtocol.HELLO));
+                } else if (protocol == Protocol.JSON) {
+                    int end = start + scanned;
+                    while (end < input.limit() && input.get(end) != '\n') {
+                        end++;
+                    }
+                    if (end == input.limit()) {
+                        if (end - start > ConnectionEngine.MAX_LINE_LENGTH) {
+                            throw new IOException("Request line longer than " + ConnectionEngine.MAX_LINE_LENGTH + " bytes");
+                        }
+                        // the line is kept from its start, the next read resumes the scan here
+                        scanned = end - start;
+                        return;
+                    }
+                    scanned = 0;
+                    int length = end - start;
+                    if (length > 0 && input.get(end - 1) == '\r') {
+                        length--;
+                    }
+                    inbox.add(new String(input.array(), input.arrayOffset() + start, length, StandardCharsets.UTF_8));
+                    inboxSize.incrementAndGet();
+                    input.position(end + 1);
+                } else {
+                    if (input.remaining() < 4) {
+                        return;
+                    }
+                    int length = input.getInt(start);
+                    if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                        throw new IOException("Invalid frame length " + length);
+                    }
+                    if (input.remaining() < 4 + length) {
+                        return;
+                    }
+                    ByteBuffer frame = input.duplicate();
+                    frame.position(start + 4).limit(start + 4 + length);
+                    try {
+                        inbox.add(BinaryProtocol.decodeRequest(frame));
+                        inboxSize.incrementAndGet();
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(e);
+                    }
+                    input.position(start + 4 + length);
+                }
+            }
+        }
+
+        /**
+         * Make sure one worker is draining the inbox of this session
+         */
+        private void schedule() {
+            if (!inbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+                workers.execute(this::process);
+            }
+        }
+
+        private void process() {
+            Object request;
+            while ((request = inbox.poll()) != null && !closed.get()) {
+                // half drained, let the selector read again
+                if (inboxSize.decrementAndGet() == MAX_INBOX / 2) {
+                    writeInterest.add(this);
+                    selector.wakeup();
+                }
+                try {
+                    ByteBuffer response = request instanceof String
+                            ? handler.handle((String) request, this)
+                            : handler.handleBinary((BinaryProtocol.Request) request, this);
+                    // null when the handler answers later by itself
+                    if (response != null) {
+                        send(response);
+                    }
+                } catch (Exception e) {
+                    close();
+                    return;
+                }
+            }
+            scheduled.set(false);
+            // a line may have arrived after the last poll
+            schedule();
+        }
+
+        @Override
+        void send(ByteBuffer response) throws IOException {
+            if (closed.get()) {
+                throw new IOException("Connection with " + getSocketInfo() + " is closed");
+            }
+            // the caller reuses its buffer, keep a copy until the selector thread writes it
+            ByteBuffer copy = ByteBuffer.allocate(response.remaining());
+            copy.put(response.duplicate()).flip();
+            if (outboxBytes.addAndGet(copy.remaining()) > OUTBOX_HIGH_WATER) {
+                long now = System.nanoTime();
+                if (congestedSince == 0) {
+                    congestedSince = now;
+                } else if (now - congestedSince > TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS)) {
+                    close();
+                    throw new IOException("Connection with " + getSocketInfo() + " does not read its responses");
+                }
+            } else if (congestedSince != 0) {
+                congestedSince = 0;
+            }
+            outbox.add(copy);
+            writeInterest.add(this);
+            selector.wakeup();
+        }
+
+        @Override
+        void awaitWritable() throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + STALL_MILLIS;
+            synchronized (drained) {
+                while (!closed.get() && outboxBytes.get() > OUTBOX_HIGH_WATER) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        close();
+                        break;
+                    }
+                    // also polled, in case the outbox drained before this thread started waiting
+                    drained.wait(Math.min(wait, 100));
+                }
+            }
+            if (closed.get()) {
+                throw new IOException("Connection with " + getSocketInfo() + " is closed");
+            }
+        }
+
+        /**
+         * Write queued responses, keep OP_WRITE only while the socket buffer is full
+         */
+        private void flush() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = outbox.peek()) != null) {
+                int written = channel.write(buffer);
+                long queued = outboxBytes.addAndGet(-written);
+                // fell under the high-water mark
+                if (queued <= OUTBOX_HIGH_WATER && queued + written > OUTBOX_HIGH_WATER) {
+                    congestedSince = 0;
+                    synchronized (drained) {
+                        drained.notifyAll();
+                    }
+                }
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                outbox.poll();
+            }
+            key.interestOps(readInterest());
+            // a response may have been queued after the outbox was found empty
+            if (!outbox.isEmpty()) {
+                key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            partialBytes.addAndGet(-buffered.getAndSet(0));
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+            handler.onDisconnect(this);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import com.dictionary.common.BinaryProtocol;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters and latency histograms of the server, to see where time goes under load without a profiler.
+ * <p>
+ * Every request is timed by mode. Timers of other stages (lock waits, dictionary file statements) and gauges
+ * (connections, dictionary size, queue depth...) are registered by the server. Everything is exposed as the
+ * attributes of one MBean, com.dictionary.server:type=Metrics, and as plain text in the Prometheus format on
+ * a separate port.
+ */
+class ServerMetrics implements DynamicMBean {
+
+    static final String OBJECT_NAME = "com.dictionary.server:type=Metrics";
+    private static final String PREFIX = "dictionary_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    // names of the quantiles in MBean attributes
+    private static final String[] PERCENTILES = {"P50", "P90", "P99", "P99_9"};
+    // requests whose mode is not one of these are counted as invalid
+    private static final String[] MODES = {"search", "add", "remove", "update", "remove_meaning", "replace_meaning",
+            "prefix", "wildcard", "fuzzy", "search_meaning", "multi_search", "batch", "import", "migrate", "handover", "handover_done"};
+    private static final String INVALID_MODE = "invalid";
+
+    private static class Timer {
+        final String name;
+        final String help;
+        final LatencyHistogram histogram;
+
+        Timer(String name, String help, LatencyHistogram histogram) {
+            this.name = name;
+            this.help = help;
+            this.histogram = histogram;
+        }
+    }
+
+    private static class Gauge {
+        final String name;
+        final String help;
+        final Supplier<Number> value;
+
+        Gauge(String name, String help, Supplier<Number> value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, LatencyHistogram> requests = new LinkedHashMap<>();
+    // requests answered with a failure or an error, by mode
+    private final Map<String, LongAdder> failures = new LinkedHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final List<Timer> timers = new ArrayList<>();
+    private final List<Gauge> gauges = new ArrayList<>();
+    // MBean attributes, rebuilt from the metrics above when one is registered
+    private volatile Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+    private volatile MBeanInfo info;
+
+    ServerMetrics() {
+        for (String mode : MODES) {
+            requests.put(mode, new LatencyHistogram());
+            failures.put(mode, new LongAdder());
+        }
+        requests.put(INVALID_MODE, new LatencyHistogram());
+        failures.put(INVALID_MODE, new LongAdder());
+        gauge("connections", "Open client connections", connections::get);
+        gauge("connections_accepted_total", "Client connections accepted since start", acceptedConnections::sum);
+    }
+
+    /**
+     * Count a handled request
+     * @param mode mode of the request, null or unknown for an invalid request
+     * @param nanos time to handle it, including lock waits and waiting for the commit
+     * @param response response sent back
+     */
+    void recordRequest(Object mode, long nanos, Response response) {
+        String key = mode instanceof String && requests.containsKey(mode) ? (String) mode : INVALID_MODE;
+        requests.get(key).record(nanos);
+        if (response.status != BinaryProtocol.STATUS_SUCCESS) {
+            failures.get(key).increment();
+        }
+    }
+
+    void connectionOpened() {
+        connections.incrementAndGet();
+        acceptedConnections.increment();
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Register the histogram of a stage, exposed with its quantiles in seconds
+     * @param name metric name, in snake case
+     * @param help one line description
+     * @param histogram recorded durations
+     */
+    synchronized void timer(String name, String help, LatencyHistogram histogram) {
+        timers.add(new Timer(name, help, histogram));
+        info = null;
+    }
+
+    /**
+     * Register a value read on each scrape
+     * @param name metric name, in snake case
+     * @param help one line description
+     * @param value current value
+     */
+    synchronized void gauge(String name, String help, Supplier<Number> value) {
+        gauges.add(new Gauge(name, help, value));
+        info = null;
+    }
+
+    /**
+     * Register the metrics as an MBean of the platform MBean server, visible in JConsole or VisualVM
+     * @throws JMException MBean already registered
+     */
+    void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Serve the metrics as plain text on GET /metrics of the given port
+     * @param port port of the endpoint
+     * @throws IOException port not available
+     */
+    void startEndpoint(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return every metric in the Prometheus text format, durations in seconds
+     */
+    synchronized String text() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP ").append(PREFIX).append("request_seconds Time to handle a request, by mode\n");
+        out.append("# TYPE ").append(PREFIX).append("request_seconds summary\n");
+        requests.forEach((mode, histogram) -> summary(out, "request_seconds", "mode=\"" + mode + "\",", histogram));
+        out.append("# HELP ").append(PREFIX).append("request_failures_total Requests answered with a failure or an error, by mode\n");
+        out.append("# TYPE ").append(PREFIX).append("request_failures_total counter\n");
+        failures.forEach((mode, count) ->
+                out.append(PREFIX).append("request_failures_total{mode=\"").append(mode).append("\"} ").append(count.sum()).append('\n'));
+        for (Timer timer : timers) {
+            out.append("# HELP ").append(PREFIX).append(timer.name).append(' ').append(timer.help).append('\n');
+            out.append("# TYPE ").append(PREFIX).append(timer.name).append(" summary\n");
+            summary(out, timer.name, "", timer.histogram);
+        }
+        for (Gauge gauge : gauges) {
+            out.append("# HELP ").append(PREFIX).append(gauge.name).append(' ').append(gauge.help).append('\n');
+            out.append("# TYPE ").append(PREFIX).append(gauge.name).append(gauge.name.endsWith("_total") ? " counter\n" : " gauge\n");
+            out.append(PREFIX).append(gauge.name).append(' ').append(format(gauge.value.get())).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @param labels labels of the series, each followed by a comma
+     */
+    private static void summary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        for (double quantile : QUANTILES) {
+            out.append(PREFIX).append(name).append('{').append(labels).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.getValueAtQuantile(quantile))).append('\n');
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(PREFIX).append(name).append("_sum").append(suffix).append(' ').append(seconds(histogram.getTotalNanos())).append('\n');
+        out.append(PREFIX).append(name).append("_count").append(suffix).append(' ').append(histogram.getCount()).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String format(Number value) {
+        return value instanceof Double || value instanceof Float
+                ? String.format(Locale.ROOT, "%.6f", value.doubleValue()) : value.toString();
+    }
+
+    /**
+     * Build the MBean attributes: for each timer its count, mean, quantiles and maximum in milliseconds, and each gauge
+     */
+    private synchronized MBeanInfo buildInfo() {
+        Map<String, Supplier<Object>> built = new LinkedHashMap<>();
+        requests.forEach((mode, histogram) -> timerAttributes(built, "Request." + mode, histogram));
+        failures.forEach((mode, count) -> built.put("Request." + mode + ".Failures", count::sum));
+        for (Timer timer : timers) {
+            // in milliseconds like the request timers
+            timerAttributes(built, timer.name.replace("_seconds", ""), timer.histogram);
+        }
+        for (Gauge gauge : gauges) {
+            built.put(gauge.name, gauge.value::get);
+        }
+        List<MBeanAttributeInfo> attributeInfos = new ArrayList<>();
+        built.forEach((name, value) -> {
+            Object current = value.get();
+            String type = current == null ? Double.class.getName() : current.getClass().getName();
+            attributeInfos.add(new MBeanAttributeInfo(name, type, name.replace('_', ' '), true, false, false));
+        });
+        attributes = built;
+        return new MBeanInfo(getClass().getName(), "Dictionary server metrics",
+                attributeInfos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+
+    private static void timerAttributes(Map<String, Supplier<Object>> into, String name, LatencyHistogram histogram) {
+        into.put(name + ".Count", histogram::getCount);
+        into.put(name + ".MeanMillis", () -> histogram.getMeanNanos() / 1e6);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            double quantile = QUANTILES[i];
+            into.put(name + "." + PERCENTILES[i] + "Millis", () -> histogram.getValueAtQuantile(quantile) / 1e6);
+        }
+        into.put(name + ".MaxMillis", () -> histogram.getMaxNanos() / 1e6);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        MBeanInfo current = info;
+        if (current == null) {
+            current = buildInfo();
+            info = current;
+        }
+        return current;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        getMBeanInfo();
+        Supplier<Object> value = attributes.get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException("Unknown metric: " + attribute);
+        }
+        return value.get();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            try {
+                list.add(new Attribute(name, getAttribute(name)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as the MBean server expects
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only!");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations!");
+    }
+}
@@ -0,0 +1,81 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.util.HashMap;
+
+/**
+ * Optional startup parameters given after the port and dictionary file, in the form --name=value
+ */
+class ServerOptions {
+
+    private final HashMap<String, String> options = new HashMap<>();
+
+    /**
+     * Parse options
+     * @param args option arguments
+     * @throws IllegalArgumentException option not in the form --name[=value]
+     */
+    ServerOptions(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                // flag without value
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+    }
+
+    String get(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * @throws IllegalArgumentException value is not numeric
+     */
+    int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " should be numeric number!");
+        }
+    }
+
+    /**
+     * @return size in bytes, given as a number of bytes or with a k, m or g suffix
+     * @throws IllegalArgumentException value is not a size
+     */
+    long getBytes(String name, long defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        String digits = value.toLowerCase();
+        int shift = 0;
+        if (digits.endsWith("k") || digits.endsWith("m") || digits.endsWith("g")) {
+            shift = "kmg".indexOf(digits.charAt(digits.length() - 1)) * 10 + 10;
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            long bytes = Long.parseLong(digits) << shift;
+            if (bytes <= 0) {
+                throw new NumberFormatException();
+            }
+            return bytes;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option --" + name + " should be a size such as 512m!");
+        }
+    }
+
+    boolean has(String name) {
+        return options.containsKey(name);
+    }
+}
@@ -0,0 +1,113 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Optional server GUI, attached to a running server as an observer of its log and dictionary.
+ * Must be created and used on the EDT.
+ */
+class ServerWindow {
+
+    private static final int MESSAGE_CENTER_LINES = 1000;
+
+    JFrame frame = new JFrame("Server");
+    JTextPane  messageCenter = new JTextPane ();
+    JScrollPane messageCenterScroll = new JScrollPane(messageCenter);
+    JPanel dictionaryPanel = new JPanel(new BorderLayout());
+    JButton refreshBtn = new JButton("Refresh Dictionary");
+    WordListModel wordListModel = new WordListModel();
+    JList<String> wordList = new JList<>(wordListModel);
+    JScrollPane wordListScroll = new JScrollPane(wordList);
+
+    private final DictionaryStore dictionary;
+    private final Supplier<Map<String, Meanings>> refreshDic;
+
+    /**
+     * @param dictionary dictionary shown in the word list
+     * @param refreshDic action applying changes of the dictionary file, returning the changed words
+     */
+    ServerWindow(DictionaryStore dictionary, Supplier<Map<String, Meanings>> refreshDic) {
+        this.dictionary = dictionary;
+        this.refreshDic = refreshDic;
+    }
+
+    /**
+     * Create and show the window on the EDT without waiting for it
+     * @param dictionary dictionary shown in the word list
+     * @param refreshDic action applying changes of the dictionary file, returning the changed words
+     * @param log server log shown in the message center
+     * @return action to run from any thread once the dictionary is loaded, listing every word again
+     */
+    static Runnable attach(DictionaryStore dictionary, Supplier<Map<String, Meanings>> refreshDic, RequestLog log) {
+        // only used on the EDT, where the window is created before any reset queued after it
+        ServerWindow[] window = new ServerWindow[1];
+        SwingUtilities.invokeLater(() -> {
+            window[0] = new ServerWindow(dictionary, refreshDic);
+            window[0].show(log);
+        });
+        return () -> SwingUtilities.invokeLater(() -> window[0].wordListModel.reset(dictionary));
+    }
+
+    /**
+     * Show the window and start receiving log messages
+     * @param log server log
+     */
+    void show(RequestLog log) {
+        frame.setSize(600, 500);
+        frame.setLocationRelativeTo(null);
+        frame.setResizable(true);
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+
+        setComponentsStyle();
+        addComponentsToContainer();
+        addActionListeners();
+
+        wordListModel.reset(dictionary);
+        frame.setVisible(true);
+        log.addSink(new MessageCenterSink(messageCenter, MESSAGE_CENTER_LINES));
+    }
+
+    private void setComponentsStyle() {
+        messageCenter.setEditable(false);
+        wordListScroll.setPreferredSize(new Dimension(600, 200));
+        // fixed row height so only the visible rows are measured and rendered
+        wordList.setFixedCellHeight(18);
+        wordList.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+                String word = (String) value;
+                Meanings meanings = dictionary.get(word);
+                String text = meanings == null ? word : word + "    " + String.join(" | ", meanings.asList());
+                return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+            }
+        });
+    }
+
+    private void addComponentsToContainer() {
+        frame.add(new JLabel("Log Center"), BorderLayout.NORTH);
+
+        frame.add(messageCenterScroll, BorderLayout.CENTER);
+
+        dictionaryPanel.add(refreshBtn, BorderLayout.NORTH);
+        dictionaryPanel.add(wordListScroll, BorderLayout.CENTER);
+        frame.add(dictionaryPanel, BorderLayout.SOUTH);
+    }
+
+    private void addActionListeners() {
+        // get changed words and meanings from db, off the EDT
+        refreshBtn.addActionListener(e -> {
+            refreshBtn.setEnabled(false);
+            new Thread(() -> {
+                Map<String, Meanings> changes = refreshDic.get();
+                SwingUtilities.invokeLater(() -> {
+                    wordListModel.apply(changes);
+                    refreshBtn.setEnabled(true);
+                });
+            }, "dictionary-refresh").start();
+        });
+    }
+}
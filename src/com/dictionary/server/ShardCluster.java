@@ -0,0 +1,496 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import com.dictionary.common.ShardMap;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Membership of this server in a sharded cluster: the words it owns by the topology file given by --cluster,
+ * and the online handover of words when the topology changes.
+ * <p>
+ * The topology file is read again every second. When it changes, words this shard no longer owns are removed
+ * from memory in chunks and sent to their new shard with {"mode":"migrate"}, which only adds the words it does not
+ * have yet; the removal is written to the dictionary file once the new shard has committed them, and undone
+ * if the new shard refuses them, for example because it did not read the new topology yet. Writes of a word
+ * that moved are answered with the moved status, so the client reads the topology again and retries.
+ * <p>
+ * Until every other shard has reported its handover done with {"mode":"handover_done"}, a word missing here is
+ * asked to its previous shard with {"mode":"handover"}, which gives it up at once, or answers moved while its
+ * chunk is in flight, so a search or write never misses a word still waiting for its chunk. A shard restarted
+ * during a handover no longer knows the previous topology.
+ * <p>
+ * A new shard is started with the topology file not listing it yet: it owns no word until the file lists it,
+ * and then brings the words of its range from the other shards like after any other change.
+ */
+class ShardCluster {
+
+    private static final long WATCH_MILLIS = 1000;
+    private static final int HANDOVER_CHUNK = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    // a batch pulling words holds the whole dictionary, it never waits on another shard for longer
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * A word asked to its previous shard could not be handed over yet, the client should retry
+     */
+    static class NotReadyException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        NotReadyException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Connection to another shard, requests are answered in order
+     */
+    private static class Peer {
+        final ShardMap.Shard shard;
+        private Socket socket;
+        private BufferedReader in;
+        private Writer out;
+        private final JSONParser parser = new JSONParser();
+
+        Peer(ShardMap.Shard shard) {
+            this.shard = shard;
+        }
+
+        /**
+         * Send a request and wait for the response, connecting first if needed
+         * @throws IOException connection error, the next request connects again
+         */
+        synchronized JSONObject request(JSONObject requestObj) throws IOException {
+            try {
+                if (socket == null) {
+                    socket = new Socket();
+                    socket.connect(new InetSocketAddress(shard.host, shard.port), CONNECT_TIMEOUT_MILLIS);
+                    socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                    in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                }
+                out.write(requestObj.toJSONString());
+                out.write('\n');
+                out.flush();
+                String line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("Shard " + shard + " closed the connection");
+                }
+                return (JSONObject) parser.parse(line);
+            } catch (IOException | ParseException | ClassCastException e) {
+                close();
+                throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage());
+            }
+        }
+
+        synchronized void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+                socket = null;
+            }
+        }
+    }
+
+    private final Path file;
+    private final String name;
+    private final DictionaryStore dictionary;
+    private final Function<String, Meanings> release;
+    private final BiConsumer<String, Meanings> restore;
+    private final Consumer<String> removed;
+    private final RequestLog log;
+    private volatile ShardMap current;
+    // topology before the last change, null once every other shard has handed its words over
+    private volatile ShardMap previous;
+    // shards of the previous topology which may still hold words of this shard
+    private final Set<String> handingOver = ConcurrentHashMap.newKeySet();
+    // handovers reported done for a topology not read here yet, by shard
+    private final Map<String, String> doneEarly = new HashMap<>();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    // addresses of the other shards of the current and previous topologies
+    private volatile Set<InetAddress> peerAddresses = Collections.emptySet();
+    // words removed from memory and sent to their new shard, not acknowledged yet
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    // one handover at a time, a newer topology stops the running one
+    private final ExecutorService handover = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "dictionary-handover");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long modified;
+
+    /**
+     * @param file topology file
+     * @param name name of this shard in the topology
+     * @param dictionary words of this shard
+     * @param release removes a word from memory to hand it over, returns its meanings or null if gone or owned here
+     * @param restore puts back a word whose handover failed, unless written meanwhile
+     * @param removed writes the removal of a handed over word to the dictionary file
+     * @param log server log
+     * @throws IOException error while reading the topology
+     */
+    ShardCluster(Path file, String name, DictionaryStore dictionary, Function<String, Meanings> release,
+                 BiConsumer<String, Meanings> restore, Consumer<String> removed, RequestLog log) throws IOException {
+        this.file = file;
+        this.name = name;
+        this.dictionary = dictionary;
+        this.release = release;
+        this.restore = restore;
+        this.removed = removed;
+        this.log = log;
+        modified = Files.getLastModifiedTime(file).toMillis();
+        current = ShardMap.read(file);
+        resolvePeers();
+        if (current.shard(name) == null) {
+            log.info("Shard " + name + " is not in " + file + " yet, waiting to be added");
+        } else {
+            log.info("Shard " + name + " of " + current.shards().size() + " shards");
+        }
+    }
+
+    /**
+     * Hand over the words loaded from the dictionary file that belong to other shards, then follow the topology file
+     */
+    void start() {
+        if (current.shard(name) != null) {
+            handover.execute(() -> handOver(current));
+        }
+        Thread watcher = new Thread(this::watch, "dictionary-topology");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return true while other shards may still hold words of this shard
+     */
+    boolean isRebalancing() {
+        return previous != null;
+    }
+
+    /**
+     * @param address address of a client
+     * @return true if another shard of the cluster runs at that address
+     */
+    boolean isPeer(InetAddress address) {
+        return peerAddresses.contains(address);
+    }
+
+    /**
+     * Look up the addresses of the other shards once the topology changed
+     */
+    private void resolvePeers() {
+        Set<InetAddress> addresses = new HashSet<>();
+        ShardMap before = previous;
+        for (ShardMap topology : before == null ? List.of(current) : List.of(current, before)) {
+            for (ShardMap.Shard shard : topology.shards()) {
+                if (shard.name.equals(name)) {
+                    continue;
+                }
+                try {
+                    Collections.addAll(addresses, InetAddress.getAllByName(shard.host));
+                } catch (IOException e) {
+                    log.error("Address of shard " + shard + " can not be resolved: " + e.getMessage());
+                }
+            }
+        }
+        peerAddresses = addresses;
+    }
+
+    /**
+     * @param word word to place
+     * @return true if the word belongs to this shard
+     */
+    boolean owns(String word) {
+        return current.owner(word).name.equals(name);
+    }
+
+    /**
+     * @param word word missing from the dictionary
+     * @return true if the word was sent to its new shard, which did not acknowledge it yet
+     */
+    boolean isInFlight(String word) {
+        return inFlight.contains(word);
+    }
+
+    /**
+     * @param word word of another shard
+     * @return response telling the client where the word belongs
+     */
+    Response moved(String word) {
+        return Response.moved("Word " + word + " belongs to shard " + current.owner(word) + "!");
+    }
+
+    /**
+     * Bring a word missing here from the shard owning it before the last topology change, which gives it up.
+     * Must be called holding the lock of the word.
+     * @param word word owned by this shard and missing from its dictionary
+     * @return meanings of the word, null if no other shard has it
+     * @throws IOException the previous shard is not available
+     * @throws NotReadyException the previous shard has not read the new topology yet
+     */
+    Meanings pull(String word) throws IOException, NotReadyException {
+        ShardMap before = previous;
+        if (before == null) {
+            return null;
+        }
+        ShardMap.Shard owner = before.owner(word);
+        if (owner.name.equals(name) || !handingOver.contains(owner.name)) {
+            return null;
+        }
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", "handover");
+        requestObj.put("word", word);
+        JSONObject responseObj = peer(owner).request(requestObj);
+        Object status = responseObj.get("status");
+        // a previous owner still loading or shedding load may hold the word as well
+        if ("loading".equals(status) || "busy".equals(status)) {
+            throw new NotReadyException("Shard " + owner + " is " + status + ", please retry!");
+        }
+        if ("moved".equals(status)) {
+            throw new NotReadyException("Shard " + owner + " is still handing over word " + word + ", please retry!");
+        }
+        if (!"success".equals(status)) {
+            return null;
+        }
+        // the word gets a version here higher than the ones it had there
+        if (responseObj.get("version") instanceof Long) {
+            dictionary.skipVersions((Long) responseObj.get("version"));
+        }
+        return Meanings.parse((String) responseObj.get("meaning"));
+    }
+
+    /**
+     * A shard reported that it handed over every word it held of the other shards
+     * @param shard name of the shard
+     * @param topology topology of the handover, as given by {@link ShardMap#toString()}
+     */
+    synchronized void handoverDone(String shard, String topology) {
+        if (!topology.equals(current.toString())) {
+            // that shard read the topology file first
+            doneEarly.put(shard, topology);
+            return;
+        }
+        handingOver.remove(shard);
+        if (handingOver.isEmpty() && previous != null) {
+            previous = null;
+            log.info("Rebalance done, every word of shard " + name + " is here");
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            try {
+                Thread.sleep(WATCH_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                long lastModified = Files.getLastModifiedTime(file).toMillis();
+                if (lastModified == modified) {
+                    continue;
+                }
+                modified = lastModified;
+                ShardMap read = ShardMap.read(file);
+                if (read.equals(current)) {
+                    continue;
+                }
+                if (read.shard(name) != null) {
+                    adopt(read);
+                } else if (current.shard(name) != null) {
+                    log.error("Shard " + name + " was removed from " + file + ", topology ignored");
+                } else {
+                    // still waiting to be added
+                    current = read;
+                    resolvePeers();
+                }
+            } catch (IOException e) {
+                log.error("Topology file can not be read: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Switch to a new topology and start handing over the words that moved
+     */
+    private synchronized void adopt(ShardMap topology) {
+        ShardMap before = current;
+        handingOver.clear();
+        for (ShardMap.Shard shard : before.shards()) {
+            if (!shard.name.equals(name) && !topology.toString().equals(doneEarly.get(shard.name))) {
+                handingOver.add(shard.name);
+            }
+        }
+        doneEarly.clear();
+        previous = handingOver.isEmpty() ? null : before;
+        current = topology;
+        resolvePeers();
+        log.info("Topology changed to " + topology.shards().size() + " shards, handing over the words that moved");
+        handover.execute(() -> handOver(topology));
+    }
+
+    /**
+     * Send the words of other shards to their owner, then tell every shard it is done
+     * @param topology topology the handover is for, stopped when it changes
+     */
+    private void handOver(ShardMap topology) {
+        List<String> moved = new ArrayList<>();
+        dictionary.forEachWord(word -> {
+            if (!topology.owner(word).name.equals(name)) {
+                moved.add(word);
+            }
+        });
+        List<String> words = moved;
+        long start = System.nanoTime();
+        int sent = 0;
+        while (!words.isEmpty()) {
+            if (topology != current) {
+                return;
+            }
+            // one chunk per new owner
+            Map<ShardMap.Shard, List<String>> chunks = new LinkedHashMap<>();
+            List<String> later = new ArrayList<>();
+            for (String word : words) {
+                List<String> chunk = chunks.computeIfAbsent(topology.owner(word), shard -> new ArrayList<>());
+                if (chunk.size() < HANDOVER_CHUNK) {
+                    chunk.add(word);
+                } else {
+                    later.add(word);
+                }
+            }
+            boolean failed = false;
+            for (Map.Entry<ShardMap.Shard, List<String>> chunk : chunks.entrySet()) {
+                int count = migrate(chunk.getKey(), chunk.getValue());
+                if (count < 0) {
+                    later.addAll(chunk.getValue());
+                    failed = true;
+                } else {
+                    sent += count;
+                }
+            }
+            words = later;
+            if (failed) {
+                try {
+                    Thread.sleep(WATCH_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        if (sent > 0) {
+            log.info("Handed over " + sent + " words in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        JSONObject done = new JSONObject();
+        done.put("mode", "handover_done");
+        done.put("shard", name);
+        done.put("topology", topology.toString());
+        List<ShardMap.Shard> waiting = new ArrayList<>(topology.shards());
+        waiting.removeIf(shard -> shard.name.equals(name));
+        // a shard not told keeps asking this one for the words it misses, until the topology changes again
+        while (!waiting.isEmpty() && topology == current) {
+            waiting.removeIf(shard -> {
+                try {
+                    peer(shard).request(done);
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            });
+            if (!waiting.isEmpty()) {
+                try {
+                    Thread.sleep(WATCH_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move one chunk of words to their new shard
+     * @return number of words moved, -1 if the shard refused them and they were put back
+     */
+    private int migrate(ShardMap.Shard owner, List<String> words) {
+        Map<String, Meanings> released = new HashMap<>();
+        JSONArray entries = new JSONArray();
+        for (String word : words) {
+            // marked first, so a word asked for meanwhile is never reported missing
+            inFlight.add(word);
+            Meanings meanings = release.apply(word);
+            if (meanings == null) {
+                inFlight.remove(word);
+            } else {
+                released.put(word, meanings);
+                JSONObject entry = new JSONObject();
+                entry.put("word", word);
+                entry.put("meaning", meanings.text());
+                entries.add(entry);
+            }
+        }
+        if (released.isEmpty()) {
+            return 0;
+        }
+        JSONObject requestObj = new JSONObject();
+        requestObj.put("mode", "migrate");
+        requestObj.put("entries", entries);
+        // above the versions the words had here
+        requestObj.put("version", dictionary.lastVersion());
+        String failure;
+        try {
+            JSONObject responseObj = peer(owner).request(requestObj);
+            if ("success".equals(responseObj.get("status"))) {
+                released.keySet().forEach(removed);
+                inFlight.removeAll(released.keySet());
+                return released.size();
+            }
+            failure = String.valueOf(responseObj.get("message"));
+        } catch (IOException e) {
+            failure = e.getMessage();
+        }
+        log.error("Words can not be handed over to shard " + owner + ", retrying: " + failure);
+        released.forEach(restore);
+        inFlight.removeAll(released.keySet());
+        return -1;
+    }
+
+    private Peer peer(ShardMap.Shard shard) {
+        Peer peer = peers.computeIfAbsent(shard.name, key -> new Peer(shard));
+        if (!peer.shard.equals(shard)) {
+            // the shard moved to another address
+            peer.close();
+            peer = new Peer(shard);
+            peers.put(shard.name, peer);
+        }
+        return peer;
+    }
+}
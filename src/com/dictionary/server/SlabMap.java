@@ -0,0 +1,464 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Map of words to their meanings held as UTF-8 bytes in large byte array slabs, instead of two strings, a
+ * {@link Meanings} and a map node per word, for dictionaries of millions of words.
+ * <p>
+ * Each entry is one record appended to the slab being filled: the length and bytes of the word, then the length
+ * and bytes of its meanings joined by newlines. The index is an open-addressing table of longs probed linearly,
+ * each slot holding the address of a record and 23 bits of the hash of its word, so probes of other words are
+ * mostly rejected without reading the slabs. A change appends a new record and points the slot to it, a removal
+ * leaves a tombstone. Replaced records are reclaimed by copying the live ones to new slabs once they take more
+ * space than the live ones.
+ * <p>
+ * Writes are serialized on the map. Reads and iterations never lock: a slot only changes from empty or a tombstone
+ * to a record, or from a record to another record or a tombstone, and records never change once appended, so a
+ * probe finds every word present for its whole duration. Growing the table and reclaiming space build a new table
+ * published at once, reads already started finish on the old one. Meanings are decoded again on every read.
+ */
+class SlabMap extends AbstractMap<String, Meanings> {
+
+    private static final int SLAB_BITS = 22;
+    static final int SLAB_SIZE = 1 << SLAB_BITS;
+    // records are addressed by slab and offset in 40 bits, 1 TB of slabs
+    private static final int ADDRESS_BITS = 40;
+    private static final long ADDRESS_MASK = (1L << ADDRESS_BITS) - 1;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Table and slabs of one moment, the table and the slab array are replaced when growing or reclaiming space
+     */
+    private static final class State {
+        final AtomicLongArray table;
+        // the array is copied to add a slab, only the slab being filled changes
+        volatile byte[][] slabs;
+
+        State(AtomicLongArray table, byte[][] slabs) {
+            this.table = table;
+            this.slabs = slabs;
+        }
+    }
+
+    private volatile State state = new State(new AtomicLongArray(MIN_CAPACITY), new byte[0][]);
+    private volatile int size;
+    // the fields below are guarded by this
+    // slots holding a record or a tombstone
+    private int used;
+    // slab being filled and its next free byte
+    private int slab = -1;
+    private int position;
+    private long liveBytes;
+    private long garbageBytes;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        state = new State(new AtomicLongArray(MIN_CAPACITY), new byte[0][]);
+        size = 0;
+        used = 0;
+        slab = -1;
+        position = 0;
+        liveBytes = 0;
+        garbageBytes = 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        byte[] word = ((String) key).getBytes(StandardCharsets.UTF_8);
+        State current = state;
+        return find(current, word, hash(word, 0, word.length)) >= 0;
+    }
+
+    @Override
+    public Meanings get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        byte[] word = ((String) key).getBytes(StandardCharsets.UTF_8);
+        State current = state;
+        int index = find(current, word, hash(word, 0, word.length));
+        return index < 0 ? null : meanings(current.slabs, current.table.get(index));
+    }
+
+    @Override
+    public synchronized Meanings put(String word, Meanings meanings) {
+        Meanings previous = get(word);
+        store(word, meanings);
+        return previous;
+    }
+
+    @Override
+    public synchronized Meanings remove(Object key) {
+        Meanings previous = get(key);
+        if (previous != null) {
+            delete((String) key);
+        }
+        return previous;
+    }
+
+    /**
+     * Add a word or replace its meanings, without decoding the previous ones as {@link #put} does
+     * @param word word
+     * @param meanings meanings of the word
+     * @return true if the word was added
+     */
+    synchronized boolean store(String word, Meanings meanings) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        byte[] text = meanings.text().getBytes(StandardCharsets.UTF_8);
+        long hash = hash(key, 0, key.length);
+        if (used + 1 > state.table.length() / 4 * 3) {
+            rebuild(false);
+        }
+        State current = state;
+        int index = find(current, key, hash);
+        long address = append(current, key, text);
+        if (index >= 0) {
+            forget(current, index);
+            current.table.set(index, slot(hash, address));
+            return false;
+        }
+        index = freeSlot(current.table, hash);
+        if (current.table.get(index) == EMPTY) {
+            used++;
+        }
+        current.table.set(index, slot(hash, address));
+        size++;
+        return true;
+    }
+
+    /**
+     * Remove a word, without decoding its meanings as {@link #remove} does
+     * @param word word
+     * @return true if the word was found
+     */
+    synchronized boolean delete(String word) {
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        State current = state;
+        int index = find(current, key, hash(key, 0, key.length));
+        if (index < 0) {
+            return false;
+        }
+        forget(current, index);
+        current.table.set(index, TOMBSTONE);
+        size--;
+        if (garbageBytes > liveBytes && garbageBytes > 4L * SLAB_SIZE) {
+            rebuild(true);
+        }
+        return true;
+    }
+
+    /**
+     * Iterate over all words, weakly consistent with concurrent writes
+     * @param action action for each word
+     */
+    void forEachWord(Consumer<String> action) {
+        State current = state;
+        for (int i = 0; i < current.table.length(); i++) {
+            long slot = current.table.get(i);
+            if (slot != EMPTY && slot != TOMBSTONE) {
+                action.accept(word(current.slabs, slot));
+            }
+        }
+    }
+
+    /**
+     * Iterate over all words with their meanings, weakly consistent with concurrent writes
+     */
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Meanings> action) {
+        State current = state;
+        for (int i = 0; i < current.table.length(); i++) {
+            long slot = current.table.get(i);
+            if (slot != EMPTY && slot != TOMBSTONE) {
+                action.accept(word(current.slabs, slot), meanings(current.slabs, slot));
+            }
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Meanings>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Meanings>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Meanings>> iterator() {
+                State current = state;
+                return new Iterator<Map.Entry<String, Meanings>>() {
+                    private int index;
+                    // slot of the next entry, read once so a concurrent removal can not hide it after hasNext
+                    private long next = advance();
+
+                    private long advance() {
+                        while (index < current.table.length()) {
+                            long slot = current.table.get(index++);
+                            if (slot != EMPTY && slot != TOMBSTONE) {
+                                return slot;
+                            }
+                        }
+                        return EMPTY;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != EMPTY;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Meanings> next() {
+                        if (next == EMPTY) {
+                            throw new NoSuchElementException();
+                        }
+                        long slot = next;
+                        next = advance();
+                        return new SimpleImmutableEntry<>(word(current.slabs, slot), meanings(current.slabs, slot));
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return bytes of the slabs allocated, live or replaced records and free space
+     */
+    synchronized long getSlabBytes() {
+        long bytes = 0;
+        for (byte[] allocated : state.slabs) {
+            bytes += allocated.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return bytes of the records of current words
+     */
+    synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return index of the slot holding the word, -1 if not found
+     */
+    private static int find(State current, byte[] word, long hash) {
+        AtomicLongArray table = current.table;
+        int mask = table.length() - 1;
+        long tag = tag(hash);
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            long slot = table.get(i);
+            if (slot == EMPTY) {
+                return -1;
+            }
+            if (slot != TOMBSTONE && (slot & ~ADDRESS_MASK) == tag && matches(current.slabs, slot, word)) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * @return index of the first empty slot or tombstone on the probe path of the hash
+     */
+    private static int freeSlot(AtomicLongArray table, long hash) {
+        int mask = table.length() - 1;
+        int i = (int) hash & mask;
+        while (table.get(i) != EMPTY && table.get(i) != TOMBSTONE) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Count the record of a slot about to be replaced as garbage
+     */
+    private void forget(State current, int index) {
+        long address = (current.table.get(index) & ADDRESS_MASK) - 1;
+        int length = recordLength(current.slabs[(int) (address >>> SLAB_BITS)], (int) (address & (SLAB_SIZE - 1)));
+        liveBytes -= length;
+        garbageBytes += length;
+    }
+
+    /**
+     * Append a record to the slab being filled, starting a new slab if it does not fit
+     * @param target state the record is added to
+     * @return address of the record
+     */
+    private long append(State target, byte[] key, byte[] text) {
+        int length = varintLength(key.length) + key.length + varintLength(text.length) + text.length;
+        byte[][] slabs = target.slabs;
+        if (slab < 0 || position + length > slabs[slab].length) {
+            // a record larger than a slab gets a slab of its own
+            slabs = Arrays.copyOf(slabs, slabs.length + 1);
+            slabs[slabs.length - 1] = new byte[Math.max(SLAB_SIZE, length)];
+            target.slabs = slabs;
+            slab = slabs.length - 1;
+            position = 0;
+        }
+        byte[] destination = slabs[slab];
+        int offset = writeVarint(destination, position, key.length);
+        System.arraycopy(key, 0, destination, offset, key.length);
+        offset = writeVarint(destination, offset + key.length, text.length);
+        System.arraycopy(text, 0, destination, offset, text.length);
+        long address = ((long) slab << SLAB_BITS) | position;
+        position += length;
+        liveBytes += length;
+        return address;
+    }
+
+    /**
+     * Build a new table without tombstones, twice the size of the words, and publish it
+     * @param reclaim also copy the live records to new slabs, dropping the replaced ones
+     */
+    private void rebuild(boolean reclaim) {
+        State old = state;
+        int capacity = MIN_CAPACITY;
+        while (capacity / 4 * 3 < Math.max(size, 1) * 2) {
+            capacity *= 2;
+        }
+        AtomicLongArray table = new AtomicLongArray(capacity);
+        State rebuilt = new State(table, reclaim ? new byte[0][] : old.slabs);
+        if (reclaim) {
+            slab = -1;
+            liveBytes = 0;
+            garbageBytes = 0;
+        }
+        for (int i = 0; i < old.table.length(); i++) {
+            long slot = old.table.get(i);
+            if (slot == EMPTY || slot == TOMBSTONE) {
+                continue;
+            }
+            long address = (slot & ADDRESS_MASK) - 1;
+            byte[] source = old.slabs[(int) (address >>> SLAB_BITS)];
+            int offset = (int) (address & (SLAB_SIZE - 1));
+            long keyHeader = readVarint(source, offset);
+            int keyOffset = (int) keyHeader;
+            int keyLength = (int) (keyHeader >>> 32);
+            long hash = hash(source, keyOffset, keyLength);
+            if (reclaim) {
+                long textHeader = readVarint(source, keyOffset + keyLength);
+                int textOffset = (int) textHeader;
+                byte[] key = Arrays.copyOfRange(source, keyOffset, keyOffset + keyLength);
+                byte[] text = Arrays.copyOfRange(source, textOffset, textOffset + (int) (textHeader >>> 32));
+                address = append(rebuilt, key, text);
+            }
+            table.set(freeSlot(table, hash), slot(hash, address));
+        }
+        used = size;
+        state = rebuilt;
+    }
+
+    private static boolean matches(byte[][] slabs, long slot, byte[] word) {
+        long address = (slot & ADDRESS_MASK) - 1;
+        byte[] source = slabs[(int) (address >>> SLAB_BITS)];
+        long header = readVarint(source, (int) (address & (SLAB_SIZE - 1)));
+        int offset = (int) header;
+        return (int) (header >>> 32) == word.length && Arrays.equals(source, offset, offset + word.length, word, 0, word.length);
+    }
+
+    private static String word(byte[][] slabs, long slot) {
+        long address = (slot & ADDRESS_MASK) - 1;
+        byte[] source = slabs[(int) (address >>> SLAB_BITS)];
+        long header = readVarint(source, (int) (address & (SLAB_SIZE - 1)));
+        return new String(source, (int) header, (int) (header >>> 32), StandardCharsets.UTF_8);
+    }
+
+    private static Meanings meanings(byte[][] slabs, long slot) {
+        long address = (slot & ADDRESS_MASK) - 1;
+        byte[] source = slabs[(int) (address >>> SLAB_BITS)];
+        long keyHeader = readVarint(source, (int) (address & (SLAB_SIZE - 1)));
+        long textHeader = readVarint(source, (int) keyHeader + (int) (keyHeader >>> 32));
+        return Meanings.parse(new String(source, (int) textHeader, (int) (textHeader >>> 32), StandardCharsets.UTF_8));
+    }
+
+    private static int recordLength(byte[] source, int offset) {
+        long keyHeader = readVarint(source, offset);
+        long textHeader = readVarint(source, (int) keyHeader + (int) (keyHeader >>> 32));
+        return (int) textHeader + (int) (textHeader >>> 32) - offset;
+    }
+
+    /**
+     * @return slot of a record, the top bit stays clear so no slot is a tombstone
+     */
+    private static long slot(long hash, long address) {
+        return tag(hash) | (address + 1);
+    }
+
+    private static long tag(long hash) {
+        return (hash >>> ADDRESS_BITS + 1) << ADDRESS_BITS;
+    }
+
+    /**
+     * @return value in the high 32 bits and offset of the bytes after it in the low 32 bits
+     */
+    private static long readVarint(byte[] source, int offset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = source[offset++];
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return ((long) value << 32) | offset;
+    }
+
+    /**
+     * @return offset of the bytes after the value
+     */
+    private static int writeVarint(byte[] target, int offset, int value) {
+        while ((value & ~0x7f) != 0) {
+            target[offset++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        target[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * 64-bit FNV-1a of the bytes, with the final mix of MurmurHash3 so the low bits pick the slot
+     */
+    private static long hash(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
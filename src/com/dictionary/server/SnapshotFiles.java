@@ -0,0 +1,140 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+
+/**
+ * File handling shared by the snapshots of the words in memory, {@link WarmSnapshot} and the snapshot of
+ * {@link LogStorage}: words and meanings as wordLength(4) word meaningLength(4) meaning in UTF-8, written to a
+ * temporary file that is renamed over the snapshot once complete.
+ */
+final class SnapshotFiles {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private SnapshotFiles() {
+    }
+
+    /**
+     * Writes the content of a snapshot, given the file being written
+     */
+    interface Content {
+        void write(EntryWriter writer) throws IOException;
+    }
+
+    /**
+     * Write a snapshot to a temporary file next to it, forced to disk
+     * @param path snapshot file
+     * @param content writes the header, the words and the trailer
+     * @return temporary file, to be renamed over the snapshot with {@link #replace(Path, Path)}
+     * @throws IOException error while writing
+     */
+    static Path writeTemp(Path path, Content content) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            EntryWriter writer = new EntryWriter(channel);
+            content.write(writer);
+            if (writer.failure != null) {
+                throw writer.failure;
+            }
+            drain(channel, writer.buffer);
+            channel.force(true);
+        }
+        return temp;
+    }
+
+    /**
+     * Atomically rename a complete temporary file over the snapshot
+     * @param temp temporary file
+     * @param path snapshot file
+     * @throws IOException error while renaming
+     */
+    static void replace(Path temp, Path path) throws IOException {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Buffered writer of a snapshot file. Appends the words given by an iteration over the dictionary, keeping
+     * the first error since the iteration can not throw it.
+     */
+    static class EntryWriter implements BiConsumer<String, Meanings> {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private int count;
+        private IOException failure;
+
+        private EntryWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void accept(String word, Meanings meanings) {
+            if (failure != null) {
+                return;
+            }
+            byte[] wordBytes = word.getBytes(StandardCharsets.UTF_8);
+            byte[] meaningBytes = meanings.text().getBytes(StandardCharsets.UTF_8);
+            try {
+                reserve(8 + wordBytes.length + meaningBytes.length);
+            } catch (IOException e) {
+                failure = e;
+                return;
+            }
+            buffer.putInt(wordBytes.length).put(wordBytes).putInt(meaningBytes.length).put(meaningBytes);
+            count++;
+        }
+
+        /**
+         * @param size bytes about to be put
+         * @return buffer with at least that many bytes remaining, for headers and trailers
+         * @throws IOException error while writing the buffered bytes
+         */
+        ByteBuffer reserve(int size) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (buffer.remaining() < size) {
+                drain(channel, buffer);
+                if (buffer.remaining() < size) {
+                    buffer = ByteBuffer.allocateDirect(size);
+                }
+            }
+            return buffer;
+        }
+
+        /**
+         * @return number of words written
+         */
+        int count() {
+            return count;
+        }
+    }
+
+    /**
+     * Write the bytes put into a buffer, then clear it
+     */
+    static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Read a UTF-8 string at the position of the buffer
+     */
+    static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,610 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Dictionary stored in the SQLite table meanings(word, meaning), one row per meaning of a word.
+ * A word exists as long as it has a meaning, and its meanings are kept in insertion order by rowid.
+ * Writes reuse prepared statements, change a single row per meaning and commit a whole batch at once.
+ * <p>
+ * Older files store all meanings of a word as one newline-joined text in the table dictionary(word, meaning).
+ * They are migrated on open, and dictionary is kept as a view in that shape for external tools. Triggers make the
+ * view writable: a row written to it replaces every meaning of its word with the lines of its meaning.
+ * <p>
+ * Triggers record every changed word in dictionary_changes with an increasing sequence number, including
+ * changes made by other processes, so a refresh only reads rows changed after the last sequence seen.
+ * The change table keeps one row per word and never grows beyond the number of words.
+ * <p>
+ * The file is in WAL mode, so reads never wait for writes nor writes for reads. One connection writes, with
+ * cached prepared statements, and a small pool of read-only connections serves the words read on demand,
+ * loads and change reads, each reading a consistent snapshot of the file.
+ * <p>
+ * A load splits the table into rowid ranges read in parallel by all readers but one, which stays free for
+ * words read on demand meanwhile. With a {@link WarmSnapshot} given at open, a load reads the snapshot written
+ * on the last clean shutdown instead, and the changes made since are read as usual.
+ */
+class SqliteStorage implements DictionaryStorage {
+
+    static final int DEFAULT_READERS = 4;
+    // smaller tables are loaded by a single reader
+    private static final long MIN_PARTITION_ROWS = 50000;
+    // per connection: page cache in KiB when negative, memory mapped reads in bytes
+    private static final String[] PRAGMAS = {"PRAGMA busy_timeout = 5000", "PRAGMA cache_size = -16384",
+            "PRAGMA mmap_size = 268435456", "PRAGMA temp_store = MEMORY"};
+    private static final String SELECT_WORD = "SELECT meaning FROM meanings WHERE word = ? ORDER BY rowid";
+    // one row per meaning of each changed word, a single row with a null meaning for a removed word
+    private static final String SELECT_CHANGES = "SELECT c.seq, c.word, m.meaning FROM dictionary_changes c "
+            + "LEFT JOIN meanings m ON m.word = c.word WHERE c.seq > ? ORDER BY c.seq, m.rowid";
+
+    /**
+     * Read-only connection of the pool, with its prepared statements
+     */
+    private static class Reader {
+        final Connection connection;
+        final PreparedStatement selectStmt;
+        final PreparedStatement changesStmt;
+
+        Reader(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.selectStmt = connection.prepareStatement(SELECT_WORD);
+            this.changesStmt = connection.prepareStatement(SELECT_CHANGES);
+        }
+    }
+
+    // writes, guarded by its own monitor
+    private final Connection connection;
+    private final PreparedStatement insertStmt;
+    private final PreparedStatement deleteWordStmt;
+    private final PreparedStatement deleteMeaningStmt;
+    private final PreparedStatement replaceStmt;
+    private final List<Reader> allReaders = new ArrayList<>();
+    private final ArrayBlockingQueue<Reader> readers;
+    // last change sequence number applied to memory, guarded by this
+    private long highWater;
+    // warm snapshot and the absolute path of the dictionary file it must come from, null if none
+    private final Path snapshotPath;
+    private final String source;
+    // the last load read the warm snapshot, guarded by this
+    private boolean loadedFromSnapshot;
+
+    /**
+     * Connect to the dictionary database with the default number of readers
+     * @param dicFilePath dictionary file
+     * @throws IOException error while connecting to the dictionary file
+     */
+    SqliteStorage(String dicFilePath) throws IOException {
+        this(dicFilePath, DEFAULT_READERS);
+    }
+
+    /**
+     * Connect to the dictionary database
+     * @param dicFilePath dictionary file
+     * @param readerCount number of read-only connections, reads beyond that wait for one
+     * @throws IOException error while connecting to the dictionary file
+     */
+    SqliteStorage(String dicFilePath, int readerCount) throws IOException {
+        this(dicFilePath, readerCount, null);
+    }
+
+    /**
+     * Connect to the dictionary database, loading from a warm snapshot when there is one
+     * @param dicFilePath dictionary file
+     * @param readerCount number of read-only connections, reads beyond that wait for one
+     * @param snapshotPath warm snapshot read by the next load and written by {@link #writeSnapshot(Consumer)}, null if none
+     * @throws IOException error while connecting to the dictionary file
+     */
+    SqliteStorage(String dicFilePath, int readerCount, Path snapshotPath) throws IOException {
+        this.snapshotPath = snapshotPath;
+        this.source = Paths.get(dicFilePath).toAbsolutePath().normalize().toString();
+        readers = new ArrayBlockingQueue<>(readerCount);
+        Connection writer = null;
+        try {
+            writer = DriverManager.getConnection("jdbc:sqlite:" + dicFilePath);
+            connection = writer;
+            try (Statement stmt = connection.createStatement()) {
+                // stays set in the file, checkpoints move the log back into it
+                stmt.execute("PRAGMA journal_mode = WAL");
+                // a commit is on disk once acknowledged, as with the rollback journal
+                stmt.execute("PRAGMA synchronous = FULL");
+                for (String pragma : PRAGMAS) {
+                    stmt.execute(pragma);
+                }
+            }
+            migrate();
+            createViewTriggers();
+            createChangeTable();
+            insertStmt = connection.prepareStatement("INSERT INTO meanings (word, meaning) VALUES (?, ?)");
+            deleteWordStmt = connection.prepareStatement("DELETE FROM meanings WHERE word = ?");
+            deleteMeaningStmt = connection.prepareStatement("DELETE FROM meanings WHERE word = ? AND meaning = ?");
+            replaceStmt = connection.prepareStatement("UPDATE meanings SET meaning = ? WHERE word = ? AND meaning = ?");
+            for (int i = 0; i < readerCount; i++) {
+                Connection readConnection = DriverManager.getConnection("jdbc:sqlite:" + dicFilePath);
+                try (Statement stmt = readConnection.createStatement()) {
+                    stmt.execute("PRAGMA query_only = 1");
+                    for (String pragma : PRAGMAS) {
+                        stmt.execute(pragma);
+                    }
+                    allReaders.add(new Reader(readConnection));
+                } catch (SQLException e) {
+                    closeQuietly(readConnection);
+                    throw e;
+                }
+            }
+            readers.addAll(allReaders);
+        } catch (SQLException e) {
+            // statements are closed with their connection
+            for (Reader reader : allReaders) {
+                closeQuietly(reader.connection);
+            }
+            if (writer != null) {
+                closeQuietly(writer);
+            }
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Create the meanings table, moving the words of a newline-joined dictionary table into it
+     */
+    private void migrate() throws SQLException {
+        if (exists(connection, "table", "meanings")) {
+            return;
+        }
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE meanings (word TEXT NOT NULL, meaning TEXT NOT NULL, PRIMARY KEY (word, meaning))");
+            if (exists(connection, "table", "dictionary")) {
+                try (ResultSet rs = stmt.executeQuery("SELECT word, meaning FROM dictionary ORDER BY rowid");
+                     PreparedStatement insert = connection.prepareStatement("INSERT INTO meanings (word, meaning) VALUES (?, ?)")) {
+                    while (rs.next()) {
+                        insert.setString(1, rs.getString(1));
+                        for (String meaning : Meanings.parse(rs.getString(2)).asList()) {
+                            insert.setString(2, meaning);
+                            insert.addBatch();
+                        }
+                    }
+                    insert.executeBatch();
+                }
+                // triggers of the old table go with it
+                stmt.executeUpdate("DROP TABLE dictionary");
+            }
+            stmt.executeUpdate("CREATE VIEW dictionary AS SELECT word, group_concat(meaning, char(10)) AS meaning "
+                    + "FROM (SELECT word, meaning FROM meanings ORDER BY rowid) GROUP BY word");
+            connection.commit();
+        } catch (SQLException e) {
+            rollbackQuietly(e);
+            throw e;
+        } finally {
+            resetAutoCommit(connection);
+        }
+    }
+
+    private static boolean exists(Connection connection, String type, String name) throws SQLException {
+        try (PreparedStatement pstmt = connection.prepareStatement("SELECT 1 FROM sqlite_master WHERE type = ? AND name = ?")) {
+            pstmt.setString(1, type);
+            pstmt.setString(2, name);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Let other processes write the dictionary view as they wrote the old table, one newline-joined row per word
+     */
+    private void createViewTriggers() throws SQLException {
+        // json_quote escapes every control character, so char(1) stands for its escaped backslashes meanwhile
+        // and the remaining \n are the newlines, turned into the separators of a JSON array of the lines
+        String insertLines = "INSERT OR IGNORE INTO meanings (word, meaning) SELECT NEW.word, value FROM json_each('[' || "
+                + "replace(replace(replace(json_quote(NEW.meaning), '\\\\', char(1)), '\\n', '\",\"'), char(1), '\\\\') || ']') "
+                + "WHERE value <> '';";
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS dictionary_insert INSTEAD OF INSERT ON dictionary BEGIN "
+                    + "DELETE FROM meanings WHERE word = NEW.word; " + insertLines + " END");
+            stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS dictionary_update INSTEAD OF UPDATE ON dictionary BEGIN "
+                    + "DELETE FROM meanings WHERE word = OLD.word; " + insertLines + " END");
+            stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS dictionary_delete INSTEAD OF DELETE ON dictionary BEGIN "
+                    + "DELETE FROM meanings WHERE word = OLD.word; END");
+        }
+    }
+
+    private void createChangeTable() throws SQLException {
+        String nextSeq = "(SELECT COALESCE(MAX(seq), 0) + 1 FROM dictionary_changes)";
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE IF NOT EXISTS dictionary_changes (word TEXT NOT NULL PRIMARY KEY, seq INTEGER NOT NULL)");
+            stmt.executeUpdate("CREATE INDEX IF NOT EXISTS dictionary_changes_seq ON dictionary_changes (seq)");
+            stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS meanings_insert AFTER INSERT ON meanings BEGIN "
+                    + "INSERT OR REPLACE INTO dictionary_changes (word, seq) VALUES (NEW.word, " + nextSeq + "); END");
+            stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS meanings_update AFTER UPDATE ON meanings BEGIN "
+                    + "INSERT OR REPLACE INTO dictionary_changes (word, seq) VALUES (OLD.word, " + nextSeq + "); "
+                    + "INSERT OR REPLACE INTO dictionary_changes (word, seq) VALUES (NEW.word, " + nextSeq + "); END");
+            stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS meanings_delete AFTER DELETE ON meanings BEGIN "
+                    + "INSERT OR REPLACE INTO dictionary_changes (word, seq) VALUES (OLD.word, " + nextSeq + "); END");
+        }
+    }
+
+    /**
+     * Take a reader from the pool, waiting if they are all busy
+     * @return reader to give back with {@link #release(Reader)}
+     */
+    private Reader acquire() throws IOException {
+        try {
+            return readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private void release(Reader reader) {
+        readers.add(reader);
+    }
+
+    @Override
+    public synchronized void load(Map<String, Meanings> into) throws IOException {
+        long first;
+        long last;
+        Reader reader = acquire();
+        try (Statement stmt = reader.connection.createStatement()) {
+            // the ranges are read afterwards, each in its own transaction: a word they see differently
+            // has changed after the high-water mark, and is read again with the changes
+            readHighWater(stmt);
+            try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MIN(rowid), 0), COALESCE(MAX(rowid), -1) FROM meanings")) {
+                rs.next();
+                first = rs.getLong(1);
+                last = rs.getLong(2);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            release(reader);
+        }
+        loadedFromSnapshot = snapshotPath != null && readSnapshot(into);
+        if (loadedFromSnapshot) {
+            return;
+        }
+        int partitions = (int) Math.max(1, Math.min(allReaders.size() - 1, (last - first + 1) / MIN_PARTITION_ROWS));
+        if (partitions == 1) {
+            loadRange(first, last, into);
+            return;
+        }
+        ExecutorService loaders = Executors.newFixedThreadPool(partitions, r -> {
+            Thread thread = new Thread(r, "dictionary-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Map<String, Meanings>>> parts = new ArrayList<>();
+            long step = (last - first + partitions) / partitions;
+            for (int i = 0; i < partitions; i++) {
+                long from = first + i * step;
+                long to = Math.min(last, from + step - 1);
+                parts.add(loaders.submit(() -> {
+                    Map<String, Meanings> part = new HashMap<>();
+                    loadRange(from, to, part);
+                    return part;
+                }));
+            }
+            // merged in rowid order while the next ranges are read, a word spanning ranges keeps the order of its meanings
+            for (Future<Map<String, Meanings>> part : parts) {
+                for (Map.Entry<String, Meanings> entry : part.get().entrySet()) {
+                    Meanings loaded = into.get(entry.getKey());
+                    if (loaded != null) {
+                        for (String meaning : entry.getValue().asList()) {
+                            loaded = loaded.with(meaning);
+                        }
+                    }
+                    into.put(entry.getKey(), loaded != null ? loaded : entry.getValue());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            loaders.shutdownNow();
+        }
+    }
+
+    /**
+     * Read every word of a dictionary file without changing it in any way: no migration, journal mode nor
+     * triggers, as for the source of an import. Older files are read from their newline-joined table.
+     * @param dicFilePath dictionary file
+     * @param into map receiving the words and meanings
+     * @throws IOException the file does not exist, has no dictionary table or can not be read
+     */
+    static void loadReadOnly(String dicFilePath, Map<String, Meanings> into) throws IOException {
+        // connecting would create a missing file
+        if (!Files.exists(Paths.get(dicFilePath))) {
+            throw new IOException("Dictionary file " + dicFilePath + " does not exist");
+        }
+        try (Connection readConnection = DriverManager.getConnection("jdbc:sqlite:" + dicFilePath);
+             Statement stmt = readConnection.createStatement()) {
+            stmt.execute("PRAGMA query_only = 1");
+            if (exists(readConnection, "table", "meanings")) {
+                try (ResultSet rs = stmt.executeQuery("SELECT word, meaning FROM meanings ORDER BY rowid")) {
+                    while (rs.next()) {
+                        addMeaning(into, rs.getString(1), rs.getString(2));
+                    }
+                }
+            } else if (exists(readConnection, "table", "dictionary")) {
+                try (ResultSet rs = stmt.executeQuery("SELECT word, meaning FROM dictionary ORDER BY rowid")) {
+                    while (rs.next()) {
+                        into.put(rs.getString(1), Meanings.parse(rs.getString(2)));
+                    }
+                }
+            } else {
+                throw new IOException("Dictionary file " + dicFilePath + " has no dictionary table");
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Read the meanings with rowids in the given range
+     * @param from first rowid
+     * @param to last rowid, inclusive
+     * @param into map receiving the words and meanings
+     */
+    private void loadRange(long from, long to, Map<String, Meanings> into) throws IOException {
+        Reader reader = acquire();
+        try (PreparedStatement pstmt = reader.connection.prepareStatement(
+                "SELECT word, meaning FROM meanings WHERE rowid BETWEEN ? AND ? ORDER BY rowid")) {
+            pstmt.setLong(1, from);
+            pstmt.setLong(2, to);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    addMeaning(into, rs.getString(1), rs.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            release(reader);
+        }
+    }
+
+    /**
+     * Read the warm snapshot instead of the table, if it was taken from this file and no later than its last change
+     * @param into map receiving the words and meanings
+     * @return true if the words were read from the snapshot, otherwise the map is left empty
+     */
+    private boolean readSnapshot(Map<String, Meanings> into) {
+        long current = highWater;
+        try {
+            long snapshotHighWater = WarmSnapshot.read(snapshotPath, source, into);
+            if (snapshotHighWater >= 0 && snapshotHighWater <= current) {
+                highWater = snapshotHighWater;
+                return true;
+            }
+            if (snapshotHighWater < 0) {
+                return false;
+            }
+        } catch (IOException e) {
+            // damaged, read the table instead
+        }
+        // newer than the file, which must have been restored from a backup
+        into.clear();
+        try {
+            Files.deleteIfExists(snapshotPath);
+        } catch (IOException e) {
+            // read again and rejected on the next load
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the last load read the warm snapshot instead of the table
+     */
+    synchronized boolean isLoadedFromSnapshot() {
+        return loadedFromSnapshot;
+    }
+
+    /**
+     * Write the words in memory to the warm snapshot given at open, for the next start
+     * @param entries iterates over every word with its meanings, including every change written to the file
+     *                and every change read up to now
+     * @throws IOException error while writing the snapshot
+     */
+    synchronized void writeSnapshot(Consumer<BiConsumer<String, Meanings>> entries) throws IOException {
+        if (snapshotPath != null) {
+            WarmSnapshot.write(snapshotPath, source, highWater, entries);
+        }
+    }
+
+    @Override
+    public synchronized void loadWords(Collection<String> into) throws IOException {
+        Reader reader = acquire();
+        try {
+            // read the words and the high-water mark in one transaction, writes go on meanwhile
+            reader.connection.setAutoCommit(false);
+            try (Statement stmt = reader.connection.createStatement()) {
+                readHighWater(stmt);
+                // walks the primary key index, meanings are not read
+                try (ResultSet rs = stmt.executeQuery("SELECT DISTINCT word FROM meanings")) {
+                    while (rs.next()) {
+                        into.add(rs.getString(1));
+                    }
+                }
+            }
+            reader.connection.commit();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            resetAutoCommit(reader.connection);
+            release(reader);
+        }
+    }
+
+    private void readHighWater(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(seq), 0) FROM dictionary_changes")) {
+            rs.next();
+            highWater = rs.getLong(1);
+        }
+    }
+
+    @Override
+    public Meanings get(String word) throws IOException {
+        Meanings meanings = null;
+        Reader reader = acquire();
+        try {
+            reader.selectStmt.setString(1, word);
+            try (ResultSet rs = reader.selectStmt.executeQuery()) {
+                while (rs.next()) {
+                    meanings = meanings == null ? Meanings.of(rs.getString(1)) : meanings.with(rs.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            release(reader);
+        }
+        return meanings;
+    }
+
+    @Override
+    public synchronized Map<String, Meanings> readChanges() throws IOException {
+        Map<String, Meanings> changes = new LinkedHashMap<>();
+        Reader reader = acquire();
+        try {
+            reader.changesStmt.setLong(1, highWater);
+            try (ResultSet rs = reader.changesStmt.executeQuery()) {
+                while (rs.next()) {
+                    highWater = rs.getLong(1);
+                    if (rs.getString(3) == null) {
+                        changes.put(rs.getString(2), null);
+                    } else {
+                        addMeaning(changes, rs.getString(2), rs.getString(3));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        } finally {
+            release(reader);
+        }
+        return changes;
+    }
+
+    @Override
+    public void writeBatch(List<Mutation> batch) throws IOException {
+        synchronized (connection) {
+            try {
+                connection.setAutoCommit(false);
+                for (Mutation mutation : batch) {
+                    switch (mutation.type) {
+                        case ADD:
+                            insertStmt.setString(1, mutation.word);
+                            for (String meaning : mutation.meanings.asList()) {
+                                insertStmt.setString(2, meaning);
+                                insertStmt.executeUpdate();
+                            }
+                            break;
+                        case ADD_MEANING:
+                            insertStmt.setString(1, mutation.word);
+                            insertStmt.setString(2, mutation.meaning);
+                            insertStmt.executeUpdate();
+                            break;
+                        case REMOVE:
+                            deleteWordStmt.setString(1, mutation.word);
+                            deleteWordStmt.executeUpdate();
+                            break;
+                        case REMOVE_MEANING:
+                            deleteMeaningStmt.setString(1, mutation.word);
+                            deleteMeaningStmt.setString(2, mutation.meaning);
+                            deleteMeaningStmt.executeUpdate();
+                            break;
+                        case REPLACE_MEANING:
+                            // the row keeps its rowid, so the meaning keeps its position
+                            replaceStmt.setString(1, mutation.meaning);
+                            replaceStmt.setString(2, mutation.word);
+                            replaceStmt.setString(3, mutation.previousMeaning);
+                            replaceStmt.executeUpdate();
+                            break;
+                    }
+                }
+                // one commit (and fsync) for the whole batch
+                connection.commit();
+            } catch (SQLException e) {
+                rollbackQuietly(e);
+                throw new IOException(e);
+            } finally {
+                resetAutoCommit(connection);
+            }
+        }
+    }
+
+    /**
+     * Append a meaning read from the table to the meanings of its word
+     */
+    private static void addMeaning(Map<String, Meanings> into, String word, String meaning) {
+        Meanings meanings = into.get(word);
+        into.put(word, meanings == null ? Meanings.of(meaning) : meanings.with(meaning));
+    }
+
+    /**
+     * Roll back the write transaction after an error, keeping the error
+     * @param error error of the transaction
+     */
+    private void rollbackQuietly(SQLException error) {
+        try {
+            connection.rollback();
+        } catch (SQLException rollbackError) {
+            error.addSuppressed(rollbackError);
+        }
+    }
+
+    private static void resetAutoCommit(Connection connection) {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            // connection is broken, the next statement will fail as well
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * Close every connection, once no read is running. The last connection to close moves the log into the file.
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < allReaders.size(); i++) {
+            try {
+                closeQuietly(readers.take().connection);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        synchronized (connection) {
+            closeQuietly(connection);
+        }
+    }
+}
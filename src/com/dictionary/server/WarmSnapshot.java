@@ -0,0 +1,96 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Copy of the words in memory written on a clean shutdown, so the next start reads one memory-mapped file
+ * instead of querying the dictionary file. It names the dictionary file it was taken from and the last change
+ * sequence number of that file already in memory, the changes made afterwards are read from the file as usual.
+ * <p>
+ * Format: magic(8) version(4) highWater(8) sourceLength(4) source, then wordLength(4) word meaningLength(4) meaning
+ * per word, ended by a word length of -1 and the number of words(4). It is deleted once read, so a server
+ * stopped without writing a new one starts from the dictionary file.
+ */
+class WarmSnapshot {
+
+    private static final long MAGIC = 0x444943545741524dL; // "DICTWARM"
+    private static final int VERSION = 1;
+
+    private WarmSnapshot() {
+    }
+
+    /**
+     * Write the snapshot to a temporary file, renamed over the snapshot once complete
+     * @param path snapshot file
+     * @param source dictionary file the words come from
+     * @param highWater last change sequence number of the dictionary file included in the words
+     * @param entries iterates over every word with its meanings
+     * @throws IOException error while writing
+     */
+    static void write(Path path, String source, long highWater, Consumer<BiConsumer<String, Meanings>> entries) throws IOException {
+        Path temp = SnapshotFiles.writeTemp(path, writer -> {
+            byte[] sourceBytes = source.getBytes(StandardCharsets.UTF_8);
+            writer.reserve(24 + sourceBytes.length).putLong(MAGIC).putInt(VERSION).putLong(highWater)
+                    .putInt(sourceBytes.length).put(sourceBytes);
+            entries.accept(writer);
+            writer.reserve(8).putInt(-1).putInt(writer.count());
+        });
+        SnapshotFiles.replace(temp, path);
+    }
+
+    /**
+     * Read the snapshot if it was taken from the given dictionary file, then delete it
+     * @param path snapshot file
+     * @param source dictionary file the words should come from
+     * @param into map receiving the words and meanings, left empty if the snapshot is not used
+     * @return last change sequence number of the dictionary file included in the words, -1 if there is no
+     *         snapshot of that file
+     * @throws IOException the snapshot is damaged, words may already have been put into the map
+     */
+    static long read(Path path, String source, Map<String, Meanings> into) throws IOException {
+        if (!Files.exists(path)) {
+            return -1;
+        }
+        long highWater;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot file larger than 2 GB is not supported");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 24 || buffer.getLong() != MAGIC || buffer.getInt() != VERSION) {
+                return -1;
+            }
+            highWater = buffer.getLong();
+            int sourceLength = buffer.getInt();
+            if (sourceLength < 0 || sourceLength > buffer.remaining() || !SnapshotFiles.readString(buffer, sourceLength).equals(source)) {
+                return -1;
+            }
+            int count = 0;
+            int wordLength;
+            while ((wordLength = buffer.getInt()) >= 0) {
+                String word = SnapshotFiles.readString(buffer, wordLength);
+                into.put(word, Meanings.parse(SnapshotFiles.readString(buffer, buffer.getInt())));
+                count++;
+            }
+            if (buffer.getInt() != count) {
+                throw new IOException("Snapshot file " + path + " is damaged");
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Snapshot file " + path + " is damaged", e);
+        }
+        // taken once, the next start reads the dictionary file unless a new snapshot is written
+        Files.delete(path);
+        return highWater;
+    }
+}
@@ -0,0 +1,449 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of the meanings of the most used words, bounded by their estimated size in memory.
+ * <p>
+ * Eviction follows W-TinyLFU. New words enter a small LRU window. A word leaving the window only takes the place
+ * of the next victim of the main area if it was used more often, as estimated by a frequency sketch that also
+ * remembers words no longer cached, so a burst of one-off lookups can not flush the hot words as with a plain LRU.
+ * The main area is a segmented LRU: words used again while on probation move to the protected segment.
+ * <p>
+ * Hits only read a concurrent map and note the access in a lossy buffer, replayed on the eviction order under
+ * a lock once full or on the next write.
+ */
+class WordCache {
+
+    // share of the capacity for the window, and of the main area for the protected segment
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+    // power of two
+    private static final int READ_BUFFER = 128;
+    // node, map entry, Meanings and array of an entry, then header of a string
+    private static final int ENTRY_OVERHEAD = 120;
+    private static final int STRING_OVERHEAD = 48;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final int REMOVED = 3;
+
+    private static class Node {
+        final String word;
+        volatile Meanings meanings;
+        int weight;
+        int queue;
+        Node previous;
+        Node next;
+
+        Node(String word, Meanings meanings, int weight) {
+            this.word = word;
+            this.meanings = meanings;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Doubly linked list of nodes, least recently used first, with their total weight
+     */
+    private static class AccessOrder {
+        Node first;
+        Node last;
+        long weight;
+
+        void add(Node node) {
+            node.previous = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.previous == null) {
+                first = node.next;
+            } else {
+                node.previous.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.previous;
+            } else {
+                node.next.previous = node.previous;
+            }
+            node.previous = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if (node != last) {
+                remove(node);
+                add(node);
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4 bit counters estimating how often each word was used recently.
+     * Counters are halved once the number of increments reaches ten times the number of counted words,
+     * so the estimate follows changes of popularity.
+     */
+    private static class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+        private long[] table = new long[0];
+        private int additions;
+        private int sampleSize;
+
+        /**
+         * Grow the sketch for the given number of words, forgetting the counts so far
+         */
+        void ensureCapacity(int words) {
+            int length = Integer.highestOneBit(Math.max(64, Math.min(words, 1 << 26)) - 1) << 1;
+            if (length > table.length) {
+                table = new long[length];
+                sampleSize = 10 * length;
+                additions = 0;
+            }
+        }
+
+        int frequency(String word) {
+            int hash = word.hashCode();
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                int h = rehash(hash, i);
+                frequency = Math.min(frequency, (int) (table[(h >>> 4) & (table.length - 1)] >>> ((h & 15) << 2)) & 15);
+            }
+            return frequency;
+        }
+
+        void increment(String word) {
+            int hash = word.hashCode();
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int h = rehash(hash, i);
+                int index = (h >>> 4) & (table.length - 1);
+                int shift = (h & 15) << 2;
+                if (((table[index] >>> shift) & 15) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+
+        private static int rehash(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            return (int) (h + (h >>> 32));
+        }
+    }
+
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final ConcurrentHashMap<String, Node> map = new ConcurrentHashMap<>();
+    // eviction order, guarded by the lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AccessOrder window = new AccessOrder();
+    private final AccessOrder probation = new AccessOrder();
+    private final AccessOrder protectedOrder = new AccessOrder();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final AtomicReferenceArray<Node> readBuffer = new AtomicReferenceArray<>(READ_BUFFER);
+    private final AtomicLong reads = new AtomicLong();
+
+    // cache metrics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximum maximum estimated size of the cached meanings in bytes
+     */
+    WordCache(long maximum) {
+        this.maximum = maximum;
+        this.windowMaximum = (long) (maximum * WINDOW_SHARE);
+        this.protectedMaximum = (long) ((maximum - windowMaximum) * PROTECTED_SHARE);
+        sketch.ensureCapacity(1024);
+    }
+
+    /**
+     * Estimated size in memory of a cached word, counting one byte per character as for Latin-1 strings
+     * @param word word
+     * @param meanings meanings of the word
+     * @return estimated size in bytes
+     */
+    static int weigh(String word, Meanings meanings) {
+        int weight = ENTRY_OVERHEAD + STRING_OVERHEAD + word.length();
+        for (int i = 0; i < meanings.size(); i++) {
+            weight += STRING_OVERHEAD + meanings.get(i).length();
+        }
+        // newline-joined text sent to clients, built on the first hit
+        return weight + STRING_OVERHEAD + meanings.text().length();
+    }
+
+    /**
+     * @param word word to look up
+     * @return cached meanings, null if not cached
+     */
+    Meanings get(String word) {
+        Node node = map.get(word);
+        if (node == null) {
+            return null;
+        }
+        hits.increment();
+        recordRead(node);
+        return node.meanings;
+    }
+
+    /**
+     * Look up without counting a hit or an access
+     * @param word word to look up
+     * @return cached meanings, null if not cached
+     */
+    Meanings peek(String word) {
+        Node node = map.get(word);
+        return node == null ? null : node.meanings;
+    }
+
+    /**
+     * Count a word read from the dictionary file after a lookup missed the cache
+     * @param nanos time of the read
+     */
+    void recordLoad(long nanos) {
+        misses.increment();
+        loadNanos.add(nanos);
+    }
+
+    private void recordRead(Node node) {
+        int slot = (int) (reads.getAndIncrement() & (READ_BUFFER - 1));
+        readBuffer.lazySet(slot, node);
+        // whoever fills the buffer replays it, unless a write is busy and will do it
+        if (slot == READ_BUFFER - 1 && lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void drainReads() {
+        for (int i = 0; i < READ_BUFFER; i++) {
+            Node node = readBuffer.getAndSet(i, null);
+            if (node != null) {
+                onAccess(node);
+            }
+        }
+    }
+
+    private void onAccess(Node node) {
+        sketch.increment(node.word);
+        switch (node.queue) {
+            case WINDOW:
+                window.moveToLast(node);
+                break;
+            case PROBATION:
+                probation.remove(node);
+                node.queue = PROTECTED;
+                protectedOrder.add(node);
+                // the least recently used protected words go back on probation
+                while (protectedOrder.weight > protectedMaximum && protectedOrder.first != node) {
+                    Node demoted = protectedOrder.first;
+                    protectedOrder.remove(demoted);
+                    demoted.queue = PROBATION;
+                    probation.add(demoted);
+                }
+                break;
+            case PROTECTED:
+                protectedOrder.moveToLast(node);
+                break;
+            default:
+                // removed since the access
+        }
+    }
+
+    /**
+     * Cache the meanings of a word, or replace the cached ones
+     * @param word word
+     * @param meanings current meanings of the word
+     */
+    void put(String word, Meanings meanings) {
+        int weight = weigh(word, meanings);
+        lock.lock();
+        try {
+            drainReads();
+            Node node = map.get(word);
+            if (node != null) {
+                if (weight > maximum) {
+                    unlink(map.remove(word));
+                    return;
+                }
+                node.meanings = meanings;
+                orderOf(node).weight += weight - node.weight;
+                node.weight = weight;
+                onAccess(node);
+            } else {
+                if (weight > maximum) {
+                    return;
+                }
+                node = new Node(word, meanings, weight);
+                map.put(word, node);
+                sketch.ensureCapacity(map.size());
+                sketch.increment(word);
+                node.queue = WINDOW;
+                window.add(node);
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop the cached meanings of a word
+     * @param word word
+     */
+    void invalidate(String word) {
+        lock.lock();
+        try {
+            Node node = map.remove(word);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop every cached word, keeping the frequencies
+     */
+    void clear() {
+        lock.lock();
+        try {
+            drainReads();
+            for (Node node : map.values()) {
+                unlink(node);
+            }
+            map.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private AccessOrder orderOf(Node node) {
+        return node.queue == WINDOW ? window : node.queue == PROBATION ? probation : protectedOrder;
+    }
+
+    private void unlink(Node node) {
+        orderOf(node).remove(node);
+        node.queue = REMOVED;
+    }
+
+    /**
+     * Move the words beyond the window to the main area, each admitted only if used more often than the words
+     * it evicts, then evict from the main area until the cache fits
+     */
+    private void evict() {
+        long mainMaximum = maximum - windowMaximum;
+        while (window.weight > windowMaximum) {
+            Node candidate = window.first;
+            window.remove(candidate);
+            int frequency = sketch.frequency(candidate.word);
+            boolean admitted = true;
+            while (probation.weight + protectedOrder.weight + candidate.weight > mainMaximum) {
+                Node victim = probation.first != null ? probation.first : protectedOrder.first;
+                if (victim == null) {
+                    break;
+                }
+                if (frequency <= sketch.frequency(victim.word)) {
+                    admitted = false;
+                    break;
+                }
+                evict(victim);
+            }
+            if (admitted) {
+                candidate.queue = PROBATION;
+                probation.add(candidate);
+            } else {
+                candidate.queue = REMOVED;
+                map.remove(candidate.word);
+                evictions.increment();
+            }
+        }
+        // a word cached again with more meanings may have grown the main area
+        while (probation.weight + protectedOrder.weight > mainMaximum) {
+            evict(probation.first != null ? probation.first : protectedOrder.first);
+        }
+    }
+
+    private void evict(Node node) {
+        unlink(node);
+        map.remove(node.word);
+        evictions.increment();
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    double getHitRatio() {
+        long lookups = hits.sum() + misses.sum();
+        return lookups == 0 ? 0 : (double) hits.sum() / lookups;
+    }
+
+    double getAverageLoadMillis() {
+        long count = misses.sum();
+        return count == 0 ? 0 : loadNanos.sum() / 1e6 / count;
+    }
+
+    int getSize() {
+        return map.size();
+    }
+
+    long getWeightedSize() {
+        lock.lock();
+        try {
+            return window.weight + probation.weight + protectedOrder.weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * @return one line summary of the cache metrics
+     */
+    String metrics() {
+        return String.format("Meaning cache: %d hits, %d misses (hit ratio %.1f%%), %d evictions, %d words in %d of %d KB, load avg %.3f ms",
+                getHitCount(), getMissCount(), getHitRatio() * 100, getEvictionCount(), getSize(),
+                getWeightedSize() / 1024, maximum / 1024, getAverageLoadMillis());
+    }
+}
@@ -0,0 +1,443 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Trie over the words of the dictionary for prefix, wildcard and fuzzy lookups.
+ * Nodes are immutable: a change copies the path to the changed word and publishes a new root, so lookups never
+ * block and each lookup sees the words of one moment. Changes are serialized on the index.
+ */
+class WordIndex {
+
+    // wildcard patterns are matched with one bit per pattern position
+    static final int MAX_PATTERN_LENGTH = 63;
+
+    private static final Node EMPTY = new Node(new char[0], new Node[0], false);
+
+    /**
+     * Node of the trie, child keys sorted and kept apart from the child nodes so a lookup can pick children
+     * without loading every child node
+     */
+    private static class Node {
+        final char[] keys;
+        final Node[] children;
+        final boolean word;
+
+        Node(char[] keys, Node[] children, boolean word) {
+            this.keys = keys;
+            this.children = children;
+            this.word = word;
+        }
+
+        /**
+         * @return index of the key, or -(insertion point) - 1 if missing
+         */
+        int indexOf(char c) {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle] < c) {
+                    low = middle + 1;
+                } else if (keys[middle] > c) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+
+        Node child(char c) {
+            int index = indexOf(c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node withWord(boolean word) {
+            return new Node(keys, children, word);
+        }
+
+        Node withChild(int index, Node child) {
+            Node[] copy = children.clone();
+            copy[index] = child;
+            return new Node(keys, copy, word);
+        }
+
+        Node withNewChild(int index, char c, Node child) {
+            char[] largerKeys = new char[keys.length + 1];
+            Node[] larger = new Node[children.length + 1];
+            System.arraycopy(keys, 0, largerKeys, 0, index);
+            System.arraycopy(children, 0, larger, 0, index);
+            largerKeys[index] = c;
+            larger[index] = child;
+            System.arraycopy(keys, index, largerKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, larger, index + 1, children.length - index);
+            return new Node(largerKeys, larger, word);
+        }
+
+        Node withoutChild(int index) {
+            char[] smallerKeys = new char[keys.length - 1];
+            Node[] smaller = new Node[children.length - 1];
+            System.arraycopy(keys, 0, smallerKeys, 0, index);
+            System.arraycopy(children, 0, smaller, 0, index);
+            System.arraycopy(keys, index + 1, smallerKeys, index, keys.length - index - 1);
+            System.arraycopy(children, index + 1, smaller, index, children.length - index - 1);
+            return new Node(smallerKeys, smaller, word);
+        }
+    }
+
+    private volatile Node root;
+
+    WordIndex() {
+        this(EMPTY);
+    }
+
+    private WordIndex(Node root) {
+        this.root = root;
+    }
+
+    synchronized void add(String word) {
+        root = add(root, word, 0);
+    }
+
+    private static Node add(Node node, String word, int depth) {
+        if (depth == word.length()) {
+            return node.word ? node : node.withWord(true);
+        }
+        int index = node.indexOf(word.charAt(depth));
+        if (index < 0) {
+            return node.withNewChild(-index - 1, word.charAt(depth), add(EMPTY, word, depth + 1));
+        }
+        Node child = node.children[index];
+        Node changed = add(child, word, depth + 1);
+        return changed == child ? node : node.withChild(index, changed);
+    }
+
+    synchronized void remove(String word) {
+        Node changed = remove(root, word, 0);
+        root = changed == null ? EMPTY : changed;
+    }
+
+    /**
+     * @return changed node, null if the node no longer leads to any word
+     */
+    private static Node remove(Node node, String word, int depth) {
+        if (depth == word.length()) {
+            if (!node.word) {
+                return node;
+            }
+            return node.keys.length == 0 ? null : node.withWord(false);
+        }
+        int index = node.indexOf(word.charAt(depth));
+        if (index < 0) {
+            return node;
+        }
+        Node child = node.children[index];
+        Node changed = remove(child, word, depth + 1);
+        if (changed == child) {
+            return node;
+        }
+        if (changed != null) {
+            return node.withChild(index, changed);
+        }
+        return node.keys.length == 1 && !node.word ? null : node.withoutChild(index);
+    }
+
+    boolean contains(String word) {
+        Node node = root;
+        for (int i = 0; i < word.length() && node != null; i++) {
+            node = node.child(word.charAt(i));
+        }
+        return node != null && node.word;
+    }
+
+    /**
+     * Words starting with the prefix, in alphabetical order
+     * @param prefix prefix of the words
+     * @param limit maximum number of words
+     * @return matching words
+     */
+    List<String> prefix(String prefix, int limit) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        List<String> words = new ArrayList<>();
+        if (node != null) {
+            collect(node, new StringBuilder(prefix), words, limit);
+        }
+        return words;
+    }
+
+    private static void collect(Node node, StringBuilder word, List<String> words, int limit) {
+        if (node.word) {
+            words.add(word.toString());
+        }
+        for (int i = 0; i < node.keys.length && words.size() < limit; i++) {
+            word.append(node.keys[i]);
+            collect(node.children[i], word, words, limit);
+            word.setLength(word.length() - 1);
+        }
+    }
+
+    /**
+     * Words matching a pattern in which '?' stands for any character and '*' for any sequence of characters,
+     * in alphabetical order
+     * @param pattern wildcard pattern, at most {@link #MAX_PATTERN_LENGTH} characters
+     * @param limit maximum number of words
+     * @return matching words
+     */
+    List<String> wildcard(String pattern, int limit) {
+        if (pattern.length() > MAX_PATTERN_LENGTH) {
+            throw new IllegalArgumentException("Pattern longer than " + MAX_PATTERN_LENGTH + " characters");
+        }
+        List<String> words = new ArrayList<>();
+        match(root, closure(pattern, 1L), pattern, new StringBuilder(), words, limit);
+        return words;
+    }
+
+    /**
+     * Walk the trie with the set of pattern positions reachable so far, one bit per position,
+     * so a pattern with several '*' is matched without backtracking
+     */
+    private static void match(Node node, long positions, String pattern, StringBuilder word, List<String> words, int limit) {
+        if (node.word && (positions & 1L << pattern.length()) != 0) {
+            words.add(word.toString());
+        }
+        for (int i = 0; i < node.keys.length && words.size() < limit; i++) {
+            long next = step(pattern, positions, node.keys[i]);
+            if (next != 0) {
+                word.append(node.keys[i]);
+                match(node.children[i], next, pattern, word, words, limit);
+                word.setLength(word.length() - 1);
+            }
+        }
+    }
+
+    private static long step(String pattern, long positions, char c) {
+        long next = 0;
+        for (int i = 0; i < pattern.length(); i++) {
+            if ((positions & 1L << i) == 0) {
+                continue;
+            }
+            char p = pattern.charAt(i);
+            if (p == '*') {
+                // '*' consumes the character and stays
+                next |= 1L << i;
+            } else if (p == '?' || p == c) {
+                next |= 1L << i + 1;
+            }
+        }
+        return closure(pattern, next);
+    }
+
+    /**
+     * Add the positions after each reachable '*', as '*' may match no character
+     */
+    private static long closure(String pattern, long positions) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ((positions & 1L << i) != 0 && pattern.charAt(i) == '*') {
+                positions |= 1L << i + 1;
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * Words within a Levenshtein distance of the query, closest first then in alphabetical order
+     * @param query misspelled word
+     * @param maxDistance maximum number of inserted, removed or replaced characters
+     * @param prefixLength number of leading characters that must match exactly, a larger value prunes most of the trie
+     * @param limit maximum number of words
+     * @return matching words
+     */
+    List<String> fuzzy(String query, int maxDistance, int prefixLength, int limit) {
+        Fuzzy search = new Fuzzy(query, maxDistance, Math.min(prefixLength, query.length()));
+        search.descend(root, 0);
+        Collections.sort(search.matches);
+        List<String> words = new ArrayList<>(Math.min(limit, search.matches.size()));
+        for (int i = 0; i < search.matches.size() && i < limit; i++) {
+            words.add(search.matches.get(i).word);
+        }
+        return words;
+    }
+
+    /**
+     * Depth first walk computing one row of the distance table per trie depth.
+     * Distances are capped at maxDistance + 1 and only the cells at most maxDistance away from the diagonal
+     * are computed, the others can not be within the distance.
+     */
+    private static class Fuzzy {
+        final String query;
+        final int maxDistance;
+        final int prefixLength;
+        final int[][] rows;
+        final char[] word;
+        final List<Match> matches = new ArrayList<>();
+
+        Fuzzy(String query, int maxDistance, int prefixLength) {
+            this.query = query;
+            this.maxDistance = maxDistance;
+            this.prefixLength = prefixLength;
+            // deeper words are too long to match
+            rows = new int[query.length() + maxDistance + 1][query.length() + 1];
+            word = new char[rows.length];
+            for (int i = 0; i <= query.length(); i++) {
+                rows[0][i] = Math.min(i, maxDistance + 1);
+            }
+        }
+
+        /**
+         * Visit the children of a node whose row is at the given depth
+         */
+        void descend(Node node, int depth) {
+            if (depth + 1 >= rows.length || node.keys.length == 0) {
+                return;
+            }
+            if (depth < prefixLength) {
+                // only the child matching the fixed prefix
+                int index = node.indexOf(query.charAt(depth));
+                if (index >= 0) {
+                    visit(node.children[index], node.keys[index], depth + 1);
+                }
+                return;
+            }
+            if (mismatchBest(depth + 1) <= maxDistance) {
+                for (int i = 0; i < node.keys.length; i++) {
+                    visit(node.children[i], node.keys[i], depth + 1);
+                }
+                return;
+            }
+            // a child whose key is not in the query near the diagonal only gets farther, the others are looked up
+            int from = Math.max(1, depth + 1 - maxDistance);
+            int to = Math.min(query.length(), depth + 1 + maxDistance);
+            for (int i = from; i <= to; i++) {
+                char c = query.charAt(i - 1);
+                if (query.indexOf(c, from - 1) < i - 1) {
+                    // already visited for an earlier position
+                    continue;
+                }
+                int index = node.indexOf(c);
+                if (index >= 0) {
+                    visit(node.children[index], c, depth + 1);
+                }
+            }
+        }
+
+        /**
+         * @return best cell of the row at the depth for a key matching no character of the query
+         */
+        private int mismatchBest(int depth) {
+            int[] previous = rows[depth - 1];
+            int tooFar = maxDistance + 1;
+            int from = Math.max(1, depth - maxDistance);
+            int to = Math.min(query.length(), depth + maxDistance);
+            int cell = from == 1 ? Math.min(depth, tooFar) : tooFar;
+            int best = cell;
+            for (int i = from; i <= to; i++) {
+                cell = Math.min(previous[i - 1], Math.min(previous[i], cell)) + 1;
+                best = Math.min(best, cell);
+            }
+            return best;
+        }
+
+        private void visit(Node node, char key, int depth) {
+            int[] previous = rows[depth - 1];
+            int[] row = rows[depth];
+            int length = query.length();
+            int tooFar = maxDistance + 1;
+            int from = Math.max(1, depth - maxDistance);
+            int to = Math.min(length, depth + maxDistance);
+            row[from - 1] = from == 1 ? Math.min(depth, tooFar) : tooFar;
+            int best = row[from - 1];
+            for (int i = from; i <= to; i++) {
+                int replace = previous[i - 1] + (query.charAt(i - 1) == key ? 0 : 1);
+                row[i] = Math.min(tooFar, Math.min(replace, Math.min(previous[i] + 1, row[i - 1] + 1)));
+                best = Math.min(best, row[i]);
+            }
+            if (to < length) {
+                row[to + 1] = tooFar;
+            }
+            word[depth - 1] = key;
+            if (node.word && depth >= prefixLength && to == length && row[length] <= maxDistance) {
+                matches.add(new Match(new String(word, 0, depth), row[length]));
+            }
+            // no word below can get closer than the best cell of this row
+            if (best <= maxDistance) {
+                descend(node, depth);
+            }
+        }
+    }
+
+    private static class Match implements Comparable<Match> {
+        final String word;
+        final int distance;
+
+        Match(String word, int distance) {
+            this.word = word;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Match other) {
+            return distance != other.distance ? Integer.compare(distance, other.distance) : word.compareTo(other.word);
+        }
+    }
+
+    /**
+     * Build an index of the given words, not visible to lookups until returned.
+     * The trie is built bottom-up from the sorted words, so the nodes of a subtree are allocated next to each other
+     * and a lookup walking a subtree stays mostly in cache.
+     * @param words words to index
+     * @return new index
+     */
+    static WordIndex of(Collection<String> words) {
+        String[] sorted = words.toArray(new String[0]);
+        Arrays.sort(sorted);
+        return new WordIndex(build(sorted, 0, sorted.length, 0));
+    }
+
+    /**
+     * @param sorted sorted words
+     * @param from first word sharing the prefix of the node
+     * @param to end of the words sharing the prefix of the node
+     * @param depth length of the prefix
+     * @return node of the prefix
+     */
+    private static Node build(String[] sorted, int from, int to, int depth) {
+        boolean word = false;
+        // the prefix itself sorts first
+        if (from < to && sorted[from].length() == depth) {
+            word = true;
+            from++;
+        }
+        if (from == to) {
+            return word ? EMPTY.withWord(true) : EMPTY;
+        }
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from || sorted[i].charAt(depth) != sorted[i - 1].charAt(depth)) {
+                count++;
+            }
+        }
+        char[] keys = new char[count];
+        Node[] children = new Node[count];
+        int start = from;
+        for (int k = 0; k < count; k++) {
+            char c = sorted[start].charAt(depth);
+            int end = start + 1;
+            while (end < to && sorted[end].charAt(depth) == c) {
+                end++;
+            }
+            keys[k] = c;
+            children[k] = build(sorted, start, end, depth + 1);
+            start = end;
+        }
+        return new Node(keys, children, word);
+    }
+}
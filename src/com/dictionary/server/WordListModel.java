@@ -0,0 +1,68 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Sorted words of the dictionary for the word list.
+ * Only words are kept here, meanings are looked up from the dictionary when a visible row is rendered.
+ * Must be used on the EDT.
+ */
+class WordListModel extends AbstractListModel<String> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<String> words = new ArrayList<>();
+
+    @Override
+    public int getSize() {
+        return words.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return words.get(index);
+    }
+
+    /**
+     * Replace all words
+     * @param dictionary dictionary to list
+     */
+    void reset(DictionaryStore dictionary) {
+        int oldSize = words.size();
+        words.clear();
+        if (oldSize > 0) {
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        dictionary.forEachWord(words::add);
+        Collections.sort(words);
+        if (!words.isEmpty()) {
+            fireIntervalAdded(this, 0, words.size() - 1);
+        }
+    }
+
+    /**
+     * Insert, remove or repaint only the changed words
+     * @param changes changed words with their new meanings, null for removed words
+     */
+    void apply(Map<String, Meanings> changes) {
+        changes.forEach((word, meaning) -> {
+            int index = Collections.binarySearch(words, word);
+            if (meaning == null) {
+                if (index >= 0) {
+                    words.remove(index);
+                    fireIntervalRemoved(this, index, index);
+                }
+            } else if (index < 0) {
+                int insertAt = -index - 1;
+                words.add(insertAt, word);
+                fireIntervalAdded(this, insertAt, insertAt);
+            } else {
+                fireContentsChanged(this, index, index);
+            }
+        });
+    }
+}
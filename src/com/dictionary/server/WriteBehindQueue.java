@@ -0,0 +1,278 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind stage between the in-memory dictionary and the dictionary file.
+ * Mutations are queued in order and a single flusher thread writes everything queued so far as one
+ * transaction (group commit), so concurrent writers share one commit instead of paying one each.
+ * Words can be read through the queue, seeing the changes queued but not yet written.
+ * The queue itself is only in memory: a change acknowledged before it is written is lost if the server stops
+ * abruptly, so only acknowledging after {@link #submit(Mutation)} completes is durable.
+ */
+class WriteBehindQueue {
+
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static class Pending {
+        // empty for a flush marker
+        final List<Mutation> mutations;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        Pending(List<Mutation> mutations) {
+            this.mutations = mutations;
+        }
+    }
+
+    private final DictionaryStorage storage;
+    private final RequestLog log;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    // last queued mutation of each word until it is written, or its write failed
+    private final ConcurrentHashMap<String, Mutation> unwritten = new ConcurrentHashMap<>();
+
+    // flush metrics
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder flushedMutations = new LongAdder();
+    private final LongAdder flushNanos = new LongAdder();
+    private final LongAdder failedFlushes = new LongAdder();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private volatile int lastBatchSize;
+    // statements on the dictionary file: one write transaction per flush, one read per word not in memory
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+
+    /**
+     * @param storage dictionary file
+     * @param log server log for write errors and flush metrics
+     * @param maxBatch maximum number of mutations per transaction
+     */
+    WriteBehindQueue(DictionaryStorage storage, RequestLog log, int maxBatch) {
+        this.storage = storage;
+        this.log = log;
+        this.maxBatch = maxBatch;
+        Thread flusher = new Thread(this::flushLoop, "dictionary-writer");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queue a mutation, waits only if the queue is full
+     * @param mutation mutation to persist
+     * @return future completed once the mutation is committed to the dictionary file
+     */
+    CompletableFuture<Void> submit(Mutation mutation) {
+        Pending pending = new Pending(Collections.singletonList(mutation));
+        enqueue(pending);
+        return pending.written;
+    }
+
+    /**
+     * Queue mutations to be written in order in the same transaction, however many they are
+     * @param mutations mutations to persist
+     * @return future completed once all the mutations are committed to the dictionary file
+     */
+    CompletableFuture<Void> submitAll(List<Mutation> mutations) {
+        Pending pending = new Pending(mutations);
+        enqueue(pending);
+        return pending.written;
+    }
+
+    /**
+     * Wait until every mutation queued before this call has been written
+     * @throws IOException error while writing them
+     */
+    void awaitFlushed() throws IOException {
+        Pending marker = new Pending(Collections.emptyList());
+        enqueue(marker);
+        await(marker.written);
+    }
+
+    /**
+     * Read the meanings of a word from the dictionary file, or from the last queued change of the word if not written yet
+     * @param word word to read
+     * @return meanings of the word, null if not found or removed
+     * @throws IOException error while reading the dictionary file
+     */
+    Meanings read(String word) throws IOException {
+        Mutation queued = unwritten.get(word);
+        if (queued != null) {
+            return queued.meanings;
+        }
+        long start = System.nanoTime();
+        try {
+            return storage.get(word);
+        } finally {
+            readLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Wait for a submitted mutation
+     * @param written future returned by {@link #submit(Mutation)}
+     * @throws IOException error while writing the mutation
+     */
+    static void await(CompletableFuture<Void> written) throws IOException {
+        try {
+            written.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private void enqueue(Pending pending) {
+        for (Mutation mutation : pending.mutations) {
+            unwritten.put(mutation.word, mutation);
+        }
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            forget(pending.mutations);
+            pending.written.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Stop reading mutations through the queue once written or failed, unless the word was changed again since
+     */
+    private void forget(List<Mutation> mutations) {
+        for (Mutation mutation : mutations) {
+            unwritten.remove(mutation.word, mutation);
+        }
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        List<Mutation> mutations = new ArrayList<>(maxBatch);
+        long lastReport = System.nanoTime();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, maxBatch - 1);
+            for (Pending pending : batch) {
+                mutations.addAll(pending.mutations);
+            }
+            IOException error = null;
+            if (!mutations.isEmpty()) {
+                long start = System.nanoTime();
+                try {
+                    storage.writeBatch(mutations);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    // a bug in the storage must not stop the flusher, or every later write would wait forever
+                    error = new IOException(e);
+                }
+                record(mutations.size(), System.nanoTime() - start, error == null);
+                // before completing, so a failed change undone in memory is read back as in the file
+                forget(mutations);
+            }
+            for (Pending pending : batch) {
+                if (error == null) {
+                    pending.written.complete(null);
+                } else {
+                    pending.written.completeExceptionally(error);
+                }
+            }
+            if (error != null) {
+                log.error("Error while writing " + mutations.size() + " changes to dictionary file! " + error.getMessage());
+            }
+            batch.clear();
+            mutations.clear();
+
+            if (System.nanoTime() - lastReport > REPORT_INTERVAL_NANOS && flushes.sum() > 0) {
+                log.info(metrics());
+                lastReport = System.nanoTime();
+            }
+        }
+    }
+
+    private void record(int batchSize, long nanos, boolean success) {
+        writeLatency.record(nanos);
+        if (!success) {
+            failedFlushes.increment();
+            return;
+        }
+        flushes.increment();
+        flushedMutations.add(batchSize);
+        flushNanos.add(nanos);
+        lastBatchSize = batchSize;
+        maxBatchSize.accumulateAndGet(batchSize, Math::max);
+        maxFlushNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    LatencyHistogram getReadLatency() {
+        return readLatency;
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    long getFlushCount() {
+        return flushes.sum();
+    }
+
+    long getFailedFlushCount() {
+        return failedFlushes.sum();
+    }
+
+    long getFlushedMutations() {
+        return flushedMutations.sum();
+    }
+
+    int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    double getAverageBatchSize() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : (double) flushedMutations.sum() / count;
+    }
+
+    double getAverageFlushMillis() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : flushNanos.sum() / 1e6 / count;
+    }
+
+    double getMaxFlushMillis() {
+        return maxFlushNanos.get() / 1e6;
+    }
+
+    /**
+     * @return one line summary of the flush metrics
+     */
+    String metrics() {
+        return String.format("Dictionary file: %d changes in %d transactions (%d failed), batch avg %.1f max %d, flush avg %.2f ms max %.2f ms, queued %d",
+                getFlushedMutations(), getFlushCount(), getFailedFlushCount(), getAverageBatchSize(), getMaxBatchSize(),
+                getAverageFlushMillis(), getMaxFlushMillis(), getQueueDepth());
+    }
+}
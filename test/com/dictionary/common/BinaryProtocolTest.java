@@ -0,0 +1,89 @@
+// Xinyu Wang 1460767
+package com.dictionary.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Frames of the binary protocol decode back to what was encoded, and malformed frames are rejected
+ */
+public class BinaryProtocolTest {
+
+    /**
+     * @return frame positioned after its length prefix, as the engines pass it to the decoder
+     */
+    private static ByteBuffer body(ByteBuffer frame) {
+        int length = frame.getInt();
+        assertEquals(frame.remaining(), length);
+        return frame;
+    }
+
+    @Test
+    public void requestRoundTrip() {
+        ByteBuffer frame = BinaryProtocol.encodeRequest(BinaryProtocol.OP_ADD, 42, "café", "a drink\nan eatery");
+        BinaryProtocol.Request request = BinaryProtocol.decodeRequest(body(frame));
+        assertEquals(BinaryProtocol.OP_ADD, request.opcode);
+        assertEquals("add", request.mode());
+        assertEquals(42, request.id);
+        assertEquals("café", request.word);
+        assertEquals("a drink\nan eatery", request.meaning);
+        assertFalse(frame.hasRemaining());
+    }
+
+    @Test
+    public void nullAndEmptyStrings() {
+        BinaryProtocol.Request request = BinaryProtocol.decodeRequest(body(
+                BinaryProtocol.encodeRequest(BinaryProtocol.OP_SEARCH, 0, "", null)));
+        assertEquals("", request.word);
+        assertNull(request.meaning);
+    }
+
+    @Test
+    public void responseRoundTrip() {
+        ByteBuffer frame = BinaryProtocol.encodeResponse(BinaryProtocol.STATUS_LOADING, 7, BinaryProtocol.TEXT_MESSAGE, "字典");
+        BinaryProtocol.Response response = BinaryProtocol.decodeResponse(body(frame));
+        assertEquals(BinaryProtocol.STATUS_LOADING, response.status);
+        assertEquals("loading", response.statusName());
+        assertEquals(7, response.id);
+        assertEquals(BinaryProtocol.TEXT_MESSAGE, response.textKind);
+        assertEquals("字典", response.text);
+    }
+
+    @Test
+    public void directBuffer() {
+        ByteBuffer heap = BinaryProtocol.encodeRequest(BinaryProtocol.OP_UPDATE, 1, "word", "meaning");
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.remaining());
+        direct.put(heap).flip();
+        BinaryProtocol.Request request = BinaryProtocol.decodeRequest(body(direct));
+        assertEquals("word", request.word);
+        assertEquals("meaning", request.meaning);
+    }
+
+    @Test
+    public void modesAndStatuses() {
+        for (String mode : new String[]{"search", "add", "remove", "update"}) {
+            assertEquals(mode, new BinaryProtocol.Request(BinaryProtocol.opcode(mode), 0, null, null).mode());
+        }
+        assertEquals(0, BinaryProtocol.opcode("batch"));
+        assertEquals(BinaryProtocol.STATUS_BUSY, BinaryProtocol.statusCode("busy"));
+        assertEquals(BinaryProtocol.STATUS_ERROR, BinaryProtocol.statusCode("unknown"));
+        assertEquals("error", BinaryProtocol.statusName((byte) 99));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stringLongerThanFrame() {
+        ByteBuffer frame = ByteBuffer.allocate(13);
+        frame.put(BinaryProtocol.OP_SEARCH).putInt(0).putInt(100).putInt(-1).flip();
+        BinaryProtocol.decodeRequest(frame);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedFrame() {
+        ByteBuffer frame = BinaryProtocol.encodeResponse(BinaryProtocol.STATUS_SUCCESS, 1, BinaryProtocol.TEXT_MEANING, "meaning");
+        body(frame).limit(frame.limit() - 3);
+        BinaryProtocol.decodeResponse(frame);
+    }
+}
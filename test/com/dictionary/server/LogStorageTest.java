@@ -0,0 +1,135 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replay of the log store after a restart, and recovery from a write torn by a crash
+ */
+public class LogStorageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RequestLog log = new RequestLog(16);
+    private Path dir;
+    private Path wal;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot().toPath();
+        wal = dir.resolve("wal.log");
+    }
+
+    private LogStorage open(Map<String, Meanings> into) throws IOException {
+        LogStorage storage = new LogStorage(dir.toString(), log);
+        storage.load(into);
+        return storage;
+    }
+
+    @Test
+    public void replayAfterRestart() throws IOException {
+        LogStorage storage = open(new HashMap<>());
+        storage.writeBatch(Arrays.asList(
+                Mutation.add("apple", Meanings.of("a fruit")),
+                Mutation.add("pear", Meanings.of("another fruit")),
+                Mutation.add("café", Meanings.of(Arrays.asList("a drink", "an eatery")))));
+        storage.writeBatch(Arrays.asList(
+                Mutation.remove("pear"),
+                Mutation.addMeaning("apple", Meanings.of("a fruit"), "a company")));
+        storage.close();
+
+        Map<String, Meanings> loaded = new HashMap<>();
+        open(loaded).close();
+        assertEquals(2, loaded.size());
+        assertEquals(Arrays.asList("a fruit", "a company"), loaded.get("apple").asList());
+        assertEquals(Arrays.asList("a drink", "an eatery"), loaded.get("café").asList());
+        assertNull(loaded.get("pear"));
+    }
+
+    @Test
+    public void tornWriteIsTruncated() throws IOException {
+        LogStorage storage = open(new HashMap<>());
+        storage.writeBatch(Arrays.asList(Mutation.add("apple", Meanings.of("a fruit"))));
+        storage.close();
+        long validLength = Files.size(wal);
+
+        // the first bytes of a record, as left by a crash in the middle of a write
+        Files.write(wal, new byte[]{1, 0, 0, 0, 5, 'p', 'e'}, StandardOpenOption.APPEND);
+        Map<String, Meanings> loaded = new HashMap<>();
+        storage = open(loaded);
+        assertEquals(1, loaded.size());
+        assertEquals(validLength, Files.size(wal));
+
+        // the next write follows the last valid record
+        storage.writeBatch(Arrays.asList(Mutation.add("pear", Meanings.of("another fruit"))));
+        storage.close();
+        loaded = new HashMap<>();
+        open(loaded).close();
+        assertEquals(Meanings.of("a fruit"), loaded.get("apple"));
+        assertEquals(Meanings.of("another fruit"), loaded.get("pear"));
+    }
+
+    @Test
+    public void recordWithBadChecksumIsDropped() throws IOException {
+        LogStorage storage = open(new HashMap<>());
+        storage.writeBatch(Arrays.asList(Mutation.add("apple", Meanings.of("a fruit"))));
+        long firstLength = Files.size(wal);
+        storage.writeBatch(Arrays.asList(Mutation.add("pear", Meanings.of("another fruit"))));
+        storage.close();
+
+        // flip a byte of the meaning of the last record
+        byte[] bytes = Files.readAllBytes(wal);
+        bytes[bytes.length - 6] ^= 1;
+        Files.write(wal, bytes);
+        Map<String, Meanings> loaded = new HashMap<>();
+        open(loaded).close();
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.containsKey("apple"));
+        assertEquals(firstLength, Files.size(wal));
+    }
+
+    @Test
+    public void snapshotThenLog() throws IOException {
+        Map<String, Meanings> entries = new HashMap<>();
+        entries.put("apple", Meanings.of("a fruit"));
+        entries.put("pear", Meanings.of("another fruit"));
+        Path snapshot = dir.resolve("snapshot.dat");
+        SnapshotFiles.replace(LogStorage.writeSnapshot(snapshot, entries), snapshot);
+        LogStorage storage = open(new HashMap<>());
+        storage.writeBatch(Arrays.asList(Mutation.remove("pear")));
+        storage.close();
+
+        Map<String, Meanings> loaded = new HashMap<>();
+        open(loaded).close();
+        assertEquals(1, loaded.size());
+        assertEquals(Meanings.of("a fruit"), loaded.get("apple"));
+    }
+
+    @Test(expected = IOException.class)
+    public void damagedSnapshotIsRejected() throws IOException {
+        Map<String, Meanings> entries = new HashMap<>();
+        entries.put("apple", Meanings.of("a fruit"));
+        Path snapshot = dir.resolve("snapshot.dat");
+        SnapshotFiles.replace(LogStorage.writeSnapshot(snapshot, entries), snapshot);
+        // a word count larger than the file holds
+        byte[] bytes = Files.readAllBytes(snapshot);
+        ByteBuffer.wrap(bytes).putInt(12, 1000);
+        Files.write(snapshot, bytes);
+        open(new HashMap<>());
+    }
+}
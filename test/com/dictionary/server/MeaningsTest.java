@@ -0,0 +1,122 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Changes of the meanings of a word, below and above the size at which versions share their array
+ */
+public class MeaningsTest {
+
+    private static Meanings numbered(int count) {
+        List<String> meanings = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            meanings.add("meaning " + i);
+        }
+        return Meanings.of(meanings);
+    }
+
+    @Test
+    public void parseAndText() {
+        Meanings meanings = Meanings.parse("first\n\nsecond\nfirst\n");
+        assertEquals(Arrays.asList("first", "second"), meanings.asList());
+        assertEquals("first\nsecond", meanings.text());
+        // a text of newlines only is kept as it is
+        assertEquals(Arrays.asList("\n"), Meanings.parse("\n").asList());
+    }
+
+    @Test
+    public void add() {
+        Meanings meanings = Meanings.of("first").with("second");
+        assertEquals(Arrays.asList("first", "second"), meanings.asList());
+        assertTrue(meanings.contains("second"));
+        assertFalse(meanings.contains("third"));
+    }
+
+    @Test
+    public void remove() {
+        Meanings meanings = Meanings.of(Arrays.asList("a", "b", "c"));
+        assertEquals(Arrays.asList("a", "c"), meanings.without("b").asList());
+        assertSame(meanings, meanings.without("d"));
+        assertEquals(Arrays.asList("a", "b", "c"), meanings.asList());
+    }
+
+    @Test
+    public void replace() {
+        Meanings meanings = Meanings.of(Arrays.asList("a", "b", "c"));
+        Meanings replaced = meanings.replace("b", "x");
+        assertEquals(Arrays.asList("a", "x", "c"), replaced.asList());
+        assertTrue(replaced.contains("x"));
+        assertFalse(replaced.contains("b"));
+        assertSame(meanings, meanings.replace("d", "x"));
+    }
+
+    @Test
+    public void appendsDoNotChangeOlderVersions() {
+        Meanings older = numbered(10);
+        Meanings newer = older.with("appended");
+        assertEquals(11, newer.size());
+        assertEquals("appended", newer.get(10));
+        assertTrue(newer.contains("appended"));
+        // the older version shares the array but not the appended meaning
+        assertEquals(10, older.size());
+        assertFalse(older.contains("appended"));
+        assertEquals(numbered(10), older);
+        assertFalse(older.text().contains("appended"));
+    }
+
+    @Test
+    public void appendToOlderVersionCopies() {
+        Meanings older = numbered(10);
+        Meanings first = older.with("first");
+        Meanings second = older.with("second");
+        assertEquals("first", first.get(10));
+        assertEquals("second", second.get(10));
+        assertTrue(first.contains("first"));
+        assertFalse(first.contains("second"));
+        assertTrue(second.contains("second"));
+        assertFalse(second.contains("first"));
+        // the latest of the first chain can still append in place
+        assertEquals(Arrays.asList("first", "third"), first.with("third").asList().subList(10, 12));
+    }
+
+    @Test
+    public void manyAppends() {
+        Meanings meanings = Meanings.of("meaning 0");
+        for (int i = 1; i < 1000; i++) {
+            assertFalse(meanings.contains("meaning " + i));
+            meanings = meanings.with("meaning " + i);
+        }
+        assertEquals(numbered(1000), meanings);
+        assertEquals(numbered(1000).hashCode(), meanings.hashCode());
+        assertTrue(meanings.contains("meaning 999"));
+    }
+
+    @Test
+    public void removeAndReplaceAboveThreshold() {
+        Meanings meanings = numbered(20).with("extra");
+        Meanings removed = meanings.without("meaning 5");
+        assertEquals(20, removed.size());
+        assertFalse(removed.contains("meaning 5"));
+        assertTrue(removed.contains("extra"));
+        Meanings replaced = removed.replace("extra", "meaning 5");
+        assertTrue(replaced.contains("meaning 5"));
+        assertFalse(replaced.contains("extra"));
+        // the versions they came from are unchanged
+        assertTrue(meanings.contains("meaning 5"));
+        assertEquals(21, meanings.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getPastSize() {
+        Meanings older = numbered(10);
+        older.with("appended");
+        older.get(10);
+    }
+}
@@ -0,0 +1,159 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import com.dictionary.common.BinaryProtocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests of the selector engine framed the same however the bytes are split between reads
+ */
+public class SelectorEngineTest {
+
+    /**
+     * Answers every JSON line with itself, and every binary request with its word
+     */
+    private static class EchoHandler implements RequestHandler {
+        @Override
+        public boolean onConnect(ClientSession session) {
+            return true;
+        }
+
+        @Override
+        public void onAcceptError(IOException e) {
+        }
+
+        @Override
+        public ByteBuffer handle(String request, ClientSession session) {
+            return ByteBuffer.wrap((request + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public ByteBuffer handleBinary(BinaryProtocol.Request request, ClientSession session) {
+            return BinaryProtocol.encodeResponse(BinaryProtocol.STATUS_SUCCESS, request.id, BinaryProtocol.TEXT_MEANING, request.word);
+        }
+
+        @Override
+        public void onDisconnect(ClientSession session) {
+        }
+    }
+
+    private Socket socket;
+    private OutputStream out;
+
+    @Before
+    public void setUp() throws IOException {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        SelectorEngine engine = new SelectorEngine(new EchoHandler(), 2);
+        engine.bind(port);
+        Thread selector = new Thread(() -> {
+            try {
+                engine.serve();
+            } catch (IOException e) {
+                // ends with the test
+            }
+        }, "dictionary-selector");
+        selector.setDaemon(true);
+        selector.start();
+        socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(10000);
+        out = socket.getOutputStream();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Send the bytes in pieces of the given sizes, pausing so each piece is read on its own
+     */
+    private void sendInPieces(byte[] bytes, int... sizes) throws Exception {
+        int offset = 0;
+        for (int size : sizes) {
+            out.write(bytes, offset, size);
+            out.flush();
+            offset += size;
+            Thread.sleep(20);
+        }
+        out.write(bytes, offset, bytes.length - offset);
+        out.flush();
+    }
+
+    private BufferedReader reader() throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Test(timeout = 10000)
+    public void lineSplitAcrossReads() throws Exception {
+        String request = "{\"mode\":\"search\",\"word\":\"café\"}";
+        byte[] bytes = (request + "\n").getBytes(StandardCharsets.UTF_8);
+        // the second piece ends inside the two bytes of é
+        int inside = request.indexOf('é') + 1;
+        sendInPieces(bytes, 1, inside - 1, 1, 1);
+        assertEquals(request, reader().readLine());
+    }
+
+    @Test(timeout = 10000)
+    public void manyLinesInOneRead() throws Exception {
+        out.write("{\"n\":1}\n{\"n\":2}\r\n{\"n\":3}\n{\"n\":".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        BufferedReader reader = reader();
+        assertEquals("{\"n\":1}", reader.readLine());
+        assertEquals("{\"n\":2}", reader.readLine());
+        assertEquals("{\"n\":3}", reader.readLine());
+        // the rest of the last line arrives with the next one
+        out.write("4}\n{\"n\":5}\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        assertEquals("{\"n\":4}", reader.readLine());
+        assertEquals("{\"n\":5}", reader.readLine());
+    }
+
+    @Test(timeout = 10000)
+    public void lineLongerThanTheReadBuffer() throws Exception {
+        char[] word = new char[300_000];
+        Arrays.fill(word, 'x');
+        String request = "{\"mode\":\"search\",\"word\":\"" + new String(word) + "\"}";
+        byte[] bytes = (request + "\n").getBytes(StandardCharsets.UTF_8);
+        sendInPieces(bytes, 5000, 100_000, 1, 150_000);
+        assertEquals(request, reader().readLine());
+    }
+
+    @Test(timeout = 10000)
+    public void binaryFramesSplitAcrossReads() throws Exception {
+        ByteBuffer first = BinaryProtocol.encodeRequest(BinaryProtocol.OP_SEARCH, 1, "apple", null);
+        ByteBuffer second = BinaryProtocol.encodeRequest(BinaryProtocol.OP_SEARCH, 2, "pear", null);
+        ByteBuffer bytes = ByteBuffer.allocate(BinaryProtocol.HELLO.length + first.remaining() + second.remaining());
+        bytes.put(BinaryProtocol.HELLO).put(first).put(second);
+        // hello split, then the length prefix of the first frame split
+        sendInPieces(bytes.array(), 2, BinaryProtocol.HELLO.length - 2 + 2, 5);
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        byte[] hello = new byte[BinaryProtocol.HELLO.length];
+        in.readFully(hello);
+        assertArrayEquals(BinaryProtocol.HELLO, hello);
+        for (String expected : new String[]{"apple", "pear"}) {
+            byte[] frame = new byte[in.readInt()];
+            in.readFully(frame);
+            assertEquals(expected, BinaryProtocol.decodeResponse(ByteBuffer.wrap(frame)).text);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+// Xinyu Wang 1460767
+package com.dictionary.server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Failed writes of the write-behind queue, and the changes in memory undone when a write acknowledged after commit fails
+ */
+public class WriteBehindQueueTest {
+
+    /**
+     * Dictionary file in memory, failing writes on demand
+     */
+    private static class FakeStorage implements DictionaryStorage {
+        final List<Mutation> written = Collections.synchronizedList(new ArrayList<>());
+        volatile Exception failure;
+        // writes wait for it while set
+        volatile CountDownLatch gate;
+
+        @Override
+        public void load(Map<String, Meanings> into) {
+        }
+
+        @Override
+        public void loadWords(Collection<String> into) {
+        }
+
+        @Override
+        public Meanings get(String word) {
+            return null;
+        }
+
+        @Override
+        public Map<String, Meanings> readChanges() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void writeBatch(List<Mutation> batch) throws IOException {
+            CountDownLatch waitFor = gate;
+            if (waitFor != null) {
+                try {
+                    waitFor.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            Exception error = failure;
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            written.addAll(batch);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final FakeStorage storage = new FakeStorage();
+    private final RequestLog log = new RequestLog(16);
+    private final WriteBehindQueue writer = new WriteBehindQueue(storage, log, 16);
+
+    private static void assertFails(CompletableFuture<Void> written) {
+        try {
+            WriteBehindQueue.await(written);
+            fail("write should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void writesInOrder() throws IOException {
+        writer.submit(Mutation.add("apple", Meanings.of("a fruit")));
+        writer.submitAll(Arrays.asList(Mutation.add("pear", Meanings.of("another fruit")), Mutation.remove("apple")));
+        writer.awaitFlushed();
+        assertEquals(Arrays.asList("apple", "pear", "apple"), Arrays.asList(
+                storage.written.get(0).word, storage.written.get(1).word, storage.written.get(2).word));
+    }
+
+    @Test(timeout = 10000)
+    public void ioErrorFailsTheWrite() throws IOException {
+        storage.failure = new IOException("disk full");
+        assertFails(writer.submit(Mutation.add("apple", Meanings.of("a fruit"))));
+        storage.failure = null;
+        WriteBehindQueue.await(writer.submit(Mutation.add("pear", Meanings.of("another fruit"))));
+        assertEquals(1, storage.written.size());
+    }
+
+    @Test(timeout = 10000)
+    public void unexpectedErrorKeepsTheFlusherRunning() throws IOException {
+        storage.failure = new IllegalStateException("bug in the storage");
+        assertFails(writer.submit(Mutation.add("apple", Meanings.of("a fruit"))));
+        storage.failure = null;
+        // a dead flusher would leave these waiting forever
+        WriteBehindQueue.await(writer.submit(Mutation.add("pear", Meanings.of("another fruit"))));
+        writer.awaitFlushed();
+        assertEquals(1, storage.written.size());
+    }
+
+    @Test(timeout = 10000)
+    public void queuedChangesAreReadUntilFailed() throws IOException {
+        storage.gate = new CountDownLatch(1);
+        storage.failure = new IOException("disk full");
+        CompletableFuture<Void> written = writer.submit(Mutation.add("apple", Meanings.of("a fruit")));
+        assertEquals(Meanings.of("a fruit"), writer.read("apple"));
+        storage.gate.countDown();
+        assertFails(written);
+        // read from the dictionary file again, where the word never arrived
+        assertNull(writer.read("apple"));
+    }
+
+    private static String request(DictionaryServer server, String json) throws Exception {
+        ClientSession session = new ClientSession(InetAddress.getLoopbackAddress(), 50000) {
+            @Override
+            void send(ByteBuffer response) {
+            }
+
+            @Override
+            void close() {
+            }
+        };
+        return StandardCharsets.UTF_8.decode(server.handle(json, session)).toString();
+    }
+
+    @Test(timeout = 10000)
+    public void failedWriteIsUndoneInMemory() throws Exception {
+        DictionaryStore dictionary = new DictionaryStore();
+        dictionary.put("apple", Meanings.of("a fruit"));
+        DictionaryServer server = new DictionaryServer(dictionary, log, storage, writer, true);
+        storage.failure = new IOException("disk full");
+
+        assertTrue(request(server, "{\"mode\":\"add\",\"word\":\"pear\",\"meaning\":\"another fruit\"}").contains("Database error!"));
+        assertNull(dictionary.get("pear"));
+        assertTrue(request(server, "{\"mode\":\"update\",\"word\":\"apple\",\"meaning\":\"a company\"}").contains("Database error!"));
+        assertEquals(Meanings.of("a fruit"), dictionary.get("apple"));
+        assertTrue(request(server, "{\"mode\":\"remove\",\"word\":\"apple\",\"meaning\":\"\"}").contains("Database error!"));
+        assertEquals(Meanings.of("a fruit"), dictionary.get("apple"));
+
+        // every write of a batch is undone, in reverse order
+        String batch = request(server, "{\"mode\":\"batch\",\"operations\":["
+                + "{\"mode\":\"add\",\"word\":\"pear\",\"meaning\":\"another fruit\"},"
+                + "{\"mode\":\"update\",\"word\":\"pear\",\"meaning\":\"a shape\"},"
+                + "{\"mode\":\"remove\",\"word\":\"apple\"}]}");
+        assertTrue(batch.contains("Database error!"));
+        assertNull(dictionary.get("pear"));
+        assertEquals(Meanings.of("a fruit"), dictionary.get("apple"));
+
+        storage.failure = null;
+        assertFalse(request(server, "{\"mode\":\"add\",\"word\":\"pear\",\"meaning\":\"another fruit\"}").contains("Database error!"));
+        assertEquals(Meanings.of("another fruit"), dictionary.get("pear"));
+    }
+}